@@ -0,0 +1,185 @@
+package pt.davidafsilva.jvault.model;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * This entity represents a change of a {@link SecureEntry} in a {@link
+ * pt.davidafsilva.jvault.vault.Vault}: either the write of the entry or its deletion.
+ *
+ * Every change made to a vault is identified by a monotonically increasing sequence number,
+ * which allows the changes to be exported incrementally (see {@link
+ * pt.davidafsilva.jvault.vault.Vault#exportSince(long)}). Written entries are exported along with
+ * the initial vector used in their cipher, without which they cannot be deciphered.
+ *
+ * This class is immutable, therefore it inherits it's thread-safe nature.
+ *
+ * @author David Silva
+ */
+public final class EntryChange {
+
+  // properties
+  private final long sequence;
+  private final long timestamp;
+  private final String key;
+  private final SecureEntry entry;
+  private final byte[] iv;
+
+  /**
+   * Creates a new entry change
+   *
+   * @param sequence  the sequence number of the change
+   * @param timestamp the change timestamp
+   * @param key       the entry key
+   * @param entry     the written entry, none for deletions
+   * @param iv        the IV used in the cipher of the written entry
+   */
+  private EntryChange(final long sequence, final long timestamp, final String key,
+                      final SecureEntry entry, final byte[] iv) {
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.key = key;
+    this.entry = entry;
+    this.iv = iv;
+  }
+
+  /**
+   * Static factory method for the creation of the change of a written {@link SecureEntry}.
+   *
+   * @param sequence the sequence number of the change
+   * @param entry    the written entry
+   * @param iv       the IV used in the cipher of the entry
+   * @return the entry change
+   */
+  public static EntryChange written(final long sequence, final SecureEntry entry,
+                                    final byte[] iv) {
+    return new EntryChange(sequence, entry.getCreationDate(), entry.getKey(), entry,
+                           Arrays.copyOf(iv, iv.length));
+  }
+
+  /**
+   * Static factory method for the creation of the change of a deleted entry.
+   *
+   * @param sequence  the sequence number of the change
+   * @param timestamp the deletion timestamp
+   * @param key       the key of the deleted entry
+   * @return the entry change
+   */
+  public static EntryChange deleted(final long sequence, final long timestamp, final String key) {
+    return new EntryChange(sequence, timestamp, key, null, new byte[0]);
+  }
+
+  /**
+   * Returns the sequence number of the change
+   *
+   * @return the sequence number
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Returns the timestamp of the change: the creation timestamp of the written entry or the
+   * deletion timestamp.
+   *
+   * @return the change timestamp
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Returns the key of the changed entry
+   *
+   * @return the entry key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Returns the written entry
+   *
+   * @return the written entry, or none if the entry was deleted
+   */
+  public Optional<SecureEntry> getEntry() {
+    return Optional.ofNullable(entry);
+  }
+
+  /**
+   * Returns the initial vector used in the cipher of the written entry
+   *
+   * @return the initial vector, empty if the entry was deleted
+   */
+  public byte[] getInitVector() {
+    return Arrays.copyOf(iv, iv.length);
+  }
+
+  /**
+   * Checks whether or not this change is a deletion
+   *
+   * @return {@code true} if the entry was deleted, {@code false} otherwise
+   */
+  public boolean isDeletion() {
+    return entry == null;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    final EntryChange that = (EntryChange) o;
+    return sequence == that.sequence && key.equals(that.key);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = Long.hashCode(sequence);
+    result = 31 * result + key.hashCode();
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" + "sequence: " + sequence + ", key: " + key
+           + (entry == null ? ", deleted" : ", value: " + entry.getValue()) + "}";
+  }
+}
@@ -66,4 +66,17 @@ public final class SecureEntry extends AbstractEntry {
   public static SecureEntry of(final String key, final String value) {
     return new SecureEntry(Instant.now().toEpochMilli(), key, value);
   }
+
+  /**
+   * Static factory method for the creation of an {@link SecureEntry} with a known creation
+   * timestamp, such as the one of a previously persisted entry.
+   *
+   * @param timestamp the entry's creation timestamp (epoch milliseconds)
+   * @param key       the original key
+   * @param value     the ciphered value
+   * @return an secure entry with the given key-value pair
+   */
+  public static SecureEntry of(final long timestamp, final String key, final String value) {
+    return new SecureEntry(timestamp, key, value);
+  }
 }
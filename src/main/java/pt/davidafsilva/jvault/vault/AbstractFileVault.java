@@ -33,24 +33,52 @@ package pt.davidafsilva.jvault.vault;
  * #L%
  */
 
+import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.zip.ZipException;
 
-import javax.crypto.Mac;
-
+import pt.davidafsilva.jvault.model.EntryChange;
 import pt.davidafsilva.jvault.model.SecureEntry;
 import pt.davidafsilva.jvault.model.UnsecureEntry;
 
@@ -60,23 +88,59 @@ import pt.davidafsilva.jvault.model.UnsecureEntry;
  *
  * @author David Silva
  */
-abstract class AbstractFileVault<S extends OutputStream> implements FileVault {
+abstract class AbstractFileVault<S extends Closeable & Flushable>
+    implements FileVault, SortedVault {
 
   // logger
   private static final Logger log = LoggerFactory.getLogger(AbstractFileVault.class);
 
-  // the MAC algorithm
-  private static final String MAC_ALGORITHM = "HmacSHA256";
+  // the suffix of the temporary files
+  private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+  // the suffix of the backup files
+  private static final String BACKUP_FILE_SUFFIX = ".bak";
 
   // the change flag
   private final AtomicBoolean changed;
 
+  // the group commit monitor
+  private final Object commits = new Object();
+
+  // whether or not a commit (persist) is in flight, guarded by the commits monitor
+  private boolean committing;
+
+  // the last sequence number known to be persisted, guarded by the commits monitor
+  private long committed;
+
   // the path/file name
   private final Path path;
 
+  // the file options
+  final FileVaultOptions options;
+
   // the backed in-memory vault
   final InMemoryVault inMemoryVault;
 
+  // the state of the file, as last loaded or persisted
+  private volatile FileState fileState;
+
+  // the scheduled watcher of the file, if watched
+  private final ScheduledFuture<?> watcher;
+
+  // whether or not the vault was restored from the backup file, which is then to be kept
+  private volatile boolean restored;
+
+  // the ranges of keys lost while loading the file, in degraded mode
+  private volatile List<LostRange> lostRanges = Collections.emptyList();
+
+  // the duration of the load, in nanoseconds, -1 if detached
+  private final long loadNanos;
+
+  // the duration of the last persist, in nanoseconds, and the size of the persisted file, -1 if
+  // not persisted yet
+  private volatile long persistNanos = -1;
+  private volatile long persistSize = -1;
+
   /**
    * Creates a vault with the specified parameters.
    *
@@ -107,19 +171,90 @@ abstract class AbstractFileVault<S extends OutputStream> implements FileVault {
    */
   AbstractFileVault(final char[] password, final byte[] salt, final int iterations,
                     final int keyLength, final Path path) throws VaultInitializationException {
+    this(VaultKey.derive(password, salt, iterations, keyLength), path);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key.
+   *
+   * @param key  the vault key
+   * @param path the path of the vault file
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  AbstractFileVault(final VaultKey key, final Path path) throws VaultInitializationException {
+    this(key, path, FileVaultOptions.DEFAULT);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key and file options.
+   *
+   * @param key     the vault key
+   * @param path    the path of the vault file
+   * @param options the file options
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  AbstractFileVault(final VaultKey key, final Path path, final FileVaultOptions options)
+      throws VaultInitializationException {
+    this(key, path, options, new VaultSequence());
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key, file options and source of
+   * sequence numbers.
+   *
+   * @param key      the vault key
+   * @param path     the path of the vault file
+   * @param options  the file options
+   * @param sequence the source of the sequence numbers of the changes
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  AbstractFileVault(final VaultKey key, final Path path, final FileVaultOptions options,
+                    final VaultSequence sequence) throws VaultInitializationException {
     this.path = path;
+    this.options = options;
     final File fp = path.toFile();
-    if (fp.exists() && (!fp.isFile() || !fp.canRead())) {
+    if ((fp.exists() || options.readOnly) && (!fp.isFile() || !fp.canRead())) {
       throw new VaultInitializationException(
           "Invalid vault file, not a file or no read permissions");
-    } else if (!fp.canWrite()) {
+    } else if (!options.readOnly && !fp.canWrite()) {
       throw new VaultInitializationException(
           "Invalid vault file, no write permissions");
     }
-    inMemoryVault = new InMemoryVault(password, salt, iterations, keyLength);
+    // the vault is flagged as changed before the mutation lock is released, see commit()
     changed = new AtomicBoolean(false);
+    inMemoryVault = new InMemoryVault(key, sequence, () -> changed.set(true), options.ordered,
+                                      options.packed);
     // initialize the vault
+    final long start = System.nanoTime();
     load();
+    loadNanos = System.nanoTime() - start;
+    committed = inMemoryVault.sequence.current();
+    if (options.readOnly) {
+      // the entries are published along with the (final) in-memory vault
+      inMemoryVault.seal();
+    }
+    // watch the file for changes, if enabled
+    final long interval = options.readOnly ? 0 : options.reloadInterval;
+    watcher = interval > 0 ? Watchers.SCHEDULER.scheduleWithFixedDelay(
+        this::watch, interval, interval, TimeUnit.MILLISECONDS) : null;
+  }
+
+  /**
+   * Creates a detached vault with the specified (previously derived) key, which is not bound to
+   * any file and, as such, is not loaded nor able to be persisted.
+   *
+   * Detached vaults are meant to be used only for reading/writing the vault format from/to
+   * arbitrary streams, such as by the {@link VaultConverter}.
+   *
+   * @param key the vault key
+   */
+  AbstractFileVault(final VaultKey key) {
+    this.path = null;
+    this.options = FileVaultOptions.DEFAULT;
+    changed = new AtomicBoolean(false);
+    inMemoryVault = new InMemoryVault(key);
+    watcher = null;
+    loadNanos = -1;
   }
 
   /**
@@ -128,25 +263,30 @@ abstract class AbstractFileVault<S extends OutputStream> implements FileVault {
    * @throws VaultInitializationException if the any of the security settings are not supported or
    *                                      an invalid key is used.
    */
+  @SuppressWarnings("try") // the file lock is held, but never referenced, by the try block
   private void load() throws VaultInitializationException {
     try {
+      discardTemporaryFiles();
+    } catch (final IOException ioe) {
+      log.error("I/O error", ioe);
+      throw new VaultInitializationException("Unable to discard the temporary files", ioe);
+    }
+    try (final VaultFileLock lock = options.locked ? VaultFileLock.acquire(path, true) : null) {
       log.info("initializing the vault from file..");
-      final File fp = path.toFile();
-      // check the file
-      if (fp.exists() && fp.canRead() && fp.isFile()) {
-        // read the data
-        final byte[] data = Files.readAllBytes(path);
-        if (data.length > 0) {
-          buildVaultFromData(data);
-          log.info("vault successfully loaded");
-        } else {
-          log.info("no entries in the vault.");
+      fileState = FileState.of(path);
+      try {
+        loadFile(path);
+      } catch (final VaultCorruptedException e) {
+        final Path backup = backupFile(path);
+        if (!Files.isRegularFile(backup)) {
+          throw e;
         }
-      } else if (fp.exists()) {
-        log.error("unable to read the vault file");
-        throw new IOException("Unable to read the vault file");
-      } else {
-        log.info("no file for loading, skipping load.");
+        log.warn("corrupted vault file, restoring the backup file..", e);
+        inMemoryVault.clear();
+        loadFile(backup);
+        // the restored vault replaces the corrupted file on the next persist
+        restored = true;
+        changed.set(true);
       }
     } catch (final IOException ioe) {
       log.error("I/O error", ioe);
@@ -154,14 +294,208 @@ abstract class AbstractFileVault<S extends OutputStream> implements FileVault {
     }
   }
 
+  /**
+   * Discards the temporary files of the interrupted persists of the vault file, which are
+   * incomplete, while the vault file is left untouched.
+   *
+   * The temporary files are only discarded by the (writable) locked vaults, while holding the
+   * exclusive lock, since the temporary files of the persists in flight are indistinguishable from
+   * the ones of interrupted persists.
+   *
+   * @throws IOException if an I/O error occurs while discarding the temporary files
+   */
+  @SuppressWarnings("try") // the file lock is held, but never referenced, by the try block
+  private void discardTemporaryFiles() throws IOException {
+    if (options.readOnly) {
+      return;
+    } else if (!options.locked) {
+      if (!temporaryFiles(path).isEmpty()) {
+        log.warn("found temporary files of interrupted persists, discarded only when locked");
+      }
+      return;
+    }
+    try (final VaultFileLock lock = VaultFileLock.acquire(path, false)) {
+      for (final Path temporary : temporaryFiles(path)) {
+        if (Files.deleteIfExists(temporary)) {
+          log.warn("discarded the temporary file {} of an interrupted persist", temporary);
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads the contents of the given vault file.
+   *
+   * @param file the vault (or backup) file
+   * @throws IOException                  if an I/O error occurs while reading the file
+   * @throws VaultCorruptedException      if the file is corrupted
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used.
+   */
+  private void loadFile(final Path file) throws IOException, VaultInitializationException {
+    final File fp = file.toFile();
+    // check the file
+    if (fp.exists() && fp.canRead() && fp.isFile()) {
+      // read the data
+      byte[] data = Files.readAllBytes(file);
+      if (VaultCompression.isCompressed(data)) {
+        log.debug("decompressing {}b of vault data", data.length);
+        data = decompress(data);
+      }
+      if (data.length > 0) {
+        buildVaultFromData(data);
+        log.info("vault successfully loaded");
+      } else {
+        log.info("no entries in the vault.");
+      }
+    } else if (fp.exists()) {
+      log.error("unable to read the vault file");
+      throw new IOException("Unable to read the vault file");
+    } else {
+      log.info("no file for loading, skipping load.");
+    }
+  }
+
+  /**
+   * Decompresses the given (compressed) file data
+   *
+   * @param data the compressed file data
+   * @return the decompressed file data
+   * @throws VaultCorruptedException if the compressed data is corrupted
+   */
+  private byte[] decompress(final byte[] data) {
+    try {
+      return VaultCompression.decompress(data);
+    } catch (final ZipException e) {
+      log.error("unable to decompress the vault data", e);
+      throw new VaultCorruptedException("vault structured is corrupted");
+    }
+  }
+
   /**
    * Builds the vault from the given data, previously read from the file
    *
+   * The default implementation reads the data through {@link #readVault(InputStream,
+   * EntryHandler)}, storing each one of the entries at the backed in-memory vault.
+   *
    * @param data the file data
    * @throws VaultCorruptedException if the data is corrupted
    */
-  abstract void buildVaultFromData(final byte[] data)
-      throws VaultCorruptedException, VaultInitializationException;
+  void buildVaultFromData(final byte[] data)
+      throws VaultCorruptedException, VaultInitializationException {
+    try {
+      readVault(new ByteArrayInputStream(data), new EntryHandler() {
+        @Override
+        public void sequence(final long sequence) {
+          log.debug("last change sequence: {}", sequence);
+          inMemoryVault.sequence.advance(sequence);
+        }
+
+        @Override
+        public void header(final byte[] mac, final int entries) {
+          if (log.isDebugEnabled()) {
+            log.debug("MAC: {}", Hex.encodeHexString(mac));
+          }
+          log.debug("found {} secure entries", entries);
+        }
+
+        @Override
+        public void entry(final InMemoryVault.SecureEntryWrapper wrapper) {
+          // write entry to the vault
+          inMemoryVault.store(wrapper.entry, wrapper);
+        }
+
+        @Override
+        public void tombstone(final InMemoryVault.Tombstone tombstone) {
+          inMemoryVault.store(tombstone);
+        }
+      });
+    } catch (final IOException e) {
+      // no actual I/O is involved, the data is somehow invalid
+      log.error("unable to read the vault data", e);
+      vaultCorrupted();
+    }
+  }
+
+  /**
+   * Reads the vault data from the given stream, verifying its integrity.
+   *
+   * The entries are handed to the given handler as they're read, thus before the vault MAC is
+   * verified, which only happens after all of the data is read.
+   *
+   * @param stream  the stream with the vault data
+   * @param handler the handler of the read data
+   * @throws IOException                  if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException      if the data is corrupted
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used
+   */
+  void readVault(final InputStream stream, final EntryHandler handler)
+      throws IOException, VaultInitializationException {
+    try {
+      final VaultMac vaultMac = new VaultMac(inMemoryVault.secret);
+      final byte[][] mac = new byte[1][];
+      readEntries(stream, new EntryHandler() {
+        @Override
+        public void sequence(final long sequence) throws IOException {
+          vaultMac.sequence(sequence);
+          handler.sequence(sequence);
+        }
+
+        @Override
+        public void header(final byte[] readMac, final int entries) throws IOException {
+          mac[0] = readMac;
+          vaultMac.entries(entries);
+          handler.header(readMac, entries);
+        }
+
+        @Override
+        public void entry(final InMemoryVault.SecureEntryWrapper wrapper) throws IOException {
+          vaultMac.entry(wrapper);
+          handler.entry(wrapper);
+        }
+
+        @Override
+        public void tombstones(final int tombstones) throws IOException {
+          vaultMac.tombstones(tombstones);
+          handler.tombstones(tombstones);
+        }
+
+        @Override
+        public void tombstone(final InMemoryVault.Tombstone tombstone) throws IOException {
+          vaultMac.tombstone(tombstone);
+          handler.tombstone(tombstone);
+        }
+      });
+
+      // check mac
+      final byte[] calculatedMAC = vaultMac.doFinal();
+      if (!Arrays.equals(mac[0], calculatedMAC)) {
+        log.error("invalid MAC found: {}", Hex.encodeHexString(calculatedMAC));
+        vaultCorrupted();
+      }
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      log.error("invalid keys / mac algorithm", e);
+      throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm", e);
+    }
+  }
+
+  /**
+   * Reads the vault data from the given stream, handing the read MAC and each one of the entries
+   * to the given handler, as they're read.
+   *
+   * Implementations are not required to verify the read MAC, which is done by {@link
+   * #readVault(InputStream, EntryHandler)}, but must ensure that exactly the announced number of
+   * entries (and tombstones) is read. The last sequence number of the vault, when stored, must be
+   * handed before the MAC and the tombstones after the entries.
+   *
+   * @param stream  the stream with the vault data
+   * @param handler the handler of the read data
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the data is corrupted
+   */
+  abstract void readEntries(final InputStream stream, final EntryHandler handler)
+      throws IOException;
 
   /**
    * Throws an {@link VaultCorruptedException} denoting that the data read is somehow corrupted and
@@ -176,76 +510,458 @@ abstract class AbstractFileVault<S extends OutputStream> implements FileVault {
   /**
    * {@inheritDoc}
    *
-   * This implementation ignores concurrent calls to this method, adhering to
+   * This implementation groups concurrent calls to this method into a single commit: the callers
+   * that arrive while a commit is in flight wait for it to complete and, if their changes were not
+   * included in it, join the next one, which is done by one of them on behalf of all. Either way,
+   * the callers only return once their changes are persisted. The vault {@link DurabilityPolicy
+   * durability policy} defines how long a commit waits for the concurrent callers to join it.
    */
   @Override
   public void persist() throws IOException, VaultOperationException {
-    if (changed.compareAndSet(true, false)) {
-      final Collection<InMemoryVault.SecureEntryWrapper> values = inMemoryVault.map.values();
-      try (final S stream = createStream(path)) {
-        writeHeader(stream, values);
-        writeMac(stream, calculateMAC(values));
-        writeEntries(stream, values);
-        writeFooter(stream, values);
+    // the changes made so far, including the ones of the caller, must be covered by a commit
+    final long requested = inMemoryVault.sequence.current();
+    synchronized (commits) {
+      while (committed < requested && committing) {
+        try {
+          commits.wait();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while waiting for the vault commit");
+        }
+      }
+      if (committed >= requested) {
+        return;
+      }
+      committing = true;
+    }
+
+    long durable = 0;
+    try {
+      // give the concurrent callers the chance to join the commit
+      final long interval = options.durability.getBatchInterval();
+      if (interval > 0) {
+        Thread.sleep(interval);
+      }
+      durable = commit();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while batching the vault commit");
+    } finally {
+      synchronized (commits) {
+        committing = false;
+        committed = Math.max(committed, durable);
+        commits.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Commits the vault changes, persisting the vault if changed.
+   *
+   * @return the sequence number up to which (inclusive) the changes are persisted
+   * @throws IOException             if an I/O error occurs while writing the vault file
+   * @throws VaultOperationException if any of the security settings are not supported or an
+   *                                 invalid key is used
+   */
+  @SuppressWarnings("try") // the file lock is held, but never referenced, by the try block
+  private long commit() throws IOException, VaultOperationException {
+    // the lock is taken before the change flag is reset, so that no reload occurs in between
+    try (final VaultFileLock lock = options.locked ? VaultFileLock.acquire(path, false) : null) {
+      // every change up to the watermark has flagged the vault as changed, since the flag is set
+      // while holding the mutation lock, thus it's either reset below or by a previous commit
+      final long watermark = inMemoryVault.sequence.watermark();
+      if (changed.compareAndSet(true, false)) {
+        try {
+          persistChanges();
+        } catch (final IOException | VaultOperationException | RuntimeException e) {
+          // the changes are yet to be persisted
+          changed.set(true);
+          throw e;
+        }
+      }
+      return watermark;
+    }
+  }
+
+  /**
+   * Persists the vault, synchronizing the file with the storage device.
+   *
+   * The vault is written to a temporary file, next to the vault file, which then atomically
+   * replaces the vault file, thus the vault file is never left incomplete, either it's the previous
+   * or the new one. The temporary file is synchronized before the replacement, and the directory
+   * after it, otherwise a crash could leave the replaced vault file empty. The previous vault file is kept as the backup file, if enabled.
+   *
+   * @throws IOException             if an I/O error occurs while writing the vault file
+   * @throws VaultOperationException if any of the security settings are not supported or an
+   *                                 invalid key is used
+   */
+  private void persistChanges() throws IOException, VaultOperationException {
+    final long start = System.nanoTime();
+    final List<InMemoryVault.SecureEntryWrapper> values;
+    final Collection<InMemoryVault.Tombstone> tombstones;
+    final long sequence;
+    // both the entries and the tombstones are taken as of the same (complete) change
+    final Lock exclusive = inMemoryVault.sequence.exclusiveLock();
+    exclusive.lock();
+    try {
+      final int purged = inMemoryVault.purge(System.currentTimeMillis()
+                                             - options.tombstoneRetention);
+      if (purged > 0) {
+        log.debug("purged {} tombstones past their retention", purged);
+      }
+      values = new ArrayList<>(inMemoryVault.map.values());
+      tombstones = new ArrayList<>(inMemoryVault.tombstones.values());
+      sequence = inMemoryVault.sequence.current();
+    } finally {
+      exclusive.unlock();
+    }
+    sortEntries(values);
+    final Path temporary = temporaryFile(path);
+    try {
+      try (final OutputStream output = openStream(temporary);
+           final S stream = createStream(output)) {
+        writeVault(stream, calculateMAC(sequence, values, tombstones), sequence, values,
+                   tombstones);
         stream.flush();
       } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
         throw new VaultOperationException("Invalid keys or unsupported MAC algorithm", e);
       }
+      // the whole (closed) file is synchronized, including any compression trailer
+      try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      // the backup of a restored vault is kept, rather than the corrupted vault file
+      if (options.backup && !restored && Files.isRegularFile(path)) {
+        backup(path);
+      }
+      replace(temporary, path);
+    } catch (final IOException | VaultOperationException | RuntimeException e) {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+    syncDirectory(path);
+    restored = false;
+    // our own changes are not to be reloaded
+    final FileState state = FileState.of(path);
+    fileState = state;
+    persistSize = state == null ? -1 : state.size;
+    persistNanos = System.nanoTime() - start;
+  }
+
+  /**
+   * Sorts the entries to be persisted, if the format requires them in some order.
+   *
+   * The default implementation keeps the entries as they are.
+   *
+   * @param values the entries to be persisted
+   */
+  void sortEntries(final List<InMemoryVault.SecureEntryWrapper> values) {
+    // no particular order by default
+  }
+
+  /**
+   * Keeps the given vault file as its backup file, replacing the previous backup, if any.
+   *
+   * The backup is a (hard) link to the vault file, whenever supported by the file system, which is
+   * kept as is once the vault file is replaced.
+   *
+   * @param path the path of the vault file
+   * @throws IOException if an I/O error occurs while creating the backup
+   */
+  private static void backup(final Path path) throws IOException {
+    final Path backup = backupFile(path);
+    Files.deleteIfExists(backup);
+    try {
+      Files.createLink(backup, path);
+    } catch (final UnsupportedOperationException | IOException e) {
+      log.debug("unable to link the backup file, copying it instead", e);
+      Files.copy(path, backup, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Replaces the given vault file by the given (complete) temporary file, atomically if supported
+   * by the file system.
+   *
+   * @param temporary the temporary file
+   * @param path      the path of the vault file
+   * @throws IOException if an I/O error occurs while replacing the file
+   */
+  static void replace(final Path temporary, final Path path) throws IOException {
+    try {
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (final AtomicMoveNotSupportedException e) {
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Synchronizes the directory of the given vault file with the storage device, making the
+   * replacement of the file durable. Ignored by the platforms where directories cannot be
+   * synchronized.
+   *
+   * @param path the path of the vault file
+   */
+  static void syncDirectory(final Path path) {
+    final Path directory = path.toAbsolutePath().getParent();
+    try (final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (final IOException e) {
+      log.debug("unable to synchronize the vault directory", e);
+    }
+  }
+
+  /**
+   * Returns a new temporary file of the given vault file, where the vault is written when
+   * persisted. Each temporary file is uniquely named, thus the persists of different processes
+   * never write to (or discard) the same temporary file.
+   *
+   * @param path the path of the vault file
+   * @return the path of the temporary file, which is yet to be created
+   */
+  static Path temporaryFile(final Path path) {
+    final Path absolute = path.toAbsolutePath().normalize();
+    return absolute.resolveSibling(absolute.getFileName() + "."
+                                   + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                                   + TEMPORARY_FILE_SUFFIX);
+  }
+
+  /**
+   * Returns the existing temporary files of the given vault file, see {@link
+   * #temporaryFile(Path)}
+   *
+   * @param path the path of the vault file
+   * @return the paths of the temporary files
+   * @throws IOException if an I/O error occurs while listing the directory of the vault file
+   */
+  static List<Path> temporaryFiles(final Path path) throws IOException {
+    final Path absolute = path.toAbsolutePath().normalize();
+    final String prefix = absolute.getFileName() + ".";
+    final List<Path> temporaries = new ArrayList<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(absolute.getParent())) {
+      for (final Path file : stream) {
+        final String name = file.getFileName().toString();
+        if (name.startsWith(prefix) && name.endsWith(TEMPORARY_FILE_SUFFIX)) {
+          temporaries.add(file);
+        }
+      }
     }
+    return temporaries;
   }
 
   /**
-   * Creates a stream to be used to write the vault data
+   * Returns the backup file of the given vault file
    *
    * @param path the path of the vault file
+   * @return the path of the backup file
+   */
+  static Path backupFile(final Path path) {
+    final Path absolute = path.toAbsolutePath().normalize();
+    return absolute.resolveSibling(absolute.getFileName() + BACKUP_FILE_SUFFIX);
+  }
+
+  /**
+   * Reloads the vault file, if it was changed (by another process) since it was last loaded or
+   * persisted, applying only the changed entries and deletions to the backed in-memory vault.
+   *
+   * The entries are compared against the current ones while the file is read (and its integrity
+   * verified), under a shared file lock, but none is applied until the whole file is verified.
+   * Each one of the changes is then applied individually, without blocking the readers, unless
+   * the entry has been changed meanwhile, in which case the local change prevails. The reload is
+   * skipped altogether if there are local changes yet to be persisted, which would otherwise
+   * overwrite the reloaded ones on the next persist.
+   *
+   * @return the number of applied changes
+   * @throws IOException                  if an I/O error occurs while reading the vault file
+   * @throws VaultCorruptedException      if the vault file is corrupted
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used.
+   */
+  @SuppressWarnings("try") // the file lock is held, but never referenced, by the try block
+  int reload() throws IOException, VaultInitializationException {
+    try (final VaultFileLock lock = VaultFileLock.acquire(path, true)) {
+      final FileState state = FileState.of(path);
+      if (Objects.equals(state, fileState)) {
+        return 0;
+      } else if (changed.get()) {
+        log.warn("vault file changed, but there are local changes to be persisted. skipping..");
+        return 0;
+      }
+
+      log.info("reloading the changed vault file..");
+      // the entries changed locally from now on are newer than the file, thus never swept below
+      final long watermark = inMemoryVault.sequence.watermark();
+      final List<ReloadedChange> pending = new ArrayList<>();
+      final Set<String> keys = new HashSet<>();
+      try {
+        byte[] data = state == null ? new byte[0] : Files.readAllBytes(path);
+        if (VaultCompression.isCompressed(data)) {
+          data = decompress(data);
+        }
+        if (data.length > 0) {
+          readVault(new ByteArrayInputStream(data), new EntryHandler() {
+            @Override
+            public void header(final byte[] mac, final int entries) {
+              log.debug("found {} secure entries", entries);
+            }
+
+            @Override
+            public void entry(final InMemoryVault.SecureEntryWrapper wrapper) {
+              final String key = wrapper.entry.getKey();
+              keys.add(key);
+              final InMemoryVault.SecureEntryWrapper current = inMemoryVault.map.get(key);
+              if (!isSameEntry(current, wrapper)) {
+                pending.add(new ReloadedChange(current, wrapper, null));
+              }
+            }
+
+            @Override
+            public void tombstone(final InMemoryVault.Tombstone tombstone) {
+              keys.add(tombstone.key);
+              final InMemoryVault.SecureEntryWrapper current =
+                  inMemoryVault.map.get(tombstone.key);
+              final InMemoryVault.Tombstone known = inMemoryVault.tombstones.get(tombstone.key);
+              if (current != null || known == null || known.sequence != tombstone.sequence) {
+                pending.add(new ReloadedChange(current, null, tombstone));
+              }
+            }
+          });
+        }
+      } catch (final VaultCorruptedException e) {
+        // no point on reloading the same (corrupted) data again
+        fileState = state;
+        throw e;
+      }
+
+      // the entries no longer at the file were deleted, unless changed locally meanwhile
+      final long timestamp = System.currentTimeMillis();
+      for (final Map.Entry<String, InMemoryVault.SecureEntryWrapper> entry :
+          inMemoryVault.map.entrySet()) {
+        if (!keys.contains(entry.getKey()) && entry.getValue().sequence <= watermark) {
+          pending.add(new ReloadedChange(entry.getValue(), null,
+                                         new InMemoryVault.Tombstone(entry.getKey(), 0,
+                                                                     timestamp)));
+        }
+      }
+
+      // the local changes made while reading the file are to be persisted first
+      if (changed.get()) {
+        log.warn("vault changed locally while reloading the file. skipping..");
+        return 0;
+      }
+      int applied = 0;
+      for (final ReloadedChange change : pending) {
+        if (change.entry != null ? inMemoryVault.reload(change.expected, change.entry)
+                                 : inMemoryVault.reload(change.expected, change.tombstone)) {
+          applied++;
+        }
+      }
+      fileState = state;
+      log.info("vault reloaded, {} changes applied", applied);
+      return applied;
+    }
+  }
+
+  /**
+   * Checks whether or not the given current and reloaded entries are the same
+   *
+   * @param current  the current entry, if any
+   * @param reloaded the reloaded entry
+   * @return {@code true} if both are the same entry, {@code false} otherwise
+   */
+  private static boolean isSameEntry(final InMemoryVault.SecureEntryWrapper current,
+                                     final InMemoryVault.SecureEntryWrapper reloaded) {
+    return current != null &&
+           (reloaded.sequence == 0 || current.sequence == reloaded.sequence) &&
+           current.entry.equals(reloaded.entry) &&
+           Arrays.equals(current.iv, reloaded.iv);
+  }
+
+  /**
+   * Reloads the vault file, as scheduled by the watcher, logging any failure.
+   */
+  private void watch() {
+    try {
+      reload();
+    } catch (final IOException | VaultInitializationException | RuntimeException e) {
+      log.error("unable to reload the vault file", e);
+    }
+  }
+
+  /**
+   * Records the ranges of keys lost while loading the vault file, in degraded mode.
+   *
+   * @param lost the lost ranges of keys
+   */
+  void lost(final List<LostRange> lost) {
+    if (!lost.isEmpty()) {
+      log.warn("the vault was loaded in degraded mode, lost ranges: {}", lost);
+    }
+    lostRanges = Collections.unmodifiableList(new ArrayList<>(lost));
+  }
+
+  @Override
+  public List<LostRange> lostRanges() {
+    return lostRanges;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation stops watching the vault file, if watched.
+   */
+  @Override
+  public void close() {
+    if (watcher != null) {
+      watcher.cancel(false);
+    }
+  }
+
+  /**
+   * Opens the (file) stream where to write the vault data, which compresses the data if the vault
+   * is set to be compressed.
+   *
+   * @param path the path of the vault file
+   * @return the file output stream
+   * @throws IOException if an I/O error occurs while opening the stream
+   */
+  OutputStream openStream(final Path path) throws IOException {
+    final OutputStream stream = Files.newOutputStream(path);
+    return options.compressed ? VaultCompression.compress(stream) : stream;
+  }
+
+  /**
+   * Creates a stream to be used to write the vault data over the given (file) stream.
+   *
+   * Closing the created stream must close the given stream as well.
+   *
+   * @param stream the file output stream
    * @return the output stream
+   * @throws IOException if an I/O error occurs while creating the stream
    */
-  abstract S createStream(final Path path) throws FileNotFoundException;
+  abstract S createStream(final OutputStream stream) throws IOException;
 
   /**
-   * Calculates the cryptographic MAC of the given collection of secure entries.
+   * Calculates the cryptographic MAC of the given collection of secure entries and tombstones.
    *
-   * @param values the entries to be included in the mac calculation
+   * @param sequence   the last sequence number of the vault
+   * @param values     the entries to be included in the mac calculation
+   * @param tombstones the tombstones to be included in the mac calculation
    * @return the cryptographic MAC
    * @throws NoSuchAlgorithmException if the chosen MAC algorithm does not exist
    * @throws InvalidKeyException      if the give used for the MAC is invalid
    */
-  protected byte[] calculateMAC(final Collection<InMemoryVault.SecureEntryWrapper> values)
+  protected byte[] calculateMAC(final long sequence,
+                                final Collection<InMemoryVault.SecureEntryWrapper> values,
+                                final Collection<InMemoryVault.Tombstone> tombstones)
       throws NoSuchAlgorithmException, InvalidKeyException {
-    // initialize the mac
-    final Mac mac = Mac.getInstance(MAC_ALGORITHM);
-    mac.init(inMemoryVault.secret);
-
-    //TODO:
-    // check performance of this lambda, 2 iterations -> map + foreach update
-
-    // calculate the byte array length
-    // 1. # entries (int)
-    // 2. key len (int) + key data
-    // 3. value len (int) + value data
-    // 4. iv len (int) + iv data
-    final int len = values.stream().mapToInt(wrapper -> {
-      final byte[] key = wrapper.entry.getKey().getBytes(Vault.VAULT_CS);
-      final byte[] value = wrapper.entry.getValue().getBytes(Vault.VAULT_CS);
-      final byte[] iv = wrapper.iv;
-      return (3 * Integer.BYTES) + key.length + value.length + iv.length;
-    }).sum() + Integer.BYTES;
-
-    // allocate the buffer
-    final ByteBuffer buffer = ByteBuffer.allocate(len);
-
-    // write the data to be maced
-    buffer.putInt(values.size());
-    values.forEach(wrapper -> {
-      final byte[] key = wrapper.entry.getKey().getBytes(Vault.VAULT_CS);
-      final byte[] value = wrapper.entry.getValue().getBytes(Vault.VAULT_CS);
-      final byte[] iv = wrapper.iv;
-      buffer.putInt(key.length).putInt(value.length).putInt(iv.length).put(key).put(value)
-          .put(iv);
-    });
-
-    // calculate the mac
-    return mac.doFinal(buffer.array());
+    final VaultMac mac = new VaultMac(inMemoryVault.secret).sequence(sequence)
+        .entries(values.size());
+    values.forEach(mac::entry);
+    mac.tombstones(tombstones.size());
+    tombstones.forEach(mac::tombstone);
+    return mac.doFinal();
   }
 
   /**
@@ -258,11 +974,55 @@ abstract class AbstractFileVault<S extends OutputStream> implements FileVault {
    */
   byte[] calculateMAC(final byte[] data)
       throws NoSuchAlgorithmException, InvalidKeyException {
-    // initialize the mac
-    final Mac mac = Mac.getInstance(MAC_ALGORITHM);
-    mac.init(inMemoryVault.secret);
-    // calculate the mac
-    return mac.doFinal(data);
+    return calculateMAC(data, 0, data.length);
+  }
+
+  /**
+   * Calculates the MAC of the given region of the byte data
+   *
+   * @param data   the byte data
+   * @param offset the offset of the region within the data
+   * @param length the length of the region
+   * @return the mac of the byte data region
+   * @throws NoSuchAlgorithmException if the chosen MAC algorithm does not exist
+   * @throws InvalidKeyException      if the give used for the MAC is invalid
+   */
+  byte[] calculateMAC(final byte[] data, final int offset, final int length)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    return new VaultMac(inMemoryVault.secret).update(data, offset, length).doFinal();
+  }
+
+  /**
+   * Writes the vault data, including the given MAC, entries and tombstones, to the specified
+   * stream.
+   *
+   * @param stream     the stream where to write the data
+   * @param mac        the calculated MAC
+   * @param sequence   the last sequence number of the vault
+   * @param values     the entries to written
+   * @param tombstones the tombstones to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  void writeVault(final S stream, final byte[] mac, final long sequence,
+                  final Collection<InMemoryVault.SecureEntryWrapper> values,
+                  final Collection<InMemoryVault.Tombstone> tombstones) throws IOException {
+    final int entries = values.size();
+    writeHeader(stream, entries);
+    writeMac(stream, mac);
+    writeSequence(stream, sequence);
+    writeEntriesStart(stream, entries);
+    int index = 0;
+    for (final InMemoryVault.SecureEntryWrapper wrapper : values) {
+      writeEntry(stream, wrapper, index++);
+    }
+    writeEntriesEnd(stream, entries);
+    writeTombstonesStart(stream, tombstones.size());
+    index = 0;
+    for (final InMemoryVault.Tombstone tombstone : tombstones) {
+      writeTombstone(stream, tombstone, index++);
+    }
+    writeTombstonesEnd(stream, tombstones.size());
+    writeFooter(stream, entries);
   }
 
   /**
@@ -275,37 +1035,97 @@ abstract class AbstractFileVault<S extends OutputStream> implements FileVault {
   abstract void writeMac(final S stream, final byte[] mac) throws IOException;
 
   /**
-   * Writes the given entries to the specified stream.
+   * Writes the last sequence number of the vault to the specified stream.
    *
-   * @param stream the stream where to write the data
-   * @param values the entries to written
+   * @param stream   the stream where to write the data
+   * @param sequence the last sequence number of the vault
    * @throws IOException if an I/O error occurs while writing the data
    */
-  abstract void writeEntries(final S stream,
-                             final Collection<InMemoryVault.SecureEntryWrapper> values)
-      throws IOException;
+  abstract void writeSequence(final S stream, final long sequence) throws IOException;
+
+  /**
+   * Writes whatever precedes the entries to the specified stream.
+   *
+   * @param stream  the stream where to write the data
+   * @param entries the number of entries to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  abstract void writeEntriesStart(final S stream, final int entries) throws IOException;
+
+  /**
+   * Writes the given entry to the specified stream.
+   *
+   * @param stream  the stream where to write the data
+   * @param wrapper the entry to be written
+   * @param index   the index of the entry, within the entries being written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  abstract void writeEntry(final S stream, final InMemoryVault.SecureEntryWrapper wrapper,
+                           final int index) throws IOException;
+
+  /**
+   * Writes whatever succeeds the entries to the specified stream, if applicable and/or
+   * necessary
+   *
+   * @param stream  the stream where to write the data
+   * @param entries the number of entries written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  void writeEntriesEnd(final S stream, final int entries) throws IOException {
+    // empty by default
+  }
+
+  /**
+   * Writes whatever precedes the tombstones to the specified stream.
+   *
+   * @param stream     the stream where to write the data
+   * @param tombstones the number of tombstones to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  abstract void writeTombstonesStart(final S stream, final int tombstones) throws IOException;
+
+  /**
+   * Writes the given tombstone to the specified stream.
+   *
+   * @param stream    the stream where to write the data
+   * @param tombstone the tombstone to be written
+   * @param index     the index of the tombstone, within the tombstones being written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  abstract void writeTombstone(final S stream, final InMemoryVault.Tombstone tombstone,
+                               final int index) throws IOException;
+
+  /**
+   * Writes whatever succeeds the tombstones to the specified stream, if applicable and/or
+   * necessary
+   *
+   * @param stream     the stream where to write the data
+   * @param tombstones the number of tombstones written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  void writeTombstonesEnd(final S stream, final int tombstones) throws IOException {
+    // empty by default
+  }
 
   /**
    * Writes the file header if applicable and/or necessary
    *
-   * @param stream the stream where to write the data
-   * @param values the vault entries
+   * @param stream  the stream where to write the data
+   * @param entries the number of entries to be written
    * @throws IOException if an I/O error occurs while writing the data
    */
-  void writeHeader(final S stream, final Collection<InMemoryVault.SecureEntryWrapper> values)
-      throws IOException {
+  void writeHeader(final S stream, final int entries) throws IOException {
     // empty by default
   }
 
   /**
    * Writes the file footer if applicable and/or necessary
    *
-   * @param stream the stream where to write the data
-   * @param values the vault entries
+   * @param stream  the stream where to write the data
+   * @param entries the number of entries written
    * @throws IOException if an I/O error occurs while writing the data
    */
-  void writeFooter(final S stream, final Collection<InMemoryVault.SecureEntryWrapper> values)
-      throws IOException {
+  void writeFooter(final S stream, final int entries) throws IOException {
     // empty by default
   }
 
@@ -319,24 +1139,268 @@ abstract class AbstractFileVault<S extends OutputStream> implements FileVault {
     return inMemoryVault.read(key);
   }
 
+  @Override
+  public int size() {
+    return inMemoryVault.size();
+  }
+
+  @Override
+  public boolean containsKey(final String key) {
+    return inMemoryVault.containsKey(key);
+  }
+
+  @Override
+  public Stream<SecureEntry> stream() {
+    return inMemoryVault.stream();
+  }
+
+  @Override
+  public List<SecureEntry> scan(final String afterKey, final int limit) {
+    return inMemoryVault.scan(afterKey, limit);
+  }
+
+  @Override
+  public List<SecureEntry> readRange(final String fromKey, final String toKey, final int limit) {
+    return inMemoryVault.readRange(fromKey, toKey, limit);
+  }
+
+  @Override
+  public int deletePrefix(final String prefix) {
+    ensureWritable();
+    return inMemoryVault.deletePrefix(prefix);
+  }
+
   @Override
   public SecureEntry write(final UnsecureEntry entry) throws VaultOperationException {
-    final SecureEntry secureEntry = inMemoryVault.write(entry);
-    changed.set(true);
-    return secureEntry;
+    ensureWritable();
+    return inMemoryVault.write(entry);
   }
 
   @Override
   public Optional<SecureEntry> delete(final String key) {
-    final Optional<SecureEntry> secureEntryOptional = inMemoryVault.delete(key);
-    if (secureEntryOptional.isPresent()) {
-      changed.set(true);
+    ensureWritable();
+    return inMemoryVault.delete(key);
+  }
+
+  @Override
+  public Optional<SecureEntry> putIfAbsent(final UnsecureEntry entry)
+      throws VaultOperationException {
+    ensureWritable();
+    return inMemoryVault.putIfAbsent(entry);
+  }
+
+  @Override
+  public Optional<SecureEntry> replace(final String key, final SecureEntry expected,
+                                       final String value) throws VaultOperationException {
+    ensureWritable();
+    return inMemoryVault.replace(key, expected, value);
+  }
+
+  @Override
+  public Optional<SecureEntry> compute(final String key,
+                                       final UnaryOperator<Optional<String>> function)
+      throws VaultOperationException {
+    ensureWritable();
+    return inMemoryVault.compute(key, function);
+  }
+
+  /**
+   * Ensures that the vault can be changed
+   *
+   * @throws UnsupportedOperationException if the vault is read-only
+   */
+  private void ensureWritable() {
+    if (options.readOnly) {
+      throw new UnsupportedOperationException("The vault is read-only");
     }
-    return secureEntryOptional;
   }
 
   @Override
   public UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException {
     return inMemoryVault.translate(entry);
   }
+
+  @Override
+  public Stream<EntryChange> exportSince(final long sequence) {
+    return inMemoryVault.exportSince(sequence);
+  }
+
+  @Override
+  public VaultSnapshot snapshot() {
+    return inMemoryVault.snapshot();
+  }
+
+  @Override
+  public void freeze(final Path path) throws IOException, VaultOperationException {
+    inMemoryVault.freeze(path);
+  }
+
+  @Override
+  public VaultSubscription subscribe(final VaultListener listener, final Executor executor) {
+    return inMemoryVault.subscribe(listener, executor);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation adds the duration of the load and the last persist of the vault file, as
+   * well as its persisted size, to the statistics of the in-memory vault.
+   */
+  @Override
+  public VaultStats stats() {
+    return inMemoryVault.stats().withDurations(loadNanos, persistNanos, persistSize);
+  }
+
+  /**
+   * A change read from the vault file, yet to be applied.
+   */
+  private static final class ReloadedChange {
+
+    // properties
+    private final InMemoryVault.SecureEntryWrapper expected;
+    private final InMemoryVault.SecureEntryWrapper entry;
+    private final InMemoryVault.Tombstone tombstone;
+
+    /**
+     * Creates a change of either an entry or a deletion
+     *
+     * @param expected  the current entry of the key, when the change was read
+     * @param entry     the changed entry, {@code null} for a deletion
+     * @param tombstone the tombstone of the deletion, {@code null} for an entry
+     */
+    private ReloadedChange(final InMemoryVault.SecureEntryWrapper expected,
+                           final InMemoryVault.SecureEntryWrapper entry,
+                           final InMemoryVault.Tombstone tombstone) {
+      this.expected = expected;
+      this.entry = entry;
+      this.tombstone = tombstone;
+    }
+  }
+
+  /**
+   * The state of the vault file, as observed by its attributes, used to detect changes made to it.
+   */
+  private static final class FileState {
+
+    // properties
+    private final FileTime lastModified;
+    private final long size;
+    private final Object fileKey;
+
+    /**
+     * Reads the state of the given file
+     *
+     * @param path the path of the file
+     * @return the file state, {@code null} if it doesn't exist
+     * @throws IOException if an I/O error occurs while reading the file attributes
+     */
+    private static FileState of(final Path path) throws IOException {
+      if (!Files.exists(path)) {
+        return null;
+      }
+      final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      return new FileState(attributes.lastModifiedTime(), attributes.size(), attributes.fileKey());
+    }
+
+    /**
+     * Creates the file state with the given attributes
+     *
+     * @param lastModified the last modified time
+     * @param size         the file size
+     * @param fileKey      the file key, if available
+     */
+    private FileState(final FileTime lastModified, final long size, final Object fileKey) {
+      this.lastModified = lastModified;
+      this.size = size;
+      this.fileKey = fileKey;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof FileState)) {
+        return false;
+      }
+      final FileState that = (FileState) o;
+      return size == that.size && lastModified.equals(that.lastModified) &&
+             Objects.equals(fileKey, that.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(lastModified, size, fileKey);
+    }
+  }
+
+  /**
+   * The (lazily initialized) scheduler of the watchers of the vault files, shared by all of the
+   * watched vaults.
+   */
+  private static final class Watchers {
+
+    // the scheduler
+    private static final ScheduledExecutorService SCHEDULER =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+          final Thread thread = new Thread(runnable, "jvault-file-watcher");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * The handler of the vault data, as it's read from a stream.
+   */
+  interface EntryHandler {
+
+    /**
+     * Handles the last sequence number of the vault, which is read before the MAC. Vaults
+     * persisted before the changes were tracked have none.
+     *
+     * @param sequence the last sequence number of the vault
+     * @throws IOException if an I/O error occurs while handling the data
+     */
+    default void sequence(final long sequence) throws IOException {
+      // ignored by default
+    }
+
+    /**
+     * Handles the vault MAC and number of entries, which are read before any of the entries.
+     *
+     * @param mac     the vault MAC, as read from the stream
+     * @param entries the number of entries stored
+     * @throws IOException if an I/O error occurs while handling the data
+     */
+    void header(final byte[] mac, final int entries) throws IOException;
+
+    /**
+     * Handles a read entry.
+     *
+     * @param wrapper the read entry
+     * @throws IOException if an I/O error occurs while handling the entry
+     */
+    void entry(final InMemoryVault.SecureEntryWrapper wrapper) throws IOException;
+
+    /**
+     * Handles the number of tombstones, which are read after the entries. Vaults persisted before
+     * the changes were tracked have none.
+     *
+     * @param tombstones the number of tombstones stored
+     * @throws IOException if an I/O error occurs while handling the data
+     */
+    default void tombstones(final int tombstones) throws IOException {
+      // ignored by default
+    }
+
+    /**
+     * Handles a read tombstone.
+     *
+     * @param tombstone the read tombstone
+     * @throws IOException if an I/O error occurs while handling the tombstone
+     */
+    default void tombstone(final InMemoryVault.Tombstone tombstone) throws IOException {
+      // ignored by default
+    }
+  }
 }
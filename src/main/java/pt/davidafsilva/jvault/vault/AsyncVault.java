@@ -0,0 +1,292 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+/**
+ * An asynchronous facade of a {@link Vault}, which offloads the blocking operations of the vault,
+ * such as the (de)ciphering of the entries and the file I/O, to a dedicated and bounded executor.
+ * Each operation returns a {@link CompletableFuture}, completed by the executor with either the
+ * result of the operation or the exception thrown by it, thus the calling thread never blocks.
+ *
+ * The executor runs a fixed number of threads, created by the given {@link ThreadFactory}, and
+ * queues up to a fixed number of pending operations. Once the queue is full, further operations
+ * are rejected: their future is completed exceptionally with a {@link
+ * RejectedExecutionException}, rather than blocking the calling thread. The depth of the queue and
+ * the number of rejected operations are exposed, in order to be monitored.
+ *
+ * The facade must be closed once no longer used, which lets the pending operations complete. The
+ * vault itself is not closed, while the operations submitted afterwards are completed
+ * exceptionally with an {@link IllegalStateException}.
+ *
+ * @author David Silva
+ */
+public final class AsyncVault implements Closeable {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(AsyncVault.class);
+
+  // the ids of the default executor threads
+  private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+  // properties
+  private final Vault vault;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Creates the facade of the given vault.
+   *
+   * @param vault         the vault
+   * @param threads       the number of threads of the executor
+   * @param queueCapacity the maximum number of pending operations
+   * @param threadFactory the factory of the executor threads
+   */
+  private AsyncVault(final Vault vault, final int threads, final int queueCapacity,
+                     final ThreadFactory threadFactory) {
+    this.vault = vault;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                           new ArrayBlockingQueue<>(queueCapacity),
+                                           threadFactory, new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * Creates an asynchronous facade of the given vault, backed by an executor with the given
+   * number of (daemon) threads and queue capacity.
+   *
+   * @param vault         the vault
+   * @param threads       the number of threads of the executor
+   * @param queueCapacity the maximum number of pending operations
+   * @return the asynchronous vault
+   */
+  public static AsyncVault of(final Vault vault, final int threads, final int queueCapacity) {
+    return of(vault, threads, queueCapacity, runnable -> {
+      final Thread thread = new Thread(runnable, "jvault-async-" + THREAD_IDS.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Creates an asynchronous facade of the given vault, backed by an executor with the given
+   * number of threads, created by the given factory, and queue capacity.
+   *
+   * @param vault         the vault
+   * @param threads       the number of threads of the executor
+   * @param queueCapacity the maximum number of pending operations
+   * @param threadFactory the factory of the executor threads, such as a virtual threads one
+   * @return the asynchronous vault
+   */
+  public static AsyncVault of(final Vault vault, final int threads, final int queueCapacity,
+                              final ThreadFactory threadFactory) {
+    Objects.requireNonNull(vault, "Invalid vault specified");
+    Objects.requireNonNull(threadFactory, "Invalid thread factory specified");
+    if (threads <= 0 || queueCapacity <= 0) {
+      throw new IllegalArgumentException("Invalid number of threads or queue capacity");
+    }
+    return new AsyncVault(vault, threads, queueCapacity, threadFactory);
+  }
+
+  /**
+   * Returns the backing vault, such as for the (non-blocking) reads
+   *
+   * @return the vault
+   */
+  public Vault getVault() {
+    return vault;
+  }
+
+  /**
+   * Writes the given key-value pair to the vault, asynchronously.
+   *
+   * @param entry the unsecure entry
+   * @return the future of the secure entry for the given key-value pair
+   * @see Vault#write(UnsecureEntry)
+   */
+  public CompletableFuture<SecureEntry> write(final UnsecureEntry entry) {
+    return submit(() -> vault.write(entry));
+  }
+
+  /**
+   * Translates the secured entry into the original (unsecured) entry, asynchronously.
+   *
+   * @param entry the entry to be translated
+   * @return the future of the original value
+   * @see Vault#translate(SecureEntry)
+   */
+  public CompletableFuture<UnsecureEntry> translate(final SecureEntry entry) {
+    return submit(() -> vault.translate(entry));
+  }
+
+  /**
+   * Deletes the entry stored in the vault with the given {@code key}, asynchronously.
+   *
+   * @param key the key for the entry
+   * @return the future of the deleted entry, or none if there's no such mapping.
+   * @see Vault#delete(String)
+   */
+  public CompletableFuture<Optional<SecureEntry>> delete(final String key) {
+    return submit(() -> vault.delete(key));
+  }
+
+  /**
+   * Persists the vault, asynchronously.
+   *
+   * @return the future of the persist, completed exceptionally with an {@link
+   * UnsupportedOperationException} if the vault is not a {@link FileVault}
+   * @see FileVault#persist()
+   */
+  public CompletableFuture<Void> persist() {
+    return submit(() -> {
+      if (!(vault instanceof FileVault)) {
+        throw new UnsupportedOperationException("The vault cannot be persisted");
+      }
+      ((FileVault) vault).persist();
+      return null;
+    });
+  }
+
+  /**
+   * Returns the number of operations waiting for an executor thread
+   *
+   * @return the depth of the queue
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Returns the number of operations being run by the executor threads
+   *
+   * @return the number of active operations
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Returns the (approximate) number of completed operations
+   *
+   * @return the number of completed operations
+   */
+  public long getCompletedCount() {
+    return executor.getCompletedTaskCount();
+  }
+
+  /**
+   * Returns the number of operations rejected due to a full queue
+   *
+   * @return the number of rejected operations
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Submits the given operation to the executor
+   *
+   * @param operation the operation
+   * @param <T>       the type of the result of the operation
+   * @return the future of the result of the operation
+   */
+  private <T> CompletableFuture<T> submit(final Operation<T> operation) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    if (executor.isShutdown()) {
+      future.completeExceptionally(new IllegalStateException("The vault is closed"));
+      return future;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          future.complete(operation.run());
+        } catch (final Throwable t) {
+          // the errors would otherwise leave the future incomplete
+          future.completeExceptionally(t);
+        }
+      });
+    } catch (final RejectedExecutionException e) {
+      if (executor.isShutdown()) {
+        // closed meanwhile
+        future.completeExceptionally(new IllegalStateException("The vault is closed", e));
+        return future;
+      }
+      rejected.incrementAndGet();
+      log.warn("vault operation rejected, {} operations pending", getQueueDepth());
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Shuts the executor down, letting the pending operations complete.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  /**
+   * A (blocking) vault operation.
+   *
+   * @param <T> the type of the result of the operation
+   */
+  @FunctionalInterface
+  private interface Operation<T> {
+
+    /**
+     * Runs the operation
+     *
+     * @return the result of the operation
+     * @throws Exception if an error occurs while running the operation
+     */
+    T run() throws Exception;
+  }
+}
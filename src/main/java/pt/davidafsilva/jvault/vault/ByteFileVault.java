@@ -33,33 +33,74 @@ package pt.davidafsilva.jvault.vault;
  * #L%
  */
 
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import pt.davidafsilva.jvault.model.SecureEntry;
 
 /**
  * A file based vault implementation, in which the data is stored in byte (raw) format.
  *
- * the format of the data is the following:
+ * the format (v3) of the data is the following:
  * <pre>
+ * --------------------------------------------------------------------
+ * | Magic ("JVLT") | Version (3) | Flags                             |
+ * --------------------------------------------------------------------
+ * | Iterations | Key length | Salt length | Salt data ....           |
+ * --------------------------------------------------------------------
+ * | MAC length | MAC data ....                                       |
+ * --------------------------------------------------------------------
+ * | Sequence | ## Entries                                            |
+ * --------------------------------------------------------------------
+ * | Entries block 1 | ... | Entries block N | Tombstones block       |
+ * --------------------------------------------------------------------
+ * | Block index | Index MAC | Index length | Magic ("JVLT")          |
+ * --------------------------------------------------------------------
+ *
+ * Block format:
+ * -----------------------------------------
+ * | Length | Type | ## Records            |
+ * -----------------------------------------
+ * | Record 1 | ... | Record N | Block MAC |
+ * -----------------------------------------
+ *
+ * Block index format:
+ * -----------------------------------------
+ * | ## Blocks | Block 1 | ... | Block N   |
  * -----------------------------------------
- * | MAC length | MAC data ....            |
+ * | Offset | Length | Type | ## Records   |
  * -----------------------------------------
- * | ## Entries | Entry 1 | ... | Entry N  |
+ * | First key length | First key data     |
+ * -----------------------------------------
+ * | Last key length  | Last key data      |
  * -----------------------------------------
  *
  * Entry format:
@@ -68,17 +109,97 @@ import pt.davidafsilva.jvault.model.SecureEntry;
  * -----------------------------------------
  * | Key data   | Value data   | IV data   |
  * -----------------------------------------
+ * | Sequence (*) | Timestamp (*)          |
+ * -----------------------------------------
+ *
+ * Tombstone format:
+ * -----------------------------------------
+ * | Key length | Key data                 |
+ * -----------------------------------------
+ * | Sequence   | Timestamp                |
+ * -----------------------------------------
  * </pre>
  *
+ * All of the lengths, numbers, offsets, sequence numbers, timestamps and the key derivation
+ * settings are stored as unsigned variable length integers (7 bits per byte, least significant
+ * group first), except for the block and index lengths, which are 4 byte integers. The value data
+ * is the raw cipher text, rather than its hexadecimal representation. The key derivation settings
+ * must match the ones of the vault key.
+ *
+ * The entries are persisted sorted by their key and grouped into blocks of about {@value
+ * #BLOCK_SIZE} bytes, followed by a single block with the tombstones. Each block has its own MAC,
+ * calculated over the vault MAC, the block number and the block data, while the block index,
+ * which locates each block and the range of keys it holds, is covered by the index MAC,
+ * calculated over the vault MAC, the sequence, the number of entries and the index data. Both
+ * MACs are truncated to their first 16 bytes. The vault MAC is the same as the one of every other
+ * format (see {@link VaultMac}), which is verified when the vault is read as a stream, whereas
+ * loading the vault verifies the block and index MACs instead, concurrently for larger vaults.
+ *
+ * A vault loaded in degraded mode has its intact blocks loaded, even if some of the blocks (or
+ * the block index) are corrupted, and the lost ranges of keys reported. These ranges are exact
+ * when the block index is intact, otherwise the blocks are scanned in order and each lost range
+ * is estimated by the keys of the surrounding intact blocks.
+ *
+ * Vaults in the v2 format, which lacks the blocks, storing the entries (and tombstones) right
+ * after the number of entries, are still readable, as are the ones in the original (v1) format,
+ * which also lacks the header and stores every length and number as 4 byte integers and the value
+ * data as the UTF-8 bytes of its hexadecimal representation. The MAC of v1 vaults is calculated
+ * directly over the stored entries. The fields marked with (*) are only stored when the {@value
+ * #FLAG_TRACKED} (changes tracked) flag is set, which is always the case for the vaults written by
+ * this implementation. Previous versions are written in the current format once persisted.
+ *
+ * Vaults with at least {@value #PARALLEL_LOAD_THRESHOLD} entries are loaded concurrently: each
+ * block (or, for v1/v2 vaults, chunk of entries located by scanning the length prefixes) is
+ * verified and decoded by the common fork-join pool.
+ *
  * This implementation is backed by a {@link InMemoryVault} vault.
  *
  * @author David Silva
  */
-final class ByteFileVault extends AbstractFileVault<DataOutputStream> {
+final class ByteFileVault extends AbstractFileVault<ByteFileVault.BlockOutputStream> {
 
   // logger
   private static final Logger log = LoggerFactory.getLogger(ByteFileVault.class);
 
+  // the magic number of the vault file: "JVLT"
+  static final int MAGIC = 0x4A564C54;
+
+  // the current version of the vault file format
+  static final int VERSION = 3;
+
+  // the previous (non block based) version of the vault file format
+  static final int UNBLOCKED_VERSION = 2;
+
+  // the flags of the vault file format
+  static final int NO_FLAGS = 0;
+  static final int FLAG_TRACKED = 1;
+
+  // the number of entries from which the vault is loaded concurrently
+  static final int PARALLEL_LOAD_THRESHOLD = 1 << 13;
+
+  // the number of chunks, per available processor, in which the entries are split when loading
+  private static final int PARALLEL_LOAD_CHUNKS_PER_CPU = 4;
+
+  // the number of index fields per entry: data offset, key, value and IV lengths (the changes
+  // metadata, if any, follows the IV data)
+  private static final int INDEX_FIELDS = 4;
+
+  // the size of the scratch buffer used to validate the MAC
+  private static final int MAC_SCRATCH_SIZE = 1 << 16;
+
+  // the (approximate) size of the data of each block
+  static final int BLOCK_SIZE = 1 << 16;
+
+  // the types of blocks
+  private static final int ENTRIES_BLOCK = 0;
+  private static final int TOMBSTONES_BLOCK = 1;
+
+  // the size of the block and index MACs, which are truncated (to 128 bits)
+  private static final int MAC_SIZE = 16;
+
+  // the size of the footer: the index length and the magic number
+  private static final int FOOTER_SIZE = 2 * Integer.BYTES;
+
   /**
    * Creates a vault with the specified parameters.
    *
@@ -111,9 +232,68 @@ final class ByteFileVault extends AbstractFileVault<DataOutputStream> {
     super(password, salt, iterations, keyLength, path);
   }
 
+  /**
+   * Creates a vault with the specified (previously derived) key.
+   *
+   * @param key  the vault key
+   * @param path the path of the vault file
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  ByteFileVault(final VaultKey key, final Path path) throws VaultInitializationException {
+    super(key, path);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key and file options.
+   *
+   * @param key     the vault key
+   * @param path    the path of the vault file
+   * @param options the file options
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  ByteFileVault(final VaultKey key, final Path path, final FileVaultOptions options)
+      throws VaultInitializationException {
+    super(key, path, options);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key, file options and source of
+   * sequence numbers, which may be shared with other vaults.
+   *
+   * @param key      the vault key
+   * @param path     the path of the vault file
+   * @param options  the file options
+   * @param sequence the source of the sequence numbers of the changes
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  ByteFileVault(final VaultKey key, final Path path, final FileVaultOptions options,
+                final VaultSequence sequence) throws VaultInitializationException {
+    super(key, path, options, sequence);
+  }
+
+  /**
+   * Creates a detached vault with the specified (previously derived) key.
+   *
+   * @param key the vault key
+   * @see AbstractFileVault#AbstractFileVault(VaultKey)
+   */
+  ByteFileVault(final VaultKey key) {
+    super(key);
+  }
+
   @Override
-  DataOutputStream createStream(final Path path) throws FileNotFoundException {
-    return new DataOutputStream(new FileOutputStream(path.toFile()));
+  BlockOutputStream createStream(final OutputStream stream) {
+    return new BlockOutputStream(stream);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The entries are sorted by key, so that each block holds a (disjoint) range of keys.
+   */
+  @Override
+  void sortEntries(final List<InMemoryVault.SecureEntryWrapper> values) {
+    values.sort(Comparator.comparing(wrapper -> wrapper.entry.getKey()));
   }
 
   /**
@@ -126,31 +306,471 @@ final class ByteFileVault extends AbstractFileVault<DataOutputStream> {
   void buildVaultFromData(final byte[] data)
       throws VaultCorruptedException, VaultInitializationException {
     final ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+    final boolean legacy = data.length < Integer.BYTES || byteBuffer.getInt(0) != MAGIC;
+    final Header header;
+    final int totalEntries;
+    final int[] index;
+    final List<InMemoryVault.Tombstone> tombstones;
+    if (legacy) {
+      log.debug("loading legacy (v1) vault");
+      header = null;
+      totalEntries = readLegacyHeader(data, byteBuffer);
+      index = indexLegacyEntries(byteBuffer, totalEntries);
+      tombstones = Collections.emptyList();
+    } else {
+      header = readHeader(data, byteBuffer);
+      totalEntries = readVarInt(byteBuffer);
+      log.debug("found {} secure entries", totalEntries);
+      // each entry requires at least its 3 lengths to be stored
+      if (totalEntries > byteBuffer.remaining() / 3) {
+        log.error("invalid number of entries read from the vault: {}", totalEntries);
+        vaultCorrupted();
+      }
+      if (header.blocked) {
+        loadBlocks(data, byteBuffer.position(), header, totalEntries);
+        return;
+      }
+      index = indexEntries(byteBuffer, totalEntries, header.tracked);
+      tombstones = header.tracked ? readTombstones(byteBuffer) : Collections.emptyList();
+    }
+
+    // the buffer must be empty here!
+    if (byteBuffer.hasRemaining()) {
+      log.error("unexpected data at the end of the vault ({}b)", byteBuffer.remaining());
+      vaultCorrupted();
+    }
+
+    // the MAC of the legacy vaults is validated beforehand, over the raw data
+    if (!legacy) {
+      validateMAC(header, data, index, totalEntries, tombstones);
+      if (header.tracked) {
+        inMemoryVault.sequence.advance(header.sequence);
+      }
+    }
+
+    // decode the entries, which for larger vaults is done concurrently
+    final boolean tracked = !legacy && header.tracked;
+    if (totalEntries >= PARALLEL_LOAD_THRESHOLD) {
+      final int chunks = Runtime.getRuntime().availableProcessors() * PARALLEL_LOAD_CHUNKS_PER_CPU;
+      final int chunkSize = (totalEntries + chunks - 1) / chunks;
+      log.debug("loading {} entries in {} chunks of {} entries", totalEntries, chunks, chunkSize);
+      IntStream.range(0, chunks).parallel().forEach(chunk -> loadEntries(
+          data, index, Math.min(totalEntries, chunk * chunkSize),
+          Math.min(totalEntries, (chunk + 1) * chunkSize), legacy, tracked));
+    } else {
+      loadEntries(data, index, 0, totalEntries, legacy, tracked);
+    }
+    tombstones.forEach(inMemoryVault::store);
+  }
+
+  /**
+   * Loads the blocks of a (v3) vault, which start at the given offset of the data, verifying
+   * each one of them (concurrently, for larger vaults) along with the block index.
+   *
+   * In degraded mode, the intact blocks are loaded regardless of the corrupted ones, which are
+   * reported as lost ranges of keys. The blocks are scanned in order, if the block index itself
+   * is corrupted.
+   *
+   * @param data         the file data
+   * @param start        the offset of the first block
+   * @param header       the vault header
+   * @param totalEntries the number of entries stored
+   * @throws VaultCorruptedException      if the blocks are corrupted, outside of degraded mode
+   * @throws VaultInitializationException if the MAC algorithm is not supported or the key is
+   *                                      invalid
+   */
+  private void loadBlocks(final byte[] data, final int start, final Header header,
+                          final int totalEntries) throws VaultInitializationException {
+    List<Block> blocks = readIndex(data, start, header, totalEntries);
+    final boolean indexed = blocks != null;
+    if (!indexed) {
+      if (!options.degraded) {
+        vaultCorrupted();
+      }
+      log.warn("corrupted block index, scanning the blocks..");
+      blocks = scanBlocks(data, start);
+    }
+
+    // verify and load the entries, concurrently for larger vaults
+    final List<Block> entries = blocks.stream()
+        .filter(block -> block.type != TOMBSTONES_BLOCK)
+        .collect(Collectors.toList());
+    final Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+    (totalEntries >= PARALLEL_LOAD_THRESHOLD ? entries.parallelStream() : entries.stream())
+        .forEach(block -> {
+          try {
+            block.intact = loadBlock(data, header, block);
+          } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+            failures.add(e);
+          }
+        });
+    final Optional<Block> tombstones = blocks.stream()
+        .filter(block -> block.type == TOMBSTONES_BLOCK)
+        .findFirst();
+    try {
+      if (tombstones.isPresent()) {
+        tombstones.get().intact = loadBlock(data, header, tombstones.get());
+      }
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      failures.add(e);
+    }
+    if (!failures.isEmpty()) {
+      log.error("invalid keys / mac algorithm", failures.peek());
+      throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm",
+                                             failures.peek());
+    }
+
+    // report the damage, if allowed to
+    final boolean complete = tombstones.isPresent() && tombstones.get().intact;
+    if (!complete || entries.stream().anyMatch(block -> !block.intact)) {
+      if (!options.degraded) {
+        vaultCorrupted();
+      }
+      if (!complete) {
+        log.warn("the tombstones block is lost, the vault deletions are no longer tracked");
+      }
+      lost(indexed ? exactLostRanges(entries) : estimatedLostRanges(entries, tombstones));
+    }
+    inMemoryVault.sequence.advance(header.sequence);
+  }
+
+  /**
+   * Reads (and verifies) the block index of a (v3) vault.
+   *
+   * @param data         the file data
+   * @param start        the offset of the first block
+   * @param header       the vault header
+   * @param totalEntries the number of entries stored
+   * @return the indexed blocks, {@code null} if the block index is corrupted
+   * @throws VaultInitializationException if the MAC algorithm is not supported or the key is
+   *                                      invalid
+   */
+  private List<Block> readIndex(final byte[] data, final int start, final Header header,
+                                final int totalEntries) throws VaultInitializationException {
+    // the footer
+    final int footer = data.length - FOOTER_SIZE;
+    if (footer - MAC_SIZE < start) {
+      log.error("missing block index");
+      return null;
+    }
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    final int indexLength = buffer.getInt(footer);
+    if (buffer.getInt(footer + Integer.BYTES) != MAGIC || indexLength < 0
+        || indexLength > footer - MAC_SIZE - start) {
+      log.error("invalid block index footer found");
+      return null;
+    }
+
+    // the index MAC
+    final int indexOffset = footer - MAC_SIZE - indexLength;
+    try {
+      final byte[] mac = indexMac(header.mac, header.sequence, totalEntries, data, indexOffset,
+                                  indexLength);
+      if (!MessageDigest.isEqual(mac, Arrays.copyOfRange(data, footer - MAC_SIZE, footer))) {
+        log.error("invalid block index MAC found: {}", Hex.encodeHexString(mac));
+        return null;
+      }
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      log.error("invalid keys / mac algorithm", e);
+      throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm", e);
+    }
+
+    // the (authentic) index, which must locate every block
+    try {
+      buffer.limit(indexOffset + indexLength);
+      buffer.position(indexOffset);
+      final int count = readVarInt(buffer);
+      final List<Block> blocks = new ArrayList<>();
+      int expected = start;
+      long entries = 0;
+      for (int number = 0; number < count; number++) {
+        final int offset = readVarInt(buffer);
+        final int length = readVarInt(buffer);
+        ensureBufferCapacity(buffer, 1);
+        final int type = buffer.get();
+        final int records = readVarInt(buffer);
+        final Block block = new Block(number, offset, length, type, records, readKey(buffer),
+                                      readKey(buffer));
+        if (offset != expected || length <= 0
+            || (long) offset + Integer.BYTES + length + MAC_SIZE > indexOffset
+            || (type != ENTRIES_BLOCK && (type != TOMBSTONES_BLOCK || number != count - 1))) {
+          log.error("invalid block {} indexed", number);
+          vaultCorrupted();
+        }
+        expected = offset + Integer.BYTES + length + MAC_SIZE;
+        entries += type == ENTRIES_BLOCK ? records : 0;
+        blocks.add(block);
+      }
+      if (buffer.hasRemaining() || expected != indexOffset || entries != totalEntries
+          || blocks.isEmpty() || blocks.get(blocks.size() - 1).type != TOMBSTONES_BLOCK) {
+        log.error("the block index does not match the blocks");
+        vaultCorrupted();
+      }
+      return blocks;
+    } catch (final VaultCorruptedException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Scans the blocks of a (v3) vault in order, locating them by their lengths, up to the
+   * tombstones block or the first block which can't be located.
+   *
+   * @param data  the file data
+   * @param start the offset of the first block
+   * @return the located blocks, without their records and range of keys
+   */
+  private static List<Block> scanBlocks(final byte[] data, final int start) {
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    final List<Block> blocks = new ArrayList<>();
+    int offset = start;
+    while (offset <= data.length - Integer.BYTES - 1 - MAC_SIZE) {
+      final int length = buffer.getInt(offset);
+      if (length <= 0 || length > data.length - offset - Integer.BYTES - MAC_SIZE) {
+        log.error("unable to locate the block {}", blocks.size());
+        break;
+      }
+      final int type = data[offset + Integer.BYTES];
+      blocks.add(new Block(blocks.size(), offset, length, type, -1, null, null));
+      if (type == TOMBSTONES_BLOCK) {
+        break;
+      }
+      offset += Integer.BYTES + length + MAC_SIZE;
+    }
+    return blocks;
+  }
+
+  /**
+   * Verifies and loads the given block, storing its entries (or tombstones) at the backing vault.
+   *
+   * This method is safe to be called concurrently for distinct blocks.
+   *
+   * @param data   the file data
+   * @param header the vault header
+   * @param block  the block
+   * @return {@code true} if the block is intact and was loaded, {@code false} otherwise
+   * @throws NoSuchAlgorithmException if the MAC algorithm is not supported
+   * @throws InvalidKeyException      if the vault key is invalid
+   */
+  private boolean loadBlock(final byte[] data, final Header header, final Block block)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    final int offset = block.offset + Integer.BYTES;
+    final int end = offset + block.length;
+    final byte[] mac = blockMac(header.mac, block.number, data, offset, block.length);
+    if (!MessageDigest.isEqual(mac, Arrays.copyOfRange(data, end, end + MAC_SIZE))) {
+      log.error("invalid MAC found for the block {}", block.number);
+      return false;
+    }
+
+    // the block is authentic, but it may still not match the index
+    try {
+      final ByteBuffer buffer = ByteBuffer.wrap(data, offset + 1, block.length - 1);
+      if (block.type == TOMBSTONES_BLOCK) {
+        final List<InMemoryVault.Tombstone> tombstones = readTombstones(buffer);
+        if (buffer.hasRemaining()) {
+          vaultCorrupted();
+        }
+        tombstones.forEach(inMemoryVault::store);
+        return true;
+      }
+
+      final int records = readVarInt(buffer);
+      final int[] index = indexEntries(buffer, records, true);
+      if (buffer.hasRemaining() || (block.records >= 0 && block.records != records)) {
+        vaultCorrupted();
+      }
+      if (block.records < 0) {
+        // scanned, thus the range of keys is yet to be known
+        for (int idx = 0; idx < records; idx++) {
+          final String key = new String(data, index[idx * INDEX_FIELDS],
+                                        index[idx * INDEX_FIELDS + 1], Vault.VAULT_CS);
+          block.firstKey = block.firstKey == null || key.compareTo(block.firstKey) < 0
+                           ? key : block.firstKey;
+          block.lastKey = block.lastKey == null || key.compareTo(block.lastKey) > 0
+                          ? key : block.lastKey;
+        }
+        block.records = records;
+      }
+      loadEntries(data, index, 0, records, false, true);
+      return true;
+    } catch (final VaultCorruptedException e) {
+      log.error("the block {} does not match its index", block.number);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the ranges of keys of the given lost (indexed) blocks
+   *
+   * @param blocks the entries blocks
+   * @return the lost ranges of keys
+   */
+  private static List<LostRange> exactLostRanges(final List<Block> blocks) {
+    return blocks.stream()
+        .filter(block -> !block.intact)
+        .map(block -> new LostRange(block.firstKey, block.lastKey, block.records, true))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Estimates the ranges of keys of the given lost (scanned) blocks, which are bounded by the
+   * keys of the surrounding intact blocks. The range is unbounded past the last intact block,
+   * if the blocks could not be scanned up to the tombstones block.
+   *
+   * @param blocks     the entries blocks
+   * @param tombstones the tombstones block, if found
+   * @return the lost ranges of keys
+   */
+  private static List<LostRange> estimatedLostRanges(final List<Block> blocks,
+                                                     final Optional<Block> tombstones) {
+    final List<LostRange> lost = new ArrayList<>();
+    String previous = null;
+    boolean losing = false;
+    for (final Block block : blocks) {
+      if (block.intact) {
+        if (losing) {
+          lost.add(new LostRange(previous, block.firstKey, -1, false));
+          losing = false;
+        }
+        previous = block.lastKey == null ? previous : block.lastKey;
+      } else {
+        losing = true;
+      }
+    }
+    if (losing || !tombstones.isPresent()) {
+      lost.add(new LostRange(previous, null, -1, false));
+    }
+    return lost;
+  }
+
+  /**
+   * Reads a key (of the block index) from the given buffer
+   *
+   * @param buffer the byte buffer with the index data
+   * @return the read key
+   * @throws VaultCorruptedException if the key is truncated
+   */
+  private String readKey(final ByteBuffer buffer) {
+    final int length = readVarInt(buffer);
+    ensureBufferCapacity(buffer, length);
+    final String key = new String(buffer.array(), buffer.position(), length, Vault.VAULT_CS);
+    buffer.position(buffer.position() + length);
+    return key;
+  }
+
+  /**
+   * Reads the header of the vault, moving the buffer position to the number of entries.
+   *
+   * @param data   the file data
+   * @param buffer the byte buffer with the vault data
+   * @return the vault header
+   * @throws VaultCorruptedException if the header is corrupted, unsupported or was written with
+   *                                 different key derivation settings
+   */
+  private Header readHeader(final byte[] data, final ByteBuffer buffer) {
+    try {
+      final ByteArrayInputStream stream = new ByteArrayInputStream(data);
+      final DataInputStream input = new DataInputStream(stream);
+      input.readInt(); // magic
+      final Header header = readHeader(input);
+      if (log.isDebugEnabled()) {
+        log.debug("MAC: {}", Hex.encodeHexString(header.mac));
+      }
+      buffer.position(data.length - stream.available());
+      return header;
+    } catch (final IOException e) {
+      log.error("unable to read the vault header", e);
+      throw new VaultCorruptedException("vault structured is corrupted");
+    }
+  }
+
+  /**
+   * Reads the header of the vault, past the magic number, from the given stream.
+   *
+   * @param input the input stream with the vault data
+   * @return the vault header
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the header is corrupted, unsupported or was written with
+   *                                 different key derivation settings
+   */
+  private Header readHeader(final DataInputStream input) throws IOException {
+    // version and flags
+    final int version = input.readUnsignedByte();
+    final int flags = input.readUnsignedByte();
+    if ((version != VERSION && version != UNBLOCKED_VERSION) || (flags & ~FLAG_TRACKED) != 0
+        || (version == VERSION && (flags & FLAG_TRACKED) == 0)) {
+      log.error("unsupported vault format (version: {}, flags: {})", version, flags);
+      vaultCorrupted();
+    }
+
+    // key derivation settings
+    final int iterations = readVarInt(input);
+    final int keyLength = readVarInt(input);
+    final VaultKey key = inMemoryVault.key;
+    final int saltLength = readVarInt(input);
+    if (saltLength != key.salt.length) {
+      log.error("the vault was written with a different salt (salt len: {}b)", saltLength);
+      vaultCorrupted();
+    }
+    final byte[] salt = new byte[saltLength];
+    input.readFully(salt);
+    if (iterations != key.iterations || keyLength != key.keyLength
+        || !Arrays.equals(salt, key.salt)) {
+      log.error("the vault was written with different key derivation settings "
+                + "(iterations: {}, key length: {})", iterations, keyLength);
+      vaultCorrupted();
+    }
+
+    // MAC
+    final int macLength = readVarInt(input);
+    if (macLength == 0 || macLength > VaultMac.MAC_LENGTH) {
+      log.error("invalid MAC length read (mac len: {}b)", macLength);
+      vaultCorrupted();
+    }
+    final byte[] mac = new byte[macLength];
+    input.readFully(mac);
+
+    // last sequence number
+    final boolean tracked = (flags & FLAG_TRACKED) != 0;
+    return new Header(mac, tracked, tracked ? readVarLong(input) : 0, version == VERSION);
+  }
+
+  /**
+   * Reads the header of the legacy (v1) vault, validating the MAC of the whole vault data and
+   * moving the buffer position to the first entry.
+   *
+   * @param data   the file data
+   * @param buffer the byte buffer with the vault data
+   * @return the number of entries stored
+   * @throws VaultCorruptedException      if the data is corrupted
+   * @throws VaultInitializationException if the MAC algorithm is not supported or the key is
+   *                                      invalid
+   */
+  private int readLegacyHeader(final byte[] data, final ByteBuffer buffer)
+      throws VaultInitializationException {
     // read MAC related
-    ensureBufferCapacity(byteBuffer, Integer.BYTES);
-    final int macLength = byteBuffer.getInt();
+    ensureBufferCapacity(buffer, Integer.BYTES);
+    final int macLength = buffer.getInt();
     if (macLength <= 0) {
       log.error("invalid MAC length read (mac len: {}b; remaining: {}b)", macLength,
-                byteBuffer.remaining());
+                buffer.remaining());
       vaultCorrupted();
     }
-    ensureBufferCapacity(byteBuffer, macLength);
+    ensureBufferCapacity(buffer, macLength);
     log.debug("MAC len: {}b", macLength);
 
     // read mac
     final byte[] mac = new byte[macLength];
-    byteBuffer.get(mac);
+    buffer.get(mac);
     if (log.isDebugEnabled()) {
       log.debug("MAC: {}", Hex.encodeHexString(mac));
     }
 
     // validate MAC already
-    ensureBufferCapacity(byteBuffer, Integer.BYTES); // at least the # of entries must be there
-    byteBuffer.mark();
-    final byte[] vaultData = new byte[byteBuffer.remaining()];
-    byteBuffer.get(vaultData);
+    ensureBufferCapacity(buffer, Integer.BYTES); // at least the # of entries must be there
+    final int dataOffset = buffer.position();
     try {
-      final byte[] calculatedMAC = calculateMAC(vaultData);
+      final byte[] calculatedMAC = calculateMAC(data, dataOffset, data.length - dataOffset);
       if (!Arrays.equals(mac, calculatedMAC)) {
         log.error("invalid MAC found: {}", Hex.encodeHexString(calculatedMAC));
         vaultCorrupted();
@@ -160,38 +780,266 @@ final class ByteFileVault extends AbstractFileVault<DataOutputStream> {
       throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm", e);
     }
 
-    byteBuffer.reset();
     // read vault data
-    final int totalEntries = byteBuffer.getInt();
+    final int totalEntries = buffer.getInt();
     log.debug("found {} secure entries", totalEntries);
+    // each entry requires at least its 3 lengths to be stored
+    if (totalEntries < 0 || totalEntries > buffer.remaining() / (3 * Integer.BYTES)) {
+      log.error("invalid number of entries read from the vault: {}", totalEntries);
+      vaultCorrupted();
+    }
+    return totalEntries;
+  }
+
+  /**
+   * Scans the length prefixes of the entries, starting at the current position of the given
+   * buffer, in order to locate the data of each one of them.
+   *
+   * The buffer position is moved past the last entry.
+   *
+   * @param buffer       the byte buffer with the vault data
+   * @param totalEntries the number of entries stored
+   * @param tracked      whether or not the entries are stored with their changes metadata
+   * @return the index of the entries: the data offset and key, value and IV lengths of each one
+   * @throws VaultCorruptedException if the structure of the entries is somehow corrupted
+   */
+  private int[] indexEntries(final ByteBuffer buffer, final int totalEntries,
+                             final boolean tracked) {
+    final int[] index = new int[totalEntries * INDEX_FIELDS];
+    for (int idx = 0; idx < totalEntries; idx++) {
+      // read entry data lengths
+      final int keyLength = readVarInt(buffer);
+      final int valueLength = readVarInt(buffer);
+      final int ivLength = readVarInt(buffer);
+      indexEntry(buffer, index, idx, keyLength, valueLength, ivLength);
+      if (tracked) {
+        // skip the sequence number and timestamp
+        readVarLong(buffer);
+        readVarLong(buffer);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Reads the tombstones stored at the current position of the given buffer, moving the buffer
+   * position past the last one.
+   *
+   * @param buffer the byte buffer with the vault data
+   * @return the read tombstones
+   * @throws VaultCorruptedException if the structure of the tombstones is somehow corrupted
+   */
+  private List<InMemoryVault.Tombstone> readTombstones(final ByteBuffer buffer) {
+    final int totalTombstones = readVarInt(buffer);
+    // each tombstone requires at least its key length and metadata to be stored
+    if (totalTombstones > buffer.remaining() / 3) {
+      log.error("invalid number of tombstones read from the vault: {}", totalTombstones);
+      vaultCorrupted();
+    }
+    final List<InMemoryVault.Tombstone> tombstones = new ArrayList<>(totalTombstones);
+    for (int idx = 0; idx < totalTombstones; idx++) {
+      final int keyLength = readVarInt(buffer);
+      ensureBufferCapacity(buffer, keyLength);
+      final String key = new String(buffer.array(), buffer.position(), keyLength,
+                                    Vault.VAULT_CS);
+      buffer.position(buffer.position() + keyLength);
+      final long sequence = readVarLong(buffer);
+      tombstones.add(new InMemoryVault.Tombstone(key, sequence, readVarLong(buffer)));
+    }
+    return tombstones;
+  }
+
+  /**
+   * Scans the (fixed size) length prefixes of the legacy (v1) entries, starting at the current
+   * position of the given buffer, in order to locate the data of each one of them.
+   *
+   * The buffer position is moved past the last entry.
+   *
+   * @param buffer       the byte buffer with the vault data
+   * @param totalEntries the number of entries stored
+   * @return the index of the entries: the data offset and key, value and IV lengths of each one
+   * @throws VaultCorruptedException if the structure of the entries is somehow corrupted
+   */
+  private int[] indexLegacyEntries(final ByteBuffer buffer, final int totalEntries) {
+    final int[] index = new int[totalEntries * INDEX_FIELDS];
     for (int idx = 0; idx < totalEntries; idx++) {
       // ensure that 3 integers are stored
-      ensureBufferCapacity(byteBuffer, 3 * Integer.BYTES);
+      ensureBufferCapacity(buffer, 3 * Integer.BYTES);
 
       // read entry data lengths
-      final byte[] key = new byte[byteBuffer.getInt()];
-      final byte[] value = new byte[byteBuffer.getInt()];
-      final byte[] iv = new byte[byteBuffer.getInt()];
+      final int keyLength = buffer.getInt();
+      final int valueLength = buffer.getInt();
+      final int ivLength = buffer.getInt();
+      indexEntry(buffer, index, idx, keyLength, valueLength, ivLength);
+    }
+    return index;
+  }
 
-      // ensure that all the data is stored
-      ensureBufferCapacity(byteBuffer, key.length + value.length + iv.length);
+  /**
+   * Indexes the entry which data starts at the current position of the given buffer, validating
+   * its lengths and moving the buffer position past its data.
+   *
+   * @param buffer      the byte buffer with the vault data
+   * @param index       the index of the entries
+   * @param idx         the index of the entry
+   * @param keyLength   the length of the key data
+   * @param valueLength the length of the value data
+   * @param ivLength    the length of the IV data
+   * @throws VaultCorruptedException if the lengths are invalid
+   */
+  private void indexEntry(final ByteBuffer buffer, final int[] index, final int idx,
+                          final int keyLength, final int valueLength, final int ivLength) {
+    if (keyLength < 0 || valueLength < 0 || ivLength < 0) {
+      log.error("invalid entry lengths read (key: {}b, value: {}b, iv: {}b)", keyLength,
+                valueLength, ivLength);
+      vaultCorrupted();
+    }
+
+    // ensure that all the data is stored and skip it
+    final long dataLength = (long) keyLength + valueLength + ivLength;
+    ensureBufferCapacity(buffer, dataLength);
+    final int base = idx * INDEX_FIELDS;
+    index[base] = buffer.position();
+    index[base + 1] = keyLength;
+    index[base + 2] = valueLength;
+    index[base + 3] = ivLength;
+    buffer.position(buffer.position() + (int) dataLength);
+  }
+
+  /**
+   * Validates the MAC of the indexed entries and tombstones against the one stored at the header
+   * of the vault
+   *
+   * @param header       the vault header
+   * @param data         the file data
+   * @param index        the index of the entries
+   * @param totalEntries the number of entries stored
+   * @param tombstones   the tombstones stored
+   * @throws VaultCorruptedException      if the MAC does not match the entries
+   * @throws VaultInitializationException if the MAC algorithm is not supported or the key is
+   *                                      invalid
+   */
+  private void validateMAC(final Header header, final byte[] data, final int[] index,
+                           final int totalEntries,
+                           final List<InMemoryVault.Tombstone> tombstones)
+      throws VaultInitializationException {
+    try {
+      final VaultMac vaultMac = new VaultMac(inMemoryVault.secret);
+      if (header.tracked) {
+        vaultMac.sequence(header.sequence);
+      }
+      vaultMac.entries(totalEntries);
+      // the (format independent) representation of the entries is built into a scratch buffer,
+      // to avoid updating the MAC with each of the small data fields
+      final ByteBuffer scratch = ByteBuffer.allocate(MAC_SCRATCH_SIZE);
+      final ByteBuffer metadata = ByteBuffer.wrap(data);
+      final int metadataSize = header.tracked ? 2 * Long.BYTES : 0;
+      for (int idx = 0; idx < totalEntries; idx++) {
+        final int base = idx * INDEX_FIELDS;
+        final int offset = index[base];
+        final int keyLength = index[base + 1];
+        final int valueLength = index[base + 2];
+        final int ivLength = index[base + 3];
+
+        // the MAC covers the hexadecimal representation of the value
+        final long size = 3L * Integer.BYTES + keyLength + 2L * valueLength + ivLength
+                          + metadataSize;
+        if (size > scratch.remaining()) {
+          vaultMac.update(scratch.array(), 0, scratch.position());
+          scratch.clear();
+        }
+        if (header.tracked) {
+          metadata.position(offset + keyLength + valueLength + ivLength);
+        }
+        if (size > scratch.capacity()) {
+          vaultMac.lengths(keyLength, valueLength << 1, ivLength)
+              .update(data, offset, keyLength);
+          final byte[] value = HexCodec.encode(data, offset + keyLength, valueLength);
+          vaultMac.update(value, 0, value.length)
+              .update(data, offset + keyLength + valueLength, ivLength);
+          if (header.tracked) {
+            final long sequence = readVarLong(metadata);
+            vaultMac.metadata(sequence, readVarLong(metadata));
+          }
+        } else {
+          scratch.putInt(keyLength).putInt(valueLength << 1).putInt(ivLength)
+              .put(data, offset, keyLength);
+          scratch.position(HexCodec.encode(data, offset + keyLength, valueLength,
+                                           scratch.array(), scratch.position()));
+          scratch.put(data, offset + keyLength + valueLength, ivLength);
+          if (header.tracked) {
+            scratch.putLong(readVarLong(metadata)).putLong(readVarLong(metadata));
+          }
+        }
+      }
+      vaultMac.update(scratch.array(), 0, scratch.position());
+      if (header.tracked) {
+        vaultMac.tombstones(tombstones.size());
+        tombstones.forEach(vaultMac::tombstone);
+      }
+
+      final byte[] calculatedMAC = vaultMac.doFinal();
+      if (!Arrays.equals(header.mac, calculatedMAC)) {
+        log.error("invalid MAC found: {}", Hex.encodeHexString(calculatedMAC));
+        vaultCorrupted();
+      }
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      log.error("invalid keys / mac algorithm", e);
+      throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm", e);
+    }
+  }
+
+  /**
+   * Decodes the entries in the given range and stores them at the backing vault.
+   *
+   * The structure of the entries must have been previously validated through {@link
+   * #indexEntries(ByteBuffer, int, boolean)}. This method is safe to be called concurrently for
+   * disjoint ranges.
+   *
+   * @param data   the file data
+   * @param index  the index of the entries
+   * @param from    the index of the first entry to be decoded, inclusive
+   * @param to      the index of the last entry to be decoded, exclusive
+   * @param legacy  whether or not the entries are stored in the legacy (v1) format
+   * @param tracked whether or not the entries are stored with their changes metadata
+   */
+  private void loadEntries(final byte[] data, final int[] index, final int from, final int to,
+                           final boolean legacy, final boolean tracked) {
+    final ByteBuffer metadata = ByteBuffer.wrap(data);
+    for (int idx = from; idx < to; idx++) {
+      // read entry data lengths
+      final int base = idx * INDEX_FIELDS;
+      int offset = index[base];
+      final int keyLength = index[base + 1];
+      final int valueLength = index[base + 2];
+      final int ivLength = index[base + 3];
 
       // read the data
-      byteBuffer.get(key);
-      byteBuffer.get(value);
-      byteBuffer.get(iv);
+      final String key = new String(data, offset, keyLength, Vault.VAULT_CS);
+      offset += keyLength;
+      final String value = legacy ? new String(data, offset, valueLength, Vault.VAULT_CS)
+                                  : new String(HexCodec.encode(data, offset, valueLength),
+                                               StandardCharsets.US_ASCII);
+      offset += valueLength;
+      final byte[] iv = Arrays.copyOfRange(data, offset, offset + ivLength);
+      offset += ivLength;
 
       // create the entry
-      final SecureEntry secureEntry = SecureEntry.of(new String(key, Vault.VAULT_CS),
-                                                     new String(value, Vault.VAULT_CS));
+      final SecureEntry secureEntry;
+      final long sequence;
+      if (tracked) {
+        metadata.position(offset);
+        sequence = readVarLong(metadata);
+        secureEntry = SecureEntry.of(readVarLong(metadata), key, value);
+      } else {
+        sequence = 0;
+        secureEntry = SecureEntry.of(key, value);
+      }
       final InMemoryVault.SecureEntryWrapper secureEntryWrapper =
-          new InMemoryVault.SecureEntryWrapper(secureEntry, iv);
+          new InMemoryVault.SecureEntryWrapper(secureEntry, iv, sequence);
       // write entry to the vault
       inMemoryVault.store(secureEntry, secureEntryWrapper);
     }
-
-    // the buffer must be empty here!
-    ensureBufferCapacity(byteBuffer, 0);
   }
 
   /**
@@ -201,44 +1049,718 @@ final class ByteFileVault extends AbstractFileVault<DataOutputStream> {
    * @param bytes  the number of bytes
    * @throws VaultCorruptedException if the buffer has not the given bytes available to be read
    */
-  private void ensureBufferCapacity(final ByteBuffer buffer, final int bytes) {
+  private void ensureBufferCapacity(final ByteBuffer buffer, final long bytes) {
     if (bytes > buffer.remaining()) {
       throw new VaultCorruptedException("vault structured is corrupted");
     }
   }
 
+  /**
+   * Reads an unsigned variable length integer from the given buffer
+   *
+   * @param buffer the byte buffer with the vault data
+   * @return the read integer
+   * @throws VaultCorruptedException if the integer is truncated or does not fit an integer
+   */
+  private int readVarInt(final ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+      ensureBufferCapacity(buffer, 1);
+      final int b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return checkVarInt(value, shift, b);
+      }
+    }
+    throw new VaultCorruptedException("vault structured is corrupted");
+  }
+
+  /**
+   * Reads an unsigned variable length integer from the given stream
+   *
+   * @param input the input stream with the vault data
+   * @return the read integer
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the integer does not fit an integer
+   */
+  private int readVarInt(final DataInputStream input) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+      final int b = input.readByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return checkVarInt(value, shift, b);
+      }
+    }
+    throw new VaultCorruptedException("vault structured is corrupted");
+  }
+
+  /**
+   * Reads an unsigned variable length long integer from the given buffer
+   *
+   * @param buffer the byte buffer with the vault data
+   * @return the read long integer
+   * @throws VaultCorruptedException if the integer is truncated or does not fit a long integer
+   */
+  private long readVarLong(final ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      ensureBufferCapacity(buffer, 1);
+      final int b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return checkVarLong(value, shift, b);
+      }
+    }
+    throw new VaultCorruptedException("vault structured is corrupted");
+  }
+
+  /**
+   * Reads an unsigned variable length long integer from the given stream
+   *
+   * @param input the input stream with the vault data
+   * @return the read long integer
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the integer does not fit a long integer
+   */
+  private long readVarLong(final DataInputStream input) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      final int b = input.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return checkVarLong(value, shift, b);
+      }
+    }
+    throw new VaultCorruptedException("vault structured is corrupted");
+  }
+
+  /**
+   * Checks that the last byte of a variable length long integer does not overflow a
+   * (non-negative) long integer
+   *
+   * @param value the read long integer
+   * @param shift the shift of the last byte
+   * @param last  the last byte
+   * @return the read long integer
+   * @throws VaultCorruptedException if the long integer overflows
+   */
+  private long checkVarLong(final long value, final int shift, final int last) {
+    if (shift == 63 && last > 0) {
+      log.error("invalid variable length long integer found");
+      vaultCorrupted();
+    }
+    return value;
+  }
+
+  /**
+   * Checks that the last byte of a variable length integer does not overflow a (non-negative)
+   * integer
+   *
+   * @param value the read integer
+   * @param shift the shift of the last byte
+   * @param last  the last byte
+   * @return the read integer
+   * @throws VaultCorruptedException if the integer overflows
+   */
+  private int checkVarInt(final int value, final int shift, final int last) {
+    if (shift == 28 && last > 0x07) {
+      log.error("invalid variable length integer found");
+      vaultCorrupted();
+    }
+    return value;
+  }
+
+  /**
+   * Writes an unsigned variable length integer to the given stream
+   *
+   * @param stream the stream where to write the data
+   * @param value  the (non-negative) integer to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  private static void writeVarInt(final DataOutputStream stream, final int value)
+      throws IOException {
+    int remaining = value;
+    while ((remaining & ~0x7F) != 0) {
+      stream.writeByte((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    stream.writeByte(remaining);
+  }
+
+  /**
+   * Writes an unsigned variable length long integer to the given stream
+   *
+   * @param stream the stream where to write the data
+   * @param value  the (non-negative) long integer to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  private static void writeVarLong(final DataOutputStream stream, final long value)
+      throws IOException {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      stream.writeByte((int) (remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    stream.writeByte((int) remaining);
+  }
+
   @Override
-  void writeMac(final DataOutputStream stream, final byte[] mac) throws IOException {
+  void readEntries(final InputStream stream, final EntryHandler handler) throws IOException {
+    final DataInputStream input = new DataInputStream(stream);
+    try {
+      // read the header, which the legacy (v1) vaults lack
+      final int first = input.readInt();
+      final boolean legacy = first != MAGIC;
+      final byte[] mac;
+      final boolean tracked;
+      final boolean blocked;
+      final int totalEntries;
+      if (legacy) {
+        // read MAC related
+        final int macLength = first;
+        if (macLength <= 0) {
+          log.error("invalid MAC length read (mac len: {}b)", macLength);
+          vaultCorrupted();
+        }
+        mac = readBytes(input, macLength);
+        tracked = false;
+        blocked = false;
+        totalEntries = input.readInt();
+      } else {
+        final Header header = readHeader(input);
+        mac = header.mac;
+        tracked = header.tracked;
+        blocked = header.blocked;
+        if (tracked) {
+          handler.sequence(header.sequence);
+        }
+        totalEntries = readVarInt(input);
+      }
+
+      // read vault data
+      if (totalEntries < 0) {
+        log.error("invalid number of entries read from the vault: {}", totalEntries);
+        vaultCorrupted();
+      }
+      handler.header(mac, totalEntries);
+      if (blocked) {
+        readBlocks(input, handler, totalEntries);
+      } else {
+        for (int idx = 0; idx < totalEntries; idx++) {
+          handler.entry(readEntry(input, legacy, tracked));
+        }
+
+        // read the tombstones
+        if (tracked) {
+          final int totalTombstones = readVarInt(input);
+          handler.tombstones(totalTombstones);
+          for (int idx = 0; idx < totalTombstones; idx++) {
+            handler.tombstone(readTombstone(input));
+          }
+        }
+      }
+
+      // the stream must be empty here!
+      if (input.read() != -1) {
+        log.error("unexpected data at the end of the vault");
+        vaultCorrupted();
+      }
+    } catch (final EOFException e) {
+      log.error("unexpected end of the vault data", e);
+      vaultCorrupted();
+    }
+  }
+
+  /**
+   * Reads the blocks of a (v3) vault from the given stream, handing each one of the entries and
+   * tombstones to the given handler, as they're read.
+   *
+   * The block MACs and the block index are skipped, since the vault data is verified through
+   * the vault MAC, when read as a stream.
+   *
+   * @param input        the input stream with the vault data
+   * @param handler      the handler of the read data
+   * @param totalEntries the number of entries stored
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the data is corrupted
+   */
+  private void readBlocks(final DataInputStream input, final EntryHandler handler,
+                          final int totalEntries) throws IOException {
+    final byte[] mac = new byte[MAC_SIZE];
+    int read = 0;
+    while (read < totalEntries) {
+      final int records = readBlockStart(input, ENTRIES_BLOCK);
+      if (records == 0 || records > totalEntries - read) {
+        log.error("invalid number of records read from the block: {}", records);
+        vaultCorrupted();
+      }
+      for (int idx = 0; idx < records; idx++) {
+        handler.entry(readEntry(input, false, true));
+      }
+      input.readFully(mac);
+      read += records;
+    }
+
+    final int totalTombstones = readBlockStart(input, TOMBSTONES_BLOCK);
+    handler.tombstones(totalTombstones);
+    for (int idx = 0; idx < totalTombstones; idx++) {
+      handler.tombstone(readTombstone(input));
+    }
+    input.readFully(mac);
+
+    // the block index, up to the end of the data
+    final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[MAC_SCRATCH_SIZE];
+    for (int length = input.read(buffer); length != -1; length = input.read(buffer)) {
+      index.write(buffer, 0, length);
+    }
+    final ByteBuffer footer = ByteBuffer.wrap(index.toByteArray());
+    if (footer.capacity() < MAC_SIZE + FOOTER_SIZE
+        || footer.getInt(footer.capacity() - Integer.BYTES) != MAGIC
+        || footer.getInt(footer.capacity() - FOOTER_SIZE)
+           != footer.capacity() - MAC_SIZE - FOOTER_SIZE) {
+      log.error("invalid block index found");
+      vaultCorrupted();
+    }
+  }
+
+  /**
+   * Reads the start of a block from the given stream, up to its first record
+   *
+   * @param input the input stream with the vault data
+   * @param type  the expected type of block
+   * @return the number of records of the block
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the block is not of the expected type
+   */
+  private int readBlockStart(final DataInputStream input, final int type) throws IOException {
+    final int length = input.readInt();
+    final int actualType = input.readUnsignedByte();
+    if (length <= 0 || actualType != type) {
+      log.error("invalid block found (length: {}, type: {})", length, actualType);
+      vaultCorrupted();
+    }
+    return readVarInt(input);
+  }
+
+  /**
+   * Reads an entry from the given stream
+   *
+   * @param input   the input stream with the vault data
+   * @param legacy  whether or not the entry is stored in the legacy (v1) format
+   * @param tracked whether or not the entry is stored with its changes metadata
+   * @return the read entry
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the entry is corrupted
+   */
+  private InMemoryVault.SecureEntryWrapper readEntry(final DataInputStream input,
+                                                     final boolean legacy,
+                                                     final boolean tracked) throws IOException {
+    // read entry data lengths
+    final int keyLength = legacy ? input.readInt() : readVarInt(input);
+    final int valueLength = legacy ? input.readInt() : readVarInt(input);
+    final int ivLength = legacy ? input.readInt() : readVarInt(input);
+    if (keyLength < 0 || valueLength < 0 || ivLength < 0) {
+      log.error("invalid entry lengths read (key: {}b, value: {}b, iv: {}b)", keyLength,
+                valueLength, ivLength);
+      vaultCorrupted();
+    }
+
+    // read the data
+    final byte[] key = readBytes(input, keyLength);
+    final byte[] value = readBytes(input, valueLength);
+    final byte[] iv = readBytes(input, ivLength);
+
+    // create the entry
+    final String keyText = new String(key, Vault.VAULT_CS);
+    final String valueText = legacy ? new String(value, Vault.VAULT_CS)
+                                    : new String(HexCodec.encode(value),
+                                                 StandardCharsets.US_ASCII);
+    final long sequence = tracked ? readVarLong(input) : 0;
+    final SecureEntry secureEntry = tracked
+                                    ? SecureEntry.of(readVarLong(input), keyText, valueText)
+                                    : SecureEntry.of(keyText, valueText);
+    return new InMemoryVault.SecureEntryWrapper(secureEntry, iv, sequence);
+  }
+
+  /**
+   * Reads the given number of bytes from the given stream. The (unauthenticated) length is trusted
+   * no further than the data actually read: the larger lengths are read in chunks, rather than
+   * allocated upfront, since the length of the stream is not known beforehand.
+   *
+   * @param input  the input stream with the vault data
+   * @param length the number of bytes to read
+   * @return the read bytes
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the length is negative
+   */
+  private byte[] readBytes(final DataInputStream input, final int length) throws IOException {
+    if (length < 0) {
+      log.error("invalid length read: {}b", length);
+      vaultCorrupted();
+    }
+    if (length <= MAC_SCRATCH_SIZE) {
+      final byte[] data = new byte[length];
+      input.readFully(data);
+      return data;
+    }
+    final ByteArrayOutputStream data = new ByteArrayOutputStream(MAC_SCRATCH_SIZE);
+    final byte[] chunk = new byte[MAC_SCRATCH_SIZE];
+    for (int remaining = length; remaining > 0; ) {
+      final int read = input.read(chunk, 0, Math.min(chunk.length, remaining));
+      if (read == -1) {
+        throw new EOFException("unexpected end of the vault data");
+      }
+      data.write(chunk, 0, read);
+      remaining -= read;
+    }
+    return data.toByteArray();
+  }
+
+  /**
+   * Reads a tombstone from the given stream
+   *
+   * @param input the input stream with the vault data
+   * @return the read tombstone
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the tombstone is corrupted
+   */
+  private InMemoryVault.Tombstone readTombstone(final DataInputStream input) throws IOException {
+    final byte[] key = readBytes(input, readVarInt(input));
+    final long sequence = readVarLong(input);
+    return new InMemoryVault.Tombstone(new String(key, Vault.VAULT_CS), sequence,
+                                       readVarLong(input));
+  }
+
+  @Override
+  void writeHeader(final BlockOutputStream stream, final int entries) throws IOException {
+    final VaultKey key = inMemoryVault.key;
+    stream.writeInt(MAGIC);
+    stream.writeByte(VERSION);
+    stream.writeByte(FLAG_TRACKED);
+    writeVarInt(stream, key.iterations);
+    writeVarInt(stream, key.keyLength);
+    writeVarInt(stream, key.salt.length);
+    stream.write(key.salt);
+  }
+
+  @Override
+  void writeMac(final BlockOutputStream stream, final byte[] mac) throws IOException {
     if (log.isDebugEnabled()) {
       log.debug("writing MAC: {}", Hex.encodeHexString(mac));
     }
-    stream.writeInt(mac.length);
+    writeVarInt(stream, mac.length);
     stream.write(mac);
+    stream.mac = mac;
+  }
+
+  @Override
+  void writeSequence(final BlockOutputStream stream, final long sequence) throws IOException {
+    writeVarLong(stream, sequence);
+    stream.sequence = sequence;
   }
 
   @Override
-  void writeEntries(final DataOutputStream stream,
-                    final Collection<InMemoryVault.SecureEntryWrapper> values) throws IOException {
+  void writeEntriesStart(final BlockOutputStream stream, final int entries) throws IOException {
     // write the # of entries
-    stream.writeInt(values.size());
-    // store the vault values
-    values.forEach(wrapper -> {
-      final byte[] key = wrapper.entry.getKey().getBytes(Vault.VAULT_CS);
-      final byte[] value = wrapper.entry.getValue().getBytes(Vault.VAULT_CS);
-      final byte[] iv = wrapper.iv;
-      try {
-        if (log.isDebugEnabled()) {
-          log.debug("writing entry: {}", wrapper);
-        }
-        stream.writeInt(key.length);
-        stream.writeInt(value.length);
-        stream.writeInt(iv.length);
-        stream.write(key);
-        stream.write(value);
-        stream.write(iv);
-      } catch (final IOException ioe) {
-        throw new UncheckedIOException(ioe);
-      }
-    });
+    writeVarInt(stream, entries);
+    stream.entries = entries;
+  }
+
+  @Override
+  void writeEntry(final BlockOutputStream stream,
+                  final InMemoryVault.SecureEntryWrapper wrapper, final int index)
+      throws IOException {
+    final byte[] key = wrapper.entry.getKey().getBytes(Vault.VAULT_CS);
+    final byte[] value;
+    try {
+      value = HexCodec.decode(wrapper.entry.getValue());
+    } catch (final DecoderException e) {
+      throw new IOException("Invalid (non hexadecimal) value of the entry " + index, e);
+    }
+    final byte[] iv = wrapper.iv;
+    if (log.isDebugEnabled()) {
+      log.debug("writing entry: {}", wrapper);
+    }
+    final DataOutputStream records = stream.records;
+    writeVarInt(records, key.length);
+    writeVarInt(records, value.length);
+    writeVarInt(records, iv.length);
+    records.write(key);
+    records.write(value);
+    records.write(iv);
+    writeVarLong(records, wrapper.sequence);
+    writeVarLong(records, wrapper.entry.getCreationDate());
+    stream.record(wrapper.entry.getKey());
+    if (stream.block.size() >= BLOCK_SIZE) {
+      writeBlock(stream, ENTRIES_BLOCK);
+    }
+  }
+
+  @Override
+  void writeEntriesEnd(final BlockOutputStream stream, final int entries) throws IOException {
+    if (stream.count > 0) {
+      writeBlock(stream, ENTRIES_BLOCK);
+    }
+  }
+
+  @Override
+  void writeTombstonesStart(final BlockOutputStream stream, final int tombstones) {
+    // the number of tombstones is written along with the block
+  }
+
+  @Override
+  void writeTombstone(final BlockOutputStream stream, final InMemoryVault.Tombstone tombstone,
+                      final int index) throws IOException {
+    final byte[] key = tombstone.key.getBytes(Vault.VAULT_CS);
+    final DataOutputStream records = stream.records;
+    writeVarInt(records, key.length);
+    records.write(key);
+    writeVarLong(records, tombstone.sequence);
+    writeVarLong(records, tombstone.timestamp);
+    stream.record(tombstone.key);
+  }
+
+  @Override
+  void writeTombstonesEnd(final BlockOutputStream stream, final int tombstones)
+      throws IOException {
+    // the tombstones block is always written, even if empty
+    writeBlock(stream, TOMBSTONES_BLOCK);
+  }
+
+  @Override
+  void writeFooter(final BlockOutputStream stream, final int entries) throws IOException {
+    final ByteArrayOutputStream index = new ByteArrayOutputStream(stream.index.size() + 5);
+    writeVarInt(new DataOutputStream(index), stream.blocks);
+    stream.index.writeTo(index);
+    final byte[] indexData = index.toByteArray();
+    stream.write(indexData);
+    try {
+      stream.write(indexMac(stream.mac, stream.sequence, stream.entries, indexData, 0,
+                            indexData.length));
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IOException("Unable to calculate the MAC of the block index", e);
+    }
+    stream.writeInt(indexData.length);
+    stream.writeInt(MAGIC);
+    log.debug("written {} blocks", stream.blocks);
+  }
+
+  /**
+   * Writes the current block of the given stream, with the records written so far, and indexes
+   * it.
+   *
+   * @param stream the stream where to write the data
+   * @param type   the type of the block
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  private void writeBlock(final BlockOutputStream stream, final int type) throws IOException {
+    final ByteArrayOutputStream block = new ByteArrayOutputStream(stream.block.size() + 6);
+    final DataOutputStream blockStream = new DataOutputStream(block);
+    blockStream.writeByte(type);
+    writeVarInt(blockStream, stream.count);
+    stream.block.writeTo(block);
+    final byte[] data = block.toByteArray();
+
+    // the block itself
+    final int offset = stream.size();
+    stream.writeInt(data.length);
+    stream.write(data);
+    try {
+      stream.write(blockMac(stream.mac, stream.blocks, data, 0, data.length));
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IOException("Unable to calculate the MAC of the block " + stream.blocks, e);
+    }
+
+    // the index entry
+    final DataOutputStream index = stream.indexStream;
+    writeVarInt(index, offset);
+    writeVarInt(index, data.length);
+    index.writeByte(type);
+    writeVarInt(index, stream.count);
+    writeKey(index, stream.firstKey);
+    writeKey(index, stream.lastKey);
+
+    stream.blocks++;
+    stream.count = 0;
+    stream.firstKey = null;
+    stream.lastKey = null;
+    stream.block.reset();
+  }
+
+  /**
+   * Writes the given key (of the index) to the given stream
+   *
+   * @param stream the stream where to write the data
+   * @param key    the key, if any
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  private static void writeKey(final DataOutputStream stream, final String key)
+      throws IOException {
+    final byte[] data = key == null ? new byte[0] : key.getBytes(Vault.VAULT_CS);
+    writeVarInt(stream, data.length);
+    stream.write(data);
+  }
+
+  /**
+   * Calculates the MAC of a block
+   *
+   * @param vaultMac the vault MAC
+   * @param number   the block number
+   * @param data     the data buffer
+   * @param offset   the offset of the block data
+   * @param length   the length of the block data
+   * @return the block MAC
+   * @throws NoSuchAlgorithmException if the MAC algorithm is not supported
+   * @throws InvalidKeyException      if the vault key is invalid
+   */
+  private byte[] blockMac(final byte[] vaultMac, final int number, final byte[] data,
+                          final int offset, final int length)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    final byte[] position = ByteBuffer.allocate(Integer.BYTES).putInt(number).array();
+    return new VaultMac(inMemoryVault.secret).update(vaultMac, 0, vaultMac.length)
+        .update(position, 0, position.length).update(data, offset, length).doFinal(MAC_SIZE);
+  }
+
+  /**
+   * Calculates the MAC of the block index
+   *
+   * @param vaultMac the vault MAC
+   * @param sequence the last sequence number of the vault
+   * @param entries  the number of entries of the vault
+   * @param data     the data buffer
+   * @param offset   the offset of the index data
+   * @param length   the length of the index data
+   * @return the index MAC
+   * @throws NoSuchAlgorithmException if the MAC algorithm is not supported
+   * @throws InvalidKeyException      if the vault key is invalid
+   */
+  private byte[] indexMac(final byte[] vaultMac, final long sequence, final int entries,
+                          final byte[] data, final int offset, final int length)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    final byte[] fields = ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(sequence)
+        .putInt(entries).array();
+    return new VaultMac(inMemoryVault.secret).update(vaultMac, 0, vaultMac.length)
+        .update(fields, 0, fields.length).update(data, offset, length).doFinal(MAC_SIZE);
+  }
+
+  /**
+   * The header of a (v2/v3) vault: the MAC and, if the changes are tracked, the last sequence
+   * number of the vault.
+   */
+  private static final class Header {
+
+    // properties
+    final byte[] mac;
+    final boolean tracked;
+    final long sequence;
+    final boolean blocked;
+
+    /**
+     * Default header constructor
+     *
+     * @param mac      the vault MAC
+     * @param tracked  whether or not the changes are tracked
+     * @param sequence the last sequence number of the vault
+     * @param blocked  whether or not the entries are stored in blocks
+     */
+    Header(final byte[] mac, final boolean tracked, final long sequence, final boolean blocked) {
+      this.mac = mac;
+      this.tracked = tracked;
+      this.sequence = sequence;
+      this.blocked = blocked;
+    }
+  }
+
+  /**
+   * A block of the vault: its location, type and, if known, the number of records and range of
+   * keys held.
+   */
+  private static final class Block {
+
+    // properties
+    final int number;
+    final int offset;
+    final int length;
+    final int type;
+    int records;
+    String firstKey;
+    String lastKey;
+    boolean intact;
+
+    /**
+     * Default block constructor
+     *
+     * @param number   the block number
+     * @param offset   the offset of the block (length) within the vault data
+     * @param length   the length of the block data
+     * @param type     the block type
+     * @param records  the number of records, -1 if unknown
+     * @param firstKey the first key of the block, {@code null} if unknown
+     * @param lastKey  the last key of the block, {@code null} if unknown
+     */
+    Block(final int number, final int offset, final int length, final int type,
+          final int records, final String firstKey, final String lastKey) {
+      this.number = number;
+      this.offset = offset;
+      this.length = length;
+      this.type = type;
+      this.records = records;
+      this.firstKey = firstKey;
+      this.lastKey = lastKey;
+    }
+  }
+
+  /**
+   * The stream where the vault data is written, which groups the entries and tombstones into
+   * blocks, as they're written, and indexes them.
+   *
+   * Instances of this class are not thread-safe.
+   */
+  static final class BlockOutputStream extends DataOutputStream {
+
+    // the records of the current block
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final DataOutputStream records = new DataOutputStream(block);
+
+    // the index of the written blocks
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private final DataOutputStream indexStream = new DataOutputStream(index);
+
+    // the vault MAC, last sequence number and number of entries, which the MACs are bound to
+    private byte[] mac = new byte[0];
+    private long sequence;
+    private int entries;
+
+    // the number of written blocks, and the number of records and range of keys of the current
+    private int blocks;
+    private int count;
+    private String firstKey;
+    private String lastKey;
+
+    /**
+     * Creates the stream over the given (file) stream
+     *
+     * @param stream the file output stream
+     */
+    BlockOutputStream(final OutputStream stream) {
+      super(new BufferedOutputStream(stream));
+    }
+
+    /**
+     * Accounts for a record written to the current block
+     *
+     * @param key the key of the record
+     */
+    private void record(final String key) {
+      count++;
+      if (firstKey == null || key.compareTo(firstKey) < 0) {
+        firstKey = key;
+      }
+      if (lastKey == null || key.compareTo(lastKey) > 0) {
+        lastKey = key;
+      }
+    }
   }
 }
@@ -0,0 +1,203 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+
+/**
+ * The dispatcher of the changes of a vault to a subscribed {@link VaultListener}.
+ *
+ * The changing threads only record the changed key and, unless a dispatch is already pending,
+ * submit one to the executor of the subscription, thus they're never slowed down by the
+ * listener. Each dispatch resolves the current change of each one of the recorded keys, so the
+ * keys changed several times before being dispatched are notified only once, with their last
+ * change. Only a dispatch runs at a time, which repeats itself while there are recorded keys.
+ *
+ * A dispatch rejected by the executor is re-submitted a bounded number of times, with an
+ * increasing delay, after which the recorded keys are kept until the next change is recorded.
+ *
+ * This class is thread-safe.
+ *
+ * @author David Silva
+ */
+final class ChangeDispatcher implements VaultSubscription {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(ChangeDispatcher.class);
+
+  // the re-submissions of a rejected dispatch and the delay of the first one, in milliseconds
+  static final int MAX_RETRIES = 5;
+  private static final long RETRY_DELAY = 10;
+
+  // properties
+  private final Function<String, EntryChange> changes;
+  private final VaultListener listener;
+  private final Executor executor;
+  private final Runnable onClose;
+  private final Set<String> pending = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final AtomicInteger retries = new AtomicInteger();
+
+  /**
+   * Creates the dispatcher
+   *
+   * @param changes  the resolver of the current change of a key, {@code null} if there's none
+   * @param listener the subscribed listener
+   * @param executor the executor of the dispatches
+   * @param onClose  the callback invoked once the subscription is closed
+   */
+  ChangeDispatcher(final Function<String, EntryChange> changes, final VaultListener listener,
+                   final Executor executor, final Runnable onClose) {
+    this.changes = changes;
+    this.listener = Objects.requireNonNull(listener, "Invalid listener specified");
+    this.executor = Objects.requireNonNull(executor, "Invalid executor specified");
+    this.onClose = onClose;
+  }
+
+  /**
+   * Records the change of the given key, to be dispatched
+   *
+   * @param key the changed key
+   */
+  void changed(final String key) {
+    if (closed.get()) {
+      return;
+    }
+    pending.add(key);
+    schedule();
+  }
+
+  /**
+   * Submits a dispatch to the executor, unless there's one pending already
+   */
+  private void schedule() {
+    if (!scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(this::dispatch);
+      retries.set(0);
+    } catch (final RejectedExecutionException e) {
+      scheduled.set(false);
+      final int retry = retries.incrementAndGet();
+      if (retry <= MAX_RETRIES) {
+        log.warn("dispatch of the vault changes rejected, {} keys pending", pending.size());
+        Retries.SCHEDULER.schedule(this::retry, RETRY_DELAY << (retry - 1),
+                                   TimeUnit.MILLISECONDS);
+      } else {
+        log.error("dispatch of the vault changes rejected, {} keys pending until the next change",
+                  pending.size());
+      }
+    }
+  }
+
+  /**
+   * Re-submits a rejected dispatch, unless there's nothing left to dispatch
+   */
+  private void retry() {
+    if (!closed.get() && !pending.isEmpty()) {
+      schedule();
+    }
+  }
+
+  /**
+   * Dispatches the recorded changes, while there are any
+   */
+  private void dispatch() {
+    do {
+      final List<EntryChange> batch = new ArrayList<>();
+      for (final Iterator<String> keys = pending.iterator(); keys.hasNext(); ) {
+        final String key = keys.next();
+        // the keys changed again from now on are recorded for the next batch
+        keys.remove();
+        final EntryChange change = changes.apply(key);
+        if (change != null) {
+          batch.add(change);
+        }
+      }
+      if (!batch.isEmpty() && !closed.get()) {
+        batch.sort(Comparator.comparingLong(EntryChange::getSequence));
+        try {
+          listener.onChanges(batch);
+        } catch (final RuntimeException e) {
+          log.error("the vault listener failed to handle the changes", e);
+        }
+      }
+      scheduled.set(false);
+    } while (!pending.isEmpty() && !closed.get() && scheduled.compareAndSet(false, true));
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      onClose.run();
+      pending.clear();
+    }
+  }
+
+  /**
+   * The (lazily initialized) scheduler of the re-submissions of the rejected dispatches, shared by
+   * all of the dispatchers.
+   */
+  private static final class Retries {
+
+    // the scheduler
+    private static final ScheduledExecutorService SCHEDULER =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+          final Thread thread = new Thread(runnable, "jvault-dispatch-retry");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+}
@@ -0,0 +1,115 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durability policy of the file based vaults, which defines how often the concurrent persists
+ * of a vault are flushed as a single (group) commit, trading the persist latency for fewer writes
+ * of the vault files. Each commit synchronizes the vault file, and its directory, with the
+ * underlying storage device, regardless of the policy.
+ *
+ * This class is immutable, therefore it inherits it's thread-safe nature.
+ *
+ * @author David Silva
+ */
+public final class DurabilityPolicy {
+
+  /**
+   * The persists are flushed right away, grouping only the ones requested while a commit is
+   * already in flight
+   */
+  public static final DurabilityPolicy FSYNC = new DurabilityPolicy(0);
+
+  // properties
+  private final long interval;
+
+  /**
+   * Creates the durability policy
+   *
+   * @param interval the interval, in milliseconds, during which concurrent persists are batched
+   */
+  private DurabilityPolicy(final long interval) {
+    this.interval = interval;
+  }
+
+  /**
+   * Creates a durability policy where the persists are flushed at most once in every given
+   * interval. The persists requested within that interval are batched into a single commit of the
+   * vault files.
+   *
+   * @param interval the batch interval
+   * @param unit     the unit of the batch interval
+   * @return the durability policy
+   * @throws IllegalArgumentException if the interval is not positive
+   */
+  public static DurabilityPolicy batched(final long interval, final TimeUnit unit) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("invalid batch interval: " + interval);
+    }
+    return new DurabilityPolicy(Math.max(1, unit.toMillis(interval)));
+  }
+
+  /**
+   * Returns the interval during which concurrent persists are batched
+   *
+   * @return the batch interval, in milliseconds, 0 if the persists are not batched
+   */
+  public long getBatchInterval() {
+    return interval;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final DurabilityPolicy that = (DurabilityPolicy) o;
+    return interval == that.interval;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(interval);
+  }
+
+  @Override
+  public String toString() {
+    return interval > 0 ? "BATCHED(" + interval + "ms)" : "FSYNC";
+  }
+}
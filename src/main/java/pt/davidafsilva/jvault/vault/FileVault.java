@@ -33,14 +33,17 @@ package pt.davidafsilva.jvault.vault;
  * #L%
  */
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * The secure file based vault definition.
  *
  * @author David Silva
  */
-public interface FileVault extends Vault {
+public interface FileVault extends Vault, Closeable {
 
   /**
    * Persists the changes made (if any) to the vault file.
@@ -53,4 +56,25 @@ public interface FileVault extends Vault {
    *                                 invalid key is used.
    */
   void persist() throws IOException, VaultOperationException;
+
+  /**
+   * Returns the ranges of keys that were lost when the vault was loaded, which only happens for
+   * corrupted vault files loaded in degraded mode.
+   *
+   * @return the lost ranges of keys, empty if none
+   */
+  default List<LostRange> lostRanges() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Releases any resources held by the vault, such as the watcher of the vault file, without
+   * persisting it.
+   *
+   * @throws IOException if an I/O error occurs while releasing the resources
+   */
+  @Override
+  default void close() throws IOException {
+    // nothing to release by default
+  }
 }
@@ -0,0 +1,250 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The options of the file based vaults, which are not related to the vault security settings.
+ *
+ * This class is immutable, therefore it inherits it's thread-safe nature.
+ *
+ * @author David Silva
+ */
+final class FileVaultOptions {
+
+  // the default tombstone retention, in milliseconds
+  static final long DEFAULT_TOMBSTONE_RETENTION = TimeUnit.DAYS.toMillis(7);
+
+  // the default options
+  static final FileVaultOptions DEFAULT = new FileVaultOptions(false, false, 0,
+                                                                   DurabilityPolicy.FSYNC, false,
+                                                                   false, false, false, false,
+                                                                   DEFAULT_TOMBSTONE_RETENTION);
+
+  // properties
+  final boolean compressed;
+  final boolean locked;
+  final long reloadInterval;
+  final DurabilityPolicy durability;
+  final boolean backup;
+  final boolean degraded;
+  final boolean ordered;
+  final boolean readOnly;
+  final boolean packed;
+  final long tombstoneRetention;
+
+  /**
+   * Creates the file vault options
+   *
+   * @param compressed         whether or not the vault files are compressed when persisted
+   * @param locked             whether or not the access to the vault files is coordinated with
+   *                           other processes, through lock files
+   * @param reloadInterval     the interval, in milliseconds, at which the vault files are checked
+   *                           for changes made by other processes, 0 if they're not
+   * @param durability         the durability policy of the persisted vault files
+   * @param backup             whether or not a backup of the previous vault files is kept when
+   *                           persisted
+   * @param degraded           whether or not the intact parts of corrupted vault files are loaded
+   * @param ordered            whether or not the keys of the vault are indexed in ascending order
+   * @param readOnly           whether or not the vault files are opened read-only
+   * @param packed             whether or not the entries of the vault are packed in memory
+   * @param tombstoneRetention the period, in milliseconds, for which the tombstones of the
+   *                           deleted entries are kept
+   */
+  private FileVaultOptions(final boolean compressed, final boolean locked,
+                           final long reloadInterval, final DurabilityPolicy durability,
+                           final boolean backup, final boolean degraded, final boolean ordered,
+                           final boolean readOnly, final boolean packed,
+                           final long tombstoneRetention) {
+    this.compressed = compressed;
+    this.locked = locked;
+    this.reloadInterval = reloadInterval;
+    this.durability = durability;
+    this.backup = backup;
+    this.degraded = degraded;
+    this.ordered = ordered;
+    this.readOnly = readOnly;
+    this.packed = packed;
+    this.tombstoneRetention = tombstoneRetention;
+  }
+
+  /**
+   * Returns a copy of these options with the specified compression setting.
+   *
+   * Compressed vault files are always detected (and decompressed) when loaded, regardless of this
+   * setting.
+   *
+   * @param compressed whether or not the vault files are compressed when persisted
+   * @return the new options
+   */
+  FileVaultOptions compressed(final boolean compressed) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified locking setting.
+   *
+   * Locked vault files are read while holding a shared lock and written while holding an
+   * exclusive lock, of a lock file next to the vault file.
+   *
+   * @param locked whether or not the access to the vault files is coordinated with other
+   *               processes
+   * @return the new options
+   */
+  FileVaultOptions locked(final boolean locked) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified reload interval, which implies the vault
+   * files to be locked.
+   *
+   * @param reloadInterval the interval, in milliseconds, at which the vault files are checked for
+   *                       changes made by other processes
+   * @return the new options
+   */
+  FileVaultOptions watched(final long reloadInterval) {
+    return new FileVaultOptions(compressed, true, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified durability policy.
+   *
+   * @param durability the durability policy of the persisted vault files
+   * @return the new options
+   */
+  FileVaultOptions durability(final DurabilityPolicy durability) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified backup setting.
+   *
+   * The backup of a vault file is the previous generation of the file, which is restored when the
+   * vault file is found to be corrupted.
+   *
+   * @param backup whether or not a backup of the previous vault files is kept when persisted
+   * @return the new options
+   */
+  FileVaultOptions backup(final boolean backup) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified degraded mode setting.
+   *
+   * Vault files loaded in degraded mode have their intact blocks loaded, rather than being
+   * rejected altogether, when partially corrupted.
+   *
+   * @param degraded whether or not the intact parts of corrupted vault files are loaded
+   * @return the new options
+   */
+  FileVaultOptions degraded(final boolean degraded) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified ordered index setting.
+   *
+   * The keys of ordered vaults are indexed in ascending order, alongside the entries, thus the
+   * ranges and prefixes of keys are read without going through all of the entries.
+   *
+   * @param ordered whether or not the keys of the vault are indexed in ascending order
+   * @return the new options
+   */
+  FileVaultOptions ordered(final boolean ordered) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified read-only setting.
+   *
+   * Read-only vault files need not be writable: their entries are held in an immutable table,
+   * tuned for lookups, and every change to the vault is rejected. The files are not watched for
+   * changes, regardless of the reload interval.
+   *
+   * @param readOnly whether or not the vault files are opened read-only
+   * @return the new options
+   */
+  FileVaultOptions readOnly(final boolean readOnly) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified packed entries setting.
+   *
+   * The entries of packed vaults are held in a {@link PackedEntryTable}, which takes a fraction
+   * of the memory of the entry objects, at the expense of materializing them whenever read.
+   *
+   * @param packed whether or not the entries of the vault are packed in memory
+   * @return the new options
+   */
+  FileVaultOptions packed(final boolean packed) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  /**
+   * Returns a copy of these options with the specified tombstone retention.
+   *
+   * The tombstones of the entries deleted longer than the retention period ago are purged when
+   * the vault files are persisted, thus such deletions are no longer exported nor persisted.
+   *
+   * @param tombstoneRetention the period, in milliseconds, for which the tombstones of the deleted
+   *                           entries are kept
+   * @return the new options
+   */
+  FileVaultOptions tombstoneRetention(final long tombstoneRetention) {
+    return new FileVaultOptions(compressed, locked, reloadInterval, durability, backup, degraded,
+                                ordered, readOnly, packed, tombstoneRetention);
+  }
+
+  @Override
+  public String toString() {
+    return "FileVaultOptions{compressed: " + compressed + ", locked: " + locked
+           + ", reloadInterval: " + reloadInterval + "ms, durability: " + durability + ", backup: "
+           + backup + ", degraded: " + degraded + ", ordered: " + ordered + ", readOnly: "
+           + readOnly + ", packed: " + packed + ", tombstoneRetention: " + tombstoneRetention
+           + "ms}";
+  }
+}
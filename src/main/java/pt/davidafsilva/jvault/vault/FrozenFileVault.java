@@ -0,0 +1,754 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.apache.commons.codec.DecoderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * An immutable, file based vault implementation, for the vaults that are written once and then
+ * only read. The frozen vault file is produced by {@link Vault#freeze(Path)} and memory-mapped
+ * when opened, thus nothing is parsed (nor deciphered) until read.
+ *
+ * The entries are located through a minimal perfect hash of their keys, built with the CHD
+ * (compress, hash and displace) algorithm when the vault is frozen: the keys are hashed into
+ * buckets of a few keys each, and each bucket is given the seed of a second hash that places all
+ * of its keys into distinct free slots. Reading an entry takes a single probe: the key is hashed
+ * into its bucket, then into its slot with the seed of the bucket, which holds the offset of the
+ * entry record.
+ *
+ * The file header carries the MAC of both the header and the index, while each one of the records
+ * carries its own MAC, which binds the record to its slot, so the integrity of the vault is checked
+ * on open (header and index) and as each entry is read, rather than by reading the whole file. The
+ * file layout is:
+ * <pre>
+ * header:  magic (int), version (byte), entries (int), buckets (int), sequence (long), MAC
+ * index:   the seed of each bucket (int), the offset of the record of each slot (int)
+ * records: length (int), key length (int), key, timestamp (long), sequence (long), IV length
+ *          (byte), IV, ciphered value, MAC
+ * </pre>
+ *
+ * The vault is read-only: all of the changes are rejected with an {@link
+ * UnsupportedOperationException}. This vault implementation is thread-safe.
+ *
+ * @author David Silva
+ */
+final class FrozenFileVault implements FileVault {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(FrozenFileVault.class);
+
+  // the file format
+  static final int MAGIC = 0x4A56465A;
+  static final byte VERSION = 2;
+  private static final int HEADER_SIZE = Integer.BYTES + 1 + 2 * Integer.BYTES + Long.BYTES;
+  private static final int MAC_SIZE = 16;
+  private static final int INDEX_OFFSET = HEADER_SIZE + MAC_SIZE;
+
+  // the average number of keys per bucket
+  private static final int BUCKET_SIZE = 4;
+
+  // the maximum number of seeds tried for each bucket
+  private static final int MAX_SEEDS = 1 << 24;
+
+  // properties
+  private final SecretKey secret;
+  private final ByteBuffer buffer;
+  private final int entries;
+  private final int buckets;
+  private final long sequence;
+  private final int offsets;
+  // the MACs not in use, which are dropped (along with the key within) once closed
+  private final Queue<VaultMac> macs = new ConcurrentLinkedQueue<>();
+  private volatile boolean closed;
+
+  /**
+   * Opens the frozen vault file with the specified (previously derived) key.
+   *
+   * @param key  the vault key
+   * @param path the frozen vault file
+   * @throws VaultInitializationException if an error occurs while opening the vault file
+   * @throws VaultCorruptedException      if the vault file header is corrupted or was frozen
+   *                                      with a different key
+   */
+  FrozenFileVault(final VaultKey key, final Path path) throws VaultInitializationException {
+    this.secret = key.secret;
+    this.buffer = map(path);
+    if (buffer.capacity() < INDEX_OFFSET || buffer.getInt(0) != MAGIC
+        || buffer.get(Integer.BYTES) != VERSION) {
+      throw new VaultCorruptedException("vault structured is corrupted");
+    }
+    entries = buffer.getInt(Integer.BYTES + 1);
+    buckets = buffer.getInt(2 * Integer.BYTES + 1);
+    sequence = buffer.getLong(3 * Integer.BYTES + 1);
+    offsets = INDEX_OFFSET + buckets * Integer.BYTES;
+    if (entries < 0 || buckets <= 0
+        || INDEX_OFFSET + ((long) buckets + entries) * Integer.BYTES > buffer.capacity()) {
+      throw new VaultCorruptedException("invalid key or vault structured is corrupted");
+    }
+
+    // the header and the index are verified once, while the records are verified as they're read
+    final byte[] header = new byte[HEADER_SIZE];
+    final byte[] mac = new byte[MAC_SIZE];
+    final byte[] index = new byte[(buckets + entries) * Integer.BYTES];
+    final ByteBuffer data = buffer.duplicate();
+    data.get(header);
+    data.get(mac);
+    data.get(index);
+    final VaultMac headerMac = acquireMac();
+    try {
+      if (!MessageDigest.isEqual(mac, headerMac.update(header, 0, HEADER_SIZE)
+          .update(index, 0, index.length).doFinal(MAC_SIZE))) {
+        throw new VaultCorruptedException("invalid key or vault structured is corrupted");
+      }
+    } finally {
+      releaseMac(headerMac);
+    }
+    log.info("frozen vault successfully opened with {} entries", entries);
+  }
+
+  /**
+   * Memory-maps the given frozen vault file
+   *
+   * @param path the frozen vault file
+   * @return the mapped file
+   * @throws VaultInitializationException if an error occurs while mapping the file
+   */
+  private static ByteBuffer map(final Path path) throws VaultInitializationException {
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new VaultInitializationException("Invalid vault file, too large to be mapped");
+      }
+      // the mapping remains valid once the channel is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (final IOException e) {
+      log.error("unable to map the vault file", e);
+      throw new VaultInitializationException("Unable to map the vault file", e);
+    }
+  }
+
+  /**
+   * Creates a new MAC with the vault secret
+   *
+   * @return the MAC
+   */
+  private VaultMac newMac() {
+    try {
+      return new VaultMac(secret);
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException("Unable to create the vault MAC", e);
+    }
+  }
+
+  /**
+   * Takes a MAC not in use, creating a new one if there's none
+   *
+   * @return the MAC
+   */
+  private VaultMac acquireMac() {
+    final VaultMac mac = macs.poll();
+    return mac == null ? newMac() : mac;
+  }
+
+  /**
+   * Returns the given (finished) MAC to the ones not in use, unless the vault is closed
+   *
+   * @param mac the MAC
+   */
+  private void releaseMac(final VaultMac mac) {
+    macs.offer(mac);
+    if (closed) {
+      macs.clear();
+    }
+  }
+
+  /**
+   * Freezes the given entries into the given file, replacing it (atomically, if supported by the
+   * file system) once completely written and synchronized with the storage device.
+   *
+   * @param secret   the secret of the vault
+   * @param sequence the last sequence number of the vault
+   * @param entries  the (secured) entries of the vault
+   * @param path     the frozen vault file
+   * @throws IOException             if an I/O error occurs while writing the file
+   * @throws VaultOperationException if any of the security settings are not supported, an invalid
+   *                                 key is used or any of the entries is invalid
+   */
+  static void freeze(final SecretKey secret, final long sequence,
+                     final Collection<InMemoryVault.SecureEntryWrapper> entries, final Path path)
+      throws IOException, VaultOperationException {
+    final VaultMac mac;
+    try {
+      mac = new VaultMac(secret);
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new VaultOperationException("Unable to create the vault MAC", e);
+    }
+    final List<InMemoryVault.SecureEntryWrapper> wrappers = new ArrayList<>(entries);
+    final int count = wrappers.size();
+    log.info("freezing {} entries..", count);
+
+    // hash the keys into their slots
+    final long[] hashes = new long[count];
+    for (int i = 0; i < count; i++) {
+      hashes[i] = hash(wrappers.get(i).entry.getKey().getBytes(Vault.VAULT_CS));
+    }
+    final int[] seeds = seeds(hashes, MAX_SEEDS);
+    final int buckets = seeds.length;
+
+    // serialize the records, by slot
+    final byte[][] records = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      records[slot(hashes[i], seeds[bucket(hashes[i], buckets)], count)] = record(wrappers.get(i));
+    }
+
+    // index the records, by slot
+    final ByteBuffer index = ByteBuffer.allocate((buckets + count) * Integer.BYTES);
+    for (final int seed : seeds) {
+      index.putInt(seed);
+    }
+    long offset = INDEX_OFFSET + (long) index.capacity();
+    for (final byte[] record : records) {
+      if (offset > Integer.MAX_VALUE) {
+        throw new VaultOperationException("The vault is too large to be frozen", null);
+      }
+      index.putInt((int) offset);
+      offset += Integer.BYTES + record.length + MAC_SIZE;
+    }
+
+    final Path temporary = AbstractFileVault.temporaryFile(path);
+    try (final FileOutputStream file = new FileOutputStream(temporary.toFile());
+         final DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(file))) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).put(VERSION).putInt(count).putInt(buckets).putLong(sequence);
+      stream.write(header.array());
+      stream.write(mac.update(header.array(), 0, HEADER_SIZE)
+                       .update(index.array(), 0, index.capacity())
+                       .doFinal(MAC_SIZE));
+      stream.write(index.array());
+      for (int slot = 0; slot < count; slot++) {
+        stream.writeInt(records[slot].length);
+        stream.write(records[slot]);
+        stream.write(recordMac(mac, slot, records[slot]));
+      }
+      stream.flush();
+      file.getChannel().force(true);
+    } catch (final IOException | RuntimeException e) {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+    AbstractFileVault.replace(temporary, path);
+    AbstractFileVault.syncDirectory(path);
+    log.info("vault successfully frozen");
+  }
+
+  /**
+   * Builds the perfect hash of the keys with the given hashes: the seed of each one of the buckets,
+   * whose number is the length of the returned seeds. Should a bucket be left without a seed, the
+   * keys are hashed again into twice as many (thus smaller) buckets, up to a bucket per key.
+   *
+   * @param hashes   the hashes of the keys
+   * @param maxSeeds the maximum number of seeds tried for each bucket
+   * @return the seeds of the buckets
+   * @throws VaultOperationException if no seeds are found, even with a bucket per key
+   */
+  static int[] seeds(final long[] hashes, final int maxSeeds) throws VaultOperationException {
+    final int count = hashes.length;
+    int buckets = Math.max(1, (count + BUCKET_SIZE - 1) / BUCKET_SIZE);
+    while (true) {
+      final int[] seeds = seeds(hashes, buckets, maxSeeds);
+      if (seeds != null) {
+        return seeds;
+      }
+      if (buckets >= count) {
+        final String errorMessage = String.format(
+            "Unable to build the perfect hash of the %d keys, even with a bucket per key", count);
+        log.error(errorMessage);
+        throw new VaultOperationException(errorMessage, null);
+      }
+      log.warn("unable to place the keys into {} buckets, retrying with more buckets..", buckets);
+      buckets = (int) Math.min(count, 2L * buckets);
+    }
+  }
+
+  /**
+   * Builds the perfect hash of the keys with the given hashes, into the given number of buckets
+   *
+   * @param hashes   the hashes of the keys
+   * @param buckets  the number of buckets
+   * @param maxSeeds the maximum number of seeds tried for each bucket
+   * @return the seeds of the buckets, {@code null} if any of the buckets is left without a seed
+   */
+  private static int[] seeds(final long[] hashes, final int buckets, final int maxSeeds) {
+    final List<List<Integer>> members = new ArrayList<>(buckets);
+    for (int bucket = 0; bucket < buckets; bucket++) {
+      members.add(new ArrayList<>(BUCKET_SIZE));
+    }
+    for (int i = 0; i < hashes.length; i++) {
+      members.get(bucket(hashes[i], buckets)).add(i);
+    }
+
+    // place the largest buckets first, while there's plenty of free slots
+    final int[] seeds = new int[buckets];
+    final boolean[] occupied = new boolean[hashes.length];
+    final List<Integer> order = IntStream.range(0, buckets).boxed()
+        .sorted(Comparator.comparingInt((Integer bucket) -> members.get(bucket).size()).reversed())
+        .collect(toList());
+    final int[] placed = new int[BUCKET_SIZE * 8];
+    for (final int bucket : order) {
+      final List<Integer> keys = members.get(bucket);
+      if (keys.isEmpty()) {
+        break;
+      }
+      seeds[bucket] = displace(keys, hashes, occupied, maxSeeds, placed.length >= keys.size()
+                                                                 ? placed : new int[keys.size()]);
+      if (seeds[bucket] < 0) {
+        return null;
+      }
+      for (final int i : keys) {
+        occupied[slot(hashes[i], seeds[bucket], occupied.length)] = true;
+      }
+    }
+    return seeds;
+  }
+
+  /**
+   * Finds the seed that displaces all of the keys of a bucket into distinct free slots
+   *
+   * @param keys     the keys of the bucket, by their index
+   * @param hashes   the hashes of the keys
+   * @param occupied the occupied slots
+   * @param maxSeeds the maximum number of seeds tried
+   * @param placed   the scratch space for the slots of the bucket keys
+   * @return the seed of the bucket, {@code -1} if no such seed is found
+   */
+  private static int displace(final List<Integer> keys, final long[] hashes,
+                              final boolean[] occupied, final int maxSeeds,
+                              final int[] placed) {
+    for (int seed = 0; seed < maxSeeds; seed++) {
+      int count = 0;
+      for (final int i : keys) {
+        final int slot = slot(hashes[i], seed, occupied.length);
+        if (occupied[slot] || contains(placed, count, slot)) {
+          break;
+        }
+        placed[count++] = slot;
+      }
+      if (count == keys.size()) {
+        return seed;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Checks whether the first elements of the given array contain the given value
+   *
+   * @param values the array
+   * @param length the number of elements to check
+   * @param value  the value
+   * @return {@code true} if the value is found, {@code false} otherwise
+   */
+  private static boolean contains(final int[] values, final int length, final int value) {
+    for (int i = 0; i < length; i++) {
+      if (values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Serializes the record of the given entry, without its length and MAC
+   *
+   * @param wrapper the secure entry wrapper
+   * @return the record data
+   * @throws VaultOperationException if the ciphered value of the entry is invalid
+   */
+  private static byte[] record(final InMemoryVault.SecureEntryWrapper wrapper)
+      throws VaultOperationException {
+    final byte[] key = wrapper.entry.getKey().getBytes(Vault.VAULT_CS);
+    final byte[] value;
+    try {
+      value = HexCodec.decode(wrapper.entry.getValue());
+    } catch (final DecoderException e) {
+      throw new VaultOperationException(
+          String.format("Invalid ciphered value of the entry with key: %s", wrapper.entry.getKey()),
+          e);
+    }
+    return ByteBuffer.allocate(Integer.BYTES + key.length + 2 * Long.BYTES + 1
+                               + wrapper.iv.length + value.length)
+        .putInt(key.length).put(key)
+        .putLong(wrapper.entry.getCreationDate()).putLong(wrapper.sequence)
+        .put((byte) wrapper.iv.length).put(wrapper.iv)
+        .put(value)
+        .array();
+  }
+
+  /**
+   * Calculates the MAC of the given record, bound to its slot
+   *
+   * @param mac    the vault MAC
+   * @param slot   the slot of the record
+   * @param record the record data
+   * @return the (truncated) MAC of the record
+   */
+  private static byte[] recordMac(final VaultMac mac, final int slot, final byte[] record) {
+    final byte[] position = ByteBuffer.allocate(Integer.BYTES).putInt(slot).array();
+    return mac.update(position, 0, Integer.BYTES)
+        .update(record, 0, record.length)
+        .doFinal(MAC_SIZE);
+  }
+
+  /**
+   * Hashes the given key data (64 bit FNV-1a, with a final mix)
+   *
+   * @param key the key data
+   * @return the hash of the key
+   */
+  private static long hash(final byte[] key) {
+    long hash = 0xCBF29CE484222325L;
+    for (final byte b : key) {
+      hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * Mixes the bits of the given value (the finalizer of SplitMix64)
+   *
+   * @param value the value
+   * @return the mixed value
+   */
+  private static long mix(final long value) {
+    long z = value;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Returns the bucket of the key with the given hash
+   *
+   * @param hash    the hash of the key
+   * @param buckets the number of buckets
+   * @return the bucket of the key
+   */
+  private static int bucket(final long hash, final int buckets) {
+    return (int) Long.remainderUnsigned(hash, buckets);
+  }
+
+  /**
+   * Returns the slot of the key with the given hash, displaced by the given seed
+   *
+   * @param hash  the hash of the key
+   * @param seed  the seed of the bucket of the key
+   * @param slots the number of slots
+   * @return the slot of the key
+   */
+  private static int slot(final long hash, final int seed, final int slots) {
+    return (int) Long.remainderUnsigned(mix(hash + (seed + 1) * 0x9E3779B97F4A7C15L), slots);
+  }
+
+  /**
+   * Finds the entry of the given key, with a single probe of the index
+   *
+   * @param key the key
+   * @return the entry, {@code null} if there's none
+   * @throws VaultCorruptedException if the record of the key is corrupted
+   */
+  private InMemoryVault.SecureEntryWrapper find(final String key) {
+    Objects.requireNonNull(key, "Invalid key specified");
+    if (entries == 0) {
+      return null;
+    }
+    final byte[] data = key.getBytes(Vault.VAULT_CS);
+    final long hash = hash(data);
+    final int seed = buffer.getInt(INDEX_OFFSET + bucket(hash, buckets) * Integer.BYTES);
+    return read(slot(hash, seed, entries), data);
+  }
+
+  /**
+   * Reads the record of the given slot, verifying it
+   *
+   * @param slot the slot
+   * @param key  the expected key data, {@code null} to read the record regardless of its key
+   * @return the entry of the record, {@code null} if it's not of the expected key
+   * @throws VaultCorruptedException if the record is corrupted
+   */
+  private InMemoryVault.SecureEntryWrapper read(final int slot, final byte[] key) {
+    try {
+      // the offset and length are bound to the file before anything is allocated
+      final int offset = buffer.getInt(offsets + slot * Integer.BYTES);
+      final int limit = buffer.capacity() - Integer.BYTES - MAC_SIZE;
+      if (offset < offsets + entries * Integer.BYTES || offset > limit) {
+        throw new VaultCorruptedException("vault structured is corrupted");
+      }
+      final int length = buffer.getInt(offset);
+      if (length < 0 || length > limit - offset) {
+        throw new VaultCorruptedException("vault structured is corrupted");
+      }
+      final byte[] record = new byte[length];
+      final byte[] mac = new byte[MAC_SIZE];
+      final ByteBuffer data = buffer.duplicate();
+      data.position(offset + Integer.BYTES);
+      data.get(record);
+      data.get(mac);
+
+      // the record is verified before its key is trusted
+      final VaultMac recordMac = acquireMac();
+      try {
+        if (!MessageDigest.isEqual(mac, recordMac(recordMac, slot, record))) {
+          throw new VaultCorruptedException("invalid key or vault structured is corrupted");
+        }
+      } finally {
+        releaseMac(recordMac);
+      }
+
+      // other keys share the slot of the absent keys
+      final ByteBuffer fields = ByteBuffer.wrap(record);
+      final byte[] recordKey = new byte[fields.getInt()];
+      fields.get(recordKey);
+      if (key != null && !Arrays.equals(key, recordKey)) {
+        return null;
+      }
+      final long timestamp = fields.getLong();
+      final long recordSequence = fields.getLong();
+      final byte[] iv = new byte[fields.get() & 0xFF];
+      fields.get(iv);
+      final byte[] value = new byte[fields.remaining()];
+      fields.get(value);
+      final SecureEntry entry = SecureEntry.of(
+          timestamp, new String(recordKey, Vault.VAULT_CS),
+          new String(HexCodec.encode(value), StandardCharsets.US_ASCII));
+      return new InMemoryVault.SecureEntryWrapper(entry, iv, recordSequence);
+    } catch (final IndexOutOfBoundsException | IllegalArgumentException
+        | BufferUnderflowException | NegativeArraySizeException e) {
+      throw new VaultCorruptedException("vault structured is corrupted");
+    }
+  }
+
+  /**
+   * Streams the entries of all of the slots
+   *
+   * @return the stream of the entries
+   */
+  private Stream<InMemoryVault.SecureEntryWrapper> wrappers() {
+    return IntStream.range(0, entries).mapToObj(slot -> read(slot, null));
+  }
+
+  @Override
+  public Collection<SecureEntry> read() {
+    return Collections.unmodifiableCollection(stream().collect(toList()));
+  }
+
+  @Override
+  public Optional<SecureEntry> read(final String key) {
+    return InMemoryVault.entry(find(key));
+  }
+
+  @Override
+  public int size() {
+    return entries;
+  }
+
+  @Override
+  public boolean containsKey(final String key) {
+    return find(key) != null;
+  }
+
+  @Override
+  public Stream<SecureEntry> stream() {
+    return wrappers().map(wrapper -> wrapper.entry);
+  }
+
+  @Override
+  public UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException {
+    final InMemoryVault.SecureEntryWrapper wrapper = find(entry.getKey());
+    if (wrapper == null || !wrapper.entry.equals(entry)) {
+      final String errorMessage = String.format("no such key '%s' in the vault.", entry.getKey());
+      log.error(errorMessage);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    return InMemoryVault.unsecure(secret, wrapper);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation exports the entries of the vault, as they were when frozen.
+   */
+  @Override
+  public Stream<EntryChange> exportSince(final long sequence) {
+    return wrappers()
+        .filter(wrapper -> wrapper.sequence > sequence)
+        .sorted(Comparator.comparingLong(wrapper -> wrapper.sequence))
+        .map(wrapper -> EntryChange.written(wrapper.sequence, wrapper.entry, wrapper.iv));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation returns a view of the vault itself, which never changes.
+   */
+  @Override
+  public VaultSnapshot snapshot() {
+    return new VaultSnapshot() {
+
+      @Override
+      public long getVersion() {
+        return sequence;
+      }
+
+      @Override
+      public Collection<SecureEntry> read() {
+        return FrozenFileVault.this.read();
+      }
+
+      @Override
+      public Optional<SecureEntry> read(final String key) {
+        return FrozenFileVault.this.read(key);
+      }
+
+      @Override
+      public UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException {
+        return FrozenFileVault.this.translate(entry);
+      }
+
+      @Override
+      public void close() {
+        // nothing to release
+      }
+    };
+  }
+
+  @Override
+  public void freeze(final Path path) throws IOException, VaultOperationException {
+    freeze(secret, sequence, wrappers().collect(toList()), path);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation does nothing, since the vault cannot be changed.
+   */
+  @Override
+  public void persist() {
+    // nothing to persist
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation drops the MACs kept for the reads, thus the vault key, while the reads
+   * made afterwards create their own MAC.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    macs.clear();
+  }
+
+  @Override
+  public SecureEntry write(final UnsecureEntry entry) {
+    throw frozen();
+  }
+
+  @Override
+  public Optional<SecureEntry> delete(final String key) {
+    throw frozen();
+  }
+
+  @Override
+  public Optional<SecureEntry> putIfAbsent(final UnsecureEntry entry) {
+    throw frozen();
+  }
+
+  @Override
+  public Optional<SecureEntry> replace(final String key, final SecureEntry expected,
+                                       final String value) {
+    throw frozen();
+  }
+
+  @Override
+  public Optional<SecureEntry> compute(final String key,
+                                       final UnaryOperator<Optional<String>> function) {
+    throw frozen();
+  }
+
+  /**
+   * Returns the exception of the changes to the vault
+   *
+   * @return the exception to be thrown
+   */
+  private static UnsupportedOperationException frozen() {
+    return new UnsupportedOperationException("The vault is frozen");
+  }
+}
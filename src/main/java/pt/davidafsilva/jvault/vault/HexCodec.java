@@ -0,0 +1,160 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.apache.commons.codec.DecoderException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hexadecimal encoding and decoding of binary data, which unlike {@link
+ * org.apache.commons.codec.binary.Hex} works directly over byte and character array regions,
+ * avoiding the intermediate strings and arrays.
+ *
+ * The data is encoded with lower case digits, the same as {@link
+ * org.apache.commons.codec.binary.Hex}.
+ *
+ * @author David Silva
+ */
+final class HexCodec {
+
+  // the hexadecimal digits
+  private static final byte[] DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  // private constructor
+  private HexCodec() {
+  }
+
+  /**
+   * Encodes the given data into the ASCII bytes of its hexadecimal representation
+   *
+   * @param data the data to be encoded
+   * @return the encoded data
+   */
+  static byte[] encode(final byte[] data) {
+    return encode(data, 0, data.length);
+  }
+
+  /**
+   * Encodes the given region of data into the ASCII bytes of its hexadecimal representation
+   *
+   * @param data   the data to be encoded
+   * @param offset the offset of the region within the data
+   * @param length the length of the region
+   * @return the encoded data
+   */
+  static byte[] encode(final byte[] data, final int offset, final int length) {
+    final byte[] encoded = new byte[length << 1];
+    encode(data, offset, length, encoded, 0);
+    return encoded;
+  }
+
+  /**
+   * Encodes the given region of data into the ASCII bytes of its hexadecimal representation,
+   * which are written to the given destination
+   *
+   * @param data              the data to be encoded
+   * @param offset            the offset of the region within the data
+   * @param length            the length of the region
+   * @param destination       the destination of the encoded data
+   * @param destinationOffset the offset, within the destination, of the encoded data
+   * @return the offset, within the destination, right after the encoded data
+   */
+  static int encode(final byte[] data, final int offset, final int length,
+                    final byte[] destination, final int destinationOffset) {
+    int j = destinationOffset;
+    for (int i = offset; i < offset + length; i++) {
+      destination[j++] = DIGITS[(data[i] & 0xF0) >>> 4];
+      destination[j++] = DIGITS[data[i] & 0x0F];
+    }
+    return j;
+  }
+
+  /**
+   * Decodes the given region of hexadecimal characters into the data they represent
+   *
+   * @param chars  the hexadecimal characters
+   * @param offset the offset of the region within the characters
+   * @param length the length of the region
+   * @return the decoded data
+   * @throws DecoderException if the region has an odd number of characters or any invalid
+   *                          character
+   */
+  static byte[] decode(final char[] chars, final int offset, final int length)
+      throws DecoderException {
+    if ((length & 0x01) != 0) {
+      throw new DecoderException("Odd number of characters.");
+    }
+    final byte[] decoded = new byte[length >> 1];
+    for (int i = 0, j = offset; i < decoded.length; i++) {
+      decoded[i] = (byte) ((digit(chars[j++]) << 4) | digit(chars[j++]));
+    }
+    return decoded;
+  }
+
+  /**
+   * Decodes the given hexadecimal string into the data it represents
+   *
+   * @param chars the hexadecimal string
+   * @return the decoded data
+   * @throws DecoderException if the string has an odd number of characters or any invalid
+   *                          character
+   */
+  static byte[] decode(final CharSequence chars) throws DecoderException {
+    final int length = chars.length();
+    if ((length & 0x01) != 0) {
+      throw new DecoderException("Odd number of characters.");
+    }
+    final byte[] decoded = new byte[length >> 1];
+    for (int i = 0, j = 0; i < decoded.length; i++) {
+      decoded[i] = (byte) ((digit(chars.charAt(j++)) << 4) | digit(chars.charAt(j++)));
+    }
+    return decoded;
+  }
+
+  /**
+   * Returns the value of the given hexadecimal digit
+   *
+   * @param c the hexadecimal digit
+   * @return the digit value
+   * @throws DecoderException if the character is not an hexadecimal digit
+   */
+  private static int digit(final char c) throws DecoderException {
+    final int digit = Character.digit(c, 16);
+    if (digit == -1) {
+      throw new DecoderException("Illegal hexadecimal character " + c);
+    }
+    return digit;
+  }
+}
@@ -0,0 +1,223 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * An immutable map of string keys, backed by a pre-sized open-addressing (linear probing) table.
+ *
+ * The keys and values are laid out next to each other in a single array, sized once for all of
+ * the entries, so a lookup usually touches a single cache line, allocates nothing and, since the
+ * table never changes after being built, takes no locks nor volatile reads. Being immutable, it's
+ * thread-safe by it's nature.
+ *
+ * Any attempt to change the map fails with an {@link UnsupportedOperationException}.
+ *
+ * @param <V> the type of the values
+ * @author David Silva
+ */
+final class ImmutableTable<V> extends AbstractMap<String, V> {
+
+  // the maximum ratio of occupied slots
+  private static final float LOAD_FACTOR = 0.5f;
+
+  // properties
+  private final Object[] table;
+  private final int mask;
+  private final int size;
+
+  /**
+   * Creates a table with a copy of the entries of the given map
+   *
+   * @param entries the entries of the table
+   */
+  ImmutableTable(final Map<String, ? extends V> entries) {
+    final int slots = Math.max(2, Integer.highestOneBit(
+        Math.max(1, (int) Math.ceil(entries.size() / LOAD_FACTOR)) * 2 - 1));
+    table = new Object[slots * 2];
+    mask = slots - 1;
+    size = entries.size();
+    for (final Map.Entry<String, ? extends V> entry : entries.entrySet()) {
+      int slot = slot(entry.getKey());
+      while (table[slot << 1] != null) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot << 1] = entry.getKey();
+      table[(slot << 1) + 1] = Objects.requireNonNull(entry.getValue());
+    }
+  }
+
+  /**
+   * Returns the home slot of the given key
+   *
+   * @param key the key
+   * @return the slot of the key
+   */
+  private int slot(final String key) {
+    final int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(final Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    for (int slot = slot((String) key); ; slot = (slot + 1) & mask) {
+      final Object k = table[slot << 1];
+      if (k == null) {
+        return null;
+      } else if (k.equals(key)) {
+        return (V) table[(slot << 1) + 1];
+      }
+    }
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Set<Map.Entry<String, V>> entrySet() {
+    return new AbstractSet<Map.Entry<String, V>>() {
+
+      @Override
+      public Iterator<Map.Entry<String, V>> iterator() {
+        return new Iterator<Map.Entry<String, V>>() {
+
+          // the next occupied slot, in the table array
+          private int next = advance(0);
+
+          /**
+           * Returns the first occupied slot from the given one (inclusive)
+           *
+           * @param from the slot from which to search, in the table array
+           * @return the occupied slot, the table length if there's none
+           */
+          private int advance(final int from) {
+            int index = from;
+            while (index < table.length && table[index] == null) {
+              index += 2;
+            }
+            return index;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return next < table.length;
+          }
+
+          @Override
+          @SuppressWarnings("unchecked")
+          public Map.Entry<String, V> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            final Map.Entry<String, V> entry = new SimpleImmutableEntry<>(
+                (String) table[next], (V) table[next + 1]);
+            next = advance(next + 2);
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  @Override
+  public V put(final String key, final V value) {
+    throw immutable();
+  }
+
+  @Override
+  public V remove(final Object key) {
+    throw immutable();
+  }
+
+  @Override
+  public void putAll(final Map<? extends String, ? extends V> m) {
+    throw immutable();
+  }
+
+  @Override
+  public void clear() {
+    throw immutable();
+  }
+
+  @Override
+  public V compute(final String key,
+                   final BiFunction<? super String, ? super V, ? extends V> function) {
+    throw immutable();
+  }
+
+  @Override
+  public V computeIfAbsent(final String key, final Function<? super String, ? extends V> function) {
+    throw immutable();
+  }
+
+  @Override
+  public V merge(final String key, final V value,
+                 final BiFunction<? super V, ? super V, ? extends V> function) {
+    throw immutable();
+  }
+
+  /**
+   * Returns the exception of the changes to the table
+   *
+   * @return the exception to be thrown
+   */
+  private static UnsupportedOperationException immutable() {
+    return new UnsupportedOperationException("The table is immutable");
+  }
+}
@@ -38,29 +38,41 @@ import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
-import java.security.spec.KeySpec;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
+import pt.davidafsilva.jvault.model.EntryChange;
 import pt.davidafsilva.jvault.model.SecureEntry;
 import pt.davidafsilva.jvault.model.UnsecureEntry;
 
@@ -72,14 +84,24 @@ import static java.util.stream.Collectors.toList;
  * This vault implementation is thread-safe. It relies on a thread-safe collection to store the
  * entries.
  *
+ * Every write and deletion is identified by a sequence number, taken from a {@link
+ * VaultSequence}, and indexed by it so that the changes can be {@link #exportSince(long)
+ * exported} incrementally. Deleted entries are kept as tombstones, in order for their deletion to
+ * be exported as well, until the key is written again.
+ *
+ * The sequence number of the last change is also the version of the vault, to which the {@link
+ * #snapshot() snapshots} are pinned. While there are open snapshots, the previous version of each
+ * changed entry is kept in the history of its key, until no longer visible to any snapshot.
+ *
  * The security settings applied in the vault are: <table> <tr> <td><strong>Cipher
  * algorithm</strong></td> <td>{@value #CIPHER_SETTINGS}</td> </tr> <tr> <td><strong>Secret/Key
- * derivation scheme</strong></td> <td>{@value #SECRET_SETTINGS}</td> </tr> <tr> <td><strong>Secret
- * algorithm</strong></td> <td>{@value #SECRET_ALGORITHM}</td> </tr> </table>
+ * derivation scheme</strong></td> <td>{@value VaultKey#SECRET_SETTINGS}</td> </tr> <tr>
+ * <td><strong>Secret algorithm</strong></td> <td>{@value VaultKey#SECRET_ALGORITHM}</td> </tr>
+ * </table>
  *
  * @author David Silva
  */
-final class InMemoryVault implements Vault {
+final class InMemoryVault implements SortedVault {
 
   // logger
   private static final Logger log = LoggerFactory.getLogger(InMemoryVault.class);
@@ -87,17 +109,55 @@ final class InMemoryVault implements Vault {
   // vault cipher settings
   private static final String CIPHER_SETTINGS = "AES/CBC/PKCS5Padding";
 
-  // vault secret settings
-  private static final String SECRET_SETTINGS = "PBKDF2WithHmacSHA1";
+  // the order of the entries, by key
+  private static final Comparator<SecureEntry> KEY_ORDER =
+      Comparator.comparing(SecureEntry::getKey);
+
+  // the estimated heap retained by each entry, besides its key, ciphered value and IV: the map
+  // node, the wrapper, the entry, the headers of the strings and arrays and its change index node
+  private static final int ENTRY_OVERHEAD = 256;
 
-  // vault secret algorithm
-  private static final String SECRET_ALGORITHM = "AES";
+  // the estimated heap retained by each packed entry, besides its (raw) key, ciphered value and IV:
+  // its record and slot in the packed table and its change index node
+  private static final int PACKED_ENTRY_OVERHEAD = 108;
+
+  // the estimated heap retained by each entry in the ordered index, if enabled
+  private static final int ORDERED_ENTRY_OVERHEAD = 40;
+
+  // the estimated heap retained by each tombstone, along with its change index node
+  private static final int TOMBSTONE_OVERHEAD = 128;
 
   // the map where key-value entries are stored
-  final Map<String, SecureEntryWrapper> map = new ConcurrentHashMap<>();
+  Map<String, SecureEntryWrapper> map;
+
+  // the tombstones of the deleted entries
+  final Map<String, Tombstone> tombstones = new ConcurrentHashMap<>();
+
+  // the index of the (last) change of each key, by sequence number
+  private final ConcurrentNavigableMap<Long, String> changes = new ConcurrentSkipListMap<>();
+
+  // the entries ordered by key, if enabled, kept alongside the map
+  private final ConcurrentNavigableMap<String, SecureEntryWrapper> ordered;
+
+  // the number of open snapshots, by their version
+  private final ConcurrentNavigableMap<Long, Integer> pins = new ConcurrentSkipListMap<>();
+
+  // the previous versions of the entries changed while there are open snapshots
+  final Map<String, Version> history = new ConcurrentHashMap<>();
+
+  // the dispatchers of the changes to the subscribed listeners
+  private final List<ChangeDispatcher> dispatchers = new CopyOnWriteArrayList<>();
+
+  // the size of the keys, ciphered values and IVs of the stored entries, in bytes
+  private final LongAdder keyBytes = new LongAdder();
+  private final LongAdder ciphertextBytes = new LongAdder();
+  private final LongAdder ivBytes = new LongAdder();
 
   // properties
+  final VaultKey key;
   final SecretKey secret;
+  final VaultSequence sequence;
+  private final Runnable onChange;
 
   /**
    * Creates a vault with the specified parameters.
@@ -126,22 +186,95 @@ final class InMemoryVault implements Vault {
    */
   InMemoryVault(final char[] password, final byte[] salt, final int iterations,
                 final int keyLength) throws VaultInitializationException {
-    try {
-      // create the secret factory with the configure settings
-      final SecretKeyFactory factory = SecretKeyFactory.getInstance(SECRET_SETTINGS);
+    this(VaultKey.derive(password, salt, iterations, keyLength));
+  }
 
-      // create the key from the password and salt
-      final KeySpec spec = new PBEKeySpec(password, salt, iterations, keyLength);
+  /**
+   * Creates a vault with the specified (previously derived) key.
+   *
+   * @param key the vault key
+   */
+  InMemoryVault(final VaultKey key) {
+    this(key, false);
+  }
 
-      // create the secret from the derived key using AES
-      secret = new SecretKeySpec(factory.generateSecret(spec).getEncoded(), SECRET_ALGORITHM);
+  /**
+   * Creates a vault with the specified (previously derived) key, optionally indexing the entries
+   * by key, in ascending order.
+   *
+   * @param key     the vault key
+   * @param ordered whether or not the entries are indexed in ascending key order
+   */
+  InMemoryVault(final VaultKey key, final boolean ordered) {
+    this(key, ordered, false);
+  }
 
-      // log
-      log.info("successfully initialized an in-memory vault.");
-    } catch (final InvalidKeySpecException | NoSuchAlgorithmException e) {
-      log.error("An error occurred while initializing the vault.", e);
-      throw new VaultInitializationException("An error occurred while initializing the vault.", e);
-    }
+  /**
+   * Creates a vault with the specified (previously derived) key, optionally indexing its keys in
+   * ascending order and packing its entries.
+   *
+   * @param key     the vault key
+   * @param ordered whether or not the keys are indexed in ascending order
+   * @param packed  whether or not the entries are packed, see {@link PackedEntryTable}
+   */
+  InMemoryVault(final VaultKey key, final boolean ordered, final boolean packed) {
+    this(key, new VaultSequence(), () -> {
+    }, ordered, packed);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key and source of sequence numbers.
+   *
+   * @param key      the vault key
+   * @param sequence the source of the sequence numbers of the changes
+   */
+  InMemoryVault(final VaultKey key, final VaultSequence sequence) {
+    this(key, sequence, () -> {
+    }, false);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key and source of sequence numbers,
+   * notifying the given callback of every change made through the vault and, optionally, indexing
+   * the entries by key, in ascending order.
+   *
+   * The callback is invoked while holding the {@link VaultSequence#mutationLock() mutation lock},
+   * right after the change is made, but not for the (previously persisted) entries that are
+   * {@link #store(SecureEntry, SecureEntryWrapper) stored} or {@link #reload(SecureEntryWrapper,
+   * SecureEntryWrapper) reloaded}.
+   *
+   * @param key      the vault key
+   * @param sequence the source of the sequence numbers of the changes
+   * @param onChange the callback notified of every change
+   * @param ordered  whether or not the entries are indexed in ascending key order
+   */
+  InMemoryVault(final VaultKey key, final VaultSequence sequence, final Runnable onChange,
+                final boolean ordered) {
+    this(key, sequence, onChange, ordered, false);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key and source of sequence numbers,
+   * notifying the given callback of every change made to the vault, optionally indexing its keys
+   * in ascending order and packing its entries.
+   *
+   * @param key      the vault key
+   * @param sequence the source of the sequence numbers of the changes
+   * @param onChange the callback notified of every change
+   * @param ordered  whether or not the keys are indexed in ascending order
+   * @param packed   whether or not the entries are packed, see {@link PackedEntryTable}
+   */
+  InMemoryVault(final VaultKey key, final VaultSequence sequence, final Runnable onChange,
+                final boolean ordered, final boolean packed) {
+    this.key = key;
+    this.secret = key.secret;
+    this.sequence = sequence;
+    this.onChange = onChange;
+    this.ordered = ordered ? new ConcurrentSkipListMap<>() : null;
+    this.map = packed ? new PackedEntryTable() : new ConcurrentHashMap<>();
+
+    // log
+    log.info("successfully initialized an in-memory vault.");
   }
 
   @Override
@@ -156,21 +289,659 @@ final class InMemoryVault implements Vault {
     return Optional.ofNullable(secureEntryWrapper == null ? null : secureEntryWrapper.entry);
   }
 
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public boolean containsKey(final String key) {
+    return map.containsKey(key);
+  }
+
+  @Override
+  public Stream<SecureEntry> stream() {
+    return map.values().stream().map(wrapper -> wrapper.entry);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation reads the page from the ordered index, if enabled, otherwise it keeps only
+   * the (up to) {@code limit} smallest keys while iterating over the entries, rather than sorting
+   * all of them.
+   */
+  @Override
+  public List<SecureEntry> scan(final String afterKey, final int limit) {
+    return select(afterKey, false, null, limit);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation reads the range from the ordered index, if enabled, otherwise it keeps
+   * only the (up to) {@code limit} smallest keys while iterating over the entries, rather than
+   * sorting all of them.
+   */
+  @Override
+  public List<SecureEntry> readRange(final String fromKey, final String toKey, final int limit) {
+    return select(fromKey, true, toKey, limit);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation deletes the keys found in the ordered index, if enabled, otherwise it
+   * goes through all of the keys. Each key is deleted as a change of its own.
+   */
+  @Override
+  public int deletePrefix(final String prefix) {
+    Objects.requireNonNull(prefix, "Invalid prefix specified");
+    log.info("deleting the '{}' prefixed entries in the vault..", prefix);
+    final Collection<String> keys = ordered != null
+                                    ? ordered.tailMap(prefix).keySet() : map.keySet();
+    int deleted = 0;
+    for (final String key : keys) {
+      if (!key.startsWith(prefix)) {
+        if (ordered != null) {
+          break;
+        }
+        continue;
+      }
+      if (update(key, current -> null).changed()) {
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Selects, in ascending key order, the entries with a key within the given range
+   *
+   * @param fromKey   the lower bound of the keys, {@code null} for no lower bound
+   * @param inclusive whether or not the lower bound is inclusive
+   * @param toKey     the (exclusive) upper bound of the keys, {@code null} for no upper bound
+   * @param limit     the maximum number of entries to be selected
+   * @return the selected entries
+   * @throws IllegalArgumentException if the limit is negative
+   */
+  private List<SecureEntry> select(final String fromKey, final boolean inclusive,
+                                   final String toKey, final int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("invalid limit, must not be negative");
+    }
+    final List<SecureEntry> entries = new ArrayList<>(Math.min(limit, 1024));
+    if (ordered != null) {
+      ConcurrentNavigableMap<String, SecureEntryWrapper> range = ordered;
+      if (fromKey != null) {
+        range = range.tailMap(fromKey, inclusive);
+      }
+      if (toKey != null) {
+        range = range.headMap(toKey, false);
+      }
+      final Iterator<SecureEntryWrapper> iterator = range.values().iterator();
+      while (entries.size() < limit && iterator.hasNext()) {
+        entries.add(iterator.next().entry);
+      }
+      return entries;
+    }
+
+    // the page, with the greatest key at its head
+    final PriorityQueue<SecureEntry> page = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)),
+                                                                KEY_ORDER.reversed());
+    for (final SecureEntryWrapper wrapper : map.values()) {
+      final String key = wrapper.entry.getKey();
+      if (limit == 0 || fromKey != null && (inclusive ? key.compareTo(fromKey) < 0
+                                                      : key.compareTo(fromKey) <= 0)
+          || toKey != null && key.compareTo(toKey) >= 0) {
+        continue;
+      }
+      if (page.size() < limit) {
+        page.add(wrapper.entry);
+      } else if (key.compareTo(page.peek().getKey()) < 0) {
+        page.poll();
+        page.add(wrapper.entry);
+      }
+    }
+    entries.addAll(page);
+    entries.sort(KEY_ORDER);
+    return entries;
+  }
+
   @Override
   public SecureEntry write(final UnsecureEntry entry) throws VaultOperationException {
     Objects.requireNonNull(entry, "Invalid entry specified");
     log.info("writing/updating '{}' entry in the vault..", entry.getKey());
-    final SecureEntryWrapper secureEntryWrapper = secure(entry);
-    map.put(entry.getKey(), secureEntryWrapper);
-    return secureEntryWrapper.entry;
+    final SecureEntryWrapper wrapper = secure(secret, entry);
+    return update(entry.getKey(), current -> wrapper).current.entry;
   }
 
   @Override
   public Optional<SecureEntry> delete(final String key) {
     Objects.requireNonNull(key, "Invalid key specified");
     log.info("deleting '{}' entry in the vault..", key);
-    final SecureEntryWrapper secureEntryWrapper = map.remove(key);
-    return Optional.ofNullable(secureEntryWrapper == null ? null : secureEntryWrapper.entry);
+    return entry(update(key, current -> null).previous);
+  }
+
+  @Override
+  public Optional<SecureEntry> putIfAbsent(final UnsecureEntry entry)
+      throws VaultOperationException {
+    Objects.requireNonNull(entry, "Invalid entry specified");
+    log.info("writing '{}' entry in the vault, if absent..", entry.getKey());
+    return entry(update(entry.getKey(),
+                        current -> current == null ? secure(secret, entry) : current).previous);
+  }
+
+  @Override
+  public Optional<SecureEntry> replace(final String key, final SecureEntry expected,
+                                       final String value) throws VaultOperationException {
+    Objects.requireNonNull(key, "Invalid key specified");
+    Objects.requireNonNull(expected, "Invalid expected entry specified");
+    log.info("replacing '{}' entry in the vault..", key);
+    final SecureEntryWrapper wrapper = secure(secret, UnsecureEntry.of(key, value));
+    final Update update = update(key, current -> current != null
+                                                 && current.entry.equals(expected)
+                                                 ? wrapper : current);
+    return update.changed() ? entry(update.current) : Optional.empty();
+  }
+
+  @Override
+  public Optional<SecureEntry> compute(final String key,
+                                       final UnaryOperator<Optional<String>> function)
+      throws VaultOperationException {
+    Objects.requireNonNull(key, "Invalid key specified");
+    Objects.requireNonNull(function, "Invalid function specified");
+    log.info("computing '{}' entry in the vault..", key);
+    return entry(update(key, current -> {
+      final Optional<String> value = current == null ? Optional.empty()
+                                                     : Optional.of(unsecure(secret, current)
+                                                                       .getValue());
+      final Optional<String> computed = Objects.requireNonNull(function.apply(value),
+                                                               "Invalid computed value");
+      if (computed.equals(value)) {
+        return current;
+      }
+      return computed.isPresent() ? secure(secret, UnsecureEntry.of(key, computed.get())) : null;
+    }).current);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation exports the changes up to the last sequence number with no change in
+   * flight, as of the invocation. Changes superseded by later ones, up to the moment that the
+   * stream is consumed, are skipped.
+   */
+  @Override
+  public Stream<EntryChange> exportSince(final long sequence) {
+    return exportSince(sequence, this.sequence.watermark());
+  }
+
+  /**
+   * Exports the changes made after the given sequence number, up to the given watermark.
+   *
+   * @param since     the sequence number after which the changes are exported
+   * @param watermark the sequence number up to which (inclusive) the changes are exported
+   * @return the changes, ordered by sequence number
+   */
+  Stream<EntryChange> exportSince(final long since, final long watermark) {
+    if (since >= watermark) {
+      return Stream.empty();
+    }
+    return changes.subMap(since, false, watermark, true).entrySet().stream()
+        .map(change -> change(change.getKey(), change.getValue()))
+        .filter(Objects::nonNull);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation notifies the changes reloaded from the vault file as well, if any.
+   */
+  @Override
+  public VaultSubscription subscribe(final VaultListener listener, final Executor executor) {
+    final ChangeDispatcher[] dispatcher = new ChangeDispatcher[1];
+    dispatcher[0] = new ChangeDispatcher(this::lastChange, listener, executor,
+                                         () -> unsubscribe(dispatcher[0]));
+    subscribe(dispatcher[0]);
+    return dispatcher[0];
+  }
+
+  /**
+   * Subscribes the given dispatcher to the changes of the vault
+   *
+   * @param dispatcher the dispatcher of the changes
+   */
+  void subscribe(final ChangeDispatcher dispatcher) {
+    dispatchers.add(dispatcher);
+  }
+
+  /**
+   * Unsubscribes the given dispatcher from the changes of the vault
+   *
+   * @param dispatcher the dispatcher of the changes
+   */
+  void unsubscribe(final ChangeDispatcher dispatcher) {
+    dispatchers.remove(dispatcher);
+  }
+
+  /**
+   * Publishes the change of the given key to the subscribed listeners, once made (and unlocked)
+   *
+   * @param key the changed key
+   */
+  private void publish(final String key) {
+    for (final ChangeDispatcher dispatcher : dispatchers) {
+      dispatcher.changed(key);
+    }
+  }
+
+  /**
+   * Returns the last change of the given key
+   *
+   * @param key the key
+   * @return the change, or {@code null} if the key was never changed (or its tombstone purged)
+   */
+  EntryChange lastChange(final String key) {
+    final SecureEntryWrapper wrapper = map.get(key);
+    if (wrapper != null) {
+      return EntryChange.written(wrapper.sequence, wrapper.entry, wrapper.iv);
+    }
+    final Tombstone tombstone = tombstones.get(key);
+    return tombstone == null ? null
+                             : EntryChange.deleted(tombstone.sequence, tombstone.timestamp, key);
+  }
+
+  /**
+   * Returns the change of the given key with the given sequence number
+   *
+   * @param sequence the sequence number of the change
+   * @param key      the changed key
+   * @return the change, or {@code null} if the change has been superseded
+   */
+  private EntryChange change(final long sequence, final String key) {
+    final SecureEntryWrapper wrapper = map.get(key);
+    if (wrapper != null && wrapper.sequence == sequence) {
+      return EntryChange.written(sequence, wrapper.entry, wrapper.iv);
+    }
+    final Tombstone tombstone = tombstones.get(key);
+    if (tombstone != null && tombstone.sequence == sequence) {
+      return EntryChange.deleted(sequence, tombstone.timestamp, key);
+    }
+    return null;
+  }
+
+  /**
+   * Updates the entry of the given key with the result of the given mutation, as a new change.
+   *
+   * The mutation is applied to the current entry without holding any lock, thus it may access the
+   * vault, and its result is then installed only if the entry of the key is still the same one,
+   * i.e. a compare-and-set on its sequence number. Otherwise, the mutation is applied again to the
+   * newer entry, therefore the changes of each key are atomic, while the ones of different keys
+   * proceed concurrently.
+   *
+   * @param key      the key of the entry
+   * @param mutation the mutation of the current entry of the key
+   * @param <E>      the type of the exception thrown by the mutation
+   * @return the update, with both the previous and the current entry of the key
+   * @throws E if thrown by the mutation, in which case the entry is left untouched
+   */
+  private <E extends Exception> Update update(final String key, final Mutation<E> mutation)
+      throws E {
+    final Lock lock = sequence.mutationLock();
+    while (true) {
+      final SecureEntryWrapper previous = map.get(key);
+      final SecureEntryWrapper updated = mutation.apply(previous);
+      if (updated == previous) {
+        return new Update(previous, previous);
+      }
+      final boolean[] conflict = new boolean[1];
+      final SecureEntryWrapper current;
+      lock.lock();
+      try {
+        current = map.compute(key, (k, existing) -> {
+          if (!isSame(existing, previous)) {
+            conflict[0] = true;
+            return existing;
+          }
+          return updated == null ? remove(k, existing) : put(k, existing, updated);
+        });
+        if (!conflict[0]) {
+          onChange.run();
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (conflict[0]) {
+        log.debug("'{}' entry changed concurrently, retrying its update..", key);
+        continue;
+      }
+      publish(key);
+      return new Update(previous, current);
+    }
+  }
+
+  /**
+   * Puts the given (secured) entry in place of the previous one of its key, as a new change.
+   *
+   * @param key      the key of the entry
+   * @param previous the previous entry of the key, {@code null} if there's none
+   * @param wrapper  the secured entry wrapper
+   * @return the entry wrapper to be stored, with the sequence number of the change
+   */
+  private SecureEntryWrapper put(final String key, final SecureEntryWrapper previous,
+                                 final SecureEntryWrapper wrapper) {
+    final SecureEntryWrapper current = wrapper.sequenced(sequence.next());
+    index(current.sequence, key, previous == null ? 0 : previous.sequence);
+    order(key, current);
+    account(previous, current);
+    record(key, previous, current.sequence);
+    final Tombstone tombstone = tombstones.remove(key);
+    if (tombstone != null) {
+      changes.remove(tombstone.sequence);
+    }
+    return current;
+  }
+
+  /**
+   * Removes the previous entry of the given key, as a new change, leaving a tombstone behind.
+   *
+   * @param key      the key of the entry
+   * @param previous the previous entry of the key
+   * @return {@code null}, as the key is no longer mapped
+   */
+  private SecureEntryWrapper remove(final String key, final SecureEntryWrapper previous) {
+    final Tombstone tombstone = new Tombstone(key, sequence.next(), System.currentTimeMillis());
+    index(tombstone.sequence, key, previous.sequence);
+    order(key, null);
+    account(previous, null);
+    record(key, previous, tombstone.sequence);
+    final Tombstone replaced = tombstones.put(key, tombstone);
+    if (replaced != null) {
+      changes.remove(replaced.sequence);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the entry of the given wrapper, if any
+   *
+   * @param wrapper the entry wrapper, possibly {@code null}
+   * @return the entry, or none if there's no wrapper
+   */
+  static Optional<SecureEntry> entry(final SecureEntryWrapper wrapper) {
+    return Optional.ofNullable(wrapper == null ? null : wrapper.entry);
+  }
+
+  /**
+   * Indexes the change of the given key, replacing its previous change (if any)
+   *
+   * @param sequence the sequence number of the change
+   * @param key      the changed key
+   * @param previous the sequence number of the previous change, 0 if there's none
+   */
+  private void index(final long sequence, final String key, final long previous) {
+    changes.put(sequence, key);
+    if (previous != 0 && previous != sequence) {
+      changes.remove(previous);
+    }
+  }
+
+  /**
+   * Updates the ordered index, if enabled, with the current entry of the given key. Must be called
+   * while the key is locked, i.e. within the computation of its mapping.
+   *
+   * @param key     the key
+   * @param current the current entry of the key, {@code null} if it was deleted
+   */
+  private void order(final String key, final SecureEntryWrapper current) {
+    if (ordered == null) {
+      return;
+    }
+    if (current == null) {
+      ordered.remove(key);
+    } else {
+      ordered.put(key, current);
+    }
+  }
+
+  /**
+   * Accounts for the replacement of the previous entry of a key by its current one, in the size
+   * of the stored entries. Must be called while the key is locked, i.e. within the computation of
+   * its mapping.
+   *
+   * @param previous the previous entry of the key, {@code null} if there was none
+   * @param current  the current entry of the key, {@code null} if it was deleted
+   */
+  private void account(final SecureEntryWrapper previous, final SecureEntryWrapper current) {
+    if (previous != null) {
+      keyBytes.add(-VaultStats.encodedLength(previous.entry.getKey()));
+      ciphertextBytes.add(-previous.entry.getValue().length() / 2);
+      ivBytes.add(-previous.iv.length);
+    }
+    if (current != null) {
+      keyBytes.add(VaultStats.encodedLength(current.entry.getKey()));
+      ciphertextBytes.add(current.entry.getValue().length() / 2);
+      ivBytes.add(current.iv.length);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation reads the sizes kept up to date as the entries are changed, hence it
+   * doesn't go through the entries. The retained heap is estimated from the number of entries and
+   * tombstones, as well as their sizes, thus the previous versions of the entries kept for the open
+   * snapshots, if any, are not accounted for.
+   */
+  @Override
+  public VaultStats stats() {
+    final int entries = map.size();
+    final long keys = keyBytes.sum();
+    final long ciphertexts = ciphertextBytes.sum();
+    final long heap;
+    if (map instanceof PackedEntryTable) {
+      // packed entries hold their keys and values as raw bytes
+      heap = (long) entries * PACKED_ENTRY_OVERHEAD + keys + ciphertexts;
+    } else {
+      // the ciphered values are held as hexadecimal strings
+      heap = (long) entries * ENTRY_OVERHEAD + keys + 2 * ciphertexts;
+    }
+    return new VaultStats(entries, keys, ciphertexts,
+                          heap + ivBytes.sum() + (long) tombstones.size() * TOMBSTONE_OVERHEAD
+                          + (ordered == null ? 0 : (long) entries * ORDERED_ENTRY_OVERHEAD));
+  }
+
+  /**
+   * Records the previous version of the entry of the given key, superseded by the change with the
+   * given sequence number, if there are open snapshots. Must be called while the key is locked,
+   * i.e. within the computation of its mapping.
+   *
+   * @param key      the key
+   * @param previous the previous entry of the key, {@code null} if there was none
+   * @param sequence the sequence number of the change
+   */
+  private void record(final String key, final SecureEntryWrapper previous, final long sequence) {
+    // the snapshots are pinned while holding the exclusive lock, thus the pins cannot change while
+    // the change is being made
+    if (!pins.isEmpty()) {
+      history.compute(key, (k, newest) -> new Version(sequence, previous, newest));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation pins the snapshot to the last sequence number, once the changes in flight
+   * are complete.
+   */
+  @Override
+  public VaultSnapshot snapshot() {
+    final long version;
+    final Lock exclusive = sequence.exclusiveLock();
+    exclusive.lock();
+    try {
+      version = sequence.current();
+      pins.merge(version, 1, Integer::sum);
+    } finally {
+      exclusive.unlock();
+    }
+    log.debug("pinned a snapshot of the vault at version {}", version);
+    return new Snapshot(version);
+  }
+
+  /**
+   * Seals the vault: its entries are moved into an {@link ImmutableTable immutable table}, tuned
+   * for lookups, after which any change to the vault fails with an {@link
+   * UnsupportedOperationException}. Must be called before the vault is shared with other threads.
+   */
+  void seal() {
+    map = new ImmutableTable<>(map);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation freezes a snapshot of the vault, thus it's not blocked by the changes made
+   * meanwhile.
+   */
+  @Override
+  public void freeze(final Path path) throws IOException, VaultOperationException {
+    try (final Snapshot snapshot = (Snapshot) snapshot()) {
+      FrozenFileVault.freeze(secret, snapshot.version, snapshot.wrappers().collect(toList()), path);
+    }
+  }
+
+  /**
+   * Releases a snapshot with the given version, discarding the previous versions of the entries
+   * that are no longer visible to any of the remaining snapshots.
+   *
+   * @param version the version of the snapshot
+   */
+  private void release(final long version) {
+    pins.computeIfPresent(version, (v, count) -> count == 1 ? null : count - 1);
+    // the versions superseded up to the current sequence number aren't visible to the snapshots
+    // taken from now on, hence it's read before the oldest snapshot
+    final long current = sequence.current();
+    final Map.Entry<Long, Integer> oldest = pins.firstEntry();
+    final long threshold = oldest == null ? current : Math.min(oldest.getKey(), current);
+    for (final String key : history.keySet()) {
+      history.computeIfPresent(key, (k, newest) -> newest.prune(threshold));
+    }
+  }
+
+  /**
+   * Returns the entry of the given key, as of the given version
+   *
+   * @param key     the key
+   * @param version the version
+   * @return the entry, {@code null} if there was none
+   */
+  private SecureEntryWrapper at(final String key, final long version) {
+    // the history is recorded before the entry is replaced, thus it's read afterwards
+    SecureEntryWrapper entry = map.get(key);
+    for (Version v = history.get(key); v != null && v.sequence > version; v = v.older) {
+      entry = v.previous;
+    }
+    return entry;
+  }
+
+  /**
+   * Checks whether the given entries are the same, i.e. the same change of their key, regardless
+   * of being the same instance, since the entries of packed vaults are materialized when read
+   *
+   * @param current  the current entry, if any
+   * @param expected the expected entry, if any
+   * @return {@code true} if both are the same entry, {@code false} otherwise
+   */
+  private static boolean isSame(final SecureEntryWrapper current,
+                                final SecureEntryWrapper expected) {
+    return current == expected || current != null && expected != null
+                                  && current.sequence != 0 && current.sequence == expected.sequence;
+  }
+
+  /**
+   * Applies the given reloaded entry, such as one changed by another process, as long as the
+   * current entry of its key is still the expected one. The sequence number of the reloaded entry
+   * is kept.
+   *
+   * @param expected the expected current entry of the key, {@code null} if there's none
+   * @param loaded   the reloaded entry
+   * @return {@code true} if the entry was applied, {@code false} if the key has changed meanwhile
+   */
+  boolean reload(final SecureEntryWrapper expected, final SecureEntryWrapper loaded) {
+    final boolean[] applied = new boolean[1];
+    final Lock lock = sequence.mutationLock();
+    lock.lock();
+    try {
+      map.compute(loaded.entry.getKey(), (key, current) -> {
+        if (!isSame(current, expected)) {
+          return current;
+        }
+        final SecureEntryWrapper stored = loaded.sequence == 0
+                                          ? loaded.sequenced(sequence.next()) : loaded;
+        sequence.advance(stored.sequence);
+        index(stored.sequence, key, current == null ? 0 : current.sequence);
+        order(key, stored);
+        account(current, stored);
+        record(key, current, stored.sequence);
+        final Tombstone tombstone = tombstones.remove(key);
+        if (tombstone != null && tombstone.sequence != stored.sequence) {
+          changes.remove(tombstone.sequence);
+        }
+        applied[0] = true;
+        return stored;
+      });
+    } finally {
+      lock.unlock();
+    }
+    if (applied[0]) {
+      publish(loaded.entry.getKey());
+    }
+    return applied[0];
+  }
+
+  /**
+   * Applies the given reloaded deletion, such as one made by another process, as long as the
+   * current entry of its key is still the expected one. The sequence number of the tombstone is
+   * kept, unless it has none.
+   *
+   * @param expected  the expected current entry of the key, {@code null} if there's none
+   * @param tombstone the tombstone of the deleted entry
+   * @return {@code true} if the deletion was applied, {@code false} if the key has changed
+   * meanwhile
+   */
+  boolean reload(final SecureEntryWrapper expected, final Tombstone tombstone) {
+    final boolean[] applied = new boolean[1];
+    final Lock lock = sequence.mutationLock();
+    lock.lock();
+    try {
+      map.compute(tombstone.key, (key, current) -> {
+        if (!isSame(current, expected)) {
+          return current;
+        }
+        final Tombstone stored = tombstone.sequence == 0
+                                 ? new Tombstone(key, sequence.next(), tombstone.timestamp)
+                                 : tombstone;
+        sequence.advance(stored.sequence);
+        index(stored.sequence, key, current == null ? 0 : current.sequence);
+        order(key, null);
+        account(current, null);
+        record(key, current, stored.sequence);
+        final Tombstone previous = tombstones.put(key, stored);
+        if (previous != null && previous.sequence != stored.sequence) {
+          changes.remove(previous.sequence);
+        }
+        applied[0] = true;
+        return null;
+      });
+    } finally {
+      lock.unlock();
+    }
+    if (applied[0]) {
+      publish(tombstone.key);
+    }
+    return applied[0];
   }
 
   @Override
@@ -181,17 +952,19 @@ final class InMemoryVault implements Vault {
       log.error(errorMessage);
       throw new IllegalArgumentException(errorMessage);
     }
-    return unsecure(secureEntryWrapper);
+    return unsecure(secret, secureEntryWrapper);
   }
 
   /**
-   * Secures the specified entry
+   * Secures the specified entry with the given secret
    *
-   * @param entry the entry to be secured
+   * @param secret the secret of the vault
+   * @param entry  the entry to be secured
    * @return the secured entry
    * @throws VaultOperationException if an error occurs while ciphering the entry
    */
-  private SecureEntryWrapper secure(final UnsecureEntry entry) throws VaultOperationException {
+  static SecureEntryWrapper secure(final SecretKey secret, final UnsecureEntry entry)
+      throws VaultOperationException {
     try {
       // get the byte data
       final byte[] bValue = entry.getValue().getBytes(Vault.VAULT_CS);
@@ -215,8 +988,10 @@ final class InMemoryVault implements Vault {
       // create the wrapper with the IV
       final SecureEntryWrapper entryWrapper = new SecureEntryWrapper(secureEntry, initVector);
 
-      // store
-      store(secureEntry, entryWrapper);
+      // log the cipher
+      if (log.isDebugEnabled()) {
+        log.debug("secured '{}' into '{}", entry, entryWrapper);
+      }
 
       // return the wrapper
       return entryWrapper;
@@ -229,27 +1004,86 @@ final class InMemoryVault implements Vault {
   }
 
   /**
-   * Stores the given entry at the vault
+   * Stores the given (previously persisted) entry at the vault.
+   *
+   * Entries without a sequence number, such as the ones of vaults persisted before changes were
+   * tracked, are given a new one.
    *
    * @param entry        the secured entry
    * @param entryWrapper the secured entry wrapper
    */
   void store(final SecureEntry entry, final SecureEntryWrapper entryWrapper) {
-    // store it in the map
-    map.put(entry.getKey(), entryWrapper);
+    final SecureEntryWrapper stored = entryWrapper.sequence == 0
+                                      ? entryWrapper.sequenced(sequence.next()) : entryWrapper;
+    sequence.advance(stored.sequence);
+    map.compute(entry.getKey(), (key, previous) -> {
+      index(stored.sequence, key, previous == null ? 0 : previous.sequence);
+      order(key, stored);
+      account(previous, stored);
+      return stored;
+    });
+  }
+
+  /**
+   * Stores the given (previously persisted) tombstone at the vault
+   *
+   * @param tombstone the tombstone of a deleted entry
+   */
+  void store(final Tombstone tombstone) {
+    sequence.advance(tombstone.sequence);
+    final Tombstone previous = tombstones.put(tombstone.key, tombstone);
+    index(tombstone.sequence, tombstone.key, previous == null ? 0 : previous.sequence);
+  }
+
+  /**
+   * Purges the tombstones of the entries deleted before the given instant, which are then no
+   * longer exported, thus neither persisted.
+   *
+   * @param before the instant, in milliseconds since the epoch, before which the tombstones are
+   *               purged
+   * @return the number of purged tombstones
+   */
+  int purge(final long before) {
+    int purged = 0;
+    for (final Tombstone tombstone : tombstones.values()) {
+      // unless replaced (or removed) meanwhile, by a change of the same key
+      if (tombstone.timestamp < before && tombstones.remove(tombstone.key, tombstone)) {
+        changes.remove(tombstone.sequence, tombstone.key);
+        purged++;
+      }
+    }
+    return purged;
+  }
 
-    // log the cipher
-    log.debug("secured '{}' into '{}", entry, entryWrapper);
+  /**
+   * Removes all of the (previously persisted) entries and tombstones of the vault, such as the ones
+   * of a partially loaded vault.
+   *
+   * The sequence is not reset, thus the sequence numbers remain unique.
+   */
+  void clear() {
+    map.clear();
+    tombstones.clear();
+    changes.clear();
+    history.clear();
+    if (ordered != null) {
+      ordered.clear();
+    }
+    keyBytes.reset();
+    ciphertextBytes.reset();
+    ivBytes.reset();
   }
 
   /**
-   * Unsecures the specified entry
+   * Unsecures the specified entry with the given secret
    *
-   * @param entry the entry to be unsecured
+   * @param secret the secret of the vault
+   * @param entry  the entry to be unsecured
    * @return the unsecured entry
    * @throws VaultOperationException if an error occurs while ciphering the entry
    */
-  private UnsecureEntry unsecure(final SecureEntryWrapper entry) throws VaultOperationException {
+  static UnsecureEntry unsecure(final SecretKey secret, final SecureEntryWrapper entry)
+      throws VaultOperationException {
     try {
       // get the byte data
       final byte[] bValue = Hex.decodeHex(entry.entry.getValue().toCharArray());
@@ -282,28 +1116,249 @@ final class InMemoryVault implements Vault {
 
   /**
    * The wrapper class for a secure entry, which adds the necessary initial vector used in the
-   * cipher of the {@link pt.davidafsilva.jvault.model.Entry}.
+   * cipher of the {@link pt.davidafsilva.jvault.model.Entry} and the sequence number of its last
+   * change.
    */
   static class SecureEntryWrapper {
 
     // properties
     final SecureEntry entry;
     final byte[] iv;
+    final long sequence;
 
     /**
-     * Default wrapper constructor
+     * Creates a wrapper with no sequence number, yet
      *
      * @param entry the original secure entry
      * @param iv    the IV used in the cipher
      */
     SecureEntryWrapper(final SecureEntry entry, final byte[] iv) {
+      this(entry, iv, 0);
+    }
+
+    /**
+     * Default wrapper constructor
+     *
+     * @param entry    the original secure entry
+     * @param iv       the IV used in the cipher
+     * @param sequence the sequence number of the last change of the entry
+     */
+    SecureEntryWrapper(final SecureEntry entry, final byte[] iv, final long sequence) {
       this.entry = entry;
       this.iv = iv;
+      this.sequence = sequence;
+    }
+
+    /**
+     * Returns a copy of this wrapper with the given sequence number
+     *
+     * @param sequence the sequence number of the last change of the entry
+     * @return the wrapper copy
+     */
+    SecureEntryWrapper sequenced(final long sequence) {
+      return new SecureEntryWrapper(entry, iv, sequence);
+    }
+
+    @Override
+    public String toString() {
+      return "Wrapper(IV: " + Hex.encodeHexString(iv) + ", sequence: " + sequence + ", "
+             + entry.toString() + ")";
+    }
+  }
+
+  /**
+   * A snapshot of the vault, pinned to a version.
+   */
+  final class Snapshot implements VaultSnapshot {
+
+    // properties
+    private final long version;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates a snapshot pinned to the given version
+     *
+     * @param version the version of the snapshot
+     */
+    private Snapshot(final long version) {
+      this.version = version;
+    }
+
+    @Override
+    public long getVersion() {
+      return version;
+    }
+
+    @Override
+    public Collection<SecureEntry> read() {
+      return Collections.unmodifiableCollection(
+          wrappers().map(wrapper -> wrapper.entry).collect(toList()));
+    }
+
+    /**
+     * Streams the wrappers of the entries of the snapshot
+     *
+     * @return the stream of the entry wrappers
+     */
+    Stream<SecureEntryWrapper> wrappers() {
+      ensureOpen();
+      return Stream.concat(map.keySet().stream(), history.keySet().stream()).distinct()
+          .map(key -> at(key, version))
+          .filter(Objects::nonNull);
+    }
+
+    @Override
+    public Optional<SecureEntry> read(final String key) {
+      ensureOpen();
+      return entry(at(key, version));
+    }
+
+    @Override
+    public UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException {
+      ensureOpen();
+      final SecureEntryWrapper wrapper = at(entry.getKey(), version);
+      if (wrapper == null || !wrapper.entry.equals(entry)) {
+        final String errorMessage = String.format("no such key '%s' in the snapshot.",
+                                                  entry.getKey());
+        log.error(errorMessage);
+        throw new IllegalArgumentException(errorMessage);
+      }
+      return unsecure(secret, wrapper);
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        release(version);
+      }
+    }
+
+    /**
+     * Ensures that the snapshot is still open
+     *
+     * @throws IllegalStateException if the snapshot is closed
+     */
+    private void ensureOpen() {
+      if (closed.get()) {
+        throw new IllegalStateException("The snapshot is closed");
+      }
+    }
+  }
+
+  /**
+   * A previous version of the entry of a key, superseded by the change with a given sequence
+   * number. The versions of a key are linked from the newest to the oldest one.
+   */
+  private static final class Version {
+
+    // properties
+    final long sequence;
+    final SecureEntryWrapper previous;
+    final Version older;
+
+    /**
+     * Default version constructor
+     *
+     * @param sequence the sequence number of the change that superseded the entry
+     * @param previous the superseded entry, {@code null} if there was none
+     * @param older    the older version of the key, {@code null} if there's none
+     */
+    Version(final long sequence, final SecureEntryWrapper previous, final Version older) {
+      this.sequence = sequence;
+      this.previous = previous;
+      this.older = older;
+    }
+
+    /**
+     * Prunes the versions superseded up to the given sequence number
+     *
+     * @param threshold the sequence number up to which (inclusive) the versions are pruned
+     * @return the newest of the remaining versions, {@code null} if there are none
+     */
+    Version prune(final long threshold) {
+      if (sequence <= threshold) {
+        return null;
+      }
+      final Version remaining = older == null ? null : older.prune(threshold);
+      return remaining == older ? this : new Version(sequence, previous, remaining);
+    }
+  }
+
+  /**
+   * A mutation of the entry of a key, which returns either the given (current) entry, when there's
+   * nothing to change, a new (not yet sequenced) entry or {@code null}, to delete the entry.
+   *
+   * @param <E> the type of the exception thrown by the mutation
+   */
+  @FunctionalInterface
+  interface Mutation<E extends Exception> {
+
+    /**
+     * Applies the mutation to the current entry of a key
+     *
+     * @param current the current entry, {@code null} if there's none
+     * @return the mutated entry
+     * @throws E if the entry cannot be mutated
+     */
+    SecureEntryWrapper apply(final SecureEntryWrapper current) throws E;
+  }
+
+  /**
+   * The outcome of an update of the entry of a key.
+   */
+  static final class Update {
+
+    // properties
+    final SecureEntryWrapper previous;
+    final SecureEntryWrapper current;
+
+    /**
+     * Default update constructor
+     *
+     * @param previous the entry before the update, {@code null} if there was none
+     * @param current  the entry after the update, {@code null} if there's none
+     */
+    Update(final SecureEntryWrapper previous, final SecureEntryWrapper current) {
+      this.previous = previous;
+      this.current = current;
+    }
+
+    /**
+     * Checks whether the update has changed the entry
+     *
+     * @return {@code true} if the entry has changed, {@code false} otherwise
+     */
+    boolean changed() {
+      return previous != current;
+    }
+  }
+
+  /**
+   * The tombstone of a deleted entry, kept in order for the deletion to be exported.
+   */
+  static final class Tombstone {
+
+    // properties
+    final String key;
+    final long sequence;
+    final long timestamp;
+
+    /**
+     * Default tombstone constructor
+     *
+     * @param key       the key of the deleted entry
+     * @param sequence  the sequence number of the deletion
+     * @param timestamp the deletion timestamp
+     */
+    Tombstone(final String key, final long sequence, final long timestamp) {
+      this.key = key;
+      this.sequence = sequence;
+      this.timestamp = timestamp;
     }
 
     @Override
     public String toString() {
-      return "Wrapper(IV: " + Hex.encodeHexString(iv) + ", " + entry.toString() + ")";
+      return "Tombstone(key: " + key + ", sequence: " + sequence + ")";
     }
   }
 }
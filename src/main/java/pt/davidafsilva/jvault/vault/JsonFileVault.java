@@ -33,9 +33,13 @@ package pt.davidafsilva.jvault.vault;
  * #L%
  */
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
 import com.fasterxml.jackson.core.io.SerializedString;
 
 import org.apache.commons.codec.DecoderException;
@@ -43,23 +47,14 @@ import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.Collection;
 
 import pt.davidafsilva.jvault.model.SecureEntry;
 
-import static org.apache.commons.lang3.StringEscapeUtils.escapeJson;
-import static org.apache.commons.lang3.StringEscapeUtils.unescapeJson;
-
 /**
  * A JSON file based vault implementation.
  *
@@ -69,24 +64,56 @@ import static org.apache.commons.lang3.StringEscapeUtils.unescapeJson;
  *  {
  *    "vault": {
  *      "mac": "...",
+ *      "sequence": #,
  *      "numberEntries": #,
  *      "entries": [
- *        {"key": "key", "value": "hex encoded value", "iv": "hex encoded IV"},
+ *        {"key": "key", "value": "hex encoded value", "iv": "hex encoded IV",
+ *         "sequence": #, "timestamp": #},
+ *        ...
+ *      ],
+ *      "numberTombstones": #,
+ *      "tombstones": [
+ *        {"key": "key", "sequence": #, "timestamp": #},
  *        ...
  *      ]
  *    }
  *  }
  * </pre>
  *
+ * Vaults persisted before the changes were tracked lack the sequence numbers, timestamps and
+ * tombstones, but are still readable.
+ *
+ * The data is read and written (UTF-8 encoded) by the Jackson streaming parser and generator,
+ * created by a single shared factory. Both the field names and the values that require no
+ * escaping, such as the hexadecimal ones, are written as raw UTF-8 bytes.
+ *
  * This implementation is backed by a {@link InMemoryVault} vault.
  *
  * @author David Silva
  */
-final class JsonFileVault extends AbstractFileVault<DataOutputStream> {
+final class JsonFileVault extends AbstractFileVault<JsonGenerator> {
 
   // logger
   private static final Logger log = LoggerFactory.getLogger(JsonFileVault.class);
 
+  // the (thread-safe) shared JSON factory
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  // the field names
+  private static final SerializableString VAULT_FIELD = new SerializedString("vault");
+  private static final SerializableString MAC_FIELD = new SerializedString("mac");
+  private static final SerializableString NUMBER_ENTRIES_FIELD =
+      new SerializedString("numberEntries");
+  private static final SerializableString ENTRIES_FIELD = new SerializedString("entries");
+  private static final SerializableString KEY_FIELD = new SerializedString("key");
+  private static final SerializableString VALUE_FIELD = new SerializedString("value");
+  private static final SerializableString IV_FIELD = new SerializedString("iv");
+  private static final SerializableString SEQUENCE_FIELD = new SerializedString("sequence");
+  private static final SerializableString TIMESTAMP_FIELD = new SerializedString("timestamp");
+  private static final SerializableString NUMBER_TOMBSTONES_FIELD =
+      new SerializedString("numberTombstones");
+  private static final SerializableString TOMBSTONES_FIELD = new SerializedString("tombstones");
+
   /**
    * Creates a vault with the specified parameters.
    *
@@ -119,13 +146,33 @@ final class JsonFileVault extends AbstractFileVault<DataOutputStream> {
     super(password, salt, iterations, keyLength, path);
   }
 
+  /**
+   * Creates a vault with the specified (previously derived) key and file options.
+   *
+   * @param key     the vault key
+   * @param path    the path of the vault file
+   * @param options the file options
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  JsonFileVault(final VaultKey key, final Path path, final FileVaultOptions options)
+      throws VaultInitializationException {
+    super(key, path, options);
+  }
+
+  /**
+   * Creates a detached vault with the specified (previously derived) key.
+   *
+   * @param key the vault key
+   * @see AbstractFileVault#AbstractFileVault(VaultKey)
+   */
+  JsonFileVault(final VaultKey key) {
+    super(key);
+  }
 
   @Override
-  void buildVaultFromData(final byte[] data)
-      throws VaultCorruptedException, VaultInitializationException {
+  void readEntries(final InputStream stream, final EntryHandler handler) throws IOException {
     // create the JSON parser
-    try (final JsonParser parser = new JsonFactory().createParser(VAULT_CS.decode(
-        ByteBuffer.wrap(data)).array())) {
+    try (final JsonParser parser = JSON_FACTORY.createParser(stream)) {
 
       // 0. JSON start object
       if (parser.nextToken() != JsonToken.START_OBJECT) {
@@ -134,25 +181,32 @@ final class JsonFileVault extends AbstractFileVault<DataOutputStream> {
       }
 
       // 1. "vault": {
-      if (!parser.nextFieldName(new SerializedString("vault"))
-          || parser.nextToken() != JsonToken.START_OBJECT) {
+      if (!parser.nextFieldName(VAULT_FIELD) || parser.nextToken() != JsonToken.START_OBJECT) {
         log.error("unable to read vault root (start) field");
         vaultCorrupted();
       }
 
       // 2. "mac"
-      if (!parser.nextFieldName(new SerializedString("mac"))
-          || parser.nextToken() != JsonToken.VALUE_STRING) {
+      if (!parser.nextFieldName(MAC_FIELD) || parser.nextToken() != JsonToken.VALUE_STRING) {
         log.error("unable to read vault mac field");
         vaultCorrupted();
       }
-      final byte[] mac = Hex.decodeHex(parser.getText().toCharArray());
-      if (log.isDebugEnabled()) {
-        log.debug("MAC: {}", Hex.encodeHexString(mac));
+      final byte[] mac = decodeHex(parser);
+
+      // 2.1 "sequence", stored only by the vaults that track their changes
+      final boolean tracked = parser.nextFieldName(SEQUENCE_FIELD);
+      if (tracked) {
+        if (parser.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+          log.error("unable to read vault sequence field");
+          vaultCorrupted();
+        }
+        handler.sequence(parser.getLongValue());
+        parser.nextToken();
       }
 
       // 3. "numberEntries"
-      if (!parser.nextFieldName(new SerializedString("numberEntries"))
+      if (parser.getCurrentToken() != JsonToken.FIELD_NAME
+          || !NUMBER_ENTRIES_FIELD.getValue().equals(parser.getCurrentName())
           || parser.nextToken() != JsonToken.VALUE_NUMBER_INT) {
         log.error("unable to read vault numberEntries field");
         vaultCorrupted();
@@ -162,10 +216,10 @@ final class JsonFileVault extends AbstractFileVault<DataOutputStream> {
         log.error("invalid number of entries read from the vault: {}", numberEntries);
         vaultCorrupted();
       }
+      handler.header(mac, numberEntries);
 
       // 4. "entries": [
-      if (!parser.nextFieldName(new SerializedString("entries"))
-          || parser.nextToken() != JsonToken.START_ARRAY) {
+      if (!parser.nextFieldName(ENTRIES_FIELD) || parser.nextToken() != JsonToken.START_ARRAY) {
         log.error("unable to read vault entries (start) field");
         vaultCorrupted();
       }
@@ -179,41 +233,40 @@ final class JsonFileVault extends AbstractFileVault<DataOutputStream> {
         }
 
         // 5.1 "key"
-        if (!parser.nextFieldName(new SerializedString("key"))
-            || parser.nextToken() != JsonToken.VALUE_STRING) {
+        if (!parser.nextFieldName(KEY_FIELD) || parser.nextToken() != JsonToken.VALUE_STRING) {
           log.error("unable to read vault entry key field");
           vaultCorrupted();
         }
-        final String key = unescapeJson(parser.getText());
+        final String key = parser.getText();
 
         // 5.2 "value"
-        if (!parser.nextFieldName(new SerializedString("value"))
-            || parser.nextToken() != JsonToken.VALUE_STRING) {
+        if (!parser.nextFieldName(VALUE_FIELD) || parser.nextToken() != JsonToken.VALUE_STRING) {
           log.error("unable to read vault entry value field");
           vaultCorrupted();
         }
         final String value = parser.getText();
 
         // 5.3 "iv"
-        if (!parser.nextFieldName(new SerializedString("iv"))
-            || parser.nextToken() != JsonToken.VALUE_STRING) {
+        if (!parser.nextFieldName(IV_FIELD) || parser.nextToken() != JsonToken.VALUE_STRING) {
           log.error("unable to read vault entry IV field");
           vaultCorrupted();
         }
-        final byte[] iv = Hex.decodeHex(parser.getText().toCharArray());
+        final byte[] iv = decodeHex(parser);
+
+        // 5.4 "sequence" and "timestamp"
+        final long sequence = tracked ? readNumber(parser, SEQUENCE_FIELD) : 0;
+        final long timestamp = tracked ? readNumber(parser, TIMESTAMP_FIELD) : 0;
 
-        // 5.4 close object: }
+        // 5.5 close object: }
         if (parser.nextToken() != JsonToken.END_OBJECT) {
           log.error("unable to read vault entry (end) field");
           vaultCorrupted();
         }
 
         // create the entry
-        final SecureEntry secureEntry = SecureEntry.of(key, value);
-        final InMemoryVault.SecureEntryWrapper secureEntryWrapper =
-            new InMemoryVault.SecureEntryWrapper(secureEntry, iv);
-        // write entry to the vault
-        inMemoryVault.store(secureEntry, secureEntryWrapper);
+        final SecureEntry secureEntry = tracked ? SecureEntry.of(timestamp, key, value)
+                                                : SecureEntry.of(key, value);
+        handler.entry(new InMemoryVault.SecureEntryWrapper(secureEntry, iv, sequence));
       }
 
       // 6. ] end array
@@ -222,6 +275,11 @@ final class JsonFileVault extends AbstractFileVault<DataOutputStream> {
         vaultCorrupted();
       }
 
+      // 6.1 "numberTombstones" and "tombstones": [{?} (tombstone) ...]
+      if (tracked) {
+        readTombstones(parser, handler);
+      }
+
       // 7. end vault: }
       if (parser.nextToken() != JsonToken.END_OBJECT) {
         log.error("unable to read vault root (end) field");
@@ -233,74 +291,210 @@ final class JsonFileVault extends AbstractFileVault<DataOutputStream> {
         log.error("unable to read vault object end");
         vaultCorrupted();
       }
+    } catch (final JsonProcessingException | DecoderException e) {
+      log.error("Unable to load JSON vault", e);
+      vaultCorrupted();
+    }
+  }
 
-      // 8. check mac
-      final byte[] calculatedMAC = calculateMAC(inMemoryVault.map.values());
-      if (!Arrays.equals(mac, calculatedMAC)) {
-        log.error("invalid MAC found: {}", Hex.encodeHexString(calculatedMAC));
+  /**
+   * Reads the tombstones of the vault, handing each one of them to the given handler
+   *
+   * @param parser  the JSON parser
+   * @param handler the handler of the read data
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the data is corrupted
+   */
+  private void readTombstones(final JsonParser parser, final EntryHandler handler)
+      throws IOException {
+    final long numberTombstones = readNumber(parser, NUMBER_TOMBSTONES_FIELD);
+    if (numberTombstones < 0 || numberTombstones > Integer.MAX_VALUE) {
+      log.error("invalid number of tombstones read from the vault: {}", numberTombstones);
+      vaultCorrupted();
+    }
+    handler.tombstones((int) numberTombstones);
+    if (!parser.nextFieldName(TOMBSTONES_FIELD) || parser.nextToken() != JsonToken.START_ARRAY) {
+      log.error("unable to read vault tombstones (start) field");
+      vaultCorrupted();
+    }
+    for (int i = 0; i < numberTombstones; i++) {
+      if (parser.nextToken() != JsonToken.START_OBJECT
+          || !parser.nextFieldName(KEY_FIELD) || parser.nextToken() != JsonToken.VALUE_STRING) {
+        log.error("unable to read vault tombstone key field");
         vaultCorrupted();
       }
-    } catch (final IOException | DecoderException e) {
-      log.error("Unable to load JSON vault", e);
+      final String key = parser.getText();
+      final long sequence = readNumber(parser, SEQUENCE_FIELD);
+      final long timestamp = readNumber(parser, TIMESTAMP_FIELD);
+      if (parser.nextToken() != JsonToken.END_OBJECT) {
+        log.error("unable to read vault tombstone (end) field");
+        vaultCorrupted();
+      }
+      handler.tombstone(new InMemoryVault.Tombstone(key, sequence, timestamp));
+    }
+    if (parser.nextToken() != JsonToken.END_ARRAY) {
+      log.error("unable to read vault tombstones (end) field");
+      vaultCorrupted();
+    }
+  }
+
+  /**
+   * Reads the (integer) number field with the given name, which must be the next one
+   *
+   * @param parser the JSON parser
+   * @param field  the field name
+   * @return the read number
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the field is not the next one or is not a number
+   */
+  private long readNumber(final JsonParser parser, final SerializableString field)
+      throws IOException {
+    if (!parser.nextFieldName(field) || parser.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+      log.error("unable to read vault {} field", field.getValue());
       vaultCorrupted();
-    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
-      log.error("invalid keys / mac algorithm", e);
-      throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm", e);
     }
+    return parser.getLongValue();
+  }
+
+  /**
+   * Decodes the hexadecimal text of the current parser token, without creating an intermediate
+   * string
+   *
+   * @param parser the JSON parser
+   * @return the decoded data
+   * @throws IOException      if an I/O error occurs while reading the text
+   * @throws DecoderException if the text is not valid hexadecimal data
+   */
+  private static byte[] decodeHex(final JsonParser parser) throws IOException, DecoderException {
+    return HexCodec.decode(parser.getTextCharacters(), parser.getTextOffset(),
+                           parser.getTextLength());
   }
 
   @Override
-  DataOutputStream createStream(final Path path) throws FileNotFoundException {
-    return new DataOutputStream(new FileOutputStream(path.toFile()));
+  JsonGenerator createStream(final OutputStream stream) throws IOException {
+    return JSON_FACTORY.createGenerator(stream, JsonEncoding.UTF8);
   }
 
   @Override
-  void writeHeader(final DataOutputStream stream,
-                   final Collection<InMemoryVault.SecureEntryWrapper> values) throws IOException {
-    stream.writeBytes("{\"vault\":{");
+  void writeHeader(final JsonGenerator stream, final int entries) throws IOException {
+    stream.writeStartObject();
+    stream.writeFieldName(VAULT_FIELD);
+    stream.writeStartObject();
   }
 
   @Override
-  void writeFooter(final DataOutputStream stream,
-                   final Collection<InMemoryVault.SecureEntryWrapper> values) throws IOException {
-    stream.writeBytes("}}");
+  void writeFooter(final JsonGenerator stream, final int entries) throws IOException {
+    stream.writeEndObject();
+    stream.writeEndObject();
   }
 
   @Override
-  void writeMac(final DataOutputStream stream, final byte[] mac) throws IOException {
+  void writeMac(final JsonGenerator stream, final byte[] mac) throws IOException {
     if (log.isDebugEnabled()) {
       log.debug("writing MAC: {}", Hex.encodeHexString(mac));
     }
-    stream.writeBytes("\"mac\":\"" + Hex.encodeHexString(mac) + "\",");
+    stream.writeFieldName(MAC_FIELD);
+    writeHex(stream, mac);
   }
 
   @Override
-  void writeEntries(final DataOutputStream stream,
-                    final Collection<InMemoryVault.SecureEntryWrapper> values) throws IOException {
-    // store the vault values
-    stream.writeBytes("\"numberEntries\":" + values.size() + ",");
-    stream.writeBytes("\"entries\":[");
-    final int[] missing = {values.size()};
-    values.forEach(wrapper -> {
-      final String key = wrapper.entry.getKey();
-      final String value = wrapper.entry.getValue();
-      final String iv = Hex.encodeHexString(wrapper.iv);
-      try {
-        if (log.isDebugEnabled()) {
-          log.debug("writing entry: {}", wrapper);
-        }
-        stream.writeBytes("{\"key\":\"" + escapeJson(key) + "\",");
-        stream.writeBytes("\"value\":\"" + value + "\",");
-        stream.writeBytes("\"iv\":\"" + iv + "\"}");
-        if (--missing[0] > 0) {
-          stream.writeBytes(",");
-        }
-      } catch (final IOException ioe) {
-        log.error("error while writing the entry", ioe);
-        throw new UncheckedIOException(ioe);
+  void writeSequence(final JsonGenerator stream, final long sequence) throws IOException {
+    stream.writeFieldName(SEQUENCE_FIELD);
+    stream.writeNumber(sequence);
+  }
+
+  @Override
+  void writeEntriesStart(final JsonGenerator stream, final int entries) throws IOException {
+    stream.writeFieldName(NUMBER_ENTRIES_FIELD);
+    stream.writeNumber(entries);
+    stream.writeFieldName(ENTRIES_FIELD);
+    stream.writeStartArray();
+  }
+
+  @Override
+  void writeEntry(final JsonGenerator stream, final InMemoryVault.SecureEntryWrapper wrapper,
+                  final int index) throws IOException {
+    if (log.isDebugEnabled()) {
+      log.debug("writing entry: {}", wrapper);
+    }
+    stream.writeStartObject();
+    stream.writeFieldName(KEY_FIELD);
+    writeText(stream, wrapper.entry.getKey());
+    stream.writeFieldName(VALUE_FIELD);
+    writeText(stream, wrapper.entry.getValue());
+    stream.writeFieldName(IV_FIELD);
+    writeHex(stream, wrapper.iv);
+    stream.writeFieldName(SEQUENCE_FIELD);
+    stream.writeNumber(wrapper.sequence);
+    stream.writeFieldName(TIMESTAMP_FIELD);
+    stream.writeNumber(wrapper.entry.getCreationDate());
+    stream.writeEndObject();
+  }
+
+  @Override
+  void writeEntriesEnd(final JsonGenerator stream, final int entries) throws IOException {
+    stream.writeEndArray();
+  }
+
+  @Override
+  void writeTombstonesStart(final JsonGenerator stream, final int tombstones)
+      throws IOException {
+    stream.writeFieldName(NUMBER_TOMBSTONES_FIELD);
+    stream.writeNumber(tombstones);
+    stream.writeFieldName(TOMBSTONES_FIELD);
+    stream.writeStartArray();
+  }
+
+  @Override
+  void writeTombstone(final JsonGenerator stream, final InMemoryVault.Tombstone tombstone,
+                      final int index) throws IOException {
+    stream.writeStartObject();
+    stream.writeFieldName(KEY_FIELD);
+    writeText(stream, tombstone.key);
+    stream.writeFieldName(SEQUENCE_FIELD);
+    stream.writeNumber(tombstone.sequence);
+    stream.writeFieldName(TIMESTAMP_FIELD);
+    stream.writeNumber(tombstone.timestamp);
+    stream.writeEndObject();
+  }
+
+  @Override
+  void writeTombstonesEnd(final JsonGenerator stream, final int tombstones) throws IOException {
+    stream.writeEndArray();
+  }
+
+  /**
+   * Writes the given text as a JSON string value.
+   *
+   * Texts that require no escaping (printable ASCII characters other than quotes and
+   * backslashes) are written as raw bytes, skipping the generator escaping altogether.
+   *
+   * @param stream the JSON generator
+   * @param text   the text to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  private static void writeText(final JsonGenerator stream, final String text)
+      throws IOException {
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (c < 0x20 || c > 0x7E || c == '"' || c == '\\') {
+        stream.writeString(text);
+        return;
       }
-    });
-    stream.writeBytes("]");
+    }
+    final byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+    stream.writeRawUTF8String(bytes, 0, bytes.length);
   }
 
+  /**
+   * Writes the hexadecimal representation of the given data as a JSON string value
+   *
+   * @param stream the JSON generator
+   * @param data   the data to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  private static void writeHex(final JsonGenerator stream, final byte[] data) throws IOException {
+    final byte[] hex = HexCodec.encode(data);
+    stream.writeRawUTF8String(hex, 0, hex.length);
+  }
 }
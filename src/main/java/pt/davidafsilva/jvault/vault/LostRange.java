@@ -0,0 +1,137 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A range of keys lost by a vault loaded in degraded mode, due to a corrupted block of the vault
+ * file.
+ *
+ * The range is either exact, when the block index is intact, in which case the bounds are the
+ * first and last (inclusive) keys of the lost block along with its number of entries, or
+ * estimated, in which case the bounds are the closest (exclusive) keys of the intact blocks
+ * surrounding the lost ones, if any, and the number of lost entries is unknown.
+ *
+ * This class is immutable, therefore it inherits it's thread-safe nature.
+ *
+ * @author David Silva
+ */
+public final class LostRange {
+
+  // properties
+  private final String fromKey;
+  private final String toKey;
+  private final int entries;
+  private final boolean exact;
+
+  /**
+   * Creates the lost range
+   *
+   * @param fromKey the lower bound of the range, {@code null} if unbounded
+   * @param toKey   the upper bound of the range, {@code null} if unbounded
+   * @param entries the number of lost entries, -1 if unknown
+   * @param exact   whether or not the bounds are the (inclusive) keys of the lost entries
+   */
+  LostRange(final String fromKey, final String toKey, final int entries, final boolean exact) {
+    this.fromKey = fromKey;
+    this.toKey = toKey;
+    this.entries = entries;
+    this.exact = exact;
+  }
+
+  /**
+   * Returns the lower bound of the range, which is inclusive if the range is {@link #isExact()
+   * exact}
+   *
+   * @return the lower bound, or empty if unbounded
+   */
+  public Optional<String> getFromKey() {
+    return Optional.ofNullable(fromKey);
+  }
+
+  /**
+   * Returns the upper bound of the range, which is inclusive if the range is {@link #isExact()
+   * exact}
+   *
+   * @return the upper bound, or empty if unbounded
+   */
+  public Optional<String> getToKey() {
+    return Optional.ofNullable(toKey);
+  }
+
+  /**
+   * Returns the number of lost entries within the range
+   *
+   * @return the number of lost entries, -1 if unknown
+   */
+  public int getEntries() {
+    return entries;
+  }
+
+  /**
+   * Checks whether or not the bounds of the range are the (inclusive) keys of the lost entries
+   *
+   * @return {@code true} if the range is exact, {@code false} if estimated
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final LostRange that = (LostRange) o;
+    return entries == that.entries && exact == that.exact && Objects.equals(fromKey, that.fromKey)
+           && Objects.equals(toKey, that.toKey);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(fromKey, toKey, entries, exact);
+  }
+
+  @Override
+  public String toString() {
+    return exact ? "[" + fromKey + ", " + toKey + "] (" + entries + " entries)"
+                 : "(" + (fromKey == null ? "" : fromKey) + ", "
+                   + (toKey == null ? "" : toKey) + ") (unknown entries)";
+  }
+}
@@ -0,0 +1,200 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The (least recently used) cache of the decoded blocks of the {@link LsmSegment segments} of a
+ * {@link LsmFileVault}, bounded by the (estimated) size of the cached blocks.
+ *
+ * This class is thread-safe.
+ *
+ * @author David Silva
+ */
+final class LsmBlockCache {
+
+  // the maximum size of the cached blocks
+  private final long capacity;
+
+  // the cached blocks, by least recent access
+  private final LinkedHashMap<BlockKey, LsmRecord[]> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+  // the current size of the cached blocks
+  private long size;
+
+  // the statistics
+  private long hits;
+  private long misses;
+
+  /**
+   * Creates a cache with the given capacity
+   *
+   * @param capacity the maximum size, in bytes, of the cached blocks
+   */
+  LsmBlockCache(final long capacity) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("invalid cache capacity, must not be negative");
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * Returns the cached block of the given segment at the given offset
+   *
+   * @param segment the id of the segment
+   * @param offset  the offset of the block within the segment
+   * @return the cached block, {@code null} if not cached
+   */
+  synchronized LsmRecord[] get(final long segment, final long offset) {
+    final LsmRecord[] block = blocks.get(new BlockKey(segment, offset));
+    if (block == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return block;
+  }
+
+  /**
+   * Caches the given block of the given segment, evicting the least recently used blocks, as
+   * required to keep the cache within its capacity
+   *
+   * @param segment the id of the segment
+   * @param offset  the offset of the block within the segment
+   * @param block   the decoded block
+   * @param size    the (estimated) size of the decoded block, in bytes
+   */
+  synchronized void put(final long segment, final long offset, final LsmRecord[] block,
+                        final int size) {
+    if (size > capacity) {
+      return;
+    }
+    final BlockKey key = new BlockKey(segment, offset);
+    final LsmRecord[] previous = blocks.put(key, block);
+    if (previous == null) {
+      key.size = size;
+      this.size += size;
+    }
+    final Iterator<Map.Entry<BlockKey, LsmRecord[]>> eldest = blocks.entrySet().iterator();
+    while (this.size > capacity && eldest.hasNext()) {
+      this.size -= eldest.next().getKey().size;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Evicts all of the cached blocks of the given segment
+   *
+   * @param segment the id of the segment
+   */
+  synchronized void evict(final long segment) {
+    final Iterator<BlockKey> keys = blocks.keySet().iterator();
+    while (keys.hasNext()) {
+      final BlockKey key = keys.next();
+      if (key.segment == segment) {
+        size -= key.size;
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the current size of the cached blocks
+   *
+   * @return the size, in bytes, of the cached blocks
+   */
+  synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of cache hits so far
+   *
+   * @return the number of hits
+   */
+  synchronized long hits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of cache misses so far
+   *
+   * @return the number of misses
+   */
+  synchronized long misses() {
+    return misses;
+  }
+
+  /**
+   * The key of a cached block
+   */
+  private static final class BlockKey {
+
+    // properties
+    private final long segment;
+    private final long offset;
+    private int size;
+
+    /**
+     * Creates the key of a block
+     *
+     * @param segment the id of the segment
+     * @param offset  the offset of the block within the segment
+     */
+    private BlockKey(final long segment, final long offset) {
+      this.segment = segment;
+      this.offset = offset;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof BlockKey)) {
+        return false;
+      }
+      final BlockKey that = (BlockKey) o;
+      return segment == that.segment && offset == that.offset;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Long.hashCode(segment) + Long.hashCode(offset);
+    }
+  }
+}
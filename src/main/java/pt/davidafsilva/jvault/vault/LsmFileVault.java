@@ -0,0 +1,973 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+/**
+ * A file based vault implementation, backed by a log-structured merge tree (LSM tree) within the
+ * vault directory, which is not bound by the available memory.
+ *
+ * The changes are appended to a (write-ahead) {@link LsmLog log} and applied to a sorted memory
+ * table. Once the memory table grows beyond its size, it's flushed into an immutable, sorted,
+ * {@link LsmSegment segment} file and a new log is started, by a background thread of the vault,
+ * while the writers carry on with the new memory table. Reading a key looks it up in the
+ * memory table and then in the segments, from the newest to the oldest one, through their sparse
+ * index. The decoded blocks of the segments are kept in a bounded {@link LsmBlockCache cache}.
+ *
+ * The segments are merged (compacted) by size tiers: the newest segments are merged into a single
+ * segment unless the oldest of them is already much larger than the others, thus each segment is
+ * much larger than the newer ones, which keeps the number of segments logarithmic to the number of
+ * entries. Deletions are kept as records until merged into the oldest segment.
+ *
+ * Every log record and segment block is authenticated with its own MAC, thus corrupted blocks are
+ * detected once read, and a partially written record at the end of the log is discarded once the
+ * vault is loaded. The changes are durable once {@link #persist() persisted}, which synchronizes
+ * the log with the underlying storage device.
+ *
+ * The vault directory is locked for the lifetime of the vault, which must be {@link #close()
+ * closed} once no longer used. The file options of the other file vaults don't apply to this
+ * implementation and the changes are not tracked for {@link #exportSince(long) export}.
+ *
+ * @author David Silva
+ */
+final class LsmFileVault implements FileVault, SortedVault {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(LsmFileVault.class);
+
+  // the default settings
+  static final long DEFAULT_MEMORY_TABLE_SIZE = 4 << 20;
+  static final int DEFAULT_BLOCK_SIZE = 4 << 10;
+  static final long DEFAULT_CACHE_SIZE = 32 << 20;
+  static final int DEFAULT_MERGE_FACTOR = 4;
+
+  // the number of stripes of the key locks
+  private static final int KEY_LOCKS = 64;
+
+  // the file names
+  private static final String LOCK_FILE = "LOCK";
+  private static final String LOG_FILE_FORMAT = "log-%016x.wal";
+  private static final String LOG_FILE_PREFIX = "log-";
+  private static final String LOG_FILE_SUFFIX = ".wal";
+
+  // the vault directory
+  private final Path directory;
+
+  // the lock of the vault directory
+  private final FileChannel lockChannel;
+  private final FileLock directoryLock;
+
+  // the settings
+  private final SecretKey secret;
+  private final long memoryTableSize;
+  private final int blockSize;
+  private final int mergeFactor;
+
+  // the sequence numbers of the changes
+  private final VaultSequence sequence = new VaultSequence();
+
+  // the locks of the keys, striped by their hash, which serialize the changes of each key
+  private final Object[] keyLocks = Stream.generate(Object::new).limit(KEY_LOCKS).toArray();
+
+  // the ids of the segment and log files
+  private final AtomicLong ids = new AtomicLong();
+
+  // the block cache
+  private final LsmBlockCache cache;
+
+  // the lock of the structure: held (shared) while reading or changing the memory table and
+  // segments, and (exclusively) while replacing them
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // the lock of the flushes and compactions, which occur one at a time
+  private final ReentrantLock flushLock = new ReentrantLock();
+
+  // the (background) executor of the flushes and compactions, along with whether or not a flush
+  // is already scheduled
+  private final ExecutorService flusher = Executors.newSingleThreadExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "jvault-lsm-flusher");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  // the current memory table
+  private volatile MemoryTable memoryTable;
+
+  // the memory table being flushed, if any
+  private volatile MemoryTable flushing;
+
+  // the segments, from the newest to the oldest one
+  private volatile List<LsmSegment> segments = Collections.emptyList();
+
+  /**
+   * Creates a vault with the specified (previously derived) key and block cache size.
+   *
+   * @param key       the vault key
+   * @param directory the vault directory
+   * @param cacheSize the size, in bytes, of the block cache
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  LsmFileVault(final VaultKey key, final Path directory, final long cacheSize)
+      throws VaultInitializationException {
+    this(key, directory, DEFAULT_MEMORY_TABLE_SIZE, DEFAULT_BLOCK_SIZE, cacheSize,
+         DEFAULT_MERGE_FACTOR);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key and settings.
+   *
+   * @param key             the vault key
+   * @param directory       the vault directory
+   * @param memoryTableSize the (estimated) size, in bytes, from which the memory table is flushed
+   * @param blockSize       the (approximate) size, in bytes, of the segment blocks
+   * @param cacheSize       the size, in bytes, of the block cache
+   * @param mergeFactor     the number of segments that are merged together
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  LsmFileVault(final VaultKey key, final Path directory, final long memoryTableSize,
+               final int blockSize, final long cacheSize, final int mergeFactor)
+      throws VaultInitializationException {
+    if (memoryTableSize <= 0 || blockSize <= 0 || mergeFactor < 2) {
+      throw new IllegalArgumentException("invalid memory table size, block size or merge factor");
+    }
+    this.directory = directory;
+    this.secret = key.secret;
+    this.memoryTableSize = memoryTableSize;
+    this.blockSize = blockSize;
+    this.mergeFactor = mergeFactor;
+    this.cache = new LsmBlockCache(cacheSize);
+    try {
+      Files.createDirectories(directory);
+      lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                                     StandardOpenOption.WRITE);
+    } catch (final IOException e) {
+      log.error("unable to open the vault directory", e);
+      throw new VaultInitializationException("Unable to open the vault directory", e);
+    }
+    directoryLock = lockDirectory();
+    try {
+      load();
+    } catch (final IOException | VaultOperationException | RuntimeException e) {
+      closeQuietly();
+      if (e instanceof VaultCorruptedException) {
+        throw (VaultCorruptedException) e;
+      }
+      log.error("unable to load the vault", e);
+      throw new VaultInitializationException("Unable to load the vault directory", e);
+    } catch (final VaultInitializationException e) {
+      closeQuietly();
+      throw e;
+    }
+  }
+
+  /**
+   * Locks the vault directory, exclusively
+   *
+   * @return the directory lock
+   * @throws VaultInitializationException if the directory is already locked
+   */
+  private FileLock lockDirectory() throws VaultInitializationException {
+    FileLock directoryLock = null;
+    try {
+      directoryLock = lockChannel.tryLock();
+    } catch (final IOException | OverlappingFileLockException e) {
+      log.error("unable to lock the vault directory", e);
+    }
+    if (directoryLock == null) {
+      try {
+        lockChannel.close();
+      } catch (final IOException e) {
+        log.warn("unable to close the lock file", e);
+      }
+      throw new VaultInitializationException("Invalid vault directory, already in use");
+    }
+    return directoryLock;
+  }
+
+  /**
+   * Loads the vault: opens the segments and replays the logs, which are then flushed into a new
+   * segment.
+   *
+   * @throws IOException                  if an I/O error occurs while loading the vault
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used
+   * @throws VaultOperationException      if an error occurs while flushing the replayed logs
+   */
+  private void load() throws IOException, VaultInitializationException, VaultOperationException {
+    log.info("initializing the vault from directory {}..", directory);
+    final TreeMap<Long, Path> segmentFiles = new TreeMap<>(Comparator.reverseOrder());
+    final TreeMap<Long, Path> logFiles = new TreeMap<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (final Path file : stream) {
+        final String name = file.getFileName().toString();
+        if (name.endsWith(LsmSegment.TEMPORARY_SUFFIX)) {
+          // a segment that was not completely written
+          Files.delete(file);
+        } else if (LsmSegment.id(name) >= 0) {
+          segmentFiles.put(LsmSegment.id(name), file);
+        } else if (name.startsWith(LOG_FILE_PREFIX) && name.endsWith(LOG_FILE_SUFFIX)) {
+          logFiles.put(Long.parseLong(name.substring(LOG_FILE_PREFIX.length(),
+                                                     name.length() - LOG_FILE_SUFFIX.length()),
+                                      16), file);
+        }
+      }
+    } catch (final NumberFormatException e) {
+      throw new IOException("Invalid log file name", e);
+    }
+
+    // the segments, from the newest to the oldest, skipping the ones already merged into a newer
+    final List<LsmSegment> loaded = new ArrayList<>();
+    // set beforehand, in order to be closed on failure
+    segments = loaded;
+    long replacedFrom = Long.MAX_VALUE;
+    for (final Map.Entry<Long, Path> file : segmentFiles.entrySet()) {
+      if (file.getKey() >= replacedFrom) {
+        log.info("deleting the segment {}, already merged", file.getKey());
+        Files.delete(file.getValue());
+        continue;
+      }
+      final LsmSegment segment = LsmSegment.open(file.getValue(), file.getKey(), secret, cache);
+      loaded.add(segment);
+      replacedFrom = Math.min(replacedFrom, segment.baseId);
+      sequence.advance(segment.sequence);
+    }
+    segments = Collections.unmodifiableList(loaded);
+    final long lastId = Math.max(segmentFiles.isEmpty() ? 0 : segmentFiles.firstKey(),
+                                 logFiles.isEmpty() ? 0 : logFiles.lastKey());
+    ids.set(lastId);
+    log.debug("found {} segments", loaded.size());
+
+    // the logs, which are flushed into a segment of their own
+    final MemoryTable replayed = new MemoryTable(null, new ArrayList<>(logFiles.values()));
+    for (final Map.Entry<Long, Path> file : logFiles.entrySet()) {
+      final int records = LsmLog.replay(file.getValue(), file.getKey(), secret, record -> {
+        sequence.advance(record.sequence);
+        replayed.put(record);
+      });
+      log.debug("replayed {} records of the log {}", records, file.getKey());
+    }
+    memoryTable = replayed;
+    flushLock.lock();
+    try {
+      flush();
+    } finally {
+      flushLock.unlock();
+    }
+    log.info("vault successfully loaded");
+  }
+
+  /**
+   * Creates a new (empty) memory table, along with its log
+   *
+   * @return the memory table
+   * @throws IOException                  if an I/O error occurs while creating the log
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used
+   */
+  private MemoryTable newMemoryTable() throws IOException, VaultInitializationException {
+    final long id = ids.incrementAndGet();
+    final Path path = directory.resolve(String.format(LOG_FILE_FORMAT, id));
+    return new MemoryTable(LsmLog.create(path, id, secret), Collections.singletonList(path));
+  }
+
+  /**
+   * Reads the newest record of the given key
+   *
+   * @param key the key
+   * @return the record, {@code null} if there's none
+   */
+  private LsmRecord get(final String key) {
+    final Lock shared = lock.readLock();
+    shared.lock();
+    try {
+      LsmRecord record = memoryTable.records.get(key);
+      final MemoryTable flushing = this.flushing;
+      if (record == null && flushing != null) {
+        record = flushing.records.get(key);
+      }
+      final Iterator<LsmSegment> iterator = segments.iterator();
+      while (record == null && iterator.hasNext()) {
+        record = iterator.next().get(key);
+      }
+      return record;
+    } finally {
+      shared.unlock();
+    }
+  }
+
+  /**
+   * Appends a new record, created with the next sequence number, to the log and applies it to the
+   * memory table, scheduling its flush if full.
+   *
+   * @param factory the factory of the record, given its sequence number
+   * @return the appended record
+   * @throws IOException if an I/O error occurs while appending the record
+   */
+  private LsmRecord append(final LongFunction<LsmRecord> factory) throws IOException {
+    final LsmRecord record;
+    final MemoryTable table;
+    final Lock shared = lock.readLock();
+    shared.lock();
+    try {
+      table = memoryTable;
+      // the records are appended to the log by the order of their sequence numbers
+      synchronized (table) {
+        record = factory.apply(sequence.next());
+        table.log.append(record);
+      }
+      table.put(record);
+    } finally {
+      shared.unlock();
+    }
+
+    if (table.size.get() >= memoryTableSize) {
+      scheduleFlush();
+    }
+    return record;
+  }
+
+  /**
+   * Schedules the flush of the current memory table, unless already scheduled. The flush (and
+   * the compaction that follows it) is run by the background thread, rather than by the writers,
+   * which may be holding the lock of their key.
+   */
+  private void scheduleFlush() {
+    if (flusher.isShutdown() || !flushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    flusher.execute(() -> {
+      flushLock.lock();
+      try {
+        // the writers that fill the new table meanwhile schedule the next flush
+        flushScheduled.set(false);
+        flush();
+      } catch (final IOException | VaultOperationException | RuntimeException e) {
+        // the records are still in the logs, which are replayed once the vault is loaded
+        log.error("unable to flush the memory table", e);
+      } finally {
+        flushLock.unlock();
+      }
+    });
+  }
+
+  /**
+   * Waits for the flushes (and compactions) scheduled so far to complete
+   */
+  void awaitFlushes() {
+    try {
+      flusher.submit(() -> { }).get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Flushes the current memory table into a new segment, if not empty, replacing it with a new
+   * one, and merges the newest segments afterwards, if necessary. Must be called while holding the
+   * flush lock.
+   *
+   * @throws IOException             if an I/O error occurs while flushing the memory table
+   * @throws VaultOperationException if an error occurs while writing the segment
+   */
+  private void flush() throws IOException, VaultOperationException {
+    final MemoryTable table = memoryTable;
+    final Lock exclusive = lock.writeLock();
+    exclusive.lock();
+    try {
+      if (table.log != null && table.records.isEmpty()) {
+        return;
+      }
+      memoryTable = newMemoryTable();
+      flushing = table;
+    } catch (final VaultInitializationException e) {
+      throw new VaultOperationException(e.getMessage(), e);
+    } finally {
+      exclusive.unlock();
+    }
+
+    if (!table.records.isEmpty()) {
+      final long id = ids.incrementAndGet();
+      log.debug("flushing {} records into the segment {}", table.records.size(), id);
+      final LsmSegment segment = LsmSegment.write(directory, id, id,
+                                                  table.records.values().iterator(), secret,
+                                                  blockSize, cache);
+      final List<LsmSegment> updated = new ArrayList<>(segments.size() + 1);
+      updated.add(segment);
+      updated.addAll(segments);
+      replace(updated, null);
+    }
+    flushing = null;
+    if (table.log != null) {
+      table.log.close();
+    }
+    for (final Path path : table.logs) {
+      Files.delete(path);
+    }
+    compact();
+  }
+
+  /**
+   * Merges the newest {@link #mergeFactor} segments, as long as the oldest of them is smaller than
+   * {@link #mergeFactor} times the others combined. Only the newest segments are merged, so that
+   * the merged segment is still newer than the remaining ones, thus a segment smaller than the
+   * newer ones is merged along with them, rather than being left behind. Must be called while
+   * holding the flush lock.
+   *
+   * @throws IOException             if an I/O error occurs while merging the segments
+   * @throws VaultOperationException if an error occurs while writing the segment
+   */
+  private void compact() throws IOException, VaultOperationException {
+    List<LsmSegment> current = segments;
+    while (current.size() >= mergeFactor) {
+      final List<LsmSegment> merged = current.subList(0, mergeFactor);
+      final long newer = merged.subList(0, mergeFactor - 1).stream()
+          .mapToLong(segment -> segment.size).sum();
+      if (merged.get(mergeFactor - 1).size >= newer * mergeFactor) {
+        break;
+      }
+
+      // deletions are only dropped once merged into the oldest segment
+      final boolean oldest = current.size() == mergeFactor;
+      final List<Iterator<LsmRecord>> sources = new ArrayList<>(mergeFactor);
+      for (final LsmSegment segment : merged) {
+        sources.add(segment.iterator(null, false));
+      }
+      final Iterator<LsmRecord> records = new MergingIterator(sources, null, !oldest);
+      final long id = ids.incrementAndGet();
+      final long baseId = merged.get(merged.size() - 1).id;
+      log.debug("merging the segments {} into the segment {}", merged, id);
+      final LsmSegment segment = LsmSegment.write(directory, id, baseId, records, secret,
+                                                  blockSize, cache);
+      final List<LsmSegment> updated = new ArrayList<>();
+      updated.add(segment);
+      updated.addAll(current.subList(mergeFactor, current.size()));
+      replace(updated, merged);
+      current = segments;
+    }
+  }
+
+  /**
+   * Replaces the segments with the given ones, deleting the replaced segments once no longer read
+   *
+   * @param updated  the updated segments
+   * @param replaced the replaced segments, if any
+   * @throws IOException if an I/O error occurs while deleting the replaced segments
+   */
+  private void replace(final List<LsmSegment> updated, final List<LsmSegment> replaced)
+      throws IOException {
+    final Lock exclusive = lock.writeLock();
+    exclusive.lock();
+    try {
+      segments = Collections.unmodifiableList(updated);
+    } finally {
+      exclusive.unlock();
+    }
+    // no reader holds the replaced segments, as of now
+    if (replaced != null) {
+      for (final LsmSegment segment : replaced) {
+        segment.delete();
+      }
+    }
+  }
+
+  @Override
+  public Collection<SecureEntry> read() {
+    return Collections.unmodifiableCollection(readRange(null, null, Integer.MAX_VALUE));
+  }
+
+  @Override
+  public Optional<SecureEntry> read(final String key) {
+    Objects.requireNonNull(key, "Invalid key specified");
+    final LsmRecord record = get(key);
+    return Optional.ofNullable(record == null || record.isDeletion() ? null : record.wrapper.entry);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation merges the memory table and the segments within the range, without
+   * caching the read blocks.
+   */
+  @Override
+  public List<SecureEntry> readRange(final String fromKey, final String toKey, final int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("invalid limit, must not be negative");
+    }
+    final List<SecureEntry> entries = new ArrayList<>(Math.min(limit, 1024));
+    final Lock shared = lock.readLock();
+    shared.lock();
+    try {
+      final List<Iterator<LsmRecord>> sources = new ArrayList<>();
+      sources.add(range(memoryTable.records, fromKey));
+      final MemoryTable flushing = this.flushing;
+      if (flushing != null) {
+        sources.add(range(flushing.records, fromKey));
+      }
+      for (final LsmSegment segment : segments) {
+        sources.add(segment.iterator(fromKey, false));
+      }
+      final Iterator<LsmRecord> records = new MergingIterator(sources, toKey, false);
+      while (entries.size() < limit && records.hasNext()) {
+        entries.add(records.next().wrapper.entry);
+      }
+    } finally {
+      shared.unlock();
+    }
+    return entries;
+  }
+
+  /**
+   * Returns an iterator over the records of the given memory table, starting at the given key
+   *
+   * @param records the records of the memory table
+   * @param fromKey the (inclusive) key of the first record, {@code null} for the first one
+   * @return the iterator of the records
+   */
+  private static Iterator<LsmRecord> range(final ConcurrentNavigableMap<String, LsmRecord> records,
+                                           final String fromKey) {
+    return (fromKey == null ? records : records.tailMap(fromKey, true)).values().iterator();
+  }
+
+  @Override
+  public SecureEntry write(final UnsecureEntry entry) throws VaultOperationException {
+    Objects.requireNonNull(entry, "Invalid entry specified");
+    log.info("writing/updating '{}' entry in the vault..", entry.getKey());
+    final InMemoryVault.SecureEntryWrapper wrapper = InMemoryVault.secure(secret, entry);
+    try {
+      synchronized (keyLock(entry.getKey())) {
+        return append(sequence -> LsmRecord.entry(wrapper.sequenced(sequence))).wrapper.entry;
+      }
+    } catch (final IOException e) {
+      log.error("unable to write the entry", e);
+      throw new VaultOperationException("Unable to write the entry to the vault log", e);
+    }
+  }
+
+  @Override
+  public Optional<SecureEntry> delete(final String key) {
+    Objects.requireNonNull(key, "Invalid key specified");
+    log.info("deleting '{}' entry in the vault..", key);
+    try {
+      return InMemoryVault.entry(update(key, current -> null).previous);
+    } catch (final IOException e) {
+      log.error("unable to delete the entry", e);
+      throw new UncheckedIOException(e);
+    } catch (final VaultOperationException e) {
+      log.error("unable to delete the entry", e);
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public Optional<SecureEntry> putIfAbsent(final UnsecureEntry entry)
+      throws VaultOperationException {
+    Objects.requireNonNull(entry, "Invalid entry specified");
+    log.info("writing '{}' entry in the vault, if absent..", entry.getKey());
+    try {
+      return InMemoryVault.entry(update(entry.getKey(), current -> current == null
+                                                                   ? InMemoryVault.secure(secret,
+                                                                                          entry)
+                                                                   : current).previous);
+    } catch (final IOException e) {
+      log.error("unable to write the entry", e);
+      throw new VaultOperationException("Unable to write the entry to the vault log", e);
+    }
+  }
+
+  @Override
+  public Optional<SecureEntry> replace(final String key, final SecureEntry expected,
+                                       final String value) throws VaultOperationException {
+    Objects.requireNonNull(key, "Invalid key specified");
+    Objects.requireNonNull(expected, "Invalid expected entry specified");
+    log.info("replacing '{}' entry in the vault..", key);
+    final InMemoryVault.SecureEntryWrapper wrapper =
+        InMemoryVault.secure(secret, UnsecureEntry.of(key, value));
+    try {
+      final InMemoryVault.Update update = update(key, current -> current != null
+                                                                 && current.entry.equals(expected)
+                                                                 ? wrapper : current);
+      return update.changed() ? InMemoryVault.entry(update.current) : Optional.empty();
+    } catch (final IOException e) {
+      log.error("unable to write the entry", e);
+      throw new VaultOperationException("Unable to write the entry to the vault log", e);
+    }
+  }
+
+  @Override
+  public Optional<SecureEntry> compute(final String key,
+                                       final UnaryOperator<Optional<String>> function)
+      throws VaultOperationException {
+    Objects.requireNonNull(key, "Invalid key specified");
+    Objects.requireNonNull(function, "Invalid function specified");
+    log.info("computing '{}' entry in the vault..", key);
+    try {
+      return InMemoryVault.entry(update(key, current -> {
+        final Optional<String> value = current == null
+                                       ? Optional.empty()
+                                       : Optional.of(InMemoryVault.unsecure(secret, current)
+                                                         .getValue());
+        final Optional<String> computed = Objects.requireNonNull(function.apply(value),
+                                                                 "Invalid computed value");
+        if (computed.equals(value)) {
+          return current;
+        }
+        return computed.isPresent()
+               ? InMemoryVault.secure(secret, UnsecureEntry.of(key, computed.get())) : null;
+      }).current);
+    } catch (final IOException e) {
+      log.error("unable to write the entry", e);
+      throw new VaultOperationException("Unable to write the entry to the vault log", e);
+    }
+  }
+
+  /**
+   * Updates the entry of the given key with the result of the given mutation, as a new change.
+   * The key (lock stripe) is locked while its newest record is read and the mutation is applied,
+   * thus the changes of each key are atomic while the ones of other keys proceed concurrently.
+   *
+   * @param key      the key of the entry
+   * @param mutation the mutation of the current entry of the key
+   * @return the update, with both the previous and the current entry of the key
+   * @throws IOException             if an I/O error occurs while appending the change
+   * @throws VaultOperationException if thrown by the mutation
+   */
+  private InMemoryVault.Update update(
+      final String key, final InMemoryVault.Mutation<VaultOperationException> mutation)
+      throws IOException, VaultOperationException {
+    synchronized (keyLock(key)) {
+      final LsmRecord record = get(key);
+      final InMemoryVault.SecureEntryWrapper current =
+          record == null || record.isDeletion() ? null : record.wrapper;
+      final InMemoryVault.SecureEntryWrapper updated = mutation.apply(current);
+      if (updated == current) {
+        return new InMemoryVault.Update(current, current);
+      }
+      final long timestamp = System.currentTimeMillis();
+      final LsmRecord appended = append(
+          updated == null ? sequence -> LsmRecord.deletion(key, sequence, timestamp)
+                          : sequence -> LsmRecord.entry(updated.sequenced(sequence)));
+      return new InMemoryVault.Update(current, appended.wrapper);
+    }
+  }
+
+  /**
+   * Returns the lock of the given key, shared by the keys of the same stripe
+   *
+   * @param key the key
+   * @return the lock of the key
+   */
+  private Object keyLock(final String key) {
+    return keyLocks[Math.floorMod(key.hashCode(), keyLocks.length)];
+  }
+
+  @Override
+  public UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException {
+    final LsmRecord record = get(entry.getKey());
+    if (record == null || record.isDeletion() || !record.wrapper.entry.equals(entry)) {
+      final String errorMessage = String.format("no such key '%s' in the vault.", entry.getKey());
+      log.error(errorMessage);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    return InMemoryVault.unsecure(secret, record.wrapper);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation synchronizes the log with the underlying storage device, which makes
+   * every change made so far durable. The segments are always synchronized once written.
+   */
+  @Override
+  public void persist() throws IOException {
+    final Lock shared = lock.readLock();
+    shared.lock();
+    try {
+      final MemoryTable flushing = this.flushing;
+      if (flushing != null && flushing.log != null) {
+        flushing.log.sync();
+      }
+      memoryTable.log.sync();
+    } finally {
+      shared.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation persists the changes, closes the segments and releases the lock of the
+   * vault directory.
+   */
+  @Override
+  public void close() throws IOException {
+    // the flush in progress, if any, is completed beforehand
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    final Lock exclusive = lock.writeLock();
+    exclusive.lock();
+    try {
+      persist();
+      closeQuietly();
+    } finally {
+      exclusive.unlock();
+    }
+  }
+
+  /**
+   * Closes the log, the segments and the directory lock, ignoring (but logging) any failure
+   */
+  private void closeQuietly() {
+    flusher.shutdown();
+    final List<Closeable> closeables = new ArrayList<>(segments);
+    if (memoryTable != null && memoryTable.log != null) {
+      closeables.add(memoryTable.log);
+    }
+    closeables.add(lockChannel);
+    for (final Closeable closeable : closeables) {
+      try {
+        closeable.close();
+      } catch (final IOException e) {
+        log.warn("unable to close {}", closeable, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the current segments, from the newest to the oldest one
+   *
+   * @return the segments
+   */
+  List<LsmSegment> segments() {
+    return segments;
+  }
+
+  /**
+   * Returns the block cache
+   *
+   * @return the block cache
+   */
+  LsmBlockCache cache() {
+    return cache;
+  }
+
+  /**
+   * A memory table: the records not yet flushed into a segment, along with the log files
+   * where they were appended.
+   */
+  private static final class MemoryTable {
+
+    // properties
+    private final ConcurrentNavigableMap<String, LsmRecord> records =
+        new ConcurrentSkipListMap<>();
+    private final AtomicLong size = new AtomicLong();
+    private final LsmLog log;
+    private final List<Path> logs;
+
+    /**
+     * Creates a memory table
+     *
+     * @param log  the log where the records are appended, {@code null} for replayed records
+     * @param logs the log files of the records
+     */
+    private MemoryTable(final LsmLog log, final List<Path> logs) {
+      this.log = log;
+      this.logs = logs;
+    }
+
+    /**
+     * Puts the given record into the table, unless there's a newer one of the same key
+     *
+     * @param record the record
+     */
+    private void put(final LsmRecord record) {
+      records.merge(record.key, record, LsmRecord::newest);
+      size.addAndGet(record.size());
+    }
+  }
+
+  /**
+   * An iterator that merges several (sorted) iterators of records, yielding the newest record of
+   * each key, in key order.
+   */
+  private static final class MergingIterator implements Iterator<LsmRecord> {
+
+    // the sources, by their next record
+    private final PriorityQueue<Source> sources;
+
+    // the (exclusive) upper bound of the keys
+    private final String toKey;
+
+    // whether or not deletions are yielded
+    private final boolean deletions;
+
+    // the next record
+    private LsmRecord next;
+
+    /**
+     * Creates the merging iterator
+     *
+     * @param iterators the sorted iterators of records
+     * @param toKey     the (exclusive) upper bound of the keys, {@code null} for no bound
+     * @param deletions whether or not deletions are yielded
+     */
+    private MergingIterator(final List<Iterator<LsmRecord>> iterators, final String toKey,
+                            final boolean deletions) {
+      this.sources = new PriorityQueue<>(Math.max(1, iterators.size()),
+                                         Comparator.comparing(source -> source.current.key));
+      this.toKey = toKey;
+      this.deletions = deletions;
+      for (final Iterator<LsmRecord> iterator : iterators) {
+        final Source source = new Source(iterator);
+        if (source.advance()) {
+          sources.add(source);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && !sources.isEmpty()) {
+        // the newest record among the sources with the same (lowest) key
+        final String key = sources.peek().current.key;
+        if (toKey != null && key.compareTo(toKey) >= 0) {
+          sources.clear();
+          break;
+        }
+        LsmRecord newest = null;
+        while (!sources.isEmpty() && sources.peek().current.key.equals(key)) {
+          final Source source = sources.poll();
+          newest = newest == null ? source.current : LsmRecord.newest(newest, source.current);
+          if (source.advance()) {
+            sources.add(source);
+          }
+        }
+        if (deletions || !newest.isDeletion()) {
+          next = newest;
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public LsmRecord next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final LsmRecord record = next;
+      next = null;
+      return record;
+    }
+
+    /**
+     * A source of records, along with its current record
+     */
+    private static final class Source {
+
+      // properties
+      private final Iterator<LsmRecord> iterator;
+      private LsmRecord current;
+
+      /**
+       * Creates the source
+       *
+       * @param iterator the iterator of records
+       */
+      private Source(final Iterator<LsmRecord> iterator) {
+        this.iterator = iterator;
+      }
+
+      /**
+       * Advances to the next record
+       *
+       * @return {@code true} if there's a next record, {@code false} otherwise
+       */
+      private boolean advance() {
+        current = iterator.hasNext() ? iterator.next() : null;
+        return current != null;
+      }
+    }
+  }
+}
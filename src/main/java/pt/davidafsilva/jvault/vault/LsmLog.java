@@ -0,0 +1,270 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Consumer;
+
+import javax.crypto.SecretKey;
+
+/**
+ * The (write-ahead) log of a {@link LsmFileVault}, to which every change is appended before being
+ * applied to the memory table, so that the changes not yet flushed into a segment are recovered
+ * once the vault is loaded again.
+ *
+ * The format of the log is the following:
+ * <pre>
+ * ------------------------------------------------------
+ * | Magic ("JVLW") | Version (1)                       |
+ * ------------------------------------------------------
+ * | Record length | Record data | Record MAC           |
+ * ------------------------------------------------------
+ * | ...                                                |
+ * ------------------------------------------------------
+ * </pre>
+ *
+ * Each record (see {@link LsmRecord}) is followed by its own MAC, calculated over the id of the
+ * log and the record data, thus a record that was only partially written (torn) at the end of the
+ * log is detected, and discarded, when the log is replayed. Any other invalid record denotes a
+ * corrupted log.
+ *
+ * The appended records are only guaranteed to be durable once the log is {@link #sync()
+ * synchronized}.
+ *
+ * This class is thread-safe.
+ *
+ * @author David Silva
+ */
+final class LsmLog implements Closeable {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(LsmLog.class);
+
+  // the magic number of the log file: "JVLW"
+  static final int MAGIC = 0x4A564C57;
+
+  // the current version of the log file format
+  static final int VERSION = 1;
+
+  // the size of the header
+  private static final int HEADER_SIZE = Integer.BYTES + 1;
+
+  // the size of the MAC of each record
+  private static final int MAC_SIZE = 32;
+
+  // properties
+  private final long id;
+  private final FileChannel channel;
+  private final VaultMac mac;
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+  private final DataOutputStream stream = new DataOutputStream(buffer);
+
+  /**
+   * Creates the log with the given (open) file channel
+   *
+   * @param id      the id of the log
+   * @param channel the file channel of the log
+   * @param mac     the MAC of the records
+   */
+  private LsmLog(final long id, final FileChannel channel, final VaultMac mac) {
+    this.id = id;
+    this.channel = channel;
+    this.mac = mac;
+  }
+
+  /**
+   * Creates a new (empty) log file
+   *
+   * @param path   the path of the log file, which must not exist
+   * @param id     the id of the log
+   * @param secret the secret of the vault
+   * @return the created log
+   * @throws IOException                  if an I/O error occurs while creating the log file
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used
+   */
+  static LsmLog create(final Path path, final long id, final SecretKey secret)
+      throws IOException, VaultInitializationException {
+    final VaultMac mac = mac(secret);
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                                 StandardOpenOption.WRITE);
+    try {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put((byte) VERSION);
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      return new LsmLog(id, channel, mac);
+    } catch (final IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Appends the given record to the log
+   *
+   * @param record the record
+   * @throws IOException if an I/O error occurs while writing the record
+   */
+  synchronized void append(final LsmRecord record) throws IOException {
+    buffer.reset();
+    stream.writeInt(0);
+    record.write(stream);
+    final byte[] data = buffer.toByteArray();
+    final int length = data.length - Integer.BYTES;
+    final byte[] recordMac = mac(mac, id, data, Integer.BYTES, length);
+    final ByteBuffer output = ByteBuffer.allocate(data.length + MAC_SIZE);
+    output.put(data).put(recordMac).putInt(0, length);
+    output.flip();
+    while (output.hasRemaining()) {
+      channel.write(output);
+    }
+  }
+
+  /**
+   * Synchronizes the log with the underlying storage device, making the appended records durable
+   *
+   * @throws IOException if an I/O error occurs while synchronizing the log
+   */
+  void sync() throws IOException {
+    channel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Replays the records of the given log file, handing each one of them to the given consumer
+   *
+   * @param path     the path of the log file
+   * @param id       the id of the log
+   * @param secret   the secret of the vault
+   * @param consumer the consumer of the records
+   * @return the number of replayed records
+   * @throws IOException                  if an I/O error occurs while reading the log file
+   * @throws VaultCorruptedException      if the log is corrupted
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used
+   */
+  static int replay(final Path path, final long id, final SecretKey secret,
+                    final Consumer<LsmRecord> consumer)
+      throws IOException, VaultInitializationException {
+    final VaultMac mac = mac(secret);
+    final byte[] data = Files.readAllBytes(path);
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    if (data.length < HEADER_SIZE) {
+      // the log was not even fully created
+      log.warn("discarding the incomplete log {}", path);
+      return 0;
+    } else if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+      log.error("invalid log header found");
+      throw new VaultCorruptedException("vault structured is corrupted");
+    }
+
+    int records = 0;
+    while (buffer.hasRemaining()) {
+      final int offset = buffer.position();
+      final int length = buffer.remaining() < Integer.BYTES ? -1 : buffer.getInt();
+      if (length < 0 || length > buffer.remaining() - MAC_SIZE) {
+        log.warn("discarding the torn record at {} of the log {}", offset, path);
+        break;
+      }
+      final byte[] recordMac = new byte[MAC_SIZE];
+      buffer.position(buffer.position() + length);
+      buffer.get(recordMac);
+      if (!MessageDigest.isEqual(recordMac, mac(mac, id, data, offset + Integer.BYTES, length))) {
+        if (buffer.hasRemaining()) {
+          log.error("invalid MAC found for the record at {} of the log {}", offset, path);
+          throw new VaultCorruptedException("invalid key or vault structured is corrupted");
+        }
+        log.warn("discarding the torn record at {} of the log {}", offset, path);
+        break;
+      }
+      final ByteBuffer record = ByteBuffer.wrap(data, offset + Integer.BYTES, length).slice();
+      consumer.accept(LsmRecord.read(record));
+      records++;
+    }
+    return records;
+  }
+
+  /**
+   * Creates the MAC of the log records
+   *
+   * @param secret the secret of the vault
+   * @return the MAC
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used
+   */
+  private static VaultMac mac(final SecretKey secret) throws VaultInitializationException {
+    try {
+      return new VaultMac(secret);
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      log.error("invalid keys / mac algorithm", e);
+      throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm", e);
+    }
+  }
+
+  /**
+   * Calculates the MAC of the given record data
+   *
+   * @param mac    the MAC
+   * @param id     the id of the log
+   * @param data   the record data
+   * @param offset the offset of the record data
+   * @param length the length of the record data
+   * @return the calculated MAC
+   */
+  private static byte[] mac(final VaultMac mac, final long id, final byte[] data,
+                            final int offset, final int length) {
+    final byte[] logId = ByteBuffer.allocate(Long.BYTES).putLong(id).array();
+    return mac.update(logId, 0, logId.length).update(data, offset, length).doFinal();
+  }
+}
@@ -0,0 +1,302 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.apache.commons.codec.DecoderException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+
+/**
+ * A record of a {@link LsmFileVault}: either the (secured) entry last written with a key or the
+ * deletion of that key, identified by the sequence number of the change.
+ *
+ * The records are stored, both in the log and in the segments, in the following format:
+ * <pre>
+ * ------------------------------------------------------
+ * | Key length | Key data | Sequence | Timestamp | Type |
+ * ------------------------------------------------------
+ * | Value length | Value data | IV length | IV data (*) |
+ * ------------------------------------------------------
+ * </pre>
+ *
+ * All of the lengths, sequence numbers and timestamps are stored as unsigned variable length
+ * integers, as in the {@link ByteFileVault} format, and the value data is the raw cipher text. The
+ * fields marked with (*) are only stored for entries, not for deletions.
+ *
+ * This class is immutable, therefore it inherits it's thread-safe nature.
+ *
+ * @author David Silva
+ */
+final class LsmRecord {
+
+  // the types of records
+  private static final int TYPE_ENTRY = 0;
+  private static final int TYPE_DELETION = 1;
+
+  // the estimated overhead, in bytes, of a record in memory
+  private static final int OVERHEAD = 96;
+
+  // properties
+  final String key;
+  final long sequence;
+  final long timestamp;
+  final InMemoryVault.SecureEntryWrapper wrapper;
+
+  /**
+   * Creates a record
+   *
+   * @param key       the key of the record
+   * @param sequence  the sequence number of the change
+   * @param timestamp the timestamp of the change
+   * @param wrapper   the entry, {@code null} for a deletion
+   */
+  private LsmRecord(final String key, final long sequence, final long timestamp,
+                    final InMemoryVault.SecureEntryWrapper wrapper) {
+    this.key = key;
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.wrapper = wrapper;
+  }
+
+  /**
+   * Creates the record of the given (sequenced) entry
+   *
+   * @param wrapper the secure entry wrapper
+   * @return the entry record
+   */
+  static LsmRecord entry(final InMemoryVault.SecureEntryWrapper wrapper) {
+    return new LsmRecord(wrapper.entry.getKey(), wrapper.sequence,
+                         wrapper.entry.getCreationDate(), wrapper);
+  }
+
+  /**
+   * Creates the record of the deletion of the given key
+   *
+   * @param key       the deleted key
+   * @param sequence  the sequence number of the deletion
+   * @param timestamp the deletion timestamp
+   * @return the deletion record
+   */
+  static LsmRecord deletion(final String key, final long sequence, final long timestamp) {
+    return new LsmRecord(key, sequence, timestamp, null);
+  }
+
+  /**
+   * Checks whether or not this record is a deletion
+   *
+   * @return {@code true} if this is the record of a deletion, {@code false} otherwise
+   */
+  boolean isDeletion() {
+    return wrapper == null;
+  }
+
+  /**
+   * Returns the newest of the given records, of the same key
+   *
+   * @param a one of the records
+   * @param b the other record
+   * @return the record with the greatest sequence number
+   */
+  static LsmRecord newest(final LsmRecord a, final LsmRecord b) {
+    return a.sequence >= b.sequence ? a : b;
+  }
+
+  /**
+   * Estimates the size, in bytes, of this record in memory
+   *
+   * @return the estimated size
+   */
+  int size() {
+    return OVERHEAD + (key.length() << 1) +
+           (wrapper == null ? 0 : (wrapper.entry.getValue().length() << 1) + wrapper.iv.length);
+  }
+
+  /**
+   * Writes this record to the given stream
+   *
+   * @param stream the stream where to write the record
+   * @throws IOException if an I/O error occurs while writing the record
+   */
+  void write(final DataOutputStream stream) throws IOException {
+    final byte[] keyData = key.getBytes(Vault.VAULT_CS);
+    writeVarInt(stream, keyData.length);
+    stream.write(keyData);
+    writeVarLong(stream, sequence);
+    writeVarLong(stream, timestamp);
+    if (wrapper == null) {
+      stream.writeByte(TYPE_DELETION);
+      return;
+    }
+    final byte[] value;
+    try {
+      value = HexCodec.decode(wrapper.entry.getValue());
+    } catch (final DecoderException e) {
+      throw new IOException("Invalid (non hexadecimal) value of the entry " + key, e);
+    }
+    stream.writeByte(TYPE_ENTRY);
+    writeVarInt(stream, value.length);
+    stream.write(value);
+    writeVarInt(stream, wrapper.iv.length);
+    stream.write(wrapper.iv);
+  }
+
+  /**
+   * Reads a record from the given buffer
+   *
+   * @param buffer the buffer with the record data
+   * @return the read record
+   * @throws VaultCorruptedException if the record data is corrupted
+   */
+  static LsmRecord read(final ByteBuffer buffer) {
+    try {
+      final String key = new String(readBytes(buffer, readVarInt(buffer)), Vault.VAULT_CS);
+      final long sequence = readVarLong(buffer);
+      final long timestamp = readVarLong(buffer);
+      final int type = buffer.get();
+      if (type == TYPE_DELETION) {
+        return deletion(key, sequence, timestamp);
+      } else if (type != TYPE_ENTRY) {
+        throw corrupted();
+      }
+      final byte[] value = readBytes(buffer, readVarInt(buffer));
+      final byte[] iv = readBytes(buffer, readVarInt(buffer));
+      final SecureEntry entry = SecureEntry.of(timestamp, key,
+                                               new String(HexCodec.encode(value), Vault.VAULT_CS));
+      return entry(new InMemoryVault.SecureEntryWrapper(entry, iv, sequence));
+    } catch (final BufferUnderflowException e) {
+      throw corrupted();
+    }
+  }
+
+  /**
+   * Reads the given number of bytes from the buffer
+   *
+   * @param buffer the buffer with the record data
+   * @param length the number of bytes
+   * @return the read bytes
+   * @throws BufferUnderflowException if there are not enough bytes
+   */
+  private static byte[] readBytes(final ByteBuffer buffer, final int length) {
+    if (length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    final byte[] data = new byte[length];
+    buffer.get(data);
+    return data;
+  }
+
+  /**
+   * Reads an unsigned variable length integer from the given buffer
+   *
+   * @param buffer the buffer with the data
+   * @return the read integer
+   * @throws VaultCorruptedException if the integer does not fit a (non-negative) integer
+   */
+  static int readVarInt(final ByteBuffer buffer) {
+    final long value = readVarLong(buffer);
+    if (value > Integer.MAX_VALUE) {
+      throw corrupted();
+    }
+    return (int) value;
+  }
+
+  /**
+   * Reads an unsigned variable length long integer from the given buffer
+   *
+   * @param buffer the buffer with the data
+   * @return the read long integer
+   * @throws VaultCorruptedException if the integer does not fit a (non-negative) long integer
+   */
+  static long readVarLong(final ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      final int b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (shift == 63 && b > 0) {
+          throw corrupted();
+        }
+        return value;
+      }
+    }
+    throw corrupted();
+  }
+
+  /**
+   * Writes an unsigned variable length integer to the given stream
+   *
+   * @param stream the stream where to write the data
+   * @param value  the (non-negative) integer to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  static void writeVarInt(final DataOutputStream stream, final int value) throws IOException {
+    writeVarLong(stream, value);
+  }
+
+  /**
+   * Writes an unsigned variable length long integer to the given stream
+   *
+   * @param stream the stream where to write the data
+   * @param value  the (non-negative) long integer to be written
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  static void writeVarLong(final DataOutputStream stream, final long value) throws IOException {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      stream.writeByte((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    stream.writeByte((int) remaining);
+  }
+
+  /**
+   * Creates the exception of corrupted record data
+   *
+   * @return the corruption exception
+   */
+  private static VaultCorruptedException corrupted() {
+    return new VaultCorruptedException("vault structured is corrupted");
+  }
+
+  @Override
+  public String toString() {
+    return "LsmRecord(key: " + key + ", sequence: " + sequence + ", deletion: " + isDeletion()
+           + ")";
+  }
+}
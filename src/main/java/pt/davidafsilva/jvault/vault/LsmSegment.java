@@ -0,0 +1,677 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * An immutable segment of a {@link LsmFileVault}: a file with records sorted by key, split into
+ * blocks, along with a sparse index of the first key of each block.
+ *
+ * The format of the segment file is the following:
+ * <pre>
+ * ------------------------------------------------------------------------
+ * | Magic ("JVLS") | Version (1)                                         |
+ * ------------------------------------------------------------------------
+ * | Block 1 | ... | Block N                                              |
+ * ------------------------------------------------------------------------
+ * | ## Blocks | First key length | First key data | Offset | Length | ... |
+ * ------------------------------------------------------------------------
+ * | Index offset | Index length | Base id | ## Records | Sequence       |
+ * ------------------------------------------------------------------------
+ * | Index MAC | Magic ("JVLS")                                           |
+ * ------------------------------------------------------------------------
+ *
+ * Block format:
+ * -------------------------------------------------------
+ * | Length | ## Records | Record 1 | ... | Record N | MAC |
+ * -------------------------------------------------------
+ * </pre>
+ *
+ * The records (see {@link LsmRecord}) are sorted by key, with at most one record per key. The
+ * MAC of each block is calculated over the id of the segment, the offset of the block and its
+ * data, thus each block is verified independently, once read, while the MAC of the index is
+ * calculated over the id of the segment, the index data and the remaining fixed size fields,
+ * which are stored as (big-endian) integers, and is verified once the segment is opened.
+ *
+ * The base id of the segment is the lowest id of the segments it was merged from (or its own id),
+ * which the segment replaces.
+ *
+ * This class is thread-safe, as long as it's not closed while being read.
+ *
+ * @author David Silva
+ */
+final class LsmSegment implements Closeable {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(LsmSegment.class);
+
+  // the magic number of the segment file: "JVLS"
+  static final int MAGIC = 0x4A564C53;
+
+  // the current version of the segment file format
+  static final int VERSION = 1;
+
+  // the prefix and suffix of the segment file names
+  private static final String FILE_PREFIX = "segment-";
+  static final String FILE_SUFFIX = ".sst";
+  static final String TEMPORARY_SUFFIX = ".tmp";
+
+  // the size of the header
+  private static final int HEADER_SIZE = Integer.BYTES + 1;
+
+  // the size of the MACs
+  private static final int MAC_SIZE = 32;
+
+  // the size of the footer
+  private static final int FOOTER_SIZE = 4 * Long.BYTES + Integer.BYTES + MAC_SIZE + Integer.BYTES;
+
+  // properties
+  final long id;
+  final long baseId;
+  final long records;
+  final long sequence;
+  final long size;
+  private final Path path;
+  private final FileChannel channel;
+  private final SecretKey secret;
+  private final LsmBlockCache cache;
+
+  // the sparse index
+  private final String[] firstKeys;
+  private final long[] offsets;
+  private final int[] lengths;
+
+  /**
+   * Creates the segment with the given (open) file channel and index
+   */
+  private LsmSegment(final long id, final long baseId, final long records, final long sequence,
+                     final long size, final Path path, final FileChannel channel,
+                     final SecretKey secret, final LsmBlockCache cache, final String[] firstKeys,
+                     final long[] offsets, final int[] lengths) {
+    this.id = id;
+    this.baseId = baseId;
+    this.records = records;
+    this.sequence = sequence;
+    this.size = size;
+    this.path = path;
+    this.channel = channel;
+    this.secret = secret;
+    this.cache = cache;
+    this.firstKeys = firstKeys;
+    this.offsets = offsets;
+    this.lengths = lengths;
+  }
+
+  /**
+   * Returns the file name of the segment with the given id
+   *
+   * @param id the id of the segment
+   * @return the file name
+   */
+  static String fileName(final long id) {
+    return String.format("%s%016x%s", FILE_PREFIX, id, FILE_SUFFIX);
+  }
+
+  /**
+   * Parses the id of the segment from the given file name
+   *
+   * @param fileName the file name
+   * @return the id of the segment, {@code -1} if not a segment file name
+   */
+  static long id(final String fileName) {
+    if (!fileName.startsWith(FILE_PREFIX) || !fileName.endsWith(FILE_SUFFIX)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(fileName.substring(FILE_PREFIX.length(),
+                                               fileName.length() - FILE_SUFFIX.length()), 16);
+    } catch (final NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Writes a new segment with the given records, which is only visible once completely written
+   * and synchronized with the underlying storage device.
+   *
+   * @param directory the directory of the vault
+   * @param id        the id of the segment
+   * @param baseId    the lowest id of the segments replaced by this one
+   * @param records   the records, sorted by key
+   * @param secret    the secret of the vault
+   * @param blockSize the (approximate) size of the blocks
+   * @param cache     the block cache
+   * @return the written segment, open for reading
+   * @throws IOException             if an I/O error occurs while writing the segment
+   * @throws VaultOperationException if the any of the security settings are not supported or an
+   *                                 invalid key is used
+   */
+  static LsmSegment write(final Path directory, final long id, final long baseId,
+                          final Iterator<LsmRecord> records, final SecretKey secret,
+                          final int blockSize, final LsmBlockCache cache)
+      throws IOException, VaultOperationException {
+    final Path path = directory.resolve(fileName(id));
+    final Path temporary = directory.resolve(fileName(id) + TEMPORARY_SUFFIX);
+    final VaultMac mac = mac(secret);
+    final List<String> firstKeys = new ArrayList<>();
+    final List<long[]> positions = new ArrayList<>();
+    long count = 0;
+    long sequence = 0;
+    try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                                                      StandardOpenOption.TRUNCATE_EXISTING,
+                                                      StandardOpenOption.WRITE)) {
+      write(channel, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put((byte) VERSION));
+      long offset = HEADER_SIZE;
+
+      // the blocks
+      final ByteArrayOutputStream block = new ByteArrayOutputStream(blockSize + 256);
+      final DataOutputStream stream = new DataOutputStream(block);
+      String previous = null;
+      int blockRecords = 0;
+      while (records.hasNext()) {
+        final LsmRecord record = records.next();
+        if (previous != null && previous.compareTo(record.key) >= 0) {
+          throw new IllegalStateException("records not sorted by key: " + record.key);
+        }
+        if (blockRecords == 0) {
+          firstKeys.add(record.key);
+        }
+        record.write(stream);
+        previous = record.key;
+        blockRecords++;
+        count++;
+        sequence = Math.max(sequence, record.sequence);
+        if (block.size() >= blockSize) {
+          positions.add(new long[]{offset, block.size()});
+          offset += writeBlock(channel, mac, id, offset, block, blockRecords);
+          blockRecords = 0;
+        }
+      }
+      if (blockRecords > 0) {
+        positions.add(new long[]{offset, block.size()});
+        offset += writeBlock(channel, mac, id, offset, block, blockRecords);
+      }
+
+      // the index
+      final ByteArrayOutputStream index = new ByteArrayOutputStream();
+      final DataOutputStream indexStream = new DataOutputStream(index);
+      LsmRecord.writeVarInt(indexStream, firstKeys.size());
+      for (int i = 0; i < firstKeys.size(); i++) {
+        final byte[] key = firstKeys.get(i).getBytes(Vault.VAULT_CS);
+        LsmRecord.writeVarInt(indexStream, key.length);
+        indexStream.write(key);
+        LsmRecord.writeVarLong(indexStream, positions.get(i)[0]);
+        LsmRecord.writeVarInt(indexStream, (int) positions.get(i)[1]);
+      }
+      final byte[] indexData = index.toByteArray();
+      write(channel, ByteBuffer.wrap(indexData));
+
+      // the footer
+      final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE)
+          .putLong(offset).putInt(indexData.length).putLong(baseId).putLong(count)
+          .putLong(sequence);
+      footer.put(indexMac(mac, id, indexData, footer.array(), footer.position()))
+          .putInt(MAGIC);
+      write(channel, footer);
+      channel.force(true);
+    } catch (final IOException | RuntimeException e) {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+    log.debug("written segment {} with {} records", id, count);
+    try {
+      return open(path, id, secret, cache);
+    } catch (final VaultInitializationException e) {
+      throw new VaultOperationException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Writes the given block data, followed by its MAC
+   *
+   * @param channel the file channel of the segment
+   * @param mac     the MAC of the blocks
+   * @param id      the id of the segment
+   * @param offset  the offset of the block
+   * @param block   the block data, which is reset afterwards
+   * @param records the number of records in the block
+   * @return the number of written bytes
+   * @throws IOException if an I/O error occurs while writing the block
+   */
+  private static int writeBlock(final FileChannel channel, final VaultMac mac, final long id,
+                                final long offset, final ByteArrayOutputStream block,
+                                final int records) throws IOException {
+    final ByteBuffer output = ByteBuffer.allocate(2 * Integer.BYTES + block.size() + MAC_SIZE)
+        .putInt(Integer.BYTES + block.size()).putInt(records).put(block.toByteArray());
+    output.put(blockMac(mac, id, offset, output.array(), Integer.BYTES,
+                        Integer.BYTES + block.size()));
+    block.reset();
+    return write(channel, output);
+  }
+
+  /**
+   * Writes the given buffer data, fully
+   *
+   * @param channel the file channel
+   * @param buffer  the buffer with the data, prior to being flipped
+   * @return the number of written bytes
+   * @throws IOException if an I/O error occurs while writing the data
+   */
+  private static int write(final FileChannel channel, final ByteBuffer buffer)
+      throws IOException {
+    if (buffer.position() > 0) {
+      buffer.flip();
+    }
+    final int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    return length;
+  }
+
+  /**
+   * Opens the given segment file, reading (and verifying) its index
+   *
+   * @param path   the path of the segment file
+   * @param id     the id of the segment
+   * @param secret the secret of the vault
+   * @param cache  the block cache
+   * @return the open segment
+   * @throws IOException                  if an I/O error occurs while reading the segment
+   * @throws VaultCorruptedException      if the segment is corrupted
+   * @throws VaultInitializationException if the any of the security settings are not supported or
+   *                                      an invalid key is used
+   */
+  static LsmSegment open(final Path path, final long id, final SecretKey secret,
+                         final LsmBlockCache cache)
+      throws IOException, VaultInitializationException {
+    final VaultMac mac;
+    try {
+      mac = mac(secret);
+    } catch (final VaultOperationException e) {
+      throw new VaultInitializationException(e.getMessage(), e);
+    }
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      final long size = channel.size();
+      if (size < HEADER_SIZE + FOOTER_SIZE) {
+        throw corrupted(path);
+      }
+      final ByteBuffer header = read(channel, 0, HEADER_SIZE);
+      final ByteBuffer footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+      if (header.getInt() != MAGIC || header.get() != VERSION ||
+          footer.getInt(FOOTER_SIZE - Integer.BYTES) != MAGIC) {
+        throw corrupted(path);
+      }
+      final long indexOffset = footer.getLong();
+      final int indexLength = footer.getInt();
+      final long baseId = footer.getLong();
+      final long records = footer.getLong();
+      final long sequence = footer.getLong();
+      final int fieldsLength = footer.position();
+      final byte[] indexMac = new byte[MAC_SIZE];
+      footer.get(indexMac);
+      if (indexOffset < HEADER_SIZE || indexLength < 0 ||
+          indexOffset + indexLength != size - FOOTER_SIZE) {
+        throw corrupted(path);
+      }
+      final byte[] indexData = read(channel, indexOffset, indexLength).array();
+      if (!MessageDigest.isEqual(indexMac, indexMac(mac, id, indexData, footer.array(),
+                                                    fieldsLength))) {
+        log.error("invalid index MAC found for the segment {}", path);
+        throw new VaultCorruptedException("invalid key or vault structured is corrupted");
+      }
+
+      // the sparse index
+      final ByteBuffer index = ByteBuffer.wrap(indexData);
+      final int blocks = LsmRecord.readVarInt(index);
+      if (blocks > indexLength) {
+        throw corrupted(path);
+      }
+      final String[] firstKeys = new String[blocks];
+      final long[] offsets = new long[blocks];
+      final int[] lengths = new int[blocks];
+      for (int i = 0; i < blocks; i++) {
+        final byte[] key = new byte[LsmRecord.readVarInt(index)];
+        index.get(key);
+        firstKeys[i] = new String(key, Vault.VAULT_CS);
+        offsets[i] = LsmRecord.readVarLong(index);
+        lengths[i] = LsmRecord.readVarInt(index);
+      }
+      return new LsmSegment(id, baseId, records, sequence, size, path, channel, secret, cache,
+                            firstKeys, offsets, lengths);
+    } catch (final BufferUnderflowException e) {
+      channel.close();
+      throw corrupted(path);
+    } catch (final IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the given region of the file, fully
+   *
+   * @param channel the file channel
+   * @param offset  the offset of the region
+   * @param length  the length of the region
+   * @return the buffer with the read data
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws VaultCorruptedException if the file ends before the region does
+   */
+  private static ByteBuffer read(final FileChannel channel, final long offset, final int length)
+      throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new VaultCorruptedException("vault structured is corrupted");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Reads the record of the given key
+   *
+   * @param key the key
+   * @return the record of the key, {@code null} if there's none in this segment
+   * @throws UncheckedIOException    if an I/O error occurs while reading the segment
+   * @throws VaultCorruptedException if the read block is corrupted
+   */
+  LsmRecord get(final String key) {
+    final int block = block(key);
+    if (block < 0) {
+      return null;
+    }
+    final LsmRecord[] records = block(block, true);
+    final int index = search(records, key);
+    return index < 0 ? null : records[index];
+  }
+
+  /**
+   * Returns an iterator over the records of this segment, in key order, starting at the given
+   * key.
+   *
+   * @param fromKey the (inclusive) key of the first record, {@code null} for the first one
+   * @param cached  whether or not the read blocks are to be cached
+   * @return the iterator of the records
+   */
+  Iterator<LsmRecord> iterator(final String fromKey, final boolean cached) {
+    final int first = fromKey == null ? 0 : Math.max(0, block(fromKey));
+    return new Iterator<LsmRecord>() {
+      private int block = first;
+      private LsmRecord[] records;
+      private int index;
+
+      @Override
+      public boolean hasNext() {
+        while (records == null || index >= records.length) {
+          if (block >= firstKeys.length) {
+            return false;
+          }
+          records = block(block++, cached);
+          index = 0;
+          if (fromKey != null && block == first + 1) {
+            final int found = search(records, fromKey);
+            index = found < 0 ? -(found + 1) : found;
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public LsmRecord next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return records[index++];
+      }
+    };
+  }
+
+  /**
+   * Returns the index of the block that might contain the given key
+   *
+   * @param key the key
+   * @return the index of the block, {@code -1} if the key precedes every block
+   */
+  private int block(final String key) {
+    int low = 0;
+    int high = firstKeys.length - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int comparison = firstKeys[middle].compareTo(key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return low - 1;
+  }
+
+  /**
+   * Searches the given key within the records of a block
+   *
+   * @param records the records of the block
+   * @param key     the key
+   * @return the index of the record, or {@code -(insertion point) - 1} if not found
+   */
+  private static int search(final LsmRecord[] records, final String key) {
+    int low = 0;
+    int high = records.length - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int comparison = records[middle].key.compareTo(key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Reads (and verifies) the given block, from the cache if possible
+   *
+   * @param block  the index of the block
+   * @param cached whether or not the block is to be cached, once read
+   * @return the records of the block
+   * @throws UncheckedIOException    if an I/O error occurs while reading the segment
+   * @throws VaultCorruptedException if the block is corrupted
+   */
+  private LsmRecord[] block(final int block, final boolean cached) {
+    final long offset = offsets[block];
+    LsmRecord[] records = cache.get(id, offset);
+    if (records != null) {
+      return records;
+    }
+
+    final ByteBuffer data;
+    try {
+      data = read(channel, offset, 2 * Integer.BYTES + lengths[block] + MAC_SIZE);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    final int length = data.getInt();
+    if (length != Integer.BYTES + lengths[block]) {
+      throw corrupted(path);
+    }
+    final byte[] mac = new byte[MAC_SIZE];
+    data.position(Integer.BYTES + length);
+    data.get(mac);
+    try {
+      if (!MessageDigest.isEqual(mac, blockMac(mac(secret), id, offset, data.array(),
+                                               Integer.BYTES, length))) {
+        log.error("invalid MAC found for the block at {} of the segment {}", offset, path);
+        throw new VaultCorruptedException("invalid key or vault structured is corrupted");
+      }
+    } catch (final VaultOperationException e) {
+      // the keys were already used to open the segment
+      throw new IllegalStateException(e);
+    }
+
+    final ByteBuffer recordsData = ByteBuffer.wrap(data.array(), 2 * Integer.BYTES,
+                                                   lengths[block]).slice();
+    data.position(Integer.BYTES);
+    final int count = data.getInt();
+    if (count <= 0 || count > lengths[block]) {
+      throw corrupted(path);
+    }
+    records = new LsmRecord[count];
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      records[i] = LsmRecord.read(recordsData);
+      size += records[i].size();
+    }
+    if (cached) {
+      cache.put(id, offset, records, size);
+    }
+    return records;
+  }
+
+  /**
+   * Closes and deletes the segment file, evicting its blocks from the cache
+   *
+   * @throws IOException if an I/O error occurs while deleting the segment file
+   */
+  void delete() throws IOException {
+    close();
+    cache.evict(id);
+    Files.deleteIfExists(path);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Creates the MAC of the segment
+   *
+   * @param secret the secret of the vault
+   * @return the MAC
+   * @throws VaultOperationException if the any of the security settings are not supported or an
+   *                                 invalid key is used
+   */
+  private static VaultMac mac(final SecretKey secret) throws VaultOperationException {
+    try {
+      return new VaultMac(secret);
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new VaultOperationException("Invalid keys or unsupported MAC algorithm", e);
+    }
+  }
+
+  /**
+   * Calculates the MAC of a block
+   *
+   * @param mac    the MAC
+   * @param id     the id of the segment
+   * @param offset the offset of the block
+   * @param data   the block data
+   * @param from   the offset of the block data
+   * @param length the length of the block data
+   * @return the calculated MAC
+   */
+  private static byte[] blockMac(final VaultMac mac, final long id, final long offset,
+                                 final byte[] data, final int from, final int length) {
+    final byte[] position = ByteBuffer.allocate(2 * Long.BYTES).putLong(id).putLong(offset)
+        .array();
+    return mac.update(position, 0, position.length).update(data, from, length).doFinal();
+  }
+
+  /**
+   * Calculates the MAC of the index
+   *
+   * @param mac          the MAC
+   * @param id           the id of the segment
+   * @param index        the index data
+   * @param fields       the (footer) fields data
+   * @param fieldsLength the length of the fields data
+   * @return the calculated MAC
+   */
+  private static byte[] indexMac(final VaultMac mac, final long id, final byte[] index,
+                                 final byte[] fields, final int fieldsLength) {
+    final byte[] segment = ByteBuffer.allocate(Long.BYTES).putLong(id).array();
+    return mac.update(segment, 0, segment.length).update(index, 0, index.length)
+        .update(fields, 0, fieldsLength).doFinal();
+  }
+
+  /**
+   * Creates the exception of a corrupted segment
+   *
+   * @param path the path of the segment file
+   * @return the corruption exception
+   */
+  private static VaultCorruptedException corrupted(final Path path) {
+    log.error("corrupted segment found: {}", path);
+    return new VaultCorruptedException("vault structured is corrupted");
+  }
+
+  @Override
+  public String toString() {
+    return "LsmSegment(id: " + id + ", base id: " + baseId + ", records: " + records + ")";
+  }
+}
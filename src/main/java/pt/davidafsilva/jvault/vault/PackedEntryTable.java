@@ -0,0 +1,597 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.apache.commons.codec.DecoderException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+
+/**
+ * A compact map of the secured entries of an in-memory vault, keyed by their keys.
+ *
+ * Rather than keeping the entry objects (and the ones each entry holds: the key and value strings
+ * and the IV array), each entry is packed into a single byte array record, holding the UTF-8
+ * encoded key, the timestamp and sequence number, the IV and the (raw, rather than hex encoded)
+ * ciphered value. The entry objects are materialized from their record whenever read.
+ *
+ * The records are kept in a fixed number of segments, each one an open-addressing (linear
+ * probing) table along with the hashes of the keys, guarded by its own lock: the changes of the
+ * keys of different segments proceed concurrently, while the reads are optimistic, retried
+ * while holding the lock only when a change of the segment is made meanwhile.
+ *
+ * The map is thread-safe, its iterators are weakly consistent and it does not accept {@code null}
+ * keys nor values. The changes of each key are atomic, as of {@link #compute(String,
+ * BiFunction)}, whose function may read the map, as with a {@link
+ * java.util.concurrent.ConcurrentHashMap}, but fails with an {@link IllegalStateException} if it
+ * attempts to change it, rather than deadlocking on the (non-reentrant) lock of its segment.
+ *
+ * @author David Silva
+ */
+final class PackedEntryTable extends AbstractMap<String, InMemoryVault.SecureEntryWrapper> {
+
+  // the number of segments, a power of two
+  private static final int SEGMENTS = 64;
+
+  // the initial number of slots of each segment, a power of two
+  private static final int INITIAL_SLOTS = 8;
+
+  // the maximum ratio of occupied slots
+  private static final float LOAD_FACTOR = 0.75f;
+
+  // the offset of the key in the records
+  private static final int KEY_OFFSET = Integer.BYTES;
+
+  // properties
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  /**
+   * Creates an empty table
+   */
+  PackedEntryTable() {
+    for (int segment = 0; segment < SEGMENTS; segment++) {
+      segments[segment] = new Segment();
+    }
+  }
+
+  /**
+   * Returns the (spread) hash of the given key
+   *
+   * @param key the key
+   * @return the hash of the key
+   */
+  private static int hash(final String key) {
+    final int hash = key.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Returns the segment of the given hash, selected by its highest bits, since the lowest ones
+   * select the slot within the segment
+   *
+   * @param hash the hash of a key
+   * @return the segment of the key
+   */
+  private Segment segment(final int hash) {
+    return segments[(hash >>> 26) & (SEGMENTS - 1)];
+  }
+
+  @Override
+  public InMemoryVault.SecureEntryWrapper get(final Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final String k = (String) key;
+    final byte[] record = segment(hash(k)).find(k, hash(k));
+    return record == null ? null : unpack(record, k);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    if (!(key instanceof String)) {
+      return false;
+    }
+    final String k = (String) key;
+    return segment(hash(k)).find(k, hash(k)) != null;
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (final Segment segment : segments) {
+      size += segment.size;
+    }
+    return size;
+  }
+
+  @Override
+  public InMemoryVault.SecureEntryWrapper compute(
+      final String key,
+      final BiFunction<? super String, ? super InMemoryVault.SecureEntryWrapper,
+          ? extends InMemoryVault.SecureEntryWrapper> function) {
+    return segment(hash(key)).compute(key, hash(key), function);
+  }
+
+  @Override
+  public InMemoryVault.SecureEntryWrapper put(final String key,
+                                              final InMemoryVault.SecureEntryWrapper value) {
+    final InMemoryVault.SecureEntryWrapper[] previous = new InMemoryVault.SecureEntryWrapper[1];
+    compute(key, (k, current) -> {
+      previous[0] = current;
+      return value;
+    });
+    return previous[0];
+  }
+
+  @Override
+  public InMemoryVault.SecureEntryWrapper remove(final Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final InMemoryVault.SecureEntryWrapper[] previous = new InMemoryVault.SecureEntryWrapper[1];
+    compute((String) key, (k, current) -> {
+      previous[0] = current;
+      return null;
+    });
+    return previous[0];
+  }
+
+  @Override
+  public void clear() {
+    for (final Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<String, InMemoryVault.SecureEntryWrapper>> entrySet() {
+    return new AbstractSet<Map.Entry<String, InMemoryVault.SecureEntryWrapper>>() {
+
+      @Override
+      public Iterator<Map.Entry<String, InMemoryVault.SecureEntryWrapper>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return PackedEntryTable.this.size();
+      }
+    };
+  }
+
+  /**
+   * Packs the given entry into its record
+   *
+   * @param wrapper the entry wrapper
+   * @return the record of the entry
+   * @throws IllegalArgumentException if the ciphered value of the entry is not hex encoded
+   */
+  private static byte[] pack(final InMemoryVault.SecureEntryWrapper wrapper) {
+    final byte[] key = wrapper.entry.getKey().getBytes(Vault.VAULT_CS);
+    final byte[] value;
+    try {
+      value = HexCodec.decode(wrapper.entry.getValue());
+    } catch (final DecoderException e) {
+      throw new IllegalArgumentException("Invalid ciphered value of the entry", e);
+    }
+    return ByteBuffer.allocate(KEY_OFFSET + key.length + 2 * Long.BYTES + 1 + wrapper.iv.length
+                               + value.length)
+        .putInt(key.length).put(key)
+        .putLong(wrapper.entry.getCreationDate()).putLong(wrapper.sequence)
+        .put((byte) wrapper.iv.length).put(wrapper.iv)
+        .put(value)
+        .array();
+  }
+
+  /**
+   * Materializes the entry of the given record
+   *
+   * @param record the record of the entry
+   * @param key    the key of the entry, {@code null} to be decoded from the record
+   * @return the entry wrapper
+   */
+  private static InMemoryVault.SecureEntryWrapper unpack(final byte[] record, final String key) {
+    final ByteBuffer fields = ByteBuffer.wrap(record);
+    final int keyLength = fields.getInt();
+    fields.position(KEY_OFFSET + keyLength);
+    final long timestamp = fields.getLong();
+    final long sequence = fields.getLong();
+    final byte[] iv = new byte[fields.get() & 0xFF];
+    fields.get(iv);
+    final String value = new String(HexCodec.encode(record, fields.position(), fields.remaining()),
+                                    StandardCharsets.US_ASCII);
+    final String k = key != null ? key
+                                 : new String(record, KEY_OFFSET, keyLength, Vault.VAULT_CS);
+    return new InMemoryVault.SecureEntryWrapper(SecureEntry.of(timestamp, k, value), iv, sequence);
+  }
+
+  /**
+   * Checks whether the given record is the one of the given key, without encoding the key unless
+   * it has non-ASCII characters
+   *
+   * @param record the record
+   * @param key    the key
+   * @return {@code true} if the record is of the given key, {@code false} otherwise
+   */
+  private static boolean matches(final byte[] record, final String key) {
+    final int length = ByteBuffer.wrap(record).getInt();
+    if (length == key.length()) {
+      int i = 0;
+      for (; i < length; i++) {
+        final char c = key.charAt(i);
+        if (c >= 0x80) {
+          break;
+        } else if (record[KEY_OFFSET + i] != (byte) c) {
+          return false;
+        }
+      }
+      if (i == length) {
+        return true;
+      }
+    }
+    final byte[] encoded = key.getBytes(Vault.VAULT_CS);
+    if (encoded.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (record[KEY_OFFSET + i] != encoded[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A segment of the table: an open-addressing table of records, with the hashes of their keys.
+   */
+  private static final class Segment {
+
+    // the lock of the segment
+    private final StampedLock lock = new StampedLock();
+
+    // the thread holding the write lock, if any, only ever compared to the current thread, which
+    // always sees its own writes
+    private Thread owner;
+
+    // the slots, changed (and replaced) only while holding the write lock
+    private int[] hashes = new int[INITIAL_SLOTS];
+    private byte[][] records = new byte[INITIAL_SLOTS][];
+    private volatile int size;
+
+    /**
+     * Finds the record of the given key, optimistically
+     *
+     * @param key  the key
+     * @param hash the hash of the key
+     * @return the record of the key, {@code null} if there's none
+     */
+    private byte[] find(final String key, final int hash) {
+      if (owner == Thread.currentThread()) {
+        // read from within a computation of the segment
+        return probe(hashes, records, key, hash);
+      }
+      final long optimistic = lock.tryOptimisticRead();
+      if (optimistic != 0) {
+        final int[] h = hashes;
+        final byte[][] r = records;
+        // the arrays may be of different generations, if replaced meanwhile
+        if (h.length == r.length) {
+          final byte[] record = probe(h, r, key, hash);
+          if (lock.validate(optimistic)) {
+            return record;
+          }
+        }
+      }
+      final long stamp = lock.readLock();
+      try {
+        return probe(hashes, records, key, hash);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    /**
+     * Probes the given slots for the record of the given key
+     *
+     * @param h    the hashes of the slots
+     * @param r    the records of the slots
+     * @param key  the key
+     * @param hash the hash of the key
+     * @return the record of the key, {@code null} if there's none
+     */
+    private static byte[] probe(final int[] h, final byte[][] r, final String key,
+                                final int hash) {
+      final int slot = slot(h, r, key, hash);
+      return slot < 0 ? null : r[slot];
+    }
+
+    /**
+     * Locates the slot of the given key
+     *
+     * @param h    the hashes of the slots
+     * @param r    the records of the slots
+     * @param key  the key
+     * @param hash the hash of the key
+     * @return the slot of the key, or {@code -(slot + 1)} of the free slot where it belongs
+     */
+    private static int slot(final int[] h, final byte[][] r, final String key, final int hash) {
+      final int mask = r.length - 1;
+      int slot = hash & mask;
+      // bounded, since an inconsistent optimistic read may find no free slot
+      for (int probes = 0; probes < r.length; probes++, slot = (slot + 1) & mask) {
+        final byte[] record = r[slot];
+        if (record == null) {
+          return -(slot + 1);
+        } else if (h[slot] == hash && matches(record, key)) {
+          return slot;
+        }
+      }
+      return -(slot + 1);
+    }
+
+    /**
+     * Computes the entry of the given key, while holding the write lock
+     *
+     * @param key      the key
+     * @param hash     the hash of the key
+     * @param function the function computing the entry from the current one
+     * @return the computed entry, {@code null} if there's none
+     */
+    private InMemoryVault.SecureEntryWrapper compute(
+        final String key, final int hash,
+        final BiFunction<? super String, ? super InMemoryVault.SecureEntryWrapper,
+            ? extends InMemoryVault.SecureEntryWrapper> function) {
+      final long stamp = writeLock();
+      try {
+        final int slot = slot(hashes, records, key, hash);
+        final InMemoryVault.SecureEntryWrapper current = slot >= 0
+                                                          ? unpack(records[slot], key) : null;
+        final InMemoryVault.SecureEntryWrapper updated = function.apply(key, current);
+        if (updated == current) {
+          return current;
+        } else if (updated == null) {
+          delete(slot);
+        } else if (slot >= 0) {
+          records[slot] = pack(updated);
+        } else {
+          insert(hash, pack(updated), -(slot + 1));
+        }
+        return updated;
+      } finally {
+        unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * Acquires the write lock of the segment
+     *
+     * @return the stamp of the write lock
+     * @throws IllegalStateException if the write lock is already held by the current thread, i.e.
+     *                               from within a computation of the segment
+     */
+    private long writeLock() {
+      if (owner == Thread.currentThread()) {
+        throw new IllegalStateException("Recursive update");
+      }
+      final long stamp = lock.writeLock();
+      owner = Thread.currentThread();
+      return stamp;
+    }
+
+    /**
+     * Releases the write lock of the segment
+     *
+     * @param stamp the stamp of the write lock
+     */
+    private void unlockWrite(final long stamp) {
+      owner = null;
+      lock.unlockWrite(stamp);
+    }
+
+    /**
+     * Inserts the given record into the given free slot, growing the segment beforehand if needed
+     *
+     * @param hash   the hash of the key of the record
+     * @param record the record
+     * @param slot   the free slot of the key
+     */
+    private void insert(final int hash, final byte[] record, final int slot) {
+      int free = slot;
+      if (size + 1 > records.length * LOAD_FACTOR) {
+        resize(records.length * 2);
+        final int mask = records.length - 1;
+        // the key is known to be absent, thus it belongs to the first free slot
+        free = hash & mask;
+        while (records[free] != null) {
+          free = (free + 1) & mask;
+        }
+      }
+      hashes[free] = hash;
+      records[free] = record;
+      size++;
+    }
+
+    /**
+     * Deletes the record of the given slot, shifting the following records of the same probe
+     * sequence backwards, so that no tombstones are needed
+     *
+     * @param slot the slot
+     */
+    private void delete(final int slot) {
+      final int mask = records.length - 1;
+      int free = slot;
+      for (int next = (free + 1) & mask; records[next] != null; next = (next + 1) & mask) {
+        final int home = hashes[next] & mask;
+        // the record stays unless its home slot is cyclically outside of (free, next]
+        final boolean stays = free <= next ? free < home && home <= next
+                                           : free < home || home <= next;
+        if (!stays) {
+          hashes[free] = hashes[next];
+          records[free] = records[next];
+          free = next;
+        }
+      }
+      hashes[free] = 0;
+      records[free] = null;
+      size--;
+    }
+
+    /**
+     * Replaces the slots with the given number of (empty) slots, re-inserting the records
+     *
+     * @param slots the number of slots, a power of two
+     */
+    private void resize(final int slots) {
+      final int[] h = new int[slots];
+      final byte[][] r = new byte[slots][];
+      final int mask = slots - 1;
+      for (int i = 0; i < records.length; i++) {
+        if (records[i] != null) {
+          int slot = hashes[i] & mask;
+          while (r[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          h[slot] = hashes[i];
+          r[slot] = records[i];
+        }
+      }
+      hashes = h;
+      records = r;
+    }
+
+    /**
+     * Removes all of the records of the segment
+     */
+    private void clear() {
+      final long stamp = writeLock();
+      try {
+        hashes = new int[INITIAL_SLOTS];
+        records = new byte[INITIAL_SLOTS][];
+        size = 0;
+      } finally {
+        unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * Copies the records of the segment
+     *
+     * @return the copy of the records
+     */
+    private byte[][] copy() {
+      if (owner == Thread.currentThread()) {
+        return Arrays.copyOf(records, records.length);
+      }
+      final long stamp = lock.readLock();
+      try {
+        return Arrays.copyOf(records, records.length);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+  }
+
+  /**
+   * The (weakly consistent) iterator of the entries, which goes through a copy of the records of
+   * each segment at a time.
+   */
+  private final class EntryIterator
+      implements Iterator<Map.Entry<String, InMemoryVault.SecureEntryWrapper>> {
+
+    // the state of the iteration
+    private int segment;
+    private byte[][] records = new byte[0][];
+    private int slot;
+    private Map.Entry<String, InMemoryVault.SecureEntryWrapper> next = advance();
+    private String last;
+
+    /**
+     * Advances to the next entry
+     *
+     * @return the next entry, {@code null} if there's none
+     */
+    private Map.Entry<String, InMemoryVault.SecureEntryWrapper> advance() {
+      while (true) {
+        while (slot < records.length) {
+          final byte[] record = records[slot++];
+          if (record != null) {
+            final InMemoryVault.SecureEntryWrapper wrapper = unpack(record, null);
+            return new SimpleImmutableEntry<>(wrapper.entry.getKey(), wrapper);
+          }
+        }
+        if (segment == SEGMENTS) {
+          return null;
+        }
+        records = segments[segment++].copy();
+        slot = 0;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, InMemoryVault.SecureEntryWrapper> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      final Map.Entry<String, InMemoryVault.SecureEntryWrapper> current = next;
+      last = current.getKey();
+      next = advance();
+      return current;
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      PackedEntryTable.this.remove(last);
+      last = null;
+    }
+  }
+}
@@ -0,0 +1,632 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+/**
+ * A file based vault implementation, in which the entries are partitioned, by the hash of their
+ * key, into a fixed number of shards. Each shard is stored in its own file within the vault
+ * directory, in byte (raw) format, with its own MAC.
+ *
+ * The shard files are named {@code shard-NNNN.vault}, where {@code NNNN} is the zero-padded
+ * index of the shard. The number of shards must remain the same throughout the lifetime of the
+ * vault, otherwise the entries would be looked up in the wrong shard. As such, opening a vault
+ * directory with a different number of shards is refused.
+ *
+ * The shards are loaded concurrently and, since each shard keeps track of its own changes,
+ * only the shards with changes are written (concurrently) on {@link #persist()}. The shards are
+ * loaded and written by the (daemon) threads of the vault, rather than the common pool ones, since
+ * they block on the file I/O.
+ *
+ * This implementation is backed by one {@link ByteFileVault} per shard, all of them sharing the
+ * same key and source of sequence numbers, so that the changes of all the shards are exported
+ * in a single order.
+ *
+ * @author David Silva
+ */
+final class ShardedFileVault implements FileVault, SortedVault {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(ShardedFileVault.class);
+
+  // the ids of the shard threads
+  private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+  // the shard file name format and pattern
+  private static final String SHARD_FILE_FORMAT = "shard-%04d.vault";
+  private static final Pattern SHARD_FILE_PATTERN = Pattern.compile("shard-(\\d{4,})\\.vault");
+
+  // the shards
+  private final ByteFileVault[] shards;
+
+  // the (shared) source of sequence numbers
+  private final VaultSequence sequence = new VaultSequence();
+
+  // the executor of the operations on all of the shards
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Creates a vault with the specified parameters.
+   *
+   * @param password   the vaults password for PBE
+   * @param salt       the salt (should be a random) to protect against dictionary attacks
+   * @param iterations the number of iterations to be applied when deriving the actual cipher key
+   * @param keyLength  the size of the key to be used for encryption (affects the salt size asl
+   *                   well)
+   * @param directory  the directory where the shard files are stored
+   * @param shards     the number of shards
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  ShardedFileVault(final String password, final String salt, final int iterations,
+                   final int keyLength, final Path directory, final int shards)
+      throws VaultInitializationException {
+    this(password.toCharArray(), salt.getBytes(Vault.VAULT_CS), iterations, keyLength, directory,
+         shards);
+  }
+
+  /**
+   * Creates a vault with the specified parameters.
+   *
+   * @param password   the vaults password for PBE
+   * @param salt       the salt (should be a random) to protect against dictionary attacks
+   * @param iterations the number of iterations to be applied when deriving the actual cipher key
+   * @param keyLength  the size of the key to be used for encryption (affects the salt size asl
+   *                   well)
+   * @param directory  the directory where the shard files are stored
+   * @param shards     the number of shards
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  ShardedFileVault(final char[] password, final byte[] salt, final int iterations,
+                   final int keyLength, final Path directory, final int shards)
+      throws VaultInitializationException {
+    this(password, salt, iterations, keyLength, directory, shards, FileVaultOptions.DEFAULT);
+  }
+
+  /**
+   * Creates a vault with the specified parameters.
+   *
+   * @param password   the vaults password for PBE
+   * @param salt       the salt (should be a random) to protect against dictionary attacks
+   * @param iterations the number of iterations to be applied when deriving the actual cipher key
+   * @param keyLength  the size of the key to be used for encryption (affects the salt size asl
+   *                   well)
+   * @param directory  the directory where the shard files are stored
+   * @param shards     the number of shards
+   * @param options    the file options of the shards
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  ShardedFileVault(final char[] password, final byte[] salt, final int iterations,
+                   final int keyLength, final Path directory, final int shards,
+                   final FileVaultOptions options) throws VaultInitializationException {
+    this(VaultKey.derive(password, salt, iterations, keyLength), directory, shards, options);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key, shared by all of the shards.
+   *
+   * @param key       the vault key
+   * @param directory the directory where the shard files are stored
+   * @param shards    the number of shards
+   * @param options   the file options of the shards
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  ShardedFileVault(final VaultKey key, final Path directory, final int shards,
+                   final FileVaultOptions options) throws VaultInitializationException {
+    if (shards <= 0) {
+      throw new IllegalArgumentException("invalid number of shards, must be greater than 0");
+    }
+    final File fp = directory.toFile();
+    if (!fp.isDirectory() || !fp.canRead() || !options.readOnly && !fp.canWrite()) {
+      throw new VaultInitializationException(
+          "Invalid vault directory, not a directory or no read/write permissions");
+    }
+    prepareShardFiles(directory, shards);
+
+    // load the shards
+    log.info("initializing the vault from {} shards..", shards);
+    final int threads = Math.min(shards, Runtime.getRuntime().availableProcessors());
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<>(), runnable -> {
+      final Thread thread = new Thread(runnable, "jvault-shard-" + THREAD_IDS.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    this.shards = new ByteFileVault[shards];
+    try {
+      forEachShard(shards, shard -> this.shards[shard] =
+          new ByteFileVault(key, directory.resolve(shardFileName(shard)), options, sequence));
+    } catch (final VaultInitializationException | RuntimeException e) {
+      // release the file locks (and watchers) of the shards loaded meanwhile
+      for (final ByteFileVault shard : this.shards) {
+        if (shard != null) {
+          shard.close();
+        }
+      }
+      executor.shutdown();
+      throw e;
+    }
+    log.info("vault successfully loaded");
+  }
+
+  /**
+   * Ensures that the vault directory contains exactly the given number of shards, creating the
+   * shard files if the directory has none.
+   *
+   * @param directory the vault directory
+   * @param shards    the number of shards
+   * @throws VaultInitializationException if the vault directory contains a different number of
+   *                                      shards or an I/O error occurs
+   */
+  private static void prepareShardFiles(final Path directory, final int shards)
+      throws VaultInitializationException {
+    try {
+      // check the existing shards
+      int existing = 0;
+      try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        for (final Path file : stream) {
+          final Matcher matcher = SHARD_FILE_PATTERN.matcher(file.getFileName().toString());
+          if (matcher.matches()) {
+            if (Integer.parseInt(matcher.group(1)) >= shards) {
+              existing = Integer.MAX_VALUE;
+              break;
+            }
+            existing++;
+          }
+        }
+      }
+      if (existing > 0 && existing != shards) {
+        log.error("vault directory shards do not match the expected {} shards", shards);
+        throw new VaultInitializationException(
+            "Invalid vault directory, the number of shards does not match");
+      }
+
+      // create the shard files, if necessary
+      if (existing == 0) {
+        for (int shard = 0; shard < shards; shard++) {
+          Files.createFile(directory.resolve(shardFileName(shard)));
+        }
+      }
+    } catch (final IOException | NumberFormatException e) {
+      log.error("unable to prepare the shard files", e);
+      throw new VaultInitializationException("Unable to prepare the vault shard files", e);
+    }
+  }
+
+  /**
+   * Returns the file name of the given shard
+   *
+   * @param shard the shard index
+   * @return the shard file name
+   */
+  private static String shardFileName(final int shard) {
+    return String.format(SHARD_FILE_FORMAT, shard);
+  }
+
+  /**
+   * Returns the shard responsible for storing the given key
+   *
+   * @param key the entry key
+   * @return the shard for the key
+   */
+  private ByteFileVault shard(final String key) {
+    return shards[shardIndex(key)];
+  }
+
+  /**
+   * Returns the index of the shard of the given key
+   *
+   * @param key the key
+   * @return the index of the shard that holds the key
+   */
+  private int shardIndex(final String key) {
+    Objects.requireNonNull(key, "Invalid key specified");
+    return Math.floorMod(key.hashCode(), shards.length);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation only writes the shards that have been changed, concurrently. Concurrent
+   * calls to this method are grouped per shard, as described at {@link AbstractFileVault}.
+   */
+  @Override
+  public void persist() throws IOException, VaultOperationException {
+    this.<IOException, VaultOperationException>forEachShard(
+        shards.length, shard -> shards[shard].persist());
+  }
+
+  @Override
+  public List<LostRange> lostRanges() {
+    final List<LostRange> lost = new ArrayList<>();
+    for (final ByteFileVault shard : shards) {
+      lost.addAll(shard.lostRanges());
+    }
+    return Collections.unmodifiableList(lost);
+  }
+
+  @Override
+  public void close() {
+    for (final ByteFileVault shard : shards) {
+      shard.close();
+    }
+    executor.shutdown();
+  }
+
+  @Override
+  public Collection<SecureEntry> read() {
+    final List<SecureEntry> entries = new ArrayList<>();
+    for (final ByteFileVault shard : shards) {
+      entries.addAll(shard.read());
+    }
+    return Collections.unmodifiableCollection(entries);
+  }
+
+  @Override
+  public Optional<SecureEntry> read(final String key) {
+    return shard(key).read(key);
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (final ByteFileVault shard : shards) {
+      size += shard.size();
+    }
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(final String key) {
+    return shard(key).containsKey(key);
+  }
+
+  @Override
+  public Stream<SecureEntry> stream() {
+    return Arrays.stream(shards).flatMap(ByteFileVault::stream);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation merges the pages of all the shards.
+   */
+  @Override
+  public List<SecureEntry> scan(final String afterKey, final int limit) {
+    return merge(shard -> shard.scan(afterKey, limit), limit);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation merges the ranges of all the shards.
+   */
+  @Override
+  public List<SecureEntry> readRange(final String fromKey, final String toKey, final int limit) {
+    return merge(shard -> shard.readRange(fromKey, toKey, limit), limit);
+  }
+
+  @Override
+  public int deletePrefix(final String prefix) {
+    int deleted = 0;
+    for (final ByteFileVault shard : shards) {
+      deleted += shard.deletePrefix(prefix);
+    }
+    return deleted;
+  }
+
+  /**
+   * Merges the entries read, in ascending key order, from each of the shards
+   *
+   * @param read  the read of the entries of a shard
+   * @param limit the maximum number of entries to be merged
+   * @return the (up to {@code limit}) merged entries, in ascending key order
+   */
+  private List<SecureEntry> merge(final Function<ByteFileVault, List<SecureEntry>> read,
+                                  final int limit) {
+    final List<SecureEntry> entries = new ArrayList<>();
+    for (final ByteFileVault shard : shards) {
+      entries.addAll(read.apply(shard));
+    }
+    entries.sort(Comparator.comparing(SecureEntry::getKey));
+    return entries.size() > limit ? new ArrayList<>(entries.subList(0, limit)) : entries;
+  }
+
+  @Override
+  public SecureEntry write(final UnsecureEntry entry) throws VaultOperationException {
+    Objects.requireNonNull(entry, "Invalid entry specified");
+    return shard(entry.getKey()).write(entry);
+  }
+
+  @Override
+  public Optional<SecureEntry> delete(final String key) {
+    return shard(key).delete(key);
+  }
+
+  @Override
+  public Optional<SecureEntry> putIfAbsent(final UnsecureEntry entry)
+      throws VaultOperationException {
+    Objects.requireNonNull(entry, "Invalid entry specified");
+    return shard(entry.getKey()).putIfAbsent(entry);
+  }
+
+  @Override
+  public Optional<SecureEntry> replace(final String key, final SecureEntry expected,
+                                       final String value) throws VaultOperationException {
+    return shard(key).replace(key, expected, value);
+  }
+
+  @Override
+  public Optional<SecureEntry> compute(final String key,
+                                       final UnaryOperator<Optional<String>> function)
+      throws VaultOperationException {
+    return shard(key).compute(key, function);
+  }
+
+  @Override
+  public UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException {
+    return shard(entry.getKey()).translate(entry);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation merges the changes of all the shards, up to the same sequence number.
+   */
+  @Override
+  public Stream<EntryChange> exportSince(final long sequence) {
+    final long watermark = this.sequence.watermark();
+    return Stream.of(shards)
+        .flatMap(shard -> shard.inMemoryVault.exportSince(sequence, watermark))
+        .sorted(Comparator.comparingLong(EntryChange::getSequence));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation pins a snapshot of each one of the shards to the same version, while no
+   * change is in flight in any of them.
+   */
+  @Override
+  public VaultSnapshot snapshot() {
+    final VaultSnapshot[] snapshots = pin();
+    return new VaultSnapshot() {
+
+      @Override
+      public long getVersion() {
+        return snapshots[0].getVersion();
+      }
+
+      @Override
+      public Collection<SecureEntry> read() {
+        final List<SecureEntry> entries = new ArrayList<>();
+        for (final VaultSnapshot snapshot : snapshots) {
+          entries.addAll(snapshot.read());
+        }
+        return Collections.unmodifiableCollection(entries);
+      }
+
+      @Override
+      public Optional<SecureEntry> read(final String key) {
+        return snapshots[shardIndex(key)].read(key);
+      }
+
+      @Override
+      public UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException {
+        return snapshots[shardIndex(entry.getKey())].translate(entry);
+      }
+
+      @Override
+      public void close() {
+        for (final VaultSnapshot snapshot : snapshots) {
+          snapshot.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation notifies the changes of all the shards to the listener, in the same
+   * batches.
+   */
+  @Override
+  public VaultSubscription subscribe(final VaultListener listener, final Executor executor) {
+    final ChangeDispatcher[] dispatcher = new ChangeDispatcher[1];
+    dispatcher[0] = new ChangeDispatcher(
+        key -> shards[shardIndex(key)].inMemoryVault.lastChange(key), listener, executor, () -> {
+      for (final ByteFileVault shard : shards) {
+        shard.inMemoryVault.unsubscribe(dispatcher[0]);
+      }
+    });
+    for (final ByteFileVault shard : shards) {
+      shard.inMemoryVault.subscribe(dispatcher[0]);
+    }
+    return dispatcher[0];
+  }
+
+  /**
+   * Pins a snapshot of each one of the shards, all at the same sequence number
+   *
+   * @return the snapshots of the shards
+   */
+  private VaultSnapshot[] pin() {
+    final VaultSnapshot[] snapshots = new VaultSnapshot[shards.length];
+    final Lock exclusive = sequence.exclusiveLock();
+    exclusive.lock();
+    try {
+      for (int shard = 0; shard < shards.length; shard++) {
+        snapshots[shard] = shards[shard].snapshot();
+      }
+    } finally {
+      exclusive.unlock();
+    }
+    return snapshots;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation freezes the entries of all the shards into a single file, as of the same
+   * sequence number.
+   */
+  @Override
+  public void freeze(final Path path) throws IOException, VaultOperationException {
+    final VaultSnapshot[] snapshots = pin();
+    try {
+      final List<InMemoryVault.SecureEntryWrapper> wrappers = new ArrayList<>();
+      for (final VaultSnapshot snapshot : snapshots) {
+        ((InMemoryVault.Snapshot) snapshot).wrappers().forEach(wrappers::add);
+      }
+      FrozenFileVault.freeze(shards[0].inMemoryVault.secret, snapshots[0].getVersion(), wrappers,
+                             path);
+    } finally {
+      for (final VaultSnapshot snapshot : snapshots) {
+        snapshot.close();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation combines the statistics of the shards, which are loaded and persisted in
+   * parallel: the durations are the ones of the slowest shard, while the persisted size is the
+   * total size of the shard files written by their last persist.
+   */
+  @Override
+  public VaultStats stats() {
+    VaultStats stats = shards[0].stats();
+    for (int shard = 1; shard < shards.length; shard++) {
+      stats = stats.combine(shards[shard].stats());
+    }
+    return stats;
+  }
+
+  /**
+   * Executes the given operation for each one of the shards, concurrently, by the vault threads.
+   *
+   * Should any of the operations fail, the first failure is thrown once all of the operations
+   * complete, with the remaining failures added as suppressed exceptions.
+   *
+   * @param shards    the number of shards
+   * @param operation the operation to be executed
+   * @param <E1>      the first type of exception thrown by the operation
+   * @param <E2>      the second type of exception thrown by the operation
+   * @throws E1 if any of the operations fails with such an exception
+   * @throws E2 if any of the operations fails with such an exception
+   */
+  @SuppressWarnings("unchecked")
+  private <E1 extends Exception, E2 extends Exception> void forEachShard(
+      final int shards, final ShardOperation<E1, E2> operation) throws E1, E2 {
+    final Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+    IntStream.range(0, shards)
+        .mapToObj(shard -> CompletableFuture.runAsync(() -> {
+          try {
+            operation.apply(shard);
+          } catch (final Exception e) {
+            failures.add(e);
+          }
+        }, executor))
+        .collect(toList())
+        .forEach(CompletableFuture::join);
+
+    final Exception failure = failures.poll();
+    if (failure != null) {
+      failures.forEach(failure::addSuppressed);
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      // the operation is only able to throw either one of the declared exceptions
+      throw (E1) failure;
+    }
+  }
+
+  /**
+   * An operation to be executed on a shard
+   *
+   * @param <E1> the first type of exception thrown by the operation
+   * @param <E2> the second type of exception thrown by the operation
+   */
+  @FunctionalInterface
+  private interface ShardOperation<E1 extends Exception, E2 extends Exception> {
+
+    /**
+     * Applies the operation on the given shard
+     *
+     * @param shard the shard index
+     * @throws E1 if the operation fails
+     * @throws E2 if the operation fails
+     */
+    void apply(final int shard) throws E1, E2;
+  }
+}
@@ -0,0 +1,176 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+
+/**
+ * A secure vault whose entries are ordered by key, which supports reading the entries of a range
+ * of keys without reading the whole vault.
+ *
+ * The vaults with an ordered index of their keys, such as the log-structured ones or the ones
+ * built as {@link VaultBuilder#ordered() ordered}, read (and delete) the ranges and prefixes of
+ * keys in logarithmic time, plus the time to go through the matching entries. The remaining ones
+ * go through all of their entries.
+ *
+ * @author David Silva
+ */
+public interface SortedVault extends Vault {
+
+  // the number of entries read at a time, while streaming the vault
+  public static final int STREAM_PAGE_SIZE = 1024;
+
+  /**
+   * Reads, in ascending key order, the entries stored in the vault with a key within the given
+   * range.
+   *
+   * @param fromKey the (inclusive) lower bound of the keys, {@code null} for no lower bound
+   * @param toKey   the (exclusive) upper bound of the keys, {@code null} for no upper bound
+   * @param limit   the maximum number of entries to be read
+   * @return the stored entries within the range, an empty list is returned when there are none.
+   * @throws IllegalArgumentException if the limit is negative
+   * @see #read(String)
+   */
+  List<SecureEntry> readRange(final String fromKey, final String toKey, final int limit);
+
+  /**
+   * Reads, in ascending key order, the entries stored in the vault with a key starting with the
+   * given prefix, such as the ones of a hierarchy of keys.
+   *
+   * @param prefix the prefix of the keys
+   * @param limit  the maximum number of entries to be read
+   * @return the stored entries with the prefix, an empty list is returned when there are none.
+   * @throws IllegalArgumentException if the limit is negative
+   * @see #readRange(String, String, int)
+   */
+  default List<SecureEntry> readPrefix(final String prefix, final int limit) {
+    Objects.requireNonNull(prefix, "Invalid prefix specified");
+    // the keys with the prefix precede the prefix with its last (non maximum) character incremented
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return readRange(prefix, null, limit);
+    }
+    final char last = (char) (prefix.charAt(end - 1) + 1);
+    return readRange(prefix, prefix.substring(0, end - 1) + last, limit);
+  }
+
+  /**
+   * Deletes the entries stored in the vault with a key starting with the given prefix. Each entry
+   * is deleted as a change of its own, thus the deletion as a whole is not atomic.
+   *
+   * @param prefix the prefix of the keys
+   * @return the number of deleted entries
+   * @see #delete(String)
+   */
+  default int deletePrefix(final String prefix) {
+    int deleted = 0;
+    List<SecureEntry> page = readPrefix(prefix, STREAM_PAGE_SIZE);
+    while (!page.isEmpty()) {
+      for (final SecureEntry entry : page) {
+        if (delete(entry.getKey()).isPresent()) {
+          deleted++;
+        }
+      }
+      page = readPrefix(prefix, STREAM_PAGE_SIZE);
+    }
+    return deleted;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation reads the range of keys that immediately follows the given key.
+   */
+  @Override
+  default List<SecureEntry> scan(final String afterKey, final int limit) {
+    return readRange(afterKey == null ? null : afterKey + '\0', null, limit);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation streams the entries in ascending key order, reading them by pages of
+   * {@value #STREAM_PAGE_SIZE} entries at a time.
+   */
+  @Override
+  default Stream<SecureEntry> stream() {
+    final Iterator<SecureEntry> iterator = new Iterator<SecureEntry>() {
+
+      // the current page
+      private List<SecureEntry> page = scan(null, STREAM_PAGE_SIZE);
+      private int index;
+
+      @Override
+      public boolean hasNext() {
+        if (index == page.size() && page.size() == STREAM_PAGE_SIZE) {
+          page = scan(page.get(index - 1).getKey(), STREAM_PAGE_SIZE);
+          index = 0;
+        }
+        return index < page.size();
+      }
+
+      @Override
+      public SecureEntry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return page.get(index++);
+      }
+    };
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+        iterator, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation counts the streamed entries.
+   */
+  @Override
+  default int size() {
+    return (int) stream().count();
+  }
+}
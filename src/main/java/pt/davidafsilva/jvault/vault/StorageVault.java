@@ -0,0 +1,304 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A vault implementation backed by a pluggable {@link VaultStorage}, provided by a {@link
+ * VaultStorageProvider}.
+ *
+ * The stored changes are loaded once the vault is created and the changes made since the vault
+ * was last persisted are handed to the storage on {@link #persist()}: appended, if the storage
+ * supports it, or along with every other entry otherwise. Concurrent calls to {@link #persist()}
+ * are serialized.
+ *
+ * This implementation is backed by a {@link InMemoryVault} vault.
+ *
+ * @author David Silva
+ */
+final class StorageVault implements FileVault, SortedVault {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(StorageVault.class);
+
+  // the storage
+  private final VaultStorage storage;
+
+  // the backed in-memory vault
+  private final InMemoryVault inMemoryVault;
+
+  // the last sequence number handed to the storage
+  private long persisted;
+
+  // the duration of the load, in nanoseconds
+  private final long loadNanos;
+
+  // the duration of the last persist, in nanoseconds, -1 if not persisted yet
+  private volatile long persistNanos = -1;
+
+  /**
+   * Creates a vault with the specified (previously derived) key, backed by the given storage.
+   *
+   * @param key     the vault key
+   * @param storage the vault storage
+   * @throws VaultInitializationException if an error occurs while loading the stored changes
+   */
+  StorageVault(final VaultKey key, final VaultStorage storage)
+      throws VaultInitializationException {
+    this(key, storage, false);
+  }
+
+  /**
+   * Creates a vault with the specified (previously derived) key, backed by the given storage,
+   * optionally indexing the entries by key, in ascending order.
+   *
+   * @param key     the vault key
+   * @param storage the vault storage
+   * @param ordered whether or not the entries are indexed in ascending key order
+   * @throws VaultInitializationException if an error occurs while loading the stored changes
+   */
+  StorageVault(final VaultKey key, final VaultStorage storage, final boolean ordered)
+      throws VaultInitializationException {
+    this.storage = Objects.requireNonNull(storage, "Invalid storage specified");
+    this.inMemoryVault = new InMemoryVault(key, ordered);
+    try {
+      log.info("initializing the vault from storage..");
+      final long start = System.nanoTime();
+      storage.load(this::load);
+      loadNanos = System.nanoTime() - start;
+      persisted = inMemoryVault.sequence.current();
+      log.info("vault successfully loaded");
+    } catch (final IOException e) {
+      log.error("I/O error", e);
+      try {
+        storage.close();
+      } catch (final IOException ce) {
+        e.addSuppressed(ce);
+      }
+      throw new VaultInitializationException("Unable to load the vault storage", e);
+    }
+  }
+
+  /**
+   * Opens the storage at the given location with the provider of the given name
+   *
+   * @param provider the name of the storage provider
+   * @param location the location of the storage
+   * @return the open storage
+   * @throws VaultInitializationException if there's no such provider or an I/O error occurs while
+   *                                      opening the storage
+   */
+  static VaultStorage open(final String provider, final String location)
+      throws VaultInitializationException {
+    for (final VaultStorageProvider candidate : ServiceLoader.load(VaultStorageProvider.class)) {
+      if (candidate.getName().equals(provider)) {
+        try {
+          return candidate.open(location);
+        } catch (final IOException e) {
+          log.error("unable to open the vault storage", e);
+          throw new VaultInitializationException("Unable to open the vault storage", e);
+        }
+      }
+    }
+    throw new VaultInitializationException("No such storage provider: " + provider);
+  }
+
+  /**
+   * Loads the given stored change, which supersedes any previous change of the same key
+   *
+   * @param change the stored change
+   */
+  private void load(final EntryChange change) {
+    final InMemoryVault.SecureEntryWrapper current = inMemoryVault.map.get(change.getKey());
+    if (change.isDeletion()) {
+      inMemoryVault.reload(current, new InMemoryVault.Tombstone(change.getKey(),
+                                                                change.getSequence(),
+                                                                change.getTimestamp()));
+    } else {
+      inMemoryVault.reload(current, new InMemoryVault.SecureEntryWrapper(
+          change.getEntry().get(), change.getInitVector(), change.getSequence()));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation hands the changes made since the last call to the storage, serializing
+   * concurrent calls.
+   */
+  @Override
+  public synchronized void persist() throws IOException {
+    final long watermark = inMemoryVault.sequence.watermark();
+    if (watermark == persisted) {
+      return;
+    }
+    final long start = System.nanoTime();
+    final List<EntryChange> changes = inMemoryVault.exportSince(persisted, watermark)
+        .collect(toList());
+    if (!storage.append(watermark, changes)) {
+      storage.persist(watermark, inMemoryVault.exportSince(0, watermark).collect(toList()));
+    }
+    persisted = watermark;
+    persistNanos = System.nanoTime() - start;
+  }
+
+  @Override
+  public void close() throws IOException {
+    storage.close();
+  }
+
+  @Override
+  public Collection<SecureEntry> read() {
+    return inMemoryVault.read();
+  }
+
+  @Override
+  public Optional<SecureEntry> read(final String key) {
+    return inMemoryVault.read(key);
+  }
+
+  @Override
+  public int size() {
+    return inMemoryVault.size();
+  }
+
+  @Override
+  public boolean containsKey(final String key) {
+    return inMemoryVault.containsKey(key);
+  }
+
+  @Override
+  public Stream<SecureEntry> stream() {
+    return inMemoryVault.stream();
+  }
+
+  @Override
+  public List<SecureEntry> scan(final String afterKey, final int limit) {
+    return inMemoryVault.scan(afterKey, limit);
+  }
+
+  @Override
+  public List<SecureEntry> readRange(final String fromKey, final String toKey, final int limit) {
+    return inMemoryVault.readRange(fromKey, toKey, limit);
+  }
+
+  @Override
+  public int deletePrefix(final String prefix) {
+    return inMemoryVault.deletePrefix(prefix);
+  }
+
+  @Override
+  public SecureEntry write(final UnsecureEntry entry) throws VaultOperationException {
+    return inMemoryVault.write(entry);
+  }
+
+  @Override
+  public Optional<SecureEntry> delete(final String key) {
+    return inMemoryVault.delete(key);
+  }
+
+  @Override
+  public Optional<SecureEntry> putIfAbsent(final UnsecureEntry entry)
+      throws VaultOperationException {
+    return inMemoryVault.putIfAbsent(entry);
+  }
+
+  @Override
+  public Optional<SecureEntry> replace(final String key, final SecureEntry expected,
+                                       final String value) throws VaultOperationException {
+    return inMemoryVault.replace(key, expected, value);
+  }
+
+  @Override
+  public Optional<SecureEntry> compute(final String key,
+                                       final UnaryOperator<Optional<String>> function)
+      throws VaultOperationException {
+    return inMemoryVault.compute(key, function);
+  }
+
+  @Override
+  public UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException {
+    return inMemoryVault.translate(entry);
+  }
+
+  @Override
+  public Stream<EntryChange> exportSince(final long sequence) {
+    return inMemoryVault.exportSince(sequence);
+  }
+
+  @Override
+  public VaultSnapshot snapshot() {
+    return inMemoryVault.snapshot();
+  }
+
+  @Override
+  public void freeze(final Path path) throws IOException, VaultOperationException {
+    inMemoryVault.freeze(path);
+  }
+
+  @Override
+  public VaultSubscription subscribe(final VaultListener listener, final Executor executor) {
+    return inMemoryVault.subscribe(listener, executor);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * This implementation adds the duration of the load and the last persist of the storage to the
+   * statistics of the in-memory vault, whereas the persisted size is left to the storage.
+   */
+  @Override
+  public VaultStats stats() {
+    return inMemoryVault.stats().withDurations(loadNanos, persistNanos, -1);
+  }
+}
@@ -33,11 +33,20 @@ package pt.davidafsilva.jvault.vault;
  * #L%
  */
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import pt.davidafsilva.jvault.model.EntryChange;
 import pt.davidafsilva.jvault.model.SecureEntry;
 import pt.davidafsilva.jvault.model.UnsecureEntry;
 
@@ -71,6 +80,59 @@ public interface Vault {
    */
   Optional<SecureEntry> read(final String key);
 
+  /**
+   * Returns the number of entries stored in the vault.
+   *
+   * @return the number of stored entries
+   */
+  default int size() {
+    return read().size();
+  }
+
+  /**
+   * Checks whether there's an entry stored in the vault with the given {@code key}.
+   *
+   * @param key the key for the entry
+   * @return {@code true} if there's such mapping, {@code false} otherwise
+   * @see #read(String)
+   */
+  default boolean containsKey(final String key) {
+    return read(key).isPresent();
+  }
+
+  /**
+   * Streams the entries stored in the vault. Unlike {@link #read()}, the entries are not copied
+   * beforehand, but rather lazily, as the stream is consumed, thus the stream may or may not
+   * reflect the changes made meanwhile.
+   *
+   * @return the stream of the stored entries
+   * @see #read()
+   */
+  default Stream<SecureEntry> stream() {
+    return read().stream();
+  }
+
+  /**
+   * Reads a page of the entries stored in the vault, in ascending key order: up to {@code limit}
+   * entries with a key greater than the given {@code afterKey}. The key of the last entry of a
+   * page is the cursor for the next one, which is empty once there are no more entries.
+   *
+   * @param afterKey the (exclusive) lower bound of the keys, {@code null} for the first page
+   * @param limit    the maximum number of entries to be read
+   * @return the page of entries, an empty list is returned when there are none.
+   * @throws IllegalArgumentException if the limit is negative
+   */
+  default List<SecureEntry> scan(final String afterKey, final int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("invalid limit, must not be negative");
+    }
+    return stream()
+        .filter(entry -> afterKey == null || entry.getKey().compareTo(afterKey) > 0)
+        .sorted(Comparator.comparing(SecureEntry::getKey))
+        .limit(limit)
+        .collect(Collectors.toList());
+  }
+
   /**
    * Writes the given key-value pair to the vault
    *
@@ -89,6 +151,58 @@ public interface Vault {
    */
   Optional<SecureEntry> delete(final String key);
 
+  /**
+   * Writes the given key-value pair to the vault, unless there's already an entry stored with its
+   * key. The check and the write are atomic with regard to the other changes of the same key.
+   *
+   * @param entry the unsecure entry
+   * @return the entry already stored with the given key, or none if the given key-value pair was
+   * written.
+   * @throws VaultOperationException       if an error occurs while ciphering the entry
+   * @throws UnsupportedOperationException if the vault does not support atomic changes
+   */
+  default Optional<SecureEntry> putIfAbsent(final UnsecureEntry entry)
+      throws VaultOperationException {
+    throw new UnsupportedOperationException("The vault does not support atomic changes");
+  }
+
+  /**
+   * Replaces the value of the entry stored in the vault with the given {@code key}, only if the
+   * stored entry is still the {@code expected} one. The check and the write are atomic with regard
+   * to the other changes of the same key.
+   *
+   * @param key      the key for the entry
+   * @param expected the expected (currently stored) entry
+   * @param value    the new value for the entry
+   * @return the new secure entry, or none if the stored entry is not the expected one.
+   * @throws VaultOperationException       if an error occurs while ciphering the entry
+   * @throws UnsupportedOperationException if the vault does not support atomic changes
+   */
+  default Optional<SecureEntry> replace(final String key, final SecureEntry expected,
+                                        final String value) throws VaultOperationException {
+    throw new UnsupportedOperationException("The vault does not support atomic changes");
+  }
+
+  /**
+   * Computes the value of the entry stored in the vault with the given {@code key} from its
+   * current (unsecured) value, if any. An empty result deletes the entry, while a result equal to
+   * the current value leaves it untouched. The computation and the write are atomic with regard to
+   * the other changes of the same key: should the entry be changed concurrently, the function is
+   * applied again to the newer value, hence it should be free of side effects and must not change
+   * the same key, although it may otherwise access the vault.
+   *
+   * @param key      the key for the entry
+   * @param function the function computing the new value from the current one
+   * @return the resulting entry, or none if there's no such mapping afterwards.
+   * @throws VaultOperationException       if an error occurs while (de)ciphering the entry
+   * @throws UnsupportedOperationException if the vault does not support atomic changes
+   */
+  default Optional<SecureEntry> compute(final String key,
+                                        final UnaryOperator<Optional<String>> function)
+      throws VaultOperationException {
+    throw new UnsupportedOperationException("The vault does not support atomic changes");
+  }
+
   /**
    * Translate the secured entry and returns the original (unsecured) entry
    *
@@ -99,4 +213,95 @@ public interface Vault {
    * @see #write(UnsecureEntry)
    */
   UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException;
+
+  /**
+   * Exports the changes made to the vault after the given sequence number: the entries written
+   * and deleted since then, ordered by the sequence number of their last change.
+   *
+   * Each key is exported at most once, with its last change. Exporting the changes since the
+   * greatest sequence number of the previous export yields only the changes made afterwards, while
+   * exporting them since {@code 0} yields every entry and (known) deletion of the vault.
+   *
+   * @param sequence the sequence number after which the changes are exported
+   * @return the changes made after the given sequence number
+   * @throws UnsupportedOperationException if the vault does not keep track of its changes
+   * @see EntryChange
+   */
+  default Stream<EntryChange> exportSince(final long sequence) {
+    throw new UnsupportedOperationException("The vault does not keep track of its changes");
+  }
+
+  /**
+   * Takes a snapshot of the vault: a read-only view pinned to the current version of the vault,
+   * through which several entries are read consistently, regardless of the changes made
+   * afterwards. Taking a snapshot briefly waits for the changes in flight to complete, but reading
+   * from it never blocks (nor is blocked by) the changes of the vault.
+   *
+   * @return the snapshot, which must be closed once no longer used
+   * @throws UnsupportedOperationException if the vault does not support snapshots
+   * @see VaultSnapshot
+   */
+  default VaultSnapshot snapshot() {
+    throw new UnsupportedOperationException("The vault does not support snapshots");
+  }
+
+  /**
+   * Freezes the vault into the given immutable file: a consistent copy of the stored entries,
+   * indexed by a perfect hash of their keys, which is then opened (read-only) through the {@link
+   * VaultBuilder#frozenFile(Path) frozen file} vault type, with the same vault key.
+   *
+   * The file is replaced (atomically, if supported by the file system) once completely written.
+   *
+   * @param path the path of the frozen vault file
+   * @throws IOException                   if an I/O error occurs while writing the file
+   * @throws VaultOperationException       if any of the security settings are not supported or
+   *                                       an invalid key is used
+   * @throws UnsupportedOperationException if the vault cannot be frozen
+   */
+  default void freeze(final Path path) throws IOException, VaultOperationException {
+    throw new UnsupportedOperationException("The vault cannot be frozen");
+  }
+
+  /**
+   * Subscribes the given listener to the changes made to the vault from now on, which are
+   * notified in batches through the given executor, rather than by the changing threads: the
+   * changes made while the listener is busy are coalesced into its next batch, thus a slow
+   * listener never slows the changes down.
+   *
+   * A notification rejected by the executor is re-submitted a few times, with an increasing
+   * delay. Once those are exhausted, the pending changes are notified only along with the next
+   * change made to the vault, thus an executor that keeps rejecting them delays the notifications
+   * indefinitely, and one that is shut down loses them.
+   *
+   * @param listener the listener of the changes
+   * @param executor the executor through which the listener is notified
+   * @return the subscription, which must be closed once no longer needed
+   * @throws UnsupportedOperationException if the vault does not support listeners
+   * @see VaultListener
+   */
+  default VaultSubscription subscribe(final VaultListener listener, final Executor executor) {
+    throw new UnsupportedOperationException("The vault does not support listeners");
+  }
+
+  /**
+   * Returns the statistics of the vault: the number of entries, the size of their keys and
+   * ciphered values, the estimated heap retained by them and the duration of the last load and
+   * persist of the vault, if any.
+   *
+   * The default implementation goes through all of the stored entries, without estimating the
+   * retained heap, whereas the vaults holding their entries in memory keep their statistics up to
+   * date as the entries are changed, hence cheap to be read.
+   *
+   * @return the vault statistics
+   * @see VaultStats
+   */
+  default VaultStats stats() {
+    final long[] totals = new long[3];
+    stream().forEach(entry -> {
+      totals[0]++;
+      totals[1] += VaultStats.encodedLength(entry.getKey());
+      totals[2] += entry.getValue().length() / 2;
+    });
+    return new VaultStats((int) totals[0], totals[1], totals[2], -1);
+  }
 }
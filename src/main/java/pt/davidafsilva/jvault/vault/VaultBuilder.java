@@ -41,6 +41,7 @@ import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The vaults builder.
@@ -58,9 +59,9 @@ public final class VaultBuilder {
   private static final Logger log = LoggerFactory.getLogger(VaultBuilder.class);
 
   // static properties / defaults
-  private static final Collection<Integer> SUPPORTED_KEY_SIZES = Arrays.asList(128, 192, 256);
-  private static final int DEFAULT_ITERATIONS = 65536;
-  private static final int DEFAULT_KEY_SIZE = 128;
+  static final Collection<Integer> SUPPORTED_KEY_SIZES = Arrays.asList(128, 192, 256);
+  static final int DEFAULT_ITERATIONS = 65536;
+  static final int DEFAULT_KEY_SIZE = 128;
   private static final VaultType DEFAULT_VAULT_TYPE = VaultType.IN_MEMORY;
 
   // properties
@@ -70,6 +71,11 @@ public final class VaultBuilder {
   private int iterations = DEFAULT_ITERATIONS;
   private int keySize = DEFAULT_KEY_SIZE;
   private Path path;
+  private int shards;
+  private long cacheSize = LsmFileVault.DEFAULT_CACHE_SIZE;
+  private String storageProvider;
+  private String storageLocation;
+  private FileVaultOptions options = FileVaultOptions.DEFAULT;
 
   // private constructor
   private VaultBuilder() {
@@ -127,6 +133,260 @@ public final class VaultBuilder {
     return this;
   }
 
+  /**
+   * Selects the sharded file vault implementation to be built, in which the entries are
+   * partitioned into the given number of shard files within the vault directory.
+   *
+   * @param directory the vault directory
+   * @param shards    the number of shards
+   * @return the current builder
+   */
+  public VaultBuilder shardedFile(final Path directory, final int shards) {
+    Objects.requireNonNull(directory, "Invalid vault directory");
+    if (shards <= 0) {
+      throw new IllegalArgumentException("invalid number of shards, must be greater than 0");
+    }
+    final File fp = directory.toFile();
+    if (!fp.isDirectory() || !fp.canRead()) {
+      throw new IllegalArgumentException(
+          "Invalid vault directory, not a directory or no read/write permissions");
+    }
+    this.path = directory;
+    this.shards = shards;
+    type(VaultType.SHARDED_FILE);
+    return this;
+  }
+
+  /**
+   * Selects the log-structured (LSM tree) file vault implementation to be built, which stores the
+   * entries within the vault directory without holding them in memory. The directory is created,
+   * if necessary.
+   *
+   * @param directory the vault directory
+   * @return the current builder
+   * @see #blockCacheSize(long)
+   */
+  public VaultBuilder lsmFile(final Path directory) {
+    Objects.requireNonNull(directory, "Invalid vault directory");
+    final File fp = directory.toFile();
+    if (fp.exists() && (!fp.isDirectory() || !fp.canRead() || !fp.canWrite())) {
+      throw new IllegalArgumentException(
+          "Invalid vault directory, not a directory or no read/write permissions");
+    }
+    this.path = directory;
+    type(VaultType.LSM_FILE);
+    return this;
+  }
+
+  /**
+   * Selects the read-only vault implementation of the given frozen file, which is memory-mapped
+   * rather than loaded. The file must have been {@link Vault#freeze(Path) frozen} by a vault with
+   * the same settings.
+   *
+   * @param path the frozen vault file
+   * @return the current builder
+   */
+  public VaultBuilder frozenFile(final Path path) {
+    Objects.requireNonNull(path, "Invalid vault file");
+    final File fp = path.toFile();
+    if (!fp.isFile() || !fp.canRead()) {
+      throw new IllegalArgumentException("Invalid vault file, not a file or no read permissions");
+    }
+    this.path = path;
+    type(VaultType.FROZEN_FILE);
+    return this;
+  }
+
+  /**
+   * Selects the vault implementation backed by a pluggable storage, opened at the given location
+   * by the {@link VaultStorageProvider storage provider} with the given name, which is looked up
+   * once the vault is built.
+   *
+   * @param provider the name of the storage provider
+   * @param location the location of the storage, in the format defined by the provider
+   * @return the current builder
+   * @see VaultStorage
+   */
+  public VaultBuilder storage(final String provider, final String location) {
+    this.storageProvider = Objects.requireNonNull(provider, "Invalid storage provider");
+    this.storageLocation = Objects.requireNonNull(location, "Invalid storage location");
+    type(VaultType.STORAGE);
+    return this;
+  }
+
+  /**
+   * Defines the maximum size of the cache of the (decoded) blocks read by the log-structured file
+   * vault. Ignored by the remaining vaults.
+   *
+   * @param cacheSize the size of the cache, in bytes
+   * @return the current builder
+   */
+  public VaultBuilder blockCacheSize(final long cacheSize) {
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("invalid cache size, must not be negative");
+    }
+    this.cacheSize = cacheSize;
+    return this;
+  }
+
+  /**
+   * Enables the (GZIP) compression of the vault files, when persisted. Ignored by non file based
+   * vaults.
+   *
+   * Compressed vault files are always detected (and read) regardless of this setting, as such a
+   * vault might be (de)compressed at any time.
+   *
+   * @return the current builder
+   */
+  public VaultBuilder compressed() {
+    this.options = options.compressed(true);
+    return this;
+  }
+
+  /**
+   * Enables the locking of the vault files, coordinating their access with other processes: the
+   * files are read while holding a shared lock and written while holding an exclusive lock, of a
+   * {@code .lock} file next to each vault file. Ignored by non file based vaults.
+   *
+   * @return the current builder
+   */
+  public VaultBuilder locked() {
+    this.options = options.locked(true);
+    return this;
+  }
+
+  /**
+   * Enables the watching of the vault files for changes made by other processes, which are
+   * reloaded (incrementally) into the vault. Implies the vault files to be {@link #locked()}.
+   * Ignored by non file based vaults.
+   *
+   * The files are checked at the given interval, the reload being skipped while there are local
+   * changes that were not yet persisted. Watched vaults must be {@link FileVault#close() closed}
+   * once no longer used.
+   *
+   * @param interval the interval at which the vault files are checked for changes
+   * @param unit     the unit of the interval
+   * @return the current builder
+   */
+  public VaultBuilder watched(final long interval, final TimeUnit unit) {
+    Objects.requireNonNull(unit, "Invalid interval unit");
+    if (interval <= 0) {
+      throw new IllegalArgumentException("invalid interval, must be greater than 0");
+    }
+    this.options = options.watched(unit.toMillis(interval));
+    return this;
+  }
+
+  /**
+   * Enables the backup of the vault files: the previous generation of each vault file is kept
+   * (with the {@code .bak} extension) when persisted, which is restored whenever the vault file is
+   * found to be corrupted on load. Ignored by non file based vaults and by the log-structured
+   * vaults.
+   *
+   * @return the current builder
+   */
+  public VaultBuilder backup() {
+    this.options = options.backup(true);
+    return this;
+  }
+
+  /**
+   * Enables the degraded mode of the (byte/raw) vault files: the intact blocks of a partially
+   * corrupted vault file are loaded, rather than the vault being rejected altogether, and the
+   * lost ranges of keys are reported by {@link FileVault#lostRanges()}. Ignored by the remaining
+   * vaults.
+   *
+   * Persisting a vault loaded in degraded mode makes the loss permanent, unless it is restored
+   * from a {@link #backup() backup} beforehand.
+   *
+   * @return the current builder
+   */
+  public VaultBuilder degraded() {
+    this.options = options.degraded(true);
+    return this;
+  }
+
+  /**
+   * Enables the ordered index of the vault keys, kept alongside the entries, through which the
+   * ranges and prefixes of keys are read (and deleted) in logarithmic time, rather than by going
+   * through all of the entries, at the expense of the memory of the index and of slightly slower
+   * writes. The vault is a {@link SortedVault} either way. Ignored by the log-structured vaults,
+   * which are always ordered.
+   *
+   * @return the current builder
+   */
+  public VaultBuilder ordered() {
+    this.options = options.ordered(true);
+    return this;
+  }
+
+  /**
+   * Packs the entries of the vault in memory: each entry is held in a single byte array, rather
+   * than as the entry objects, which takes a fraction of the memory at the expense of
+   * materializing the entries whenever read. Ignored by the log-structured, frozen and storage
+   * vaults.
+   *
+   * @return the current builder
+   * @see PackedEntryTable
+   */
+  public VaultBuilder packed() {
+    this.options = options.packed(true);
+    return this;
+  }
+
+  /**
+   * Opens the file vaults read-only: the vault files need not be writable (but must exist), their
+   * entries are held in an immutable table, tuned for concurrent lookups, and every change to the
+   * vault is rejected with an {@link UnsupportedOperationException}. The files are not watched for
+   * changes. Ignored by the remaining vaults.
+   *
+   * The permissions of the vault files, which depend on the vault being read-only, are checked
+   * once the vault is built, regardless of the order in which the file and this option are set.
+   *
+   * @return the current builder
+   */
+  public VaultBuilder readOnly() {
+    this.options = options.readOnly(true);
+    return this;
+  }
+
+  /**
+   * Sets the durability policy of the vault files, which defines how often the concurrent persists
+   * are flushed as a single commit. Defaults to {@link DurabilityPolicy#FSYNC}. Ignored by non
+   * file based vaults and by the log-structured vaults, which synchronize their log when persisted.
+   *
+   * Concurrent persists are grouped into a single write of the vault files, regardless of the
+   * policy, each of the callers being released once the write that includes its changes is
+   * complete and synchronized with the storage device.
+   *
+   * @param durability the durability policy
+   * @return the current builder
+   */
+  public VaultBuilder durability(final DurabilityPolicy durability) {
+    this.options = options.durability(
+        Objects.requireNonNull(durability, "Invalid durability policy"));
+    return this;
+  }
+
+  /**
+   * Sets the period for which the tombstones of the deleted entries are kept, in order for the
+   * deletions to be exported and persisted, after which they're purged as the vault files are
+   * persisted. Defaults to 7 days. Ignored by non file based vaults and by the log-structured
+   * vaults, which drop theirs once merged into the oldest segment.
+   *
+   * @param retention the retention period, 0 for the tombstones to be purged on each persist
+   * @param unit      the unit of the retention period
+   * @return the current builder
+   */
+  public VaultBuilder tombstoneRetention(final long retention, final TimeUnit unit) {
+    Objects.requireNonNull(unit, "Invalid retention unit");
+    if (retention < 0) {
+      throw new IllegalArgumentException("invalid retention, must not be negative");
+    }
+    this.options = options.tombstoneRetention(unit.toMillis(retention));
+    return this;
+  }
+
   /**
    * Sets the file based type of the vault
    *
@@ -138,13 +398,41 @@ public final class VaultBuilder {
     final File fp = path.toFile();
     if (fp.exists() && (!fp.isFile() || !fp.canRead())) {
       throw new IllegalArgumentException("Invalid vault file, not a file or no read permissions");
-    } else if (!fp.canWrite()) {
-      throw new IllegalArgumentException("Invalid vault file, no write permissions");
     }
     this.path = path;
     type(type);
   }
 
+  /**
+   * Checks the permissions of the selected vault file (or directory), which must be writable
+   * unless the vault is read-only, in which case the vault file must exist.
+   *
+   * @throws IllegalArgumentException if the vault file lacks any of the required permissions
+   */
+  private void checkPermissions() {
+    switch (type) {
+      case RAW_FILE:
+      case XML_FILE:
+      case JSON_FILE:
+        final File fp = path.toFile();
+        if (options.readOnly && (!fp.isFile() || !fp.canRead())) {
+          throw new IllegalArgumentException(
+              "Invalid vault file, not a file or no read permissions");
+        } else if (!options.readOnly && !fp.canWrite()) {
+          throw new IllegalArgumentException("Invalid vault file, no write permissions");
+        }
+        break;
+      case SHARDED_FILE:
+        if (!options.readOnly && !path.toFile().canWrite()) {
+          throw new IllegalArgumentException(
+              "Invalid vault directory, not a directory or no read/write permissions");
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
   /**
    * Sets the vault type to be used
    *
@@ -238,11 +526,26 @@ public final class VaultBuilder {
    * Builds the vault based on the current builder state.
    *
    * @return the vault implementation
+   * @throws IllegalArgumentException     if the vault file lacks any of the required permissions
    * @throws VaultInitializationException if an error occurs while initializing the vault.
    */
   public Vault build() throws VaultInitializationException {
+    return build(VaultKey::derive);
+  }
+
+  /**
+   * Builds the vault based on the current builder state, with the vault key derived by the given
+   * derivation.
+   *
+   * @param derivation the derivation of the vault key
+   * @return the vault implementation
+   * @throws IllegalArgumentException     if the vault file lacks any of the required permissions
+   * @throws VaultInitializationException if an error occurs while initializing the vault.
+   */
+  Vault build(final VaultKey.Derivation derivation) throws VaultInitializationException {
     Objects.requireNonNull(password, "A valid password must be set");
     Objects.requireNonNull(salt, "A valid salt must be set");
+    checkPermissions();
     // debug should not be enabled in production!
     log.debug("Creating a vault with the settings:{}" +
               "      type: {},{}" +
@@ -250,27 +553,43 @@ public final class VaultBuilder {
               "      salt: {},{}" +
               "iterations: {},{}" +
               "  key size: {},{}" +
-              "      path: {}",
+              "      path: {},{}" +
+              "   options: {}",
               System.lineSeparator(),
               password, System.lineSeparator(),
               type, System.lineSeparator(),
               salt, System.lineSeparator(),
               iterations, System.lineSeparator(),
               keySize, System.lineSeparator(),
-              path);
+              path, System.lineSeparator(),
+              options);
     final Vault vault;
     switch (type) {
       case IN_MEMORY:
-        vault = new InMemoryVault(password, salt, iterations, keySize);
+        vault = new InMemoryVault(deriveKey(derivation), options.ordered, options.packed);
         break;
       case RAW_FILE:
-        vault = new ByteFileVault(password, salt, iterations, keySize, path);
+        vault = new ByteFileVault(deriveKey(derivation), path, options);
         break;
       case XML_FILE:
-        vault = new XmlFileVault(password, salt, iterations, keySize, path);
+        vault = new XmlFileVault(deriveKey(derivation), path, options);
         break;
       case JSON_FILE:
-        vault = new JsonFileVault(password, salt, iterations, keySize, path);
+        vault = new JsonFileVault(deriveKey(derivation), path, options);
+        break;
+      case SHARDED_FILE:
+        vault = new ShardedFileVault(deriveKey(derivation), path, shards, options);
+        break;
+      case LSM_FILE:
+        vault = new LsmFileVault(deriveKey(derivation), path, cacheSize);
+        break;
+      case FROZEN_FILE:
+        vault = new FrozenFileVault(deriveKey(derivation), path);
+        break;
+      case STORAGE:
+        vault = new StorageVault(deriveKey(derivation),
+                                 StorageVault.open(storageProvider, storageLocation),
+                                 options.ordered);
         break;
       default:
         throw new IllegalStateException();
@@ -279,6 +598,18 @@ public final class VaultBuilder {
     return vault;
   }
 
+  /**
+   * Derives the vault key with the current builder settings
+   *
+   * @param derivation the derivation of the vault key
+   * @return the derived vault key
+   * @throws VaultInitializationException if an error occurs while deriving the key
+   */
+  private VaultKey deriveKey(final VaultKey.Derivation derivation)
+      throws VaultInitializationException {
+    return derivation.derive(password, salt, iterations, keySize);
+  }
+
   /**
    * The enumeration of currently supported vault types
    */
@@ -287,6 +618,10 @@ public final class VaultBuilder {
     RAW_FILE,
     XML_FILE,
     JSON_FILE,
+    SHARDED_FILE,
+    LSM_FILE,
+    FROZEN_FILE,
+    STORAGE,
     DUMMY
   }
 }
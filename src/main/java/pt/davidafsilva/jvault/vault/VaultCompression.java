@@ -0,0 +1,244 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The (GZIP) compression of the vault files, which is applied to the whole file regardless of its
+ * format.
+ *
+ * Compressed vault files are detected by the GZIP magic number, which none of the formats starts
+ * with.
+ *
+ * @author David Silva
+ */
+final class VaultCompression {
+
+  // the GZIP header fields
+  private static final int GZIP_HEADER_SIZE = 10;
+  private static final int GZIP_TRAILER_SIZE = 8;
+  private static final int GZIP_MAGIC_1 = 0x1F;
+  private static final int GZIP_MAGIC_2 = 0x8B;
+  private static final int GZIP_FHCRC = 0x02;
+  private static final int GZIP_FEXTRA = 0x04;
+  private static final int GZIP_FNAME = 0x08;
+  private static final int GZIP_FCOMMENT = 0x10;
+
+  // the size of the compression buffers
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  // the maximum size of the decompressed data
+  private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+  // the compression ratio up to which the decompressed data size is trusted
+  private static final int MAX_COMPRESSION_RATIO = 16;
+
+  // private constructor
+  private VaultCompression() {
+  }
+
+  /**
+   * Checks whether or not the given file data is compressed
+   *
+   * @param data the file data
+   * @return {@code true} if the data is compressed, {@code false} otherwise
+   */
+  static boolean isCompressed(final byte[] data) {
+    return data.length >= 2 && (data[0] & 0xFF) == GZIP_MAGIC_1
+           && (data[1] & 0xFF) == GZIP_MAGIC_2;
+  }
+
+  /**
+   * Creates a stream which compresses the data written to the given stream
+   *
+   * @param stream the underlying stream
+   * @return the compressing stream
+   * @throws IOException if an I/O error occurs while writing the compression header
+   */
+  static OutputStream compress(final OutputStream stream) throws IOException {
+    return new GZIPOutputStream(stream, BUFFER_SIZE) {
+      {
+        def.setLevel(Deflater.BEST_SPEED);
+      }
+    };
+  }
+
+  /**
+   * Creates a stream which reads the data of the given (file) stream, decompressing it if
+   * compressed.
+   *
+   * @param stream the underlying stream
+   * @return the (buffered) stream with the file data
+   * @throws IOException if an I/O error occurs while reading the compression header
+   */
+  static InputStream detect(final InputStream stream) throws IOException {
+    final InputStream input = new BufferedInputStream(stream, BUFFER_SIZE);
+    input.mark(2);
+    final boolean compressed = input.read() == GZIP_MAGIC_1 && input.read() == GZIP_MAGIC_2;
+    input.reset();
+    return compressed ? new GZIPInputStream(input, BUFFER_SIZE) : input;
+  }
+
+  /**
+   * Decompresses the given (compressed) file data.
+   *
+   * Unlike {@link GZIPInputStream}, which silently ignores whatever follows the compressed data,
+   * the data must consist of exactly one GZIP member.
+   *
+   * @param data the compressed file data
+   * @return the decompressed data
+   * @throws ZipException if the compressed data is somehow invalid or corrupted
+   */
+  static byte[] decompress(final byte[] data) throws ZipException {
+    // header
+    if (!isCompressed(data) || data.length < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE
+        || data[2] != Deflater.DEFLATED) {
+      throw new ZipException("Invalid or unsupported compression header");
+    }
+    final int flags = data[3] & 0xFF;
+    int offset = GZIP_HEADER_SIZE;
+    if ((flags & GZIP_FEXTRA) != 0) {
+      offset += 2 + readUnsignedShort(data, offset);
+    }
+    if ((flags & GZIP_FNAME) != 0) {
+      offset = skipZeroTerminated(data, offset);
+    }
+    if ((flags & GZIP_FCOMMENT) != 0) {
+      offset = skipZeroTerminated(data, offset);
+    }
+    if ((flags & GZIP_FHCRC) != 0) {
+      offset += 2;
+    }
+    final int trailer = data.length - GZIP_TRAILER_SIZE;
+    if (offset > trailer) {
+      throw new ZipException("Truncated compressed data");
+    }
+
+    // compressed data, which must end right before the trailer
+    final long size = readUnsignedInt(data, trailer + 4);
+    // the stored size (modulo 2^32) is only a hint, bounded by a (generous) compression ratio
+    byte[] decompressed = new byte[(int) Math.max(BUFFER_SIZE, Math.min(
+        size, Math.min((long) data.length * MAX_COMPRESSION_RATIO, MAX_SIZE)))];
+    int length = 0;
+    final Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data, offset, trailer - offset);
+      while (!inflater.finished()) {
+        if (length == decompressed.length) {
+          if (length == MAX_SIZE) {
+            throw new ZipException("Compressed data is too large");
+          }
+          decompressed = Arrays.copyOf(decompressed, (int) Math.min(2L * length, MAX_SIZE));
+        }
+        final int inflated = inflater.inflate(decompressed, length,
+                                              decompressed.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new ZipException("Truncated compressed data");
+        }
+        length += inflated;
+      }
+      if (inflater.getRemaining() != 0) {
+        throw new ZipException("Unexpected data after the compressed data");
+      }
+    } catch (final DataFormatException e) {
+      throw new ZipException("Invalid compressed data: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+
+    // trailer
+    final CRC32 crc = new CRC32();
+    crc.update(decompressed, 0, length);
+    if (crc.getValue() != readUnsignedInt(data, trailer) || (length & 0xFFFFFFFFL) != size) {
+      throw new ZipException("Corrupted compressed data (checksum/size mismatch)");
+    }
+    return length == decompressed.length ? decompressed : Arrays.copyOf(decompressed, length);
+  }
+
+  /**
+   * Skips the zero terminated string at the given offset of the data
+   *
+   * @param data   the compressed data
+   * @param offset the offset of the string
+   * @return the offset right after the string
+   * @throws ZipException if the string is not terminated
+   */
+  private static int skipZeroTerminated(final byte[] data, final int offset) throws ZipException {
+    for (int i = offset; i < data.length; i++) {
+      if (data[i] == 0) {
+        return i + 1;
+      }
+    }
+    throw new ZipException("Truncated compression header");
+  }
+
+  /**
+   * Reads an unsigned (little endian) short at the given offset of the data
+   *
+   * @param data   the compressed data
+   * @param offset the offset of the short
+   * @return the read short
+   * @throws ZipException if the data is truncated
+   */
+  private static int readUnsignedShort(final byte[] data, final int offset) throws ZipException {
+    if (offset + 2 > data.length) {
+      throw new ZipException("Truncated compression header");
+    }
+    return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+  }
+
+  /**
+   * Reads an unsigned (little endian) integer at the given offset of the data
+   *
+   * @param data   the compressed data
+   * @param offset the offset of the integer
+   * @return the read integer
+   */
+  private static long readUnsignedInt(final byte[] data, final int offset) {
+    return ((data[offset] & 0xFFL) | (data[offset + 1] & 0xFFL) << 8
+            | (data[offset + 2] & 0xFFL) << 16 | (data[offset + 3] & 0xFFL) << 24);
+  }
+}
@@ -0,0 +1,619 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.Console;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+
+/**
+ * The file vaults converter, which converts a file vault from one format into another.
+ *
+ * The entries are streamed from the source file into the target file, one at a time, without
+ * being deciphered nor loaded into a vault. The conversion is made in two passes over the
+ * source file: the first one verifies the integrity of the source and calculates the MAC of the
+ * target, while the second one writes the entries into a temporary file, which then replaces
+ * the target file.
+ *
+ * The converter must be configured with the same security settings of the source vault, which
+ * are kept by the target vault. The defaults are the same of the {@link VaultBuilder}.
+ *
+ * The sequence numbers, timestamps and tombstones of the source vault are kept as well. The
+ * entries of source vaults persisted before the changes were tracked are given sequence numbers
+ * in the order they're stored, and the conversion time as their creation timestamp.
+ *
+ * @author David Silva
+ */
+public final class VaultConverter {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(VaultConverter.class);
+
+  // the usage of the command line tool
+  private static final String USAGE = "usage: VaultConverter <raw|xml|json> <source file> "
+                                      + "<raw|xml|json> <target file> [iterations] [key size]";
+
+  // properties
+  private char[] password;
+  private byte[] salt;
+  private int iterations = VaultBuilder.DEFAULT_ITERATIONS;
+  private int keySize = VaultBuilder.DEFAULT_KEY_SIZE;
+  private VaultBuilder.VaultType sourceType;
+  private Path source;
+  private VaultBuilder.VaultType targetType;
+  private Path target;
+  private boolean compressed;
+
+  // private constructor
+  private VaultConverter() {
+  }
+
+  /**
+   * Creates a new instance of this converter
+   *
+   * @return the converter's instance
+   */
+  public static VaultConverter create() {
+    return new VaultConverter();
+  }
+
+  /**
+   * Selects the raw file vault to be converted.
+   *
+   * @param path the source vault file
+   * @return the current converter
+   */
+  public VaultConverter fromRawFile(final Path path) {
+    return source(path, VaultBuilder.VaultType.RAW_FILE);
+  }
+
+  /**
+   * Selects the XML file vault to be converted.
+   *
+   * @param path the source vault file
+   * @return the current converter
+   */
+  public VaultConverter fromXmlFile(final Path path) {
+    return source(path, VaultBuilder.VaultType.XML_FILE);
+  }
+
+  /**
+   * Selects the JSON file vault to be converted.
+   *
+   * @param path the source vault file
+   * @return the current converter
+   */
+  public VaultConverter fromJsonFile(final Path path) {
+    return source(path, VaultBuilder.VaultType.JSON_FILE);
+  }
+
+  /**
+   * Selects the raw file vault to be converted into.
+   *
+   * @param path the target vault file
+   * @return the current converter
+   */
+  public VaultConverter toRawFile(final Path path) {
+    return target(path, VaultBuilder.VaultType.RAW_FILE);
+  }
+
+  /**
+   * Selects the XML file vault to be converted into.
+   *
+   * @param path the target vault file
+   * @return the current converter
+   */
+  public VaultConverter toXmlFile(final Path path) {
+    return target(path, VaultBuilder.VaultType.XML_FILE);
+  }
+
+  /**
+   * Selects the JSON file vault to be converted into.
+   *
+   * @param path the target vault file
+   * @return the current converter
+   */
+  public VaultConverter toJsonFile(final Path path) {
+    return target(path, VaultBuilder.VaultType.JSON_FILE);
+  }
+
+  /**
+   * Sets the source vault file and its type
+   *
+   * @param path the vault file
+   * @param type the type of the vault
+   * @return the current converter
+   */
+  VaultConverter source(final Path path, final VaultBuilder.VaultType type) {
+    Objects.requireNonNull(path, "Invalid source vault file");
+    if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+      throw new IllegalArgumentException(
+          "Invalid source vault file, not a file or no read permissions");
+    }
+    this.source = path;
+    this.sourceType = type;
+    return this;
+  }
+
+  /**
+   * Sets the target vault file and its type
+   *
+   * @param path the vault file
+   * @param type the type of the vault
+   * @return the current converter
+   */
+  VaultConverter target(final Path path, final VaultBuilder.VaultType type) {
+    Objects.requireNonNull(path, "Invalid target vault file");
+    if (Files.exists(path) && (!Files.isRegularFile(path) || !Files.isWritable(path))) {
+      throw new IllegalArgumentException(
+          "Invalid target vault file, not a file or no write permissions");
+    }
+    this.target = path;
+    this.targetType = type;
+    return this;
+  }
+
+  /**
+   * Defines the password of the vault
+   *
+   * @param password the vault's password
+   * @return the current converter
+   */
+  public VaultConverter password(final String password) {
+    Objects.requireNonNull(password, "Invalid password");
+    this.password = password.toCharArray();
+    return this;
+  }
+
+  /**
+   * Defines the password of the vault
+   *
+   * @param password the vault's password
+   * @return the current converter
+   */
+  public VaultConverter password(final char[] password) {
+    Objects.requireNonNull(password, "Invalid password");
+    this.password = Arrays.copyOf(password, password.length);
+    return this;
+  }
+
+  /**
+   * Defines the salt of the vault
+   *
+   * @param salt the vault's salt
+   * @return the current converter
+   */
+  public VaultConverter salt(final String salt) {
+    Objects.requireNonNull(salt, "Invalid salt");
+    this.salt = salt.getBytes(Vault.VAULT_CS);
+    return this;
+  }
+
+  /**
+   * Defines the salt of the vault
+   *
+   * @param salt the vault's salt
+   * @return the current converter
+   */
+  public VaultConverter salt(final byte[] salt) {
+    Objects.requireNonNull(salt, "Invalid salt");
+    this.salt = Arrays.copyOf(salt, salt.length);
+    return this;
+  }
+
+  /**
+   * Defines the number of iterations (rounds) that were executed when deriving the vault key
+   *
+   * @param iterations the number of key iterations
+   * @return the current converter
+   */
+  public VaultConverter iterations(final int iterations) {
+    if (iterations < 0) {
+      throw new IllegalArgumentException("invalid number of iterations, must be greater than 0");
+    }
+    this.iterations = iterations;
+    return this;
+  }
+
+  /**
+   * Defines the length of the vault key.
+   *
+   * @param keySize the key size
+   * @return the current converter
+   * @see VaultBuilder#keySize(int)
+   */
+  public VaultConverter keySize(final int keySize) {
+    if (!VaultBuilder.SUPPORTED_KEY_SIZES.contains(keySize)) {
+      throw new IllegalArgumentException("Unsupported key length provided");
+    }
+    this.keySize = keySize;
+    return this;
+  }
+
+  /**
+   * Enables the (GZIP) compression of the target vault file. Compressed source vault files are
+   * always detected, regardless of this setting.
+   *
+   * @return the current converter
+   * @see VaultBuilder#compressed()
+   */
+  public VaultConverter compressed() {
+    this.compressed = true;
+    return this;
+  }
+
+  /**
+   * Converts the source vault file into the target vault file, based on the current converter
+   * state.
+   *
+   * The target file is only replaced once the whole conversion succeeds.
+   *
+   * @return the conversion report
+   * @throws VaultInitializationException if the any of the security settings are not supported
+   * @throws VaultCorruptedException      if the source vault is corrupted or an invalid key is
+   *                                      used
+   * @throws IOException                  if an I/O error occurs while converting the vault
+   */
+  public Report convert() throws VaultInitializationException, IOException {
+    Objects.requireNonNull(password, "A valid password must be set");
+    Objects.requireNonNull(salt, "A valid salt must be set");
+    Objects.requireNonNull(source, "A valid source vault file must be set");
+    Objects.requireNonNull(target, "A valid target vault file must be set");
+    final VaultKey key = VaultKey.derive(password, salt, iterations, keySize);
+    return convert(detached(sourceType, key), detached(targetType, key));
+  }
+
+  /**
+   * Creates a detached vault of the given type
+   *
+   * @param type the vault type
+   * @param key  the vault key
+   * @return the detached vault
+   */
+  private static AbstractFileVault<?> detached(final VaultBuilder.VaultType type,
+                                               final VaultKey key) {
+    switch (type) {
+      case RAW_FILE:
+        return new ByteFileVault(key);
+      case XML_FILE:
+        return new XmlFileVault(key);
+      case JSON_FILE:
+        return new JsonFileVault(key);
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  /**
+   * Opens the (file) stream where to write the target vault data
+   *
+   * @param path the path of the target file
+   * @return the file output stream
+   * @throws IOException if an I/O error occurs while opening the stream
+   */
+  private OutputStream openTarget(final Path path) throws IOException {
+    final OutputStream stream = Files.newOutputStream(path);
+    return compressed ? VaultCompression.compress(stream) : stream;
+  }
+
+  /**
+   * Converts the source vault file into the target vault file, with the given vaults formats.
+   *
+   * @param reader the (detached) vault of the source format
+   * @param writer the (detached) vault of the target format
+   * @param <S>    the type of the target stream
+   * @return the conversion report
+   * @throws VaultInitializationException if the any of the security settings are not supported
+   * @throws IOException                  if an I/O error occurs while converting the vault
+   */
+  private <S extends Closeable & Flushable> Report convert(final AbstractFileVault<?> reader,
+                                                           final AbstractFileVault<S> writer)
+      throws VaultInitializationException, IOException {
+    log.info("converting the {} vault {} into the {} vault {}..", sourceType, source, targetType,
+             target);
+    final long start = System.nanoTime();
+    final long timestamp = System.currentTimeMillis();
+
+    // 1st pass: verify the source vault, calculating the target MAC along the way
+    final byte[][] macs = new byte[2][];
+    // the last sequence number of the source vault, if it tracks the changes
+    final long[] sequence = {-1};
+    try (final InputStream stream = VaultCompression.detect(Files.newInputStream(source))) {
+      final VaultMac targetMac = new VaultMac(writer.inMemoryVault.secret);
+      final int[] index = new int[1];
+      reader.readVault(stream, new AbstractFileVault.EntryHandler() {
+        @Override
+        public void sequence(final long last) {
+          sequence[0] = last;
+        }
+
+        @Override
+        public void header(final byte[] mac, final int entries) {
+          macs[0] = mac;
+          targetMac.sequence(sequence[0] < 0 ? entries : sequence[0]).entries(entries);
+        }
+
+        @Override
+        public void entry(final InMemoryVault.SecureEntryWrapper wrapper) {
+          targetMac.entry(tracked(wrapper, sequence[0] >= 0, index[0]++, timestamp));
+        }
+
+        @Override
+        public void tombstones(final int tombstones) {
+          targetMac.tombstones(tombstones);
+        }
+
+        @Override
+        public void tombstone(final InMemoryVault.Tombstone tombstone) {
+          targetMac.tombstone(tombstone);
+        }
+      });
+      if (sequence[0] < 0) {
+        targetMac.tombstones(0);
+      }
+      macs[1] = targetMac.doFinal();
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      log.error("invalid keys / mac algorithm", e);
+      throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm", e);
+    }
+
+    // 2nd pass: write the entries into a temporary file
+    final Path absoluteTarget = target.toAbsolutePath();
+    final Path temporary = Files.createTempFile(absoluteTarget.getParent(),
+                                                absoluteTarget.getFileName().toString(), ".tmp");
+    // the number of entries, the index of the next entry, the number of tombstones and the index
+    // of the next tombstone
+    final int[] entries = new int[4];
+    final boolean tracked = sequence[0] >= 0;
+    try {
+      try (final InputStream input = VaultCompression.detect(Files.newInputStream(source));
+           final OutputStream file = openTarget(temporary);
+           final S output = writer.createStream(file)) {
+        reader.readVault(input, new AbstractFileVault.EntryHandler() {
+          @Override
+          public void header(final byte[] mac, final int count) throws IOException {
+            if (!Arrays.equals(macs[0], mac)) {
+              log.error("the source vault has changed during the conversion");
+              throw new VaultCorruptedException("The source vault has changed");
+            }
+            entries[0] = count;
+            writer.writeHeader(output, count);
+            writer.writeMac(output, macs[1]);
+            writer.writeSequence(output, tracked ? sequence[0] : count);
+            writer.writeEntriesStart(output, count);
+          }
+
+          @Override
+          public void entry(final InMemoryVault.SecureEntryWrapper wrapper) throws IOException {
+            final int index = entries[1]++;
+            writer.writeEntry(output, tracked(wrapper, tracked, index, timestamp), index);
+          }
+
+          @Override
+          public void tombstones(final int tombstones) throws IOException {
+            entries[2] = tombstones;
+            writer.writeEntriesEnd(output, entries[0]);
+            writer.writeTombstonesStart(output, tombstones);
+          }
+
+          @Override
+          public void tombstone(final InMemoryVault.Tombstone tombstone) throws IOException {
+            writer.writeTombstone(output, tombstone, entries[3]++);
+          }
+        });
+        if (!tracked) {
+          writer.writeEntriesEnd(output, entries[0]);
+          writer.writeTombstonesStart(output, 0);
+        }
+        writer.writeTombstonesEnd(output, entries[2]);
+        writer.writeFooter(output, entries[0]);
+        output.flush();
+      }
+
+      // replace the target
+      try {
+        Files.move(temporary, absoluteTarget, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      } catch (final AtomicMoveNotSupportedException e) {
+        Files.move(temporary, absoluteTarget, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (final IOException | VaultInitializationException | RuntimeException e) {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+
+    final Report report = new Report(entries[0], System.nanoTime() - start);
+    log.info("vault successfully converted: {}", report);
+    return report;
+  }
+
+  /**
+   * Returns the given source entry with its changes metadata, which is created for the entries of
+   * source vaults that do not track their changes.
+   *
+   * @param wrapper   the source entry
+   * @param tracked   whether or not the source vault tracks its changes
+   * @param index     the index of the entry, within the source vault
+   * @param timestamp the conversion timestamp
+   * @return the entry with its changes metadata
+   */
+  private static InMemoryVault.SecureEntryWrapper tracked(
+      final InMemoryVault.SecureEntryWrapper wrapper, final boolean tracked, final int index,
+      final long timestamp) {
+    if (tracked) {
+      return wrapper;
+    }
+    return new InMemoryVault.SecureEntryWrapper(
+        SecureEntry.of(timestamp, wrapper.entry.getKey(), wrapper.entry.getValue()), wrapper.iv,
+        index + 1);
+  }
+
+  /**
+   * Command line entry point of the converter.
+   *
+   * The password and salt are read from the console or, when there's none, from the first two
+   * lines of the standard input.
+   *
+   * @param args the command line arguments: {@code <raw|xml|json> <source file> <raw|xml|json>
+   *             <target file> [iterations] [key size]}
+   * @throws Exception if an error occurs while converting the vault
+   */
+  public static void main(final String[] args) throws Exception {
+    if (args.length < 4 || args.length > 6) {
+      System.err.println(USAGE);
+      System.exit(1);
+      return;
+    }
+    final VaultConverter converter = create()
+        .source(Paths.get(args[1]), type(args[0]))
+        .target(Paths.get(args[3]), type(args[2]));
+    if (args.length > 4) {
+      converter.iterations(Integer.parseInt(args[4]));
+    }
+    if (args.length > 5) {
+      converter.keySize(Integer.parseInt(args[5]));
+    }
+
+    // read the credentials
+    final Console console = System.console();
+    if (console != null) {
+      converter.password(console.readPassword("password: "));
+      converter.salt(console.readLine("salt: "));
+    } else {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in,
+                                                                             Vault.VAULT_CS));
+      converter.password(reader.readLine());
+      converter.salt(reader.readLine());
+    }
+
+    System.out.println(converter.convert());
+  }
+
+  /**
+   * Returns the vault type for the given command line format name
+   *
+   * @param format the format name
+   * @return the vault type
+   * @throws IllegalArgumentException if the format is not supported
+   */
+  private static VaultBuilder.VaultType type(final String format) {
+    switch (format.toLowerCase(Locale.ENGLISH)) {
+      case "raw":
+        return VaultBuilder.VaultType.RAW_FILE;
+      case "xml":
+        return VaultBuilder.VaultType.XML_FILE;
+      case "json":
+        return VaultBuilder.VaultType.JSON_FILE;
+      default:
+        throw new IllegalArgumentException("Unsupported vault format: " + format);
+    }
+  }
+
+  /**
+   * The report of a vault conversion.
+   *
+   * This class is immutable, therefore it inherits it's thread-safe nature.
+   */
+  public static final class Report {
+
+    // properties
+    private final long entries;
+    private final long elapsedNanos;
+
+    /**
+     * Creates the conversion report
+     *
+     * @param entries      the number of converted entries
+     * @param elapsedNanos the elapsed time, in nanoseconds
+     */
+    Report(final long entries, final long elapsedNanos) {
+      this.entries = entries;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the number of converted entries
+     *
+     * @return the number of entries
+     */
+    public long getEntries() {
+      return entries;
+    }
+
+    /**
+     * Returns the time that the conversion took, in milliseconds
+     *
+     * @return the elapsed time
+     */
+    public long getElapsedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /**
+     * Returns the throughput of the conversion, in entries per second
+     *
+     * @return the number of entries converted per second
+     */
+    public double getEntriesPerSecond() {
+      return elapsedNanos == 0 ? 0 : entries * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ENGLISH, "converted %d entries in %d ms (%.0f entries/s)",
+                           entries, getElapsedMillis(), getEntriesPerSecond());
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The lock of a vault file, which coordinates the access to the file by several processes (and
+ * vaults within the same process).
+ *
+ * The lock is held on a lock file next to the vault file, named after it with the {@value
+ * #LOCK_FILE_SUFFIX} suffix, rather than on the vault file itself: the vault file might be
+ * replaced while locked.
+ *
+ * File locks are held on behalf of the whole process and cannot overlap within it, as such, the
+ * vaults of the same process are serialized by a process wide lock (per lock file) before the
+ * file lock is acquired.
+ *
+ * @author David Silva
+ */
+final class VaultFileLock implements Closeable {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(VaultFileLock.class);
+
+  // the suffix of the lock files
+  static final String LOCK_FILE_SUFFIX = ".lock";
+
+  // the process wide locks, per lock file
+  private static final ConcurrentMap<Path, Lock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+  // properties
+  private final Lock processLock;
+  private final FileChannel channel;
+  private final FileLock fileLock;
+
+  /**
+   * Creates the (acquired) vault file lock
+   *
+   * @param processLock the acquired process wide lock
+   * @param channel     the channel of the lock file
+   * @param fileLock    the acquired file lock
+   */
+  private VaultFileLock(final Lock processLock, final FileChannel channel,
+                        final FileLock fileLock) {
+    this.processLock = processLock;
+    this.channel = channel;
+    this.fileLock = fileLock;
+  }
+
+  /**
+   * Acquires the lock of the given vault file, blocking until it's available.
+   *
+   * @param path   the path of the vault file
+   * @param shared whether the lock is shared (for reading) or exclusive (for writing)
+   * @return the acquired lock, which must be closed in order to be released
+   * @throws IOException if an I/O error occurs while acquiring the lock
+   */
+  static VaultFileLock acquire(final Path path, final boolean shared) throws IOException {
+    final Path lockFile = lockFile(path);
+    final Lock processLock = PROCESS_LOCKS.computeIfAbsent(lockFile, file -> new ReentrantLock());
+    processLock.lock();
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE);
+      final FileLock fileLock = channel.lock(0, Long.MAX_VALUE, shared);
+      log.trace("acquired the {} lock of {}", shared ? "shared" : "exclusive", lockFile);
+      return new VaultFileLock(processLock, channel, fileLock);
+    } catch (final IOException | RuntimeException e) {
+      try {
+        if (channel != null) {
+          channel.close();
+        }
+      } finally {
+        processLock.unlock();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the lock file of the given vault file
+   *
+   * @param path the path of the vault file
+   * @return the path of the lock file
+   */
+  static Path lockFile(final Path path) {
+    final Path absolute = path.toAbsolutePath().normalize();
+    return absolute.resolveSibling(absolute.getFileName() + LOCK_FILE_SUFFIX);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      fileLock.release();
+    } finally {
+      try {
+        channel.close();
+      } finally {
+        processLock.unlock();
+      }
+    }
+  }
+}
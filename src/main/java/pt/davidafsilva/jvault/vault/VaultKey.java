@@ -0,0 +1,143 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The key of a vault, derived from the vault's password (PBE) and salt, along with the settings
+ * used to derive it.
+ *
+ * Deriving the key is (intentionally) expensive, as such vaults that share the same settings
+ * might share the same key instance as well.
+ *
+ * This class is immutable, therefore it inherits it's thread-safe nature.
+ *
+ * @author David Silva
+ */
+final class VaultKey {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(VaultKey.class);
+
+  // vault secret settings
+  static final String SECRET_SETTINGS = "PBKDF2WithHmacSHA1";
+
+  // vault secret algorithm
+  static final String SECRET_ALGORITHM = "AES";
+
+  // properties
+  final SecretKey secret;
+  final byte[] salt;
+  final int iterations;
+  final int keyLength;
+
+  /**
+   * Creates the vault key
+   *
+   * @param secret     the derived secret
+   * @param salt       the salt used to derive the secret
+   * @param iterations the number of iterations used to derive the secret
+   * @param keyLength  the size of the derived secret
+   */
+  private VaultKey(final SecretKey secret, final byte[] salt, final int iterations,
+                   final int keyLength) {
+    this.secret = secret;
+    this.salt = salt;
+    this.iterations = iterations;
+    this.keyLength = keyLength;
+  }
+
+  /**
+   * Derives the vault key with the specified parameters.
+   *
+   * @param password   the vaults password for PBE
+   * @param salt       the salt (should be a random) to protect against dictionary attacks
+   * @param iterations the number of iterations to be applied when deriving the actual cipher key
+   * @param keyLength  the size of the key to be used for encryption (affects the salt size asl
+   *                   well)
+   * @return the derived vault key
+   * @throws VaultInitializationException if an error occurs while deriving the key
+   */
+  static VaultKey derive(final char[] password, final byte[] salt, final int iterations,
+                         final int keyLength) throws VaultInitializationException {
+    try {
+      // create the secret factory with the configure settings
+      final SecretKeyFactory factory = SecretKeyFactory.getInstance(SECRET_SETTINGS);
+
+      // create the key from the password and salt
+      final KeySpec spec = new PBEKeySpec(password, salt, iterations, keyLength);
+
+      // create the secret from the derived key using AES
+      final SecretKey secret = new SecretKeySpec(factory.generateSecret(spec).getEncoded(),
+                                                 SECRET_ALGORITHM);
+      return new VaultKey(secret, Arrays.copyOf(salt, salt.length), iterations, keyLength);
+    } catch (final InvalidKeySpecException | NoSuchAlgorithmException e) {
+      log.error("An error occurred while deriving the vault key.", e);
+      throw new VaultInitializationException("An error occurred while initializing the vault.", e);
+    }
+  }
+
+  /**
+   * The derivation of the vault keys, such as one backed by a cache of the derived keys.
+   */
+  @FunctionalInterface
+  interface Derivation {
+
+    /**
+     * Derives the vault key with the specified parameters.
+     *
+     * @param password   the vaults password for PBE
+     * @param salt       the salt (should be a random) to protect against dictionary attacks
+     * @param iterations the number of iterations to be applied when deriving the actual cipher
+     *                   key
+     * @param keyLength  the size of the key to be used for encryption
+     * @return the derived vault key
+     * @throws VaultInitializationException if an error occurs while deriving the key
+     */
+    VaultKey derive(final char[] password, final byte[] salt, final int iterations,
+                    final int keyLength) throws VaultInitializationException;
+  }
+}
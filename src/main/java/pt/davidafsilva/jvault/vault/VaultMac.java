@@ -0,0 +1,267 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * The cryptographic MAC (HMAC with SHA-256) of the vault entries, calculated incrementally.
+ *
+ * The MAC is calculated over the following (format independent) representation of the entries,
+ * which is the same for every file vault format:
+ * <pre>
+ * -----------------------------------------------------------------------------
+ * | Marker (-1) | Sequence | ## Entries | Entry 1 | ... | Entry N             |
+ * -----------------------------------------------------------------------------
+ * | ## Tombstones | Tombstone 1 | ... | Tombstone N                           |
+ * -----------------------------------------------------------------------------
+ *
+ * Entry format:
+ * -----------------------------------------
+ * | Key length | Value length | IV length |
+ * -----------------------------------------
+ * | Key data   | Value data   | IV data   |
+ * -----------------------------------------
+ * | Sequence   | Timestamp                |
+ * -----------------------------------------
+ *
+ * Tombstone format:
+ * -----------------------------------------
+ * | Key length | Key data                 |
+ * -----------------------------------------
+ * | Sequence   | Timestamp                |
+ * -----------------------------------------
+ * </pre>
+ *
+ * Vaults persisted before the changes were tracked lack the last sequence number of the vault
+ * (which is preceded by a marker that no number of entries matches), the sequence numbers and
+ * timestamps of the entries and the tombstones. Their MAC is calculated over the remaining
+ * representation, for as long as no {@link #sequence(long) sequence} is given.
+ *
+ * Instances of this class are not thread-safe.
+ *
+ * @author David Silva
+ */
+final class VaultMac {
+
+  // the MAC algorithm
+  static final String MAC_ALGORITHM = "HmacSHA256";
+
+  // the length of the (untruncated) MACs
+  static final int MAC_LENGTH = 32;
+
+  // the mac
+  private final Mac mac;
+
+  // the marker of the representation with the changes metadata
+  private static final int TRACKED_MARKER = -1;
+
+  // the buffer for the integer fields
+  private final ByteBuffer buffer = ByteBuffer.allocate(3 * Integer.BYTES);
+
+  // whether or not the changes metadata is included
+  private boolean tracked;
+
+  /**
+   * Creates the MAC with the specified secret
+   *
+   * @param secret the secret of the vault
+   * @throws NoSuchAlgorithmException if the chosen MAC algorithm does not exist
+   * @throws InvalidKeyException      if the give used for the MAC is invalid
+   */
+  VaultMac(final SecretKey secret) throws NoSuchAlgorithmException, InvalidKeyException {
+    mac = Mac.getInstance(MAC_ALGORITHM);
+    mac.init(secret);
+  }
+
+  /**
+   * Updates the MAC with the last sequence number of the vault, which must precede everything
+   * else and includes the changes metadata (sequence numbers, timestamps and tombstones) in the
+   * MAC.
+   *
+   * @param sequence the last sequence number of the vault
+   * @return this MAC
+   */
+  VaultMac sequence(final long sequence) {
+    tracked = true;
+    buffer.clear();
+    mac.update(buffer.putInt(TRACKED_MARKER).putLong(sequence).array(), 0,
+               Integer.BYTES + Long.BYTES);
+    return this;
+  }
+
+  /**
+   * Checks whether or not the changes metadata is included in the MAC
+   *
+   * @return {@code true} if the metadata is included, {@code false} otherwise
+   */
+  boolean isTracked() {
+    return tracked;
+  }
+
+  /**
+   * Updates the MAC with the number of entries, which must precede the entries themselves.
+   *
+   * @param entries the number of entries
+   * @return this MAC
+   */
+  VaultMac entries(final int entries) {
+    buffer.clear();
+    mac.update(buffer.putInt(entries).array(), 0, Integer.BYTES);
+    return this;
+  }
+
+  /**
+   * Updates the MAC with the given entry.
+   *
+   * @param wrapper the secure entry wrapper
+   * @return this MAC
+   */
+  VaultMac entry(final InMemoryVault.SecureEntryWrapper wrapper) {
+    entry(wrapper.entry.getKey().getBytes(Vault.VAULT_CS),
+          wrapper.entry.getValue().getBytes(Vault.VAULT_CS), wrapper.iv);
+    return tracked ? metadata(wrapper.sequence, wrapper.entry.getCreationDate()) : this;
+  }
+
+  /**
+   * Updates the MAC with the given entry data, excluding the changes metadata.
+   *
+   * @param key   the key data
+   * @param value the (ciphered) value data
+   * @param iv    the initial vector data
+   * @return this MAC
+   */
+  VaultMac entry(final byte[] key, final byte[] value, final byte[] iv) {
+    lengths(key.length, value.length, iv.length);
+    mac.update(key);
+    mac.update(value);
+    mac.update(iv);
+    return this;
+  }
+
+  /**
+   * Updates the MAC with the lengths of an entry data, which must be followed by the data itself,
+   * through {@link #update(byte[], int, int)}.
+   *
+   * @param keyLength   the length of the key data
+   * @param valueLength the length of the (ciphered) value data
+   * @param ivLength    the length of the initial vector data
+   * @return this MAC
+   */
+  VaultMac lengths(final int keyLength, final int valueLength, final int ivLength) {
+    buffer.clear();
+    mac.update(buffer.putInt(keyLength).putInt(valueLength).putInt(ivLength).array());
+    return this;
+  }
+
+  /**
+   * Updates the MAC with the changes metadata of an entry or tombstone, which must follow its
+   * data.
+   *
+   * @param sequence  the sequence number of the change
+   * @param timestamp the change timestamp
+   * @return this MAC
+   */
+  VaultMac metadata(final long sequence, final long timestamp) {
+    buffer.clear();
+    mac.update(buffer.putLong(sequence).array(), 0, Long.BYTES);
+    buffer.clear();
+    mac.update(buffer.putLong(timestamp).array(), 0, Long.BYTES);
+    return this;
+  }
+
+  /**
+   * Updates the MAC with the number of tombstones, which must follow the entries and precede the
+   * tombstones themselves.
+   *
+   * @param tombstones the number of tombstones
+   * @return this MAC
+   */
+  VaultMac tombstones(final int tombstones) {
+    return entries(tombstones);
+  }
+
+  /**
+   * Updates the MAC with the given tombstone
+   *
+   * @param tombstone the tombstone of a deleted entry
+   * @return this MAC
+   */
+  VaultMac tombstone(final InMemoryVault.Tombstone tombstone) {
+    final byte[] key = tombstone.key.getBytes(Vault.VAULT_CS);
+    buffer.clear();
+    mac.update(buffer.putInt(key.length).array(), 0, Integer.BYTES);
+    mac.update(key);
+    return metadata(tombstone.sequence, tombstone.timestamp);
+  }
+
+  /**
+   * Updates the MAC with the given region of raw data, which must be already in the expected
+   * representation.
+   *
+   * @param data   the raw data
+   * @param offset the offset of the region within the data
+   * @param length the length of the region
+   * @return this MAC
+   */
+  VaultMac update(final byte[] data, final int offset, final int length) {
+    mac.update(data, offset, length);
+    return this;
+  }
+
+  /**
+   * Finishes the MAC calculation
+   *
+   * @return the calculated MAC
+   */
+  byte[] doFinal() {
+    return mac.doFinal();
+  }
+
+  /**
+   * Finishes the MAC calculation, truncating the calculated MAC to the given length
+   *
+   * @param length the length of the truncated MAC
+   * @return the calculated (truncated) MAC
+   */
+  byte[] doFinal(final int length) {
+    return Arrays.copyOf(mac.doFinal(), length);
+  }
+}
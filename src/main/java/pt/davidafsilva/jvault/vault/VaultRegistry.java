@@ -0,0 +1,591 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A registry of named vaults, for the applications that host several vaults, such as one per
+ * tenant. The vaults are registered through their {@link VaultBuilder builder} and opened on their
+ * first use, by {@link #acquire(String) acquiring} a lease of the vault, or upfront, in parallel,
+ * through {@link #open(Collection)}, by the (daemon) threads of the registry.
+ *
+ * The vault keys are derived only once for each set of credentials (password, salt, iterations
+ * and key size), and shared by all of the open vaults with the same credentials, until the last
+ * one of them is evicted. The credentials are identified by their MAC, with a random key of the
+ * registry, thus the passwords aren't kept (nor easily guessed from what's kept) by the registry.
+ *
+ * The number of open vaults is bounded: once exceeded, the least recently used file vaults that
+ * aren't leased are persisted and closed, to be reopened on their next use. The file vaults that
+ * aren't leased for longer than the idle timeout, if any, are evicted as well. The remaining
+ * vaults, which cannot be reopened, are never evicted.
+ *
+ * This registry is thread-safe and must be closed once no longer used, which persists and closes
+ * all of the open file vaults.
+ *
+ * @author David Silva
+ */
+public final class VaultRegistry implements Closeable {
+
+  // logger
+  private static final Logger log = LoggerFactory.getLogger(VaultRegistry.class);
+
+  // the ids of the opener threads
+  private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+  // the size of the random key of the credentials MAC
+  private static final int CREDENTIALS_KEY_SIZE = 32;
+
+  // properties
+  private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CompletableFuture<VaultKey>> keys =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger open = new AtomicInteger();
+  private final int maxOpen;
+  private final long idleTimeout;
+  private final ScheduledExecutorService evictor;
+  private final ThreadPoolExecutor opener;
+  private final SecretKey credentialsKey;
+
+  /**
+   * Creates the registry
+   *
+   * @param maxOpen     the maximum number of open vaults
+   * @param idleTimeout the time, in milliseconds, after which the idle vaults are evicted, 0 if
+   *                    they're not
+   */
+  private VaultRegistry(final int maxOpen, final long idleTimeout) {
+    this.maxOpen = maxOpen;
+    this.idleTimeout = idleTimeout;
+    if (idleTimeout > 0) {
+      evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "jvault-registry-evictor");
+        thread.setDaemon(true);
+        return thread;
+      });
+      evictor.scheduleWithFixedDelay(this::evictIdle, idleTimeout, idleTimeout,
+                                     TimeUnit.MILLISECONDS);
+    } else {
+      evictor = null;
+    }
+
+    // the vaults are opened by the registry threads, rather than the common pool ones
+    final int threads = Runtime.getRuntime().availableProcessors();
+    opener = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                    new LinkedBlockingQueue<>(), runnable -> {
+      final Thread thread = new Thread(runnable,
+                                       "jvault-registry-opener-" + THREAD_IDS.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    opener.allowCoreThreadTimeOut(true);
+
+    final byte[] key = new byte[CREDENTIALS_KEY_SIZE];
+    new SecureRandom().nextBytes(key);
+    credentialsKey = new SecretKeySpec(key, VaultMac.MAC_ALGORITHM);
+  }
+
+  /**
+   * Creates a registry with the given maximum number of open vaults and idle timeout.
+   *
+   * @param maxOpen     the maximum number of open vaults
+   * @param idleTimeout the time, in milliseconds, after which the vaults that aren't leased are
+   *                    evicted, 0 if they're only evicted when exceeding the maximum
+   * @return the vault registry
+   */
+  public static VaultRegistry of(final int maxOpen, final long idleTimeout) {
+    if (maxOpen <= 0 || idleTimeout < 0) {
+      throw new IllegalArgumentException("Invalid maximum number of open vaults or idle timeout");
+    }
+    return new VaultRegistry(maxOpen, idleTimeout);
+  }
+
+  /**
+   * Registers the vault with the given name, built by the given builder when opened. The builder
+   * must not be changed afterwards.
+   *
+   * @param name    the name of the vault
+   * @param builder the builder of the vault
+   * @throws IllegalArgumentException if there's already a vault registered with the given name
+   */
+  public void register(final String name, final VaultBuilder builder) {
+    Objects.requireNonNull(name, "Invalid vault name");
+    Objects.requireNonNull(builder, "Invalid vault builder");
+    if (tenants.putIfAbsent(name, new Tenant(name, builder)) != null) {
+      throw new IllegalArgumentException(
+          String.format("vault '%s' is already registered.", name));
+    }
+  }
+
+  /**
+   * Acquires a lease of the vault with the given name, opening it if necessary. The vault is not
+   * evicted while leased, thus the lease should be closed as soon as the vault is no longer used.
+   *
+   * @param name the name of the vault
+   * @return the lease of the vault
+   * @throws IllegalArgumentException     if there's no vault registered with the given name
+   * @throws IllegalStateException        if the registry is closed
+   * @throws VaultInitializationException if an error occurs while opening the vault
+   */
+  public Lease acquire(final String name) throws VaultInitializationException {
+    checkOpen();
+    final Tenant tenant = tenant(name);
+    final Vault vault;
+    synchronized (tenant) {
+      vault = open(tenant);
+      tenant.leases++;
+    }
+    evictExceeding();
+    return new Lease(tenant, vault);
+  }
+
+  /**
+   * Opens the vaults with the given names, in parallel, such as when the application starts.
+   *
+   * Should any of the vaults fail to open, the first failure is thrown once all of the vaults are
+   * opened, with the remaining failures added as suppressed exceptions.
+   *
+   * @param names the names of the vaults
+   * @throws IllegalArgumentException     if there's no vault registered with any of the names
+   * @throws IllegalStateException        if the registry is closed
+   * @throws VaultInitializationException if an error occurs while opening any of the vaults
+   */
+  public void open(final Collection<String> names) throws VaultInitializationException {
+    checkOpen();
+    final Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+    try {
+      names.stream()
+          .map(name -> CompletableFuture.runAsync(() -> {
+            try {
+              final Tenant tenant = tenant(name);
+              synchronized (tenant) {
+                open(tenant);
+              }
+            } catch (final Exception e) {
+              failures.add(e);
+            }
+          }, opener))
+          .collect(toList())
+          .forEach(CompletableFuture::join);
+    } catch (final RejectedExecutionException e) {
+      // closed meanwhile
+      throw new IllegalStateException("The registry is closed", e);
+    }
+    evictExceeding();
+
+    final Exception failure = failures.poll();
+    if (failure != null) {
+      failures.forEach(failure::addSuppressed);
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      throw (VaultInitializationException) failure;
+    }
+  }
+
+  /**
+   * Returns the number of open vaults
+   *
+   * @return the number of open vaults
+   */
+  public int getOpenCount() {
+    return open.get();
+  }
+
+  /**
+   * Returns the number of distinct vault keys derived so far
+   *
+   * @return the number of derived keys
+   */
+  public int getDerivedKeyCount() {
+    return keys.size();
+  }
+
+  /**
+   * Evicts the file vaults that aren't leased for longer than the idle timeout, which is done
+   * periodically as well. Does nothing if there's no idle timeout.
+   */
+  public void evictIdle() {
+    if (idleTimeout == 0) {
+      return;
+    }
+    final long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    for (final Tenant tenant : tenants.values()) {
+      evict(tenant, idleSince);
+    }
+  }
+
+  /**
+   * Persists and closes all of the open file vaults, regardless of being leased. No vault can be
+   * acquired or opened through the registry afterwards.
+   *
+   * @throws IOException if an error occurs while persisting or closing any of the vaults, with
+   *                     the remaining errors added as suppressed exceptions
+   */
+  @Override
+  public void close() throws IOException {
+    if (evictor != null) {
+      evictor.shutdown();
+    }
+    opener.shutdown();
+    IOException failure = null;
+    for (final Tenant tenant : tenants.values()) {
+      synchronized (tenant) {
+        try {
+          close(tenant);
+        } catch (final IOException e) {
+          if (failure == null) {
+            failure = e;
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Checks that the registry is not closed
+   *
+   * @throws IllegalStateException if the registry is closed
+   */
+  private void checkOpen() {
+    if (opener.isShutdown()) {
+      throw new IllegalStateException("The registry is closed");
+    }
+  }
+
+  /**
+   * Returns the vault registered with the given name
+   *
+   * @param name the name of the vault
+   * @return the registered vault
+   * @throws IllegalArgumentException if there's no vault registered with the given name
+   */
+  private Tenant tenant(final String name) {
+    final Tenant tenant = tenants.get(Objects.requireNonNull(name, "Invalid vault name"));
+    if (tenant == null) {
+      throw new IllegalArgumentException(String.format("no such vault '%s' registered.", name));
+    }
+    return tenant;
+  }
+
+  /**
+   * Opens the given vault, if not open already. Must be called while holding the vault monitor.
+   *
+   * @param tenant the registered vault
+   * @return the open vault
+   * @throws VaultInitializationException if an error occurs while opening the vault
+   */
+  private Vault open(final Tenant tenant) throws VaultInitializationException {
+    if (tenant.vault == null) {
+      log.info("opening the vault '{}'..", tenant.name);
+      try {
+        tenant.vault = tenant.builder.build(
+            (password, salt, iterations, keyLength) -> {
+              tenant.credentials = credentials(password, salt, iterations, keyLength);
+              return derive(tenant.credentials, password, salt, iterations, keyLength);
+            });
+      } catch (final VaultInitializationException | RuntimeException e) {
+        release(tenant);
+        throw e;
+      }
+      open.incrementAndGet();
+    }
+    tenant.lastUsed = System.nanoTime();
+    return tenant.vault;
+  }
+
+  /**
+   * Evicts the least recently used vaults, while the maximum number of open vaults is exceeded.
+   */
+  private void evictExceeding() {
+    if (open.get() <= maxOpen) {
+      return;
+    }
+    // the last use is captured beforehand, since it may change while sorting
+    final List<Map.Entry<Tenant, Long>> candidates = tenants.values().stream()
+        .filter(tenant -> tenant.vault instanceof FileVault)
+        .<Map.Entry<Tenant, Long>>map(
+            tenant -> new AbstractMap.SimpleImmutableEntry<>(tenant, tenant.lastUsed))
+        .sorted(Map.Entry.comparingByValue())
+        .collect(toList());
+    for (final Map.Entry<Tenant, Long> candidate : candidates) {
+      if (open.get() <= maxOpen) {
+        break;
+      }
+      evict(candidate.getKey(), candidate.getValue());
+    }
+  }
+
+  /**
+   * Evicts the given vault, if it's an open file vault that isn't leased nor used after the given
+   * instant. A vault that fails to be persisted is kept open.
+   *
+   * @param tenant    the registered vault
+   * @param idleSince the instant, as of {@link System#nanoTime()}, after which the vault must not
+   *                  have been used
+   */
+  private void evict(final Tenant tenant, final long idleSince) {
+    synchronized (tenant) {
+      if (!(tenant.vault instanceof FileVault) || tenant.leases > 0
+          || tenant.lastUsed - idleSince > 0) {
+        return;
+      }
+      try {
+        close(tenant);
+        log.info("vault '{}' evicted", tenant.name);
+      } catch (final IOException e) {
+        log.warn("unable to evict the vault '" + tenant.name + "'", e);
+      }
+    }
+  }
+
+  /**
+   * Persists and closes the given vault, if it's an open file vault. Must be called while holding
+   * the vault monitor.
+   *
+   * @param tenant the registered vault
+   * @throws IOException if an error occurs while persisting or closing the vault
+   */
+  private void close(final Tenant tenant) throws IOException {
+    if (!(tenant.vault instanceof FileVault)) {
+      return;
+    }
+    final FileVault vault = (FileVault) tenant.vault;
+    try {
+      vault.persist();
+    } catch (final VaultOperationException e) {
+      throw new IOException(String.format("Unable to persist the vault '%s'", tenant.name), e);
+    }
+    vault.close();
+    tenant.vault = null;
+    open.decrementAndGet();
+    release(tenant);
+  }
+
+  /**
+   * Releases the key of the given vault, which is no longer open, evicting the key if it isn't
+   * shared by any other vault. Must be called while holding the vault monitor.
+   *
+   * @param tenant the registered vault
+   */
+  private void release(final Tenant tenant) {
+    final String credentials = tenant.credentials;
+    tenant.credentials = null;
+    if (credentials != null && tenants.values().stream()
+        .noneMatch(other -> credentials.equals(other.credentials))) {
+      // a vault being opened meanwhile derives the key again, at worst
+      keys.remove(credentials);
+      log.debug("vault key of '{}' evicted", tenant.name);
+    }
+  }
+
+  /**
+   * Derives the vault key with the specified parameters, once for each set of parameters.
+   *
+   * @param credentials the MAC of the parameters
+   * @param password    the vaults password for PBE
+   * @param salt        the salt (should be a random) to protect against dictionary attacks
+   * @param iterations  the number of iterations to be applied when deriving the actual cipher
+   *                    key
+   * @param keyLength   the size of the key to be used for encryption
+   * @return the derived (or previously derived) vault key
+   * @throws VaultInitializationException if an error occurs while deriving the key
+   */
+  private VaultKey derive(final String credentials, final char[] password, final byte[] salt,
+                          final int iterations, final int keyLength)
+      throws VaultInitializationException {
+    final CompletableFuture<VaultKey> derived = new CompletableFuture<>();
+    final CompletableFuture<VaultKey> existing = keys.putIfAbsent(credentials, derived);
+    if (existing == null) {
+      try {
+        derived.complete(VaultKey.derive(password, salt, iterations, keyLength));
+      } catch (final VaultInitializationException | RuntimeException e) {
+        // let the key be derived again
+        keys.remove(credentials, derived);
+        derived.completeExceptionally(e);
+        throw e;
+      }
+      return derived.join();
+    }
+    try {
+      return existing.join();
+    } catch (final CompletionException e) {
+      throw new VaultInitializationException("An error occurred while initializing the vault.",
+                                             e.getCause());
+    }
+  }
+
+  /**
+   * Calculates the MAC of the given key derivation parameters, with the random key of the
+   * registry, so that the password isn't kept by the registry
+   *
+   * @param password   the vaults password for PBE
+   * @param salt       the salt
+   * @param iterations the number of iterations
+   * @param keyLength  the size of the key
+   * @return the MAC of the parameters
+   */
+  private String credentials(final char[] password, final byte[] salt, final int iterations,
+                             final int keyLength) {
+    final ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+    final byte[] data = new byte[encoded.remaining()];
+    encoded.get(data);
+    try {
+      final byte[] lengths = ByteBuffer.allocate(3 * Integer.BYTES)
+          .putInt(data.length).putInt(iterations).putInt(keyLength)
+          .array();
+      final byte[] mac = new VaultMac(credentialsKey)
+          .update(lengths, 0, lengths.length)
+          .update(data, 0, data.length)
+          .update(salt, 0, salt.length)
+          .doFinal();
+      return new String(HexCodec.encode(mac), StandardCharsets.US_ASCII);
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException("Unable to calculate the MAC of the vault credentials", e);
+    } finally {
+      Arrays.fill(data, (byte) 0);
+      if (encoded.hasArray()) {
+        Arrays.fill(encoded.array(), (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * A lease of a registered vault, which keeps the vault from being evicted until closed.
+   */
+  public static final class Lease implements AutoCloseable {
+
+    // properties
+    private final Tenant tenant;
+    private final Vault vault;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates the lease of the given vault
+     *
+     * @param tenant the registered vault
+     * @param vault  the open vault
+     */
+    private Lease(final Tenant tenant, final Vault vault) {
+      this.tenant = tenant;
+      this.vault = vault;
+    }
+
+    /**
+     * Returns the leased vault, which must not be used once the lease is closed
+     *
+     * @return the vault
+     */
+    public Vault getVault() {
+      return vault;
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        synchronized (tenant) {
+          tenant.leases--;
+          tenant.lastUsed = System.nanoTime();
+        }
+      }
+    }
+  }
+
+  /**
+   * A registered vault, guarded by its own monitor.
+   */
+  private static final class Tenant {
+
+    // properties
+    private final String name;
+    private final VaultBuilder builder;
+    // read without the monitor when choosing the vaults to be evicted
+    private volatile Vault vault;
+    private volatile long lastUsed = System.nanoTime();
+    // the MAC of the credentials of the open vault, read without the monitor as well
+    private volatile String credentials;
+    private int leases;
+
+    /**
+     * Creates the registered vault
+     *
+     * @param name    the name of the vault
+     * @param builder the builder of the vault
+     */
+    private Tenant(final String name, final VaultBuilder builder) {
+      this.name = name;
+      this.builder = builder;
+    }
+  }
+}
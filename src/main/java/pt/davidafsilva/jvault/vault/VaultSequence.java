@@ -0,0 +1,125 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The source of the (monotonically increasing) sequence numbers that identify the changes made to
+ * a vault, which may be shared by several vaults, such as the shards of a {@link
+ * ShardedFileVault}.
+ *
+ * Every change must be made while holding the {@link #mutationLock() mutation lock}, which is
+ * shared by all of the changes. The {@link #watermark() watermark} is read while holding the
+ * exclusive counterpart of that lock, thus with no change in flight: every change up to it is
+ * visible and every later change gets a greater sequence number.
+ *
+ * This class is thread-safe.
+ *
+ * @author David Silva
+ */
+final class VaultSequence {
+
+  // the last sequence number
+  private final AtomicLong last = new AtomicLong();
+
+  // the lock of the changes
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Returns the (shared) lock to be held while making a change
+   *
+   * @return the mutation lock
+   */
+  Lock mutationLock() {
+    return lock.readLock();
+  }
+
+  /**
+   * Returns the (exclusive) lock that, once held, guarantees that there's no change in flight. The
+   * lock is reentrant.
+   *
+   * @return the exclusive lock
+   */
+  Lock exclusiveLock() {
+    return lock.writeLock();
+  }
+
+  /**
+   * Returns the next sequence number, which must be done while holding the {@link
+   * #mutationLock() mutation lock}.
+   *
+   * @return the next sequence number
+   */
+  long next() {
+    return last.incrementAndGet();
+  }
+
+  /**
+   * Returns the last sequence number, which may be of a change still in flight
+   *
+   * @return the last sequence number
+   */
+  long current() {
+    return last.get();
+  }
+
+  /**
+   * Advances the sequence to (at least) the given sequence number, such as the one of a loaded
+   * change
+   *
+   * @param sequence the sequence number
+   */
+  void advance(final long sequence) {
+    last.accumulateAndGet(sequence, Math::max);
+  }
+
+  /**
+   * Returns the last sequence number once all of the changes in flight are complete
+   *
+   * @return the last sequence number, of a complete change
+   */
+  long watermark() {
+    final Lock exclusive = exclusiveLock();
+    exclusive.lock();
+    try {
+      return last.get();
+    } finally {
+      exclusive.unlock();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+/**
+ * A read-only view of a vault, pinned to the version of the vault at the moment it was taken:
+ * the changes made to the vault afterwards are not visible through the snapshot, thus several
+ * related entries are read consistently, without blocking the changes of the vault.
+ *
+ * The previous versions of the changed entries are kept for as long as a snapshot might read
+ * them, hence snapshots must be closed once no longer used.
+ *
+ * @author David Silva
+ * @see Vault#snapshot()
+ */
+public interface VaultSnapshot extends AutoCloseable {
+
+  /**
+   * Returns the version of the vault to which the snapshot is pinned: the sequence number of the
+   * last change visible through the snapshot.
+   *
+   * @return the version of the snapshot
+   */
+  long getVersion();
+
+  /**
+   * Reads all of the entries stored in the vault, as of the snapshot version.
+   *
+   * @return the stored entries, an empty collection is returned when nothing is stored.
+   * @throws IllegalStateException if the snapshot is closed
+   */
+  Collection<SecureEntry> read();
+
+  /**
+   * Reads the entry stored in the vault with the given {@code key}, as of the snapshot version.
+   *
+   * @param key the key for the entry
+   * @return the entry associated with the given {@code key}, or none if there's no such mapping.
+   * @throws IllegalStateException if the snapshot is closed
+   */
+  Optional<SecureEntry> read(final String key);
+
+  /**
+   * Translate the secured entry, as of the snapshot version, and returns the original (unsecured)
+   * entry
+   *
+   * @param entry the entry to be translated
+   * @return the original value
+   * @throws IllegalArgumentException if the given entry is not in the snapshot
+   * @throws IllegalStateException    if the snapshot is closed
+   * @throws VaultOperationException  if an error occurs while deciphering the entry
+   */
+  UnsecureEntry translate(final SecureEntry entry) throws VaultOperationException;
+
+  /**
+   * Closes the snapshot, releasing the previous versions of the entries that are no longer
+   * referenced by any snapshot.
+   */
+  @Override
+  void close();
+}
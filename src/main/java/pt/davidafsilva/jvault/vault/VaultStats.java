@@ -0,0 +1,234 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The statistics of a vault: the number of its entries, the size of their keys and ciphered
+ * values, the (estimated) heap retained by them, as well as the duration of its last load and
+ * persist, if any.
+ *
+ * The retained heap is estimated from the layout of the vault structures in a 64-bit JVM, with
+ * compressed object pointers and compact strings, rather than measured, hence it's meant to track
+ * the growth of the vault and to size the JVM, not as an exact figure.
+ *
+ * This class is immutable, therefore it inherits it's thread-safe nature.
+ *
+ * @author David Silva
+ * @see Vault#stats()
+ */
+public final class VaultStats {
+
+  // properties
+  private final int entries;
+  private final long keyBytes;
+  private final long ciphertextBytes;
+  private final long heapBytes;
+  private final long loadNanos;
+  private final long persistNanos;
+  private final long persistSize;
+
+  /**
+   * Creates the statistics of the entries of a vault, which was neither loaded nor persisted
+   *
+   * @param entries         the number of entries
+   * @param keyBytes        the size of the keys of the entries, in bytes
+   * @param ciphertextBytes the size of the ciphered values of the entries, in bytes
+   * @param heapBytes       the estimated heap retained by the entries, in bytes, -1 if unknown
+   */
+  VaultStats(final int entries, final long keyBytes, final long ciphertextBytes,
+             final long heapBytes) {
+    this(entries, keyBytes, ciphertextBytes, heapBytes, -1, -1, -1);
+  }
+
+  /**
+   * Creates the vault statistics
+   *
+   * @param entries         the number of entries
+   * @param keyBytes        the size of the keys of the entries, in bytes
+   * @param ciphertextBytes the size of the ciphered values of the entries, in bytes
+   * @param heapBytes       the estimated heap retained by the entries, in bytes, -1 if unknown
+   * @param loadNanos       the duration of the load, in nanoseconds, -1 if not loaded
+   * @param persistNanos    the duration of the last persist, in nanoseconds, -1 if not persisted
+   * @param persistSize     the size of the last persisted file, in bytes, -1 if unknown
+   */
+  private VaultStats(final int entries, final long keyBytes, final long ciphertextBytes,
+                     final long heapBytes, final long loadNanos, final long persistNanos,
+                     final long persistSize) {
+    this.entries = entries;
+    this.keyBytes = keyBytes;
+    this.ciphertextBytes = ciphertextBytes;
+    this.heapBytes = heapBytes;
+    this.loadNanos = loadNanos;
+    this.persistNanos = persistNanos;
+    this.persistSize = persistSize;
+  }
+
+  /**
+   * Returns a copy of these statistics with the given load and persist durations
+   *
+   * @param loadNanos    the duration of the load, in nanoseconds, -1 if not loaded
+   * @param persistNanos the duration of the last persist, in nanoseconds, -1 if not persisted
+   * @param persistSize  the size of the last persisted file, in bytes, -1 if unknown
+   * @return the new statistics
+   */
+  VaultStats withDurations(final long loadNanos, final long persistNanos,
+                           final long persistSize) {
+    return new VaultStats(entries, keyBytes, ciphertextBytes, heapBytes, loadNanos, persistNanos,
+                          persistSize);
+  }
+
+  /**
+   * Combines these statistics with the ones of another part of the same vault, such as a shard,
+   * which is loaded and persisted alongside: the sizes are added, while the durations are the
+   * longest ones.
+   *
+   * @param other the statistics of the other part
+   * @return the combined statistics
+   */
+  VaultStats combine(final VaultStats other) {
+    return new VaultStats(entries + other.entries, keyBytes + other.keyBytes,
+                          ciphertextBytes + other.ciphertextBytes,
+                          heapBytes < 0 || other.heapBytes < 0 ? -1
+                                                               : heapBytes + other.heapBytes,
+                          Math.max(loadNanos, other.loadNanos),
+                          Math.max(persistNanos, other.persistNanos),
+                          persistSize < 0 ? other.persistSize : other.persistSize < 0
+                                                                ? persistSize
+                                                                : persistSize + other.persistSize);
+  }
+
+  /**
+   * Returns the size of the given string, once encoded with the {@link Vault#VAULT_CS vault
+   * charset}, without actually encoding it
+   *
+   * @param value the string
+   * @return the size of the encoded string, in bytes
+   */
+  static int encodedLength(final String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                 && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Returns the number of entries stored in the vault
+   *
+   * @return the number of entries
+   */
+  public int getEntries() {
+    return entries;
+  }
+
+  /**
+   * Returns the size of the keys of the entries, once encoded with the {@link Vault#VAULT_CS vault
+   * charset}
+   *
+   * @return the size of the keys, in bytes
+   */
+  public long getKeyBytes() {
+    return keyBytes;
+  }
+
+  /**
+   * Returns the size of the ciphered values of the entries, i.e. the decoded ciphertexts, rather
+   * than their hexadecimal representation
+   *
+   * @return the size of the ciphertexts, in bytes
+   */
+  public long getCiphertextBytes() {
+    return ciphertextBytes;
+  }
+
+  /**
+   * Returns the estimated heap retained by the entries of the vault, including the indexes kept
+   * alongside them, such as the tombstones of the deleted entries
+   *
+   * @return the estimated retained heap, in bytes, -1 if unknown, such as for the vaults whose
+   * entries are not held in memory
+   */
+  public long getEstimatedHeapBytes() {
+    return heapBytes;
+  }
+
+  /**
+   * Returns the time that the vault took to load
+   *
+   * @return the load duration, in milliseconds, -1 if the vault was not loaded
+   */
+  public long getLoadMillis() {
+    return loadNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(loadNanos);
+  }
+
+  /**
+   * Returns the time that the last persist of the vault took
+   *
+   * @return the persist duration, in milliseconds, -1 if the vault was not persisted yet
+   */
+  public long getLastPersistMillis() {
+    return persistNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(persistNanos);
+  }
+
+  /**
+   * Returns the size of the file(s) written by the last persist of the vault
+   *
+   * @return the persisted size, in bytes, -1 if the vault was not persisted yet or the size is
+   * unknown
+   */
+  public long getLastPersistSize() {
+    return persistSize;
+  }
+
+  @Override
+  public String toString() {
+    return "VaultStats{entries: " + entries + ", keyBytes: " + keyBytes + ", ciphertextBytes: "
+           + ciphertextBytes + ", estimatedHeapBytes: " + heapBytes + ", load: "
+           + getLoadMillis() + "ms, lastPersist: " + getLastPersistMillis()
+           + "ms, lastPersistSize: " + persistSize + "}";
+  }
+}
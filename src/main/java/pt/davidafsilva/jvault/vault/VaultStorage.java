@@ -0,0 +1,117 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+
+/**
+ * The storage of a vault, which persists the (already ciphered) entries of the vault as {@link
+ * EntryChange changes}: written entries and deletions, identified by their sequence numbers.
+ *
+ * Storages are provided by a {@link VaultStorageProvider} and used by the vault built with {@link
+ * VaultBuilder#storage(String, String)}, which keeps the entries in memory. The vault loads the
+ * stored changes once built and hands the changes made since the last time it was persisted to
+ * the storage, either {@link #append(long, List) appending} them, if supported, or {@link
+ * #persist(long, List) persisting} the whole vault. Only the keys of the entries are stored in
+ * plain text, as such storages are not required to cipher the data, while the integrity of the
+ * stored data is up to the storage.
+ *
+ * Implementations are not required to be thread-safe, the vault never calls a storage
+ * concurrently.
+ *
+ * @author David Silva
+ */
+public interface VaultStorage extends Closeable {
+
+  /**
+   * Iterates over the stored changes, in the order that they were persisted and appended. A
+   * change supersedes any of the previous changes of the same key.
+   *
+   * The returned stream must be closed once consumed.
+   *
+   * @return the stream of stored changes, which is empty if nothing is stored
+   * @throws IOException if an I/O error occurs while reading the stored changes
+   */
+  Stream<EntryChange> iterate() throws IOException;
+
+  /**
+   * Loads the stored changes, handing each one of them to the given consumer, in the order
+   * defined by {@link #iterate()}, by which it's implemented by default.
+   *
+   * @param consumer the consumer of the stored changes
+   * @throws IOException if an I/O error occurs while reading the stored changes
+   */
+  default void load(final Consumer<EntryChange> consumer) throws IOException {
+    try (final Stream<EntryChange> changes = iterate()) {
+      changes.forEach(consumer);
+    }
+  }
+
+  /**
+   * Persists the whole vault, replacing everything that is stored.
+   *
+   * @param sequence the last sequence number of the vault
+   * @param changes  the last change of each one of the entries and deletions of the vault,
+   *                 ordered by sequence number
+   * @throws IOException if an I/O error occurs while persisting the changes
+   */
+  void persist(final long sequence, final List<EntryChange> changes) throws IOException;
+
+  /**
+   * Appends the given changes, made since the vault was last persisted or appended to, to the
+   * stored ones. Storages that don't support appending changes return {@code false}, which is the
+   * default, in which case the whole vault is {@link #persist(long, List) persisted} instead.
+   *
+   * @param sequence the last sequence number of the vault
+   * @param changes  the last change of each one of the changed entries, ordered by sequence
+   *                 number
+   * @return {@code true} if the changes were appended, {@code false} if not supported
+   * @throws IOException if an I/O error occurs while appending the changes
+   */
+  default boolean append(final long sequence, final List<EntryChange> changes)
+      throws IOException {
+    return false;
+  }
+
+  @Override
+  default void close() throws IOException {
+    // nothing to release by default
+  }
+}
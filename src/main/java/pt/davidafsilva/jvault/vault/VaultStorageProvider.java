@@ -0,0 +1,67 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+
+/**
+ * The provider of a {@link VaultStorage}, which is discovered through the {@link
+ * java.util.ServiceLoader} mechanism: implementations are registered by listing their fully
+ * qualified class name in the resource
+ * {@code META-INF/services/pt.davidafsilva.jvault.vault.VaultStorageProvider}, and selected by
+ * their name with {@link VaultBuilder#storage(String, String)}.
+ *
+ * Implementations must have a public no-argument constructor and be thread-safe.
+ *
+ * @author David Silva
+ */
+public interface VaultStorageProvider {
+
+  /**
+   * Returns the name of the provider, by which it's selected
+   *
+   * @return the provider name
+   */
+  String getName();
+
+  /**
+   * Opens the storage at the given location
+   *
+   * @param location the location of the storage, in a format defined by the provider, such as a
+   *                 file path or an URL
+   * @return the open storage
+   * @throws IOException if an I/O error occurs while opening the storage
+   */
+  VaultStorage open(final String location) throws IOException;
+}
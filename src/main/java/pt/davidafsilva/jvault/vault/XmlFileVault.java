@@ -38,29 +38,26 @@ import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.CharArrayReader;
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.Collection;
 
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.stream.events.XMLEvent;
 
 import pt.davidafsilva.jvault.model.SecureEntry;
 
-import static org.apache.commons.lang3.StringEscapeUtils.escapeXml11;
-import static org.apache.commons.lang3.StringEscapeUtils.unescapeXml;
-
 /**
  * A XML file based vault implementation.
  *
@@ -70,30 +67,64 @@ import static org.apache.commons.lang3.StringEscapeUtils.unescapeXml;
  *   <?xml version="1.1" encoding="UTF-8" standalone="yes"?>
  *   <vault>
  *     <mac>MAC</mac>
+ *     <sequence>last sequence number</sequence>
  *     <numberEntries># of entries</numberEntries>
  *     <entries>
  *       <entry>
  *         <key>key</key>
  *         <value>hex encoded value</value>
  *         <iv>hex encoded IV</iv>
+ *         <sequence>sequence number</sequence>
+ *         <timestamp>creation timestamp</timestamp>
  *       </entry>
  *       <entry>
  *         ...
  *       </entry>
  *     </entries>
+ *     <numberTombstones># of tombstones</numberTombstones>
+ *     <tombstones>
+ *       <tombstone>
+ *         <key>key</key>
+ *         <sequence>sequence number</sequence>
+ *         <timestamp>deletion timestamp</timestamp>
+ *       </tombstone>
+ *       ...
+ *     </tombstones>
  *   </vault>
  * }
  * </pre>
  *
+ * Vaults persisted before the changes were tracked lack the sequence numbers, timestamps and
+ * tombstones, but are still readable.
+ *
+ * The data is read and written (UTF-8 encoded) by StAX stream readers and writers, created by
+ * shared factories. DTDs and external entities are not supported when reading the vault.
+ *
  * This implementation is backed by a {@link InMemoryVault} vault.
  *
  * @author David Silva
  */
-final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
+final class XmlFileVault extends AbstractFileVault<XmlFileVault.XmlOutput> {
 
   // logger
   private static final Logger log = LoggerFactory.getLogger(XmlFileVault.class);
 
+  // the XML declaration
+  private static final String XML_DECLARATION =
+      "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+
+  // the size of the output (characters) buffer
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+  // the (thread-safe, once configured) shared StAX factories
+  private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newFactory();
+  private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
+  static {
+    INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
   /**
    * Creates a vault with the specified parameters.
    *
@@ -126,15 +157,35 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
     super(password, salt, iterations, keyLength, path);
   }
 
+  /**
+   * Creates a vault with the specified (previously derived) key and file options.
+   *
+   * @param key     the vault key
+   * @param path    the path of the vault file
+   * @param options the file options
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  XmlFileVault(final VaultKey key, final Path path, final FileVaultOptions options)
+      throws VaultInitializationException {
+    super(key, path, options);
+  }
+
+  /**
+   * Creates a detached vault with the specified (previously derived) key.
+   *
+   * @param key the vault key
+   * @see AbstractFileVault#AbstractFileVault(VaultKey)
+   */
+  XmlFileVault(final VaultKey key) {
+    super(key);
+  }
+
   @Override
-  void buildVaultFromData(final byte[] data) throws VaultCorruptedException,
-                                                    VaultInitializationException {
+  void readEntries(final InputStream stream, final EntryHandler handler) throws IOException {
     XMLStreamReader reader = null;
     try {
       // load the XML
-      final char[] decodedData = VAULT_CS.decode(ByteBuffer.wrap(data)).array();
-      reader = XMLInputFactory.newInstance().createXMLStreamReader(
-          new CharArrayReader(decodedData));
+      reader = INPUT_FACTORY.createXMLStreamReader(stream);
 
       // parse the vault data
 
@@ -157,14 +208,24 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
         log.error("unable to read vault mac element");
         vaultCorrupted();
       }
-      final byte[] mac = Hex.decodeHex(reader.getElementText().toCharArray());
-      if (log.isDebugEnabled()) {
-        log.debug("MAC: {}", Hex.encodeHexString(mac));
+      final byte[] mac = HexCodec.decode(reader.getElementText());
+
+      // 2.1 <sequence>, stored only by the vaults that track their changes
+      if (!reader.hasNext() || reader.next() != XMLEvent.START_ELEMENT) {
+        log.error("unable to read vault numberEntries element");
+        vaultCorrupted();
+      }
+      final boolean tracked = "sequence".equals(reader.getLocalName());
+      if (tracked) {
+        handler.sequence(Long.parseLong(reader.getElementText()));
+        if (!reader.hasNext() || reader.next() != XMLEvent.START_ELEMENT) {
+          log.error("unable to read vault numberEntries element");
+          vaultCorrupted();
+        }
       }
 
       // 3. <numberEntries>
-      if (!reader.hasNext() || reader.next() != XMLEvent.START_ELEMENT || !"numberEntries"
-          .equals(reader.getLocalName())) {
+      if (!"numberEntries".equals(reader.getLocalName())) {
         log.error("unable to read vault numberEntries element");
         vaultCorrupted();
       }
@@ -173,6 +234,7 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
         log.error("invalid number of entries read from the vault: {}", numberEntries);
         vaultCorrupted();
       }
+      handler.header(mac, numberEntries);
 
       // 4. <entries>
       if (!reader.hasNext() || reader.next() != XMLEvent.START_ELEMENT || !"entries"
@@ -196,7 +258,7 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
           log.error("unable to read vault entry key element");
           vaultCorrupted();
         }
-        final String key = unescapeXml(reader.getElementText());
+        final String key = reader.getElementText();
 
         // 5.2 <value>
         if (!reader.hasNext() || reader.next() != XMLEvent.START_ELEMENT || !"value"
@@ -212,9 +274,13 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
           log.error("unable to read vault entry IV element");
           vaultCorrupted();
         }
-        final byte[] iv = Hex.decodeHex(reader.getElementText().toCharArray());
+        final byte[] iv = HexCodec.decode(reader.getElementText());
+
+        // 5.4 <sequence> and <timestamp>
+        final long sequence = tracked ? readNumber(reader, "sequence") : 0;
+        final long timestamp = tracked ? readNumber(reader, "timestamp") : 0;
 
-        // 5.4  </entry>
+        // 5.5  </entry>
         if (!reader.hasNext() || reader.next() != XMLEvent.END_ELEMENT || !"entry"
             .equals(reader.getLocalName())) {
           log.error("unable to read vault entry (end) element");
@@ -222,11 +288,9 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
         }
 
         // create the entry
-        final SecureEntry secureEntry = SecureEntry.of(key, value);
-        final InMemoryVault.SecureEntryWrapper secureEntryWrapper =
-            new InMemoryVault.SecureEntryWrapper(secureEntry, iv);
-        // write entry to the vault
-        inMemoryVault.store(secureEntry, secureEntryWrapper);
+        final SecureEntry secureEntry = tracked ? SecureEntry.of(timestamp, key, value)
+                                                : SecureEntry.of(key, value);
+        handler.entry(new InMemoryVault.SecureEntryWrapper(secureEntry, iv, sequence));
       }
 
       // 6. </entries>
@@ -236,6 +300,11 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
         vaultCorrupted();
       }
 
+      // 6.1 <numberTombstones> and <tombstones><tombstone>?</tombstone> ...</tombstones>
+      if (tracked) {
+        readTombstones(reader, handler);
+      }
+
       // 7. </vault>
       if (!reader.hasNext() || reader.next() != XMLEvent.END_ELEMENT || !"vault"
           .equals(reader.getLocalName())) {
@@ -248,19 +317,9 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
         log.error("unable to read vault document end");
         vaultCorrupted();
       }
-
-      // 8. check mac
-      final byte[] calculatedMAC = calculateMAC(inMemoryVault.map.values());
-      if (!Arrays.equals(mac, calculatedMAC)) {
-        log.error("invalid MAC found: {}", Hex.encodeHexString(calculatedMAC));
-        vaultCorrupted();
-      }
     } catch (final XMLStreamException | DecoderException | NumberFormatException e) {
       log.error("Unable to load XML vault", e);
       throw new VaultCorruptedException("Invalid XML vault file");
-    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
-      log.error("invalid keys / mac algorithm", e);
-      throw new VaultInitializationException("Invalid keys or unsupported MAC algorithm", e);
     } finally {
       if (reader != null) {
         try {
@@ -272,56 +331,293 @@ final class XmlFileVault extends AbstractFileVault<DataOutputStream> {
     }
   }
 
+  /**
+   * Reads the tombstones of the vault, handing each one of them to the given handler
+   *
+   * @param reader  the XML reader
+   * @param handler the handler of the read data
+   * @throws IOException             if an I/O error occurs while reading the data
+   * @throws XMLStreamException      if the XML is malformed
+   * @throws VaultCorruptedException if the data is corrupted
+   */
+  private void readTombstones(final XMLStreamReader reader, final EntryHandler handler)
+      throws IOException, XMLStreamException {
+    final long numberTombstones = readNumber(reader, "numberTombstones");
+    if (numberTombstones < 0 || numberTombstones > Integer.MAX_VALUE) {
+      log.error("invalid number of tombstones read from the vault: {}", numberTombstones);
+      vaultCorrupted();
+    }
+    handler.tombstones((int) numberTombstones);
+    if (!reader.hasNext() || reader.next() != XMLEvent.START_ELEMENT || !"tombstones"
+        .equals(reader.getLocalName())) {
+      log.error("unable to read vault tombstones (start) element");
+      vaultCorrupted();
+    }
+    for (int i = 0; i < numberTombstones; i++) {
+      if (!reader.hasNext() || reader.next() != XMLEvent.START_ELEMENT || !"tombstone"
+          .equals(reader.getLocalName()) || !reader.hasNext()
+          || reader.next() != XMLEvent.START_ELEMENT || !"key".equals(reader.getLocalName())) {
+        log.error("unable to read vault tombstone key element");
+        vaultCorrupted();
+      }
+      final String key = reader.getElementText();
+      final long sequence = readNumber(reader, "sequence");
+      final long timestamp = readNumber(reader, "timestamp");
+      if (!reader.hasNext() || reader.next() != XMLEvent.END_ELEMENT || !"tombstone"
+          .equals(reader.getLocalName())) {
+        log.error("unable to read vault tombstone (end) element");
+        vaultCorrupted();
+      }
+      handler.tombstone(new InMemoryVault.Tombstone(key, sequence, timestamp));
+    }
+    if (!reader.hasNext() || reader.next() != XMLEvent.END_ELEMENT || !"tombstones"
+        .equals(reader.getLocalName())) {
+      log.error("unable to read vault tombstones (end) element");
+      vaultCorrupted();
+    }
+  }
+
+  /**
+   * Reads the (integer) number element with the given name, which must be the next one
+   *
+   * @param reader the XML reader
+   * @param name   the element name
+   * @return the read number
+   * @throws XMLStreamException      if the XML is malformed
+   * @throws NumberFormatException   if the element text is not a number
+   * @throws VaultCorruptedException if the element is not the next one
+   */
+  private long readNumber(final XMLStreamReader reader, final String name)
+      throws XMLStreamException {
+    if (!reader.hasNext() || reader.next() != XMLEvent.START_ELEMENT || !name
+        .equals(reader.getLocalName())) {
+      log.error("unable to read vault {} element", name);
+      vaultCorrupted();
+    }
+    return Long.parseLong(reader.getElementText());
+  }
+
   @Override
-  DataOutputStream createStream(final Path path) throws FileNotFoundException {
-    return new DataOutputStream(new FileOutputStream(path.toFile()));
+  XmlOutput createStream(final OutputStream stream) throws IOException {
+    return new XmlOutput(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8),
+                                            OUTPUT_BUFFER_SIZE));
   }
 
   @Override
-  void writeHeader(final DataOutputStream stream,
-                   final Collection<InMemoryVault.SecureEntryWrapper> values) throws IOException {
-    stream.writeBytes("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"yes\"?>");
-    stream.writeBytes("<vault>");
+  void writeHeader(final XmlOutput stream, final int entries) throws IOException {
+    stream.startElement("vault");
   }
 
   @Override
-  void writeFooter(final DataOutputStream stream,
-                   final Collection<InMemoryVault.SecureEntryWrapper> values) throws IOException {
-    stream.writeBytes("</vault>");
+  void writeFooter(final XmlOutput stream, final int entries) throws IOException {
+    stream.endElement();
   }
 
   @Override
-  void writeMac(final DataOutputStream stream, final byte[] mac) throws IOException {
+  void writeMac(final XmlOutput stream, final byte[] mac) throws IOException {
+    final char[] hex = Hex.encodeHex(mac);
     if (log.isDebugEnabled()) {
-      log.debug("writing MAC: {}", Hex.encodeHexString(mac));
+      log.debug("writing MAC: {}", new String(hex));
     }
-    stream.writeBytes("<mac>" + Hex.encodeHexString(mac) + "</mac>");
+    stream.element("mac", hex);
   }
 
   @Override
-  void writeEntries(final DataOutputStream stream,
-                    final Collection<InMemoryVault.SecureEntryWrapper> values) throws IOException {
-    // store the vault values
-    stream.writeBytes("<numberEntries>" + values.size() + "</numberEntries>");
-    stream.writeBytes("<entries>");
-    values.forEach(wrapper -> {
-      final String key = wrapper.entry.getKey();
-      final String value = wrapper.entry.getValue();
-      final String iv = Hex.encodeHexString(wrapper.iv);
+  void writeSequence(final XmlOutput stream, final long sequence) throws IOException {
+    stream.element("sequence", Long.toString(sequence));
+  }
+
+  @Override
+  void writeEntriesStart(final XmlOutput stream, final int entries) throws IOException {
+    stream.element("numberEntries", Integer.toString(entries));
+    stream.startElement("entries");
+  }
+
+  @Override
+  void writeEntry(final XmlOutput stream, final InMemoryVault.SecureEntryWrapper wrapper,
+                  final int index) throws IOException {
+    if (log.isDebugEnabled()) {
+      log.debug("writing entry: {}", wrapper);
+    }
+    stream.startElement("entry");
+    stream.element("key", wrapper.entry.getKey());
+    stream.element("value", wrapper.entry.getValue());
+    stream.element("iv", Hex.encodeHex(wrapper.iv));
+    stream.element("sequence", Long.toString(wrapper.sequence));
+    stream.element("timestamp", Long.toString(wrapper.entry.getCreationDate()));
+    stream.endElement();
+  }
+
+  @Override
+  void writeEntriesEnd(final XmlOutput stream, final int entries) throws IOException {
+    stream.endElement();
+  }
+
+  @Override
+  void writeTombstonesStart(final XmlOutput stream, final int tombstones) throws IOException {
+    stream.element("numberTombstones", Integer.toString(tombstones));
+    stream.startElement("tombstones");
+  }
+
+  @Override
+  void writeTombstone(final XmlOutput stream, final InMemoryVault.Tombstone tombstone,
+                      final int index) throws IOException {
+    stream.startElement("tombstone");
+    stream.element("key", tombstone.key);
+    stream.element("sequence", Long.toString(tombstone.sequence));
+    stream.element("timestamp", Long.toString(tombstone.timestamp));
+    stream.endElement();
+  }
+
+  @Override
+  void writeTombstonesEnd(final XmlOutput stream, final int tombstones) throws IOException {
+    stream.endElement();
+  }
+
+  /**
+   * The output of the XML vault: a StAX stream writer over the buffered (UTF-8) file writer.
+   * Writing to the file stream directly would make the StAX writer encode and write every single
+   * byte.
+   *
+   * Text is written in runs of characters straight from a reusable buffer, with the writer
+   * escaping the markup characters. The characters that XML 1.1 only allows as (or that would be
+   * normalized unless written as) character references, are written as such.
+   */
+  static final class XmlOutput implements Closeable, Flushable {
+
+    // the underlying writer
+    private final Writer stream;
+
+    // the XML writer
+    private final XMLStreamWriter writer;
+
+    // the text buffer
+    private char[] buffer = new char[64];
+
+    /**
+     * Creates the XML output over the specified writer, writing the XML declaration.
+     *
+     * @param stream the underlying writer
+     * @throws IOException if an error occurs while creating the XML writer
+     */
+    private XmlOutput(final Writer stream) throws IOException {
+      this.stream = stream;
       try {
-        if (log.isDebugEnabled()) {
-          log.debug("writing entry: {}", wrapper);
+        stream.write(XML_DECLARATION);
+        writer = OUTPUT_FACTORY.createXMLStreamWriter(stream);
+      } catch (final XMLStreamException e) {
+        throw new IOException("Unable to create the XML writer", e);
+      }
+    }
+
+    /**
+     * Writes the start of the element with the specified name
+     *
+     * @param name the element name
+     * @throws IOException if an error occurs while writing the element
+     */
+    void startElement(final String name) throws IOException {
+      try {
+        writer.writeStartElement(name);
+      } catch (final XMLStreamException e) {
+        throw new IOException("Unable to write the XML element " + name, e);
+      }
+    }
+
+    /**
+     * Writes the end of the current element
+     *
+     * @throws IOException if an error occurs while writing the element
+     */
+    void endElement() throws IOException {
+      try {
+        writer.writeEndElement();
+      } catch (final XMLStreamException e) {
+        throw new IOException("Unable to write the XML element end", e);
+      }
+    }
+
+    /**
+     * Writes an element with the specified name and text
+     *
+     * @param name the element name
+     * @param text the element text
+     * @throws IOException if an error occurs while writing the element
+     */
+    void element(final String name, final String text) throws IOException {
+      final int length = text.length();
+      if (buffer.length < length) {
+        buffer = new char[Math.max(length, buffer.length << 1)];
+      }
+      text.getChars(0, length, buffer, 0);
+      element(name, buffer, length);
+    }
+
+    /**
+     * Writes an element with the specified name and text
+     *
+     * @param name the element name
+     * @param text the element text
+     * @throws IOException if an error occurs while writing the element
+     */
+    void element(final String name, final char[] text) throws IOException {
+      element(name, text, text.length);
+    }
+
+    /**
+     * Writes an element with the specified name and text
+     *
+     * @param name   the element name
+     * @param text   the element text characters
+     * @param length the length of the text
+     * @throws IOException if an error occurs while writing the element
+     */
+    private void element(final String name, final char[] text, final int length)
+        throws IOException {
+      try {
+        writer.writeStartElement(name);
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+          final char c = text[i];
+          // the line separator is normalized, as NEL (0x85), by the XML 1.1 parsers
+          if ((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7F && c <= 0x9F)
+              || c == '\u2028') {
+            if (start < i) {
+              writer.writeCharacters(text, start, i - start);
+            }
+            writer.writeEntityRef("#" + (int) c);
+            start = i + 1;
+          }
+        }
+        if (start < length) {
+          writer.writeCharacters(text, start, length - start);
         }
-        stream.writeBytes("<entry>");
-        stream.writeBytes("<key>" + escapeXml11(key) + "</key>");
-        stream.writeBytes("<value>" + value + "</value>");
-        stream.writeBytes("<iv>" + iv + "</iv>");
-        stream.writeBytes("</entry>");
-      } catch (final IOException ioe) {
-        log.error("error while writing the entry", ioe);
-        throw new UncheckedIOException(ioe);
+        writer.writeEndElement();
+      } catch (final XMLStreamException e) {
+        throw new IOException("Unable to write the XML element " + name, e);
       }
-    });
-    stream.writeBytes("</entries>");
+    }
+
+    @Override
+    public void flush() throws IOException {
+      try {
+        writer.flush();
+      } catch (final XMLStreamException e) {
+        throw new IOException("Unable to flush the XML writer", e);
+      }
+      stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        writer.close();
+      } catch (final XMLStreamException e) {
+        throw new IOException("Unable to close the XML writer", e);
+      } finally {
+        // the XML writer never closes the underlying stream
+        stream.close();
+      }
+    }
   }
 }
@@ -0,0 +1,163 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for the asynchronous facade of the vaults
+ *
+ * @author David Silva
+ */
+public class AsyncVaultTest {
+
+  /**
+   * Creates a new in-memory vault
+   *
+   * @return the vault
+   * @throws VaultInitializationException if an error occurs while initializing the vault
+   */
+  private static Vault createVault() throws VaultInitializationException {
+    return new InMemoryVault("12345678901234567890123456789012", "12345678", 1024, 128);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_invalidQueueCapacity() throws VaultInitializationException {
+    AsyncVault.of(createVault(), 1, 0);
+  }
+
+  @Test
+  public void test_operations() throws Exception {
+    try (final AsyncVault vault = AsyncVault.of(createVault(), 2, 16)) {
+      final SecureEntry entry = vault.write(UnsecureEntry.of("key1", "dummy1")).get();
+      assertEquals(entry, vault.getVault().read("key1").get());
+      assertEquals("dummy1", vault.translate(entry).get().getValue());
+      assertEquals(entry, vault.delete("key1").get().get());
+      assertFalse(vault.getVault().read("key1").isPresent());
+
+      // the exceptions complete the futures
+      try {
+        vault.translate(entry).get();
+        fail("translated an entry not in the vault");
+      } catch (final ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+      }
+      try {
+        vault.persist().get();
+        fail("persisted an in-memory vault");
+      } catch (final ExecutionException e) {
+        assertTrue(e.getCause() instanceof UnsupportedOperationException);
+      }
+      assertEquals(0, vault.getRejectedCount());
+    }
+  }
+
+  @Test
+  public void test_rejected() throws Exception {
+    // the single executor thread is held until released
+    final CountDownLatch release = new CountDownLatch(1);
+    try (final AsyncVault vault = AsyncVault.of(createVault(), 1, 1, runnable -> new Thread(() -> {
+      try {
+        release.await();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      runnable.run();
+    }))) {
+      final CompletableFuture<SecureEntry> first = vault.write(UnsecureEntry.of("key1", "1"));
+      final CompletableFuture<SecureEntry> second = vault.write(UnsecureEntry.of("key2", "2"));
+      assertEquals(1, vault.getQueueDepth());
+      final CompletableFuture<SecureEntry> third = vault.write(UnsecureEntry.of("key3", "3"));
+      assertTrue(third.isCompletedExceptionally());
+      try {
+        third.get();
+        fail("the operation was not rejected");
+      } catch (final ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+      assertEquals(1, vault.getRejectedCount());
+
+      // the pending operations complete once released
+      release.countDown();
+      assertEquals("key1", first.get().getKey());
+      assertEquals("key2", second.get().getKey());
+      assertEquals(0, vault.getQueueDepth());
+    }
+  }
+
+  @Test
+  public void test_errors() throws Exception {
+    // a vault failing every operation with an error
+    final Vault failing = (Vault) Proxy.newProxyInstance(
+        Vault.class.getClassLoader(), new Class<?>[]{Vault.class}, (proxy, method, args) -> {
+          throw new AssertionError(method.getName() + " failed");
+        });
+    try (final AsyncVault vault = AsyncVault.of(failing, 1, 1)) {
+      try {
+        vault.write(UnsecureEntry.of("key1", "1")).get(10, TimeUnit.SECONDS);
+        fail("the error did not complete the future");
+      } catch (final ExecutionException e) {
+        assertTrue(e.getCause() instanceof AssertionError);
+      }
+    }
+  }
+
+  @Test
+  public void test_closed() throws Exception {
+    final AsyncVault vault = AsyncVault.of(createVault(), 1, 1);
+    vault.close();
+    try {
+      vault.write(UnsecureEntry.of("key1", "1")).get();
+      fail("the operation was not rejected");
+    } catch (final ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertEquals(0, vault.getRejectedCount());
+  }
+}
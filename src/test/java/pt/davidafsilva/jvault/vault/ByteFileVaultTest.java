@@ -34,9 +34,29 @@ package pt.davidafsilva.jvault.vault;
  */
 
 import org.junit.FixMethodOrder;
+import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Unit test for the byte file based implementation of the vault
@@ -46,8 +66,245 @@ import java.nio.file.Path;
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class ByteFileVaultTest extends FileVaultTest {
 
+  // the options of the degraded load tests
+  private static final FileVaultOptions DEGRADED = FileVaultOptions.DEFAULT.degraded(true);
+
   @Override
   FileVault createVault(final Path path) throws VaultInitializationException {
     return new ByteFileVault("12345678901234567890123456789012", "12345678", 1024, 128, path);
   }
+
+  @Test
+  public void test_l_parallelLoad() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final int entries = ByteFileVault.PARALLEL_LOAD_THRESHOLD + 1;
+    final FileVault vault = createVault(path);
+    for (int i = 0; i < entries; i++) {
+      vault.write(UnsecureEntry.of("key" + i, "value" + i));
+    }
+    vault.persist();
+
+    final FileVault loaded = createVault(path);
+    assertEquals(entries, loaded.read().size());
+    for (final int i : new int[]{0, entries / 2, entries - 1}) {
+      final Optional<SecureEntry> entry = loaded.read("key" + i);
+      assertTrue(entry.isPresent());
+      assertEquals("value" + i, loaded.translate(entry.get()).getValue());
+    }
+  }
+
+  @Test
+  public void test_m_loadLegacy() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final VaultKey key = VaultKey.derive("12345678901234567890123456789012".toCharArray(),
+                                         "12345678".getBytes(Vault.VAULT_CS), 1024, 128);
+    final InMemoryVault source = new InMemoryVault(key);
+    for (int i = 0; i < 10; i++) {
+      source.write(UnsecureEntry.of("key" + i, "value" + i));
+    }
+
+    // write the vault in the legacy (v1) format
+    final Collection<InMemoryVault.SecureEntryWrapper> values = source.map.values();
+    final VaultMac mac = new VaultMac(key.secret).entries(values.size());
+    values.forEach(mac::entry);
+    try (final DataOutputStream stream = new DataOutputStream(Files.newOutputStream(path))) {
+      final byte[] macData = mac.doFinal();
+      stream.writeInt(macData.length);
+      stream.write(macData);
+      stream.writeInt(values.size());
+      for (final InMemoryVault.SecureEntryWrapper wrapper : values) {
+        final byte[] keyData = wrapper.entry.getKey().getBytes(Vault.VAULT_CS);
+        final byte[] valueData = wrapper.entry.getValue().getBytes(Vault.VAULT_CS);
+        stream.writeInt(keyData.length);
+        stream.writeInt(valueData.length);
+        stream.writeInt(wrapper.iv.length);
+        stream.write(keyData);
+        stream.write(valueData);
+        stream.write(wrapper.iv);
+      }
+    }
+    final long legacySize = Files.size(path);
+
+    // read it through the stream
+    final List<SecureEntry> read = new ArrayList<>();
+    new ByteFileVault(key).readVault(
+        new ByteArrayInputStream(Files.readAllBytes(path)), new AbstractFileVault.EntryHandler() {
+          @Override
+          public void header(final byte[] mac, final int entries) {
+          }
+
+          @Override
+          public void entry(final InMemoryVault.SecureEntryWrapper wrapper) {
+            read.add(wrapper.entry);
+          }
+        });
+    assertEquals(values.size(), read.size());
+
+    // load it and persist it in the current format
+    final FileVault vault = createVault(path);
+    assertEquals(values.size(), vault.read().size());
+    assertEquals(values.size(), vault.exportSince(0).count());
+    vault.write(UnsecureEntry.of("key10", "value10"));
+    vault.persist();
+    try (final DataInputStream stream = new DataInputStream(Files.newInputStream(path))) {
+      assertEquals(ByteFileVault.MAGIC, stream.readInt());
+      assertEquals(ByteFileVault.VERSION, stream.readByte());
+    }
+    assertTrue(Files.size(path) < legacySize);
+
+    final FileVault loaded = createVault(path);
+    assertEquals(values.size() + 1, loaded.read().size());
+    for (int i = 0; i <= 10; i++) {
+      final Optional<SecureEntry> entry = loaded.read("key" + i);
+      assertTrue(entry.isPresent());
+      assertEquals("value" + i, loaded.translate(entry.get()).getValue());
+    }
+  }
+
+  @Test(expected = VaultCorruptedException.class)
+  public void test_n_loadDifferentKeySettings() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault vault = createVault(path);
+    vault.write(UnsecureEntry.of("key", "value"));
+    vault.persist();
+    new ByteFileVault("12345678901234567890123456789012", "12345678", 2048, 128, path);
+  }
+
+  @Test
+  public void test_r_degradedLoad() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final int entries = writeEntries(path);
+    final byte[] data = Files.readAllBytes(path);
+    data[data.length / 2] ^= 1;
+    Files.write(path, data);
+
+    try {
+      createVault(path);
+      fail("the corrupted vault was loaded");
+    } catch (final VaultCorruptedException e) {
+      // expected
+    }
+
+    // the intact blocks are loaded and the lost (indexed) block is reported
+    final FileVault vault = new ByteFileVault(key(), path, DEGRADED);
+    final List<LostRange> lost = vault.lostRanges();
+    assertEquals(1, lost.size());
+    final LostRange range = lost.get(0);
+    assertTrue(range.isExact());
+    assertTrue(range.getEntries() > 0);
+    assertEquals(entries - range.getEntries(), vault.read().size());
+    for (int i = 0; i < entries; i++) {
+      final String key = String.format("key%05d", i);
+      final boolean inRange = key.compareTo(range.getFromKey().get()) >= 0
+                              && key.compareTo(range.getToKey().get()) <= 0;
+      assertEquals(!inRange, vault.read(key).isPresent());
+    }
+  }
+
+  @Test
+  public void test_s_degradedScan() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final int entries = writeEntries(path);
+    final byte[] data = Files.readAllBytes(path);
+    data[data.length / 2] ^= 1;
+    // the block index precedes its MAC and the footer
+    data[data.length - 30] ^= 1;
+    Files.write(path, data);
+
+    // the blocks are scanned and the lost range is estimated from the surrounding blocks
+    final FileVault vault = new ByteFileVault(key(), path, DEGRADED);
+    final List<LostRange> lost = vault.lostRanges();
+    assertEquals(1, lost.size());
+    final LostRange range = lost.get(0);
+    assertFalse(range.isExact());
+    assertEquals(-1, range.getEntries());
+    assertTrue(vault.read().size() < entries);
+    for (int i = 0; i < entries; i++) {
+      final String key = String.format("key%05d", i);
+      final boolean inRange = key.compareTo(range.getFromKey().get()) > 0
+                              && key.compareTo(range.getToKey().get()) < 0;
+      assertEquals(!inRange, vault.read(key).isPresent());
+    }
+    assertTrue(vault.read().size() > 0);
+  }
+
+  @Test
+  public void test_t_tombstoneRetention() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault kept = new ByteFileVault(key(), path);
+    kept.write(UnsecureEntry.of("a", "1"));
+    kept.write(UnsecureEntry.of("b", "2"));
+    kept.delete("b");
+    kept.persist();
+    assertEquals(2, new ByteFileVault(key(), path).exportSince(0).count());
+
+    // the tombstones past their retention are purged once persisted
+    final FileVault purged = new ByteFileVault(
+        key(), path, FileVaultOptions.DEFAULT.tombstoneRetention(0));
+    Thread.sleep(5);
+    purged.write(UnsecureEntry.of("c", "3"));
+    purged.persist();
+    final List<EntryChange> changes = purged.exportSince(0).collect(toList());
+    assertEquals(2, changes.size());
+    assertFalse(changes.stream().anyMatch(EntryChange::isDeletion));
+    assertEquals(changes, new ByteFileVault(key(), path).exportSince(0).collect(toList()));
+  }
+
+  @Test
+  public void test_u_oversizedLengths() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault vault = createVault(path);
+    vault.write(UnsecureEntry.of("key", "value"));
+    vault.persist();
+    final byte[] data = Files.readAllBytes(path);
+
+    // the salt and MAC lengths, past the magic, version, flags, iterations and key length
+    for (final int offset : new int[]{10, 19}) {
+      final byte[] corrupted = new byte[data.length + 4];
+      System.arraycopy(data, 0, corrupted, 0, offset);
+      System.arraycopy(new byte[]{-1, -1, -1, -1, 7}, 0, corrupted, offset, 5);
+      System.arraycopy(data, offset + 1, corrupted, offset + 5, data.length - offset - 1);
+      Files.write(path, corrupted);
+      try {
+        createVault(path);
+        fail("the oversized length was not detected");
+      } catch (final VaultCorruptedException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Derives the key of the vaults created by {@link #createVault(Path)}
+   *
+   * @return the vault key
+   */
+  private static VaultKey key() throws VaultInitializationException {
+    return VaultKey.derive("12345678901234567890123456789012".toCharArray(),
+                           "12345678".getBytes(Vault.VAULT_CS), 1024, 128);
+  }
+
+  /**
+   * Writes the entries of the degraded load tests to the vault at the given path, spanning
+   * several blocks
+   *
+   * @param path the path of the vault
+   * @return the number of written entries
+   */
+  private int writeEntries(final Path path) throws Exception {
+    final FileVault vault = new ByteFileVault(key(), path);
+    final int entries = 4 * ByteFileVault.BLOCK_SIZE / 64;
+    for (int i = 0; i < entries; i++) {
+      vault.write(UnsecureEntry.of(String.format("key%05d", i), "value" + i));
+    }
+    vault.persist();
+    return entries;
+  }
 }
@@ -0,0 +1,130 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for the compressed file based vaults
+ *
+ * @author David Silva
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CompressedFileVaultTest extends FileVaultTest {
+
+  @Override
+  FileVault createVault(final Path path) throws VaultInitializationException {
+    return new JsonFileVault(key(), path, FileVaultOptions.DEFAULT.compressed(true));
+  }
+
+  /**
+   * Derives the key of the test vaults
+   *
+   * @return the vault key
+   */
+  private static VaultKey key() throws VaultInitializationException {
+    return VaultKey.derive("12345678901234567890123456789012".toCharArray(),
+                           "12345678".getBytes(Vault.VAULT_CS), 1024, 128);
+  }
+
+  @Test
+  public void test_l_detectCompression() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault vault = createVault(path);
+    for (int i = 0; i < 100; i++) {
+      vault.write(UnsecureEntry.of("key" + i, "value" + i));
+    }
+    vault.persist();
+    assertTrue(VaultCompression.isCompressed(Files.readAllBytes(path)));
+
+    // loaded by an uncompressed vault, which persists it uncompressed
+    final FileVault uncompressed = new JsonFileVault(key(), path, FileVaultOptions.DEFAULT);
+    assertEntries(uncompressed, 100);
+    uncompressed.write(UnsecureEntry.of("key100", "value100"));
+    uncompressed.persist();
+    final long uncompressedSize = Files.size(path);
+    assertFalse(VaultCompression.isCompressed(Files.readAllBytes(path)));
+
+    // and back again
+    final FileVault compressed = createVault(path);
+    assertEntries(compressed, 101);
+    compressed.delete("key100");
+    compressed.persist();
+    assertTrue(Files.size(path) < uncompressedSize);
+    assertEntries(createVault(path), 100);
+  }
+
+  @Test(expected = VaultCorruptedException.class)
+  public void test_m_loadTruncated() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault vault = createVault(path);
+    vault.write(UnsecureEntry.of("key", "value"));
+    vault.persist();
+    final byte[] data = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(data, data.length - 1));
+    createVault(path);
+  }
+
+  /**
+   * Asserts that the given vault has the expected entries
+   *
+   * @param vault   the vault
+   * @param entries the expected number of entries
+   */
+  private static void assertEntries(final FileVault vault, final int entries)
+      throws VaultOperationException {
+    assertEquals(entries, vault.read().size());
+    for (int i = 0; i < entries; i++) {
+      final Optional<SecureEntry> entry = vault.read("key" + i);
+      assertTrue(entry.isPresent());
+      assertEquals("value" + i, vault.translate(entry.get()).getValue());
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+/**
+ * A simple (main based) benchmark of the persist and load times of the file based vaults.
+ *
+ * Usage: {@code FileVaultBenchmark [entries...]}, defaults to 10000, 100000 and 1000000
+ * entries. It is not executed as part of the unit tests.
+ *
+ * @author David Silva
+ */
+public final class FileVaultBenchmark {
+
+  // the vault settings
+  private static final String PASSWORD = "12345678901234567890123456789012";
+  private static final String SALT = "12345678";
+  private static final int ITERATIONS = 1024;
+  private static final int KEY_SIZE = 128;
+
+  // the number of runs per measure (the best one is reported)
+  private static final int RUNS = 3;
+
+  /**
+   * The vault factory
+   */
+  private interface VaultFactory {
+
+    FileVault create(final Path path) throws VaultInitializationException;
+  }
+
+  private FileVaultBenchmark() {
+    throw new UnsupportedOperationException("benchmark");
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final int[] sizes = args.length == 0 ? new int[]{10_000, 100_000, 1_000_000}
+                                         : new int[args.length];
+    for (int i = 0; i < args.length; i++) {
+      sizes[i] = Integer.parseInt(args[i]);
+    }
+
+    final VaultKey key = VaultKey.derive(PASSWORD.toCharArray(), SALT.getBytes(Vault.VAULT_CS),
+                                         ITERATIONS, KEY_SIZE);
+    final FileVaultOptions plain = FileVaultOptions.DEFAULT;
+    final FileVaultOptions compressed = plain.compressed(true);
+    for (final int entries : sizes) {
+      run("raw", entries, p -> new ByteFileVault(key, p, plain));
+      run("raw.gz", entries, p -> new ByteFileVault(key, p, compressed));
+      run("json", entries, p -> new JsonFileVault(key, p, plain));
+      run("json.gz", entries, p -> new JsonFileVault(key, p, compressed));
+      run("xml", entries, p -> new XmlFileVault(key, p, plain));
+      run("xml.gz", entries, p -> new XmlFileVault(key, p, compressed));
+    }
+  }
+
+  /**
+   * Measures the persist and load times of a vault with the specified number of entries.
+   *
+   * @param name    the name of the vault format
+   * @param entries the number of entries
+   * @param factory the vault factory
+   * @throws Exception if an error occurs while running the benchmark
+   */
+  private static void run(final String name, final int entries, final VaultFactory factory)
+      throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    try {
+      long persist = Long.MAX_VALUE;
+      long load = Long.MAX_VALUE;
+      for (int run = 0; run < RUNS; run++) {
+        Files.write(path, new byte[0]);
+        final FileVault vault = factory.create(path);
+        for (int i = 0; i < entries; i++) {
+          vault.write(UnsecureEntry.of("key-" + i, "value-" + i));
+        }
+
+        long start = System.nanoTime();
+        vault.persist();
+        persist = Math.min(persist, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        factory.create(path);
+        load = Math.min(load, System.nanoTime() - start);
+      }
+      System.out.println(String.format(Locale.ROOT, "%-8s %,10d entries %,14d bytes "
+                                                    + "persist %,8.1f ms load %,8.1f ms",
+                                       name, entries, Files.size(path), persist / 1e6,
+                                       load / 1e6));
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+}
@@ -43,11 +43,22 @@ import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import pt.davidafsilva.jvault.model.EntryChange;
 import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
 
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -118,6 +129,204 @@ public abstract class FileVaultTest extends VaultTester<FileVault> {
     vault = createVault(vaultFile);
   }
 
+  @Test
+  public void test_o_exportSince() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault vault = createVault(path);
+    vault.write(UnsecureEntry.of("a", "1"));
+    vault.write(UnsecureEntry.of("b", "2"));
+    vault.write(UnsecureEntry.of("c", "3"));
+    vault.delete("b");
+
+    // every entry and deletion, by the order of the last change
+    final List<EntryChange> all = vault.exportSince(0).collect(toList());
+    assertEquals(3, all.size());
+    assertEquals("a", all.get(0).getKey());
+    assertEquals("c", all.get(1).getKey());
+    assertEquals("b", all.get(2).getKey());
+    assertTrue(all.get(2).isDeletion());
+    assertFalse(all.get(2).getEntry().isPresent());
+    assertEquals(vault.read("a").get(), all.get(0).getEntry().get());
+    final long watermark = all.get(2).getSequence();
+
+    // only the changes made afterwards
+    vault.write(UnsecureEntry.of("d", "4"));
+    vault.write(UnsecureEntry.of("a", "5"));
+    final List<EntryChange> changes = vault.exportSince(watermark).collect(toList());
+    assertEquals(2, changes.size());
+    assertEquals("d", changes.get(0).getKey());
+    assertEquals("a", changes.get(1).getKey());
+    assertTrue(changes.get(0).getSequence() > watermark);
+    assertEquals(0, vault.exportSince(changes.get(1).getSequence()).count());
+
+    // the changes survive the vault being persisted and loaded
+    vault.persist();
+    final List<EntryChange> persisted = vault.exportSince(0).collect(toList());
+    final FileVault loaded = createVault(path);
+    final List<EntryChange> reloaded = loaded.exportSince(0).collect(toList());
+    assertEquals(persisted, reloaded);
+    for (int i = 0; i < persisted.size(); i++) {
+      assertEquals(persisted.get(i).getTimestamp(), reloaded.get(i).getTimestamp());
+      assertEquals(persisted.get(i).isDeletion(), reloaded.get(i).isDeletion());
+      assertArrayEquals(persisted.get(i).getInitVector(), reloaded.get(i).getInitVector());
+    }
+    loaded.write(UnsecureEntry.of("b", "6"));
+    final List<EntryChange> rewritten = loaded.exportSince(changes.get(1).getSequence())
+        .collect(toList());
+    assertEquals(1, rewritten.size());
+    assertFalse(rewritten.get(0).isDeletion());
+    assertEquals("6", loaded.translate(rewritten.get(0).getEntry().get()).getValue());
+  }
+
+  @Test
+  public void test_p_reload() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final AbstractFileVault<?> watcher = (AbstractFileVault<?>) createVault(path);
+    final FileVault writer = createVault(path);
+    writer.write(UnsecureEntry.of("a", "1"));
+    writer.write(UnsecureEntry.of("b", "2"));
+    writer.write(UnsecureEntry.of("c", "3"));
+    writer.persist();
+    assertEquals(3, watcher.reload());
+    assertEquals(0, watcher.reload());
+    assertEquals(writer.exportSince(0).collect(toList()),
+                 watcher.exportSince(0).collect(toList()));
+
+    // only the changes are applied
+    final long watermark = writer.exportSince(0).mapToLong(EntryChange::getSequence).max()
+        .getAsLong();
+    final SecureEntry unchanged = watcher.read("c").get();
+    writer.write(UnsecureEntry.of("a", "4"));
+    writer.delete("b");
+    writer.persist();
+    assertEquals(2, watcher.reload());
+    assertEquals("4", watcher.translate(watcher.read("a").get()).getValue());
+    assertFalse(watcher.read("b").isPresent());
+    assertTrue(unchanged == watcher.read("c").get());
+    assertEquals(writer.exportSince(watermark).collect(toList()),
+                 watcher.exportSince(watermark).collect(toList()));
+
+    // local changes are not overwritten
+    writer.write(UnsecureEntry.of("d", "5"));
+    writer.persist();
+    watcher.write(UnsecureEntry.of("e", "6"));
+    assertEquals(0, watcher.reload());
+    assertFalse(watcher.read("d").isPresent());
+    watcher.close();
+  }
+
+  @Test
+  public void test_q_groupCommit() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault writer = createVault(path);
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final CyclicBarrier barrier = new CyclicBarrier(threads);
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        final String key = "key" + i;
+        futures.add(executor.submit(() -> {
+          for (int j = 0; j < 10; j++) {
+            writer.write(UnsecureEntry.of(key, String.valueOf(j)));
+            barrier.await();
+            writer.persist();
+          }
+          return null;
+        }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    // every persist returned once its changes were written
+    final FileVault loaded = createVault(path);
+    for (int i = 0; i < threads; i++) {
+      assertEquals("9", loaded.translate(loaded.read("key" + i).get()).getValue());
+    }
+  }
+  @Test
+  public void test_r_persistCompute() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault writer = createVault(path);
+    writer.compute("key1", v -> Optional.of("1"));
+    writer.persist();
+    final FileVault loaded = createVault(path);
+    assertEquals("1", loaded.translate(loaded.read("key1").get()).getValue());
+
+    // a no-op computation leaves the vault unchanged, while a deletion is persisted
+    final long modified = Files.getLastModifiedTime(path).toMillis();
+    writer.compute("key1", v -> v);
+    writer.persist();
+    assertEquals(modified, Files.getLastModifiedTime(path).toMillis());
+    writer.compute("key1", v -> Optional.empty());
+    writer.persist();
+    assertFalse(createVault(path).read("key1").isPresent());
+  }
+
+  @Test
+  public void test_s_reloadListener() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final AbstractFileVault<?> watcher = (AbstractFileVault<?>) createVault(path);
+    final List<List<EntryChange>> batches = new ArrayList<>();
+    final VaultSubscription subscription = watcher.subscribe(batches::add, Runnable::run);
+    final FileVault writer = createVault(path);
+    writer.write(UnsecureEntry.of("a", "1"));
+    writer.write(UnsecureEntry.of("b", "2"));
+    writer.persist();
+    assertEquals(2, watcher.reload());
+    assertEquals(2, batches.size());
+    assertEquals(writer.exportSince(0).collect(toList()),
+                 batches.stream().flatMap(List::stream).collect(toList()));
+
+    // the changes made after the subscription is closed are not notified
+    subscription.close();
+    writer.delete("a");
+    writer.persist();
+    assertEquals(1, watcher.reload());
+    assertEquals(2, batches.size());
+    watcher.close();
+  }
+
+  @Test
+  public void test_t_stats() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault writer = createVault(path);
+    assertTrue(writer.stats().getLoadMillis() >= 0);
+    assertEquals(-1, writer.stats().getLastPersistMillis());
+    assertEquals(-1, writer.stats().getLastPersistSize());
+    writer.write(UnsecureEntry.of("a", "1"));
+    writer.write(UnsecureEntry.of("b", "2"));
+    writer.persist();
+    final VaultStats stats = writer.stats();
+    assertEquals(2, stats.getEntries());
+    assertEquals(2, stats.getKeyBytes());
+    assertEquals(32, stats.getCiphertextBytes());
+    assertTrue(stats.getLastPersistMillis() >= 0);
+    assertEquals(Files.size(path), stats.getLastPersistSize());
+
+    writer.close();
+
+    // the loaded vault has the same entries
+    final FileVault reader = createVault(path);
+    final VaultStats loaded = reader.stats();
+    assertEquals(stats.getEntries(), loaded.getEntries());
+    assertEquals(stats.getKeyBytes(), loaded.getKeyBytes());
+    assertEquals(stats.getCiphertextBytes(), loaded.getCiphertextBytes());
+    assertEquals(-1, loaded.getLastPersistSize());
+    reader.close();
+  }
+
+
   @AfterClass
   public static void cleanUp() {
     vault = null;
@@ -0,0 +1,233 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for the frozen file implementation of the vault
+ *
+ * @author David Silva
+ */
+public class FrozenFileVaultTest {
+
+  // the order of the compared entries
+  private static final Comparator<SecureEntry> BY_KEY = Comparator.comparing(SecureEntry::getKey);
+
+  @Test
+  public void test_freezeInMemory() throws Exception {
+    final InMemoryVault source = new InMemoryVault(key());
+    for (int i = 0; i < 1000; i++) {
+      source.write(UnsecureEntry.of("key" + i, "value" + i));
+    }
+    source.delete("key0");
+
+    try (final FrozenFileVault vault = new FrozenFileVault(key(), freeze(source))) {
+      assertEquals(999, vault.size());
+      assertEquals(999, vault.read().size());
+      assertFalse(vault.read("key0").isPresent());
+      assertFalse(vault.containsKey("unknown"));
+      for (int i = 1; i < 1000; i++) {
+        final Optional<SecureEntry> entry = vault.read("key" + i);
+        assertTrue(entry.isPresent());
+        assertEquals(source.read("key" + i).get(), entry.get());
+        assertEquals("value" + i, vault.translate(entry.get()).getValue());
+      }
+      assertEquals(999, vault.exportSince(0).map(EntryChange::getKey).distinct().count());
+    }
+  }
+
+  @Test
+  public void test_freezeEmpty() throws Exception {
+    try (final FrozenFileVault vault = new FrozenFileVault(key(),
+                                                           freeze(new InMemoryVault(key())))) {
+      assertEquals(0, vault.size());
+      assertTrue(vault.read().isEmpty());
+      assertFalse(vault.read("key").isPresent());
+    }
+  }
+
+  @Test
+  public void test_freezeFile() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final FileVault source = new ByteFileVault(key(), path);
+    source.write(UnsecureEntry.of("key", "value"));
+    source.write(UnsecureEntry.of("other", "value2"));
+
+    // a frozen vault can be frozen again
+    final Path frozen = freeze(source);
+    try (final FrozenFileVault vault = new FrozenFileVault(key(), frozen)) {
+      vault.freeze(frozen);
+    }
+    try (final FrozenFileVault vault = new FrozenFileVault(key(), frozen)) {
+      assertEquals(source.read().stream().sorted(BY_KEY).collect(toList()),
+                   vault.read().stream().sorted(BY_KEY).collect(toList()));
+      assertEquals("value2", vault.translate(vault.read("other").get()).getValue());
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void test_write() throws Exception {
+    try (final FrozenFileVault vault = new FrozenFileVault(key(),
+                                                           freeze(new InMemoryVault(key())))) {
+      vault.write(UnsecureEntry.of("key", "value"));
+    }
+  }
+
+  @Test(expected = VaultCorruptedException.class)
+  public void test_differentKey() throws Exception {
+    final Path path = freeze(new InMemoryVault(key()));
+    new FrozenFileVault(VaultKey.derive("12345678901234567890123456789012".toCharArray(),
+                                        "12345678".getBytes(Vault.VAULT_CS), 2048, 128), path);
+  }
+
+  @Test
+  public void test_corruptedEntry() throws Exception {
+    final InMemoryVault source = new InMemoryVault(key());
+    source.write(UnsecureEntry.of("key", "value"));
+    final Path path = freeze(source);
+    final byte[] data = Files.readAllBytes(path);
+    data[data.length - 20] ^= 1;
+    Files.write(path, data);
+
+    try (final FrozenFileVault vault = new FrozenFileVault(key(), path)) {
+      vault.read("key");
+      fail("the corrupted entry was read");
+    } catch (final VaultCorruptedException e) {
+      // expected
+    }
+  }
+
+  @Test(expected = VaultCorruptedException.class)
+  public void test_corruptedIndex() throws Exception {
+    final InMemoryVault source = new InMemoryVault(key());
+    source.write(UnsecureEntry.of("key", "value"));
+    final Path path = freeze(source);
+    final byte[] data = Files.readAllBytes(path);
+    // the seed of the (single) bucket, right after the header and its MAC
+    data[40] ^= 1;
+    Files.write(path, data);
+    new FrozenFileVault(key(), path);
+  }
+
+  @Test
+  public void test_corruptedKey() throws Exception {
+    final InMemoryVault source = new InMemoryVault(key());
+    source.write(UnsecureEntry.of("key", "value"));
+    final Path path = freeze(source);
+    final byte[] data = Files.readAllBytes(path);
+    // the first byte of the key, after the index and the record and key lengths
+    data[53] ^= 1;
+    Files.write(path, data);
+
+    try (final FrozenFileVault vault = new FrozenFileVault(key(), path)) {
+      vault.read("key");
+      fail("the corrupted key was not detected");
+    } catch (final VaultCorruptedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void test_corruptedLength() throws Exception {
+    final InMemoryVault source = new InMemoryVault(key());
+    source.write(UnsecureEntry.of("key", "value"));
+    final Path path = freeze(source);
+    final byte[] data = Files.readAllBytes(path);
+    // the length of the record, right after the index
+    data[45] = 0x7F;
+    Files.write(path, data);
+
+    try (final FrozenFileVault vault = new FrozenFileVault(key(), path)) {
+      vault.read("key");
+      fail("the corrupted length was not detected");
+    } catch (final VaultCorruptedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void test_readClosed() throws Exception {
+    final InMemoryVault source = new InMemoryVault(key());
+    source.write(UnsecureEntry.of("key", "value"));
+    final FrozenFileVault vault = new FrozenFileVault(key(), freeze(source));
+    vault.close();
+    assertEquals("value", vault.translate(vault.read("key").get()).getValue());
+  }
+
+  @Test(expected = VaultOperationException.class)
+  public void test_seedsNotFound() throws Exception {
+    // the keys with the same hash never have distinct slots
+    FrozenFileVault.seeds(new long[]{1, 2, 1}, 1 << 10);
+  }
+
+  /**
+   * Freezes the given vault into a temporary file
+   *
+   * @param vault the vault to be frozen
+   * @return the frozen vault file
+   */
+  private static Path freeze(final Vault vault) throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".frozen");
+    path.toFile().deleteOnExit();
+    vault.freeze(path);
+    return path;
+  }
+
+  /**
+   * Derives the key of the test vaults
+   *
+   * @return the vault key
+   */
+  private static VaultKey key() throws VaultInitializationException {
+    return VaultKey.derive("12345678901234567890123456789012".toCharArray(),
+                           "12345678".getBytes(Vault.VAULT_CS), 1024, 128);
+  }
+}
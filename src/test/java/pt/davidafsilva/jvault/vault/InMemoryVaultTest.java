@@ -35,8 +35,27 @@ package pt.davidafsilva.jvault.vault;
 
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
+import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Unit test for the in-memory implementation of the vault
  *
@@ -57,4 +76,247 @@ public class InMemoryVaultTest extends VaultTester<InMemoryVault> {
   InMemoryVault getVault() {
     return vault;
   }
+
+  @Test
+  public void test_prefix_ordered() throws Exception {
+    assertPrefixQueries(new InMemoryVault(key(), true));
+  }
+
+  @Test
+  public void test_prefix_unordered() throws Exception {
+    assertPrefixQueries(new InMemoryVault(key(), false));
+  }
+
+  @Test
+  public void test_snapshot() throws Exception {
+    final InMemoryVault vault = new InMemoryVault(key());
+    final SecureEntry user = vault.write(UnsecureEntry.of("db/user", "admin"));
+    vault.write(UnsecureEntry.of("db/password", "secret"));
+    final VaultSnapshot snapshot = vault.snapshot();
+    final VaultSnapshot same = vault.snapshot();
+    vault.write(UnsecureEntry.of("db/user", "root"));
+    vault.delete("db/password");
+    vault.write(UnsecureEntry.of("db/host", "localhost"));
+    final VaultSnapshot later = vault.snapshot();
+    vault.write(UnsecureEntry.of("db/host", "remote"));
+
+    // the snapshots see the vault as of their version
+    assertEquals(2, snapshot.read().size());
+    assertEquals(user, snapshot.read("db/user").get());
+    assertEquals("admin", snapshot.translate(user).getValue());
+    assertEquals("secret",
+                 snapshot.translate(snapshot.read("db/password").get()).getValue());
+    assertFalse(snapshot.read("db/host").isPresent());
+    assertEquals("localhost", later.translate(later.read("db/host").get()).getValue());
+    assertEquals(2, later.read().size());
+    assertEquals("remote", vault.translate(vault.read("db/host").get()).getValue());
+
+    // the history is kept until no longer visible
+    snapshot.close();
+    assertEquals(user, same.read("db/user").get());
+    same.close();
+    assertEquals(1, vault.history.size());
+    later.close();
+    assertTrue(vault.history.isEmpty());
+    vault.write(UnsecureEntry.of("db/host", "other"));
+    assertTrue(vault.history.isEmpty());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void test_snapshot_closed() throws Exception {
+    final InMemoryVault vault = new InMemoryVault(key());
+    final VaultSnapshot snapshot = vault.snapshot();
+    snapshot.close();
+    snapshot.read();
+  }
+
+  @Test
+  public void test_snapshot_consistent() throws Exception {
+    final InMemoryVault vault = new InMemoryVault(key());
+    vault.write(UnsecureEntry.of("a", "0"));
+    vault.write(UnsecureEntry.of("b", "0"));
+    final AtomicBoolean done = new AtomicBoolean();
+    final Thread writer = new Thread(() -> {
+      try {
+        for (int i = 1; !done.get(); i++) {
+          vault.write(UnsecureEntry.of("a", String.valueOf(i)));
+          vault.write(UnsecureEntry.of("b", String.valueOf(i)));
+        }
+      } catch (final VaultOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    writer.start();
+    try {
+      for (int i = 0; i < 200; i++) {
+        try (final VaultSnapshot snapshot = vault.snapshot()) {
+          final int b = Integer.parseInt(snapshot.translate(snapshot.read("b").get()).getValue());
+          Thread.yield();
+          final int a = Integer.parseInt(snapshot.translate(snapshot.read("a").get()).getValue());
+          // "a" is always written before "b", thus never more than one step ahead of it
+          assertTrue(a == b || a == b + 1);
+        }
+      }
+    } finally {
+      done.set(true);
+      writer.join();
+    }
+  }
+
+  @Test
+  public void test_listenerBatches() throws Exception {
+    final InMemoryVault vault = new InMemoryVault(key());
+    final List<Runnable> dispatches = new ArrayList<>();
+    final List<List<EntryChange>> batches = new ArrayList<>();
+    vault.subscribe(batches::add, dispatches::add);
+
+    // the changes made before the dispatch are coalesced into a single batch
+    vault.write(UnsecureEntry.of("a", "1"));
+    vault.write(UnsecureEntry.of("b", "2"));
+    vault.write(UnsecureEntry.of("a", "3"));
+    vault.delete("b");
+    vault.write(UnsecureEntry.of("c", "4"));
+    assertEquals(1, dispatches.size());
+    dispatches.remove(0).run();
+    assertEquals(1, batches.size());
+    assertEquals(vault.exportSince(0).collect(toList()), batches.get(0));
+    assertTrue(batches.get(0).get(1).isDeletion());
+
+    // unchanged entries are not notified
+    vault.compute("c", value -> value);
+    assertTrue(dispatches.isEmpty());
+    vault.write(UnsecureEntry.of("c", "5"));
+    dispatches.remove(0).run();
+    assertEquals(2, batches.size());
+    assertEquals("c", batches.get(1).get(0).getKey());
+  }
+
+  @Test(timeout = 10000)
+  public void test_listenerRejected() throws Exception {
+    final InMemoryVault vault = new InMemoryVault(key());
+    final AtomicInteger rejections = new AtomicInteger();
+    final BlockingQueue<List<EntryChange>> batches = new LinkedBlockingQueue<>();
+    vault.subscribe(batches::add, dispatch -> {
+      // rejects the first dispatches, within the bounded re-submissions
+      if (rejections.incrementAndGet() < ChangeDispatcher.MAX_RETRIES) {
+        throw new RejectedExecutionException();
+      }
+      dispatch.run();
+    });
+
+    // the change is notified once re-submitted, without any further change
+    vault.write(UnsecureEntry.of("a", "1"));
+    assertEquals("a", batches.take().get(0).getKey());
+    assertEquals(ChangeDispatcher.MAX_RETRIES, rejections.get());
+  }
+
+  @Test(timeout = 10000)
+  public void test_computeReentrant() throws Exception {
+    for (final InMemoryVault vault : new InMemoryVault[]{new InMemoryVault(key()),
+                                                         new InMemoryVault(key(), false, true)}) {
+      vault.write(UnsecureEntry.of("a", "1"));
+      final Optional<SecureEntry> computed = vault.compute("a", value -> {
+        // the function may access the vault, even the same key, and take snapshots
+        try (final VaultSnapshot snapshot = vault.snapshot()) {
+          assertEquals(value.map(v -> vault.read("a").get()), snapshot.read("a"));
+          vault.write(UnsecureEntry.of("b", "2"));
+        } catch (final VaultOperationException e) {
+          throw new IllegalStateException(e);
+        }
+        return value.map(v -> v + "3");
+      });
+      assertEquals("13", vault.translate(computed.get()).getValue());
+      assertTrue(vault.containsKey("b"));
+
+      // a concurrent change of the key makes the function to be applied again
+      final int[] applied = new int[1];
+      vault.compute("a", value -> {
+        if (applied[0]++ == 0) {
+          vault.delete("a");
+        }
+        return Optional.of(value.orElse("") + "4");
+      });
+      assertEquals(2, applied[0]);
+      assertEquals("4", vault.translate(vault.read("a").get()).getValue());
+    }
+  }
+
+  @Test
+  public void test_stats() throws Exception {
+    final InMemoryVault vault = new InMemoryVault(key());
+    final InMemoryVault packed = new InMemoryVault(key(), false, true);
+    for (final InMemoryVault v : new InMemoryVault[]{vault, packed}) {
+      assertEquals(0, v.stats().getEntries());
+      assertEquals(0, v.stats().getEstimatedHeapBytes());
+      v.write(UnsecureEntry.of("a", "1"));
+      v.write(UnsecureEntry.of("é€", "12345678901234567890"));
+      v.write(UnsecureEntry.of("b", "2"));
+      v.write(UnsecureEntry.of("a", "12345678901234567"));
+      v.delete("b");
+
+      // the keys are measured once encoded, and the values once deciphered
+      final VaultStats stats = v.stats();
+      assertEquals(2, stats.getEntries());
+      assertEquals(1 + 5, stats.getKeyBytes());
+      assertEquals(32 + 32, stats.getCiphertextBytes());
+      assertEquals(-1, stats.getLoadMillis());
+      assertEquals(-1, stats.getLastPersistMillis());
+      assertEquals(-1, stats.getLastPersistSize());
+      assertTrue(stats.getEstimatedHeapBytes() > stats.getKeyBytes() + stats.getCiphertextBytes());
+    }
+    // packed entries take a fraction of the heap
+    assertTrue(packed.stats().getEstimatedHeapBytes() < vault.stats().getEstimatedHeapBytes());
+
+    // the sizes are kept up to date with the entries
+    vault.delete("a");
+    vault.delete("é€");
+    assertEquals(0, vault.stats().getEntries());
+    assertEquals(0, vault.stats().getKeyBytes());
+    assertEquals(0, vault.stats().getCiphertextBytes());
+  }
+
+  /**
+   * Derives the key of the vaults
+   *
+   * @return the vault key
+   * @throws VaultInitializationException if an error occurs while deriving the key
+   */
+  private static VaultKey key() throws VaultInitializationException {
+    return VaultKey.derive("12345678901234567890123456789012".toCharArray(),
+                           "12345678".getBytes(Vault.VAULT_CS), 1024, 128);
+  }
+
+  /**
+   * Asserts the prefix and range queries of the given vault, with hierarchical keys
+   *
+   * @param vault the vault
+   * @throws VaultOperationException if an error occurs while writing the entries
+   */
+  private static void assertPrefixQueries(final SortedVault vault)
+      throws VaultOperationException {
+    for (final String service : new String[]{"billing", "bill", "auth"}) {
+      for (int i = 0; i < 10; i++) {
+        vault.write(UnsecureEntry.of(service + "/prod/secret" + i, String.valueOf(i)));
+      }
+    }
+    vault.write(UnsecureEntry.of("billing\uffff", "x"));
+    final List<SecureEntry> billing = vault.readPrefix("billing/", 100);
+    assertEquals(10, billing.size());
+    for (int i = 0; i < billing.size(); i++) {
+      assertEquals("billing/prod/secret" + i, billing.get(i).getKey());
+    }
+    assertEquals(3, vault.readPrefix("billing/", 3).size());
+    assertEquals(21, vault.readPrefix("bill", 100).size());
+    assertEquals(1, vault.readPrefix("billing\uffff", 100).size());
+    assertEquals(31, vault.readPrefix("", 100).size());
+    assertEquals(5, vault.readRange("auth/prod/secret5", "b", 100).size());
+
+    // delete a whole hierarchy
+    assertEquals(10, vault.deletePrefix("billing/"));
+    assertTrue(vault.readPrefix("billing/", 100).isEmpty());
+    assertEquals(11, vault.readPrefix("bill", 100).size());
+    assertEquals(0, vault.deletePrefix("billing/"));
+    assertEquals(11, vault.scan("auth/prod/secret9", 100).size());
+    assertEquals(10, vault.exportSince(0).filter(EntryChange::isDeletion).count());
+  }
 }
@@ -34,9 +34,18 @@ package pt.davidafsilva.jvault.vault;
  */
 
 import org.junit.FixMethodOrder;
+import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit test for the JSON file based implementation of the vault
@@ -50,4 +59,25 @@ public class JsonFileVaultTest extends FileVaultTest {
   FileVault createVault(final Path path) throws VaultInitializationException {
     return new JsonFileVault("12345678901234567890123456789012", "12345678", 1024, 128, path);
   }
+
+  @Test
+  public void test_l_escapedKeys() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    final String[] keys = {"\"quoted\"", "back\\slash", "tab\tnew\nline", "\\u0041",
+                           "ch\u00e2ve", "\u952e"};
+    final FileVault vault = createVault(path);
+    for (final String key : keys) {
+      vault.write(UnsecureEntry.of(key, key));
+    }
+    vault.persist();
+
+    final FileVault loaded = createVault(path);
+    assertEquals(keys.length, loaded.read().size());
+    for (final String key : keys) {
+      final Optional<SecureEntry> entry = loaded.read(key);
+      assertTrue(key, entry.isPresent());
+      assertEquals(key, loaded.translate(entry.get()).getValue());
+    }
+  }
 }
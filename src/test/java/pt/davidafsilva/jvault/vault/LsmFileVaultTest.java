@@ -0,0 +1,262 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.AfterClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for the log-structured file implementation of the vault
+ *
+ * @author David Silva
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class LsmFileVaultTest extends VaultTester<FileVault> {
+
+  // the number of entries of the larger vaults
+  private static final int ENTRIES = 5000;
+
+  // the vault
+  private static LsmFileVault vault;
+
+  // the current vault directory
+  private static Path vaultDirectory;
+
+  @Override
+  FileVault getVault() {
+    if (vault == null) {
+      try {
+        vaultDirectory = Files.createTempDirectory("pt.davidafsilva.jvault.");
+        vault = createVault();
+      } catch (final IOException | VaultInitializationException e) {
+        e.printStackTrace();
+        fail(e.getMessage());
+      }
+    }
+    return vault;
+  }
+
+  /**
+   * Creates a new vault for the current vault directory, with small tables, blocks and cache
+   *
+   * @return the vault instance
+   */
+  private static LsmFileVault createVault() throws VaultInitializationException {
+    final VaultKey key = VaultKey.derive("12345678901234567890123456789012".toCharArray(),
+                                         "12345678".getBytes(Vault.VAULT_CS), 1024, 128);
+    return new LsmFileVault(key, vaultDirectory, 16 << 10, 512, 8 << 10, 2);
+  }
+
+  /**
+   * Returns the files of the current vault directory with the given suffix
+   *
+   * @param suffix the suffix of the files
+   * @return the vault files
+   */
+  private static List<Path> files(final String suffix) throws IOException {
+    final List<Path> files = new ArrayList<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(vaultDirectory)) {
+      for (final Path file : stream) {
+        file.toFile().deleteOnExit();
+        if (file.getFileName().toString().endsWith(suffix)) {
+          files.add(file);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Creates a vault, in a new directory, with a large number of entries
+   */
+  private static void createLargeVault() throws Exception {
+    if (vault != null) {
+      vault.close();
+    }
+    vaultDirectory = Files.createTempDirectory("pt.davidafsilva.jvault.");
+    vault = createVault();
+    for (int i = 0; i < ENTRIES; i++) {
+      vault.write(UnsecureEntry.of(String.format("key%05d", i), "value" + i));
+    }
+    for (int i = 0; i < ENTRIES; i += 3) {
+      vault.delete(String.format("key%05d", i));
+    }
+    for (int i = 1; i < ENTRIES; i += 3) {
+      vault.write(UnsecureEntry.of(String.format("key%05d", i), "updated" + i));
+    }
+  }
+
+  /**
+   * Asserts that the given vault has the entries of the larger vault
+   *
+   * @param vault the vault
+   */
+  private static void assertLargeVault(final LsmFileVault vault) throws VaultOperationException {
+    for (int i = 0; i < ENTRIES; i += 7) {
+      final Optional<SecureEntry> entry = vault.read(String.format("key%05d", i));
+      if (i % 3 == 0) {
+        assertFalse(entry.isPresent());
+      } else {
+        assertEquals((i % 3 == 1 ? "updated" : "value") + i,
+                     vault.translate(entry.get()).getValue());
+      }
+    }
+    assertEquals(ENTRIES - (ENTRIES + 2) / 3, vault.read().size());
+  }
+
+  @Test
+  public void test_i_persist() throws Exception {
+    vault.persist();
+    vault.close();
+    vault = createVault();
+    assertEquals(2, vault.read().size());
+  }
+
+  @Test
+  public void test_j_load() throws Exception {
+    vault.close();
+    vault = createVault();
+    assertEquals(2, vault.read().size());
+    final Optional<SecureEntry> entry1 = vault.read("key1");
+    final Optional<SecureEntry> entry2 = vault.read("key2");
+    assertTrue(entry1.isPresent());
+    assertTrue(entry2.isPresent());
+    assertEquals("dummy1", vault.translate(entry1.get()).getValue());
+    assertEquals("dummy2", vault.translate(entry2.get()).getValue());
+  }
+
+  @Test(expected = VaultInitializationException.class)
+  public void test_k_directoryInUse() throws VaultInitializationException {
+    createVault();
+  }
+
+  @Test
+  public void test_l_flushAndMerge() throws Exception {
+    createLargeVault();
+    assertLargeVault(vault);
+
+    // the segments are merged (in the background) and the cache is bounded
+    vault.awaitFlushes();
+    final List<LsmSegment> segments = vault.segments();
+    assertTrue(segments.size() > 0 && segments.size() < 16);
+    assertEquals(segments.size(), files(".sst").size());
+    assertTrue(vault.cache().size() <= 8 << 10);
+    assertTrue(vault.cache().hits() > 0);
+
+    // the changes survive the vault being closed and loaded
+    vault.close();
+    vault = createVault();
+    assertLargeVault(vault);
+  }
+
+  @Test
+  public void test_m_readRange() throws Exception {
+    final List<SecureEntry> range = vault.readRange("key01000", "key01100", 1000);
+    assertEquals(67, range.size());
+    for (int i = 1; i < range.size(); i++) {
+      assertTrue(range.get(i - 1).getKey().compareTo(range.get(i).getKey()) < 0);
+    }
+    assertEquals("key01000", range.get(0).getKey());
+    assertEquals(10, vault.readRange("key01000", null, 10).size());
+    assertEquals("key00001", vault.readRange(null, null, 1).get(0).getKey());
+    assertTrue(vault.readRange("key99999", null, 10).isEmpty());
+  }
+
+  @Test
+  public void test_n_tornLog() throws Exception {
+    vaultDirectory = Files.createTempDirectory("pt.davidafsilva.jvault.");
+    vault.close();
+    vault = createVault();
+    vault.write(UnsecureEntry.of("key1", "value1"));
+    vault.write(UnsecureEntry.of("key2", "value2"));
+    vault.close();
+
+    // a partially written record at the end of the log
+    final Path log = files(".wal").get(0);
+    final byte[] data = Files.readAllBytes(log);
+    try (final RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+      file.seek(data.length);
+      file.write(data, 5, 20);
+    }
+    vault = createVault();
+    assertEquals(2, vault.read().size());
+    assertEquals("value2", vault.translate(vault.read("key2").get()).getValue());
+  }
+
+  @Test(expected = VaultCorruptedException.class)
+  public void test_o_loadCorruption() throws Exception {
+    createLargeVault();
+    vault.close();
+    vault = null;
+
+    // mess the contents of the first block of a segment - a single byte is enough
+    final Path segment = files(".sst").get(0);
+    try (final RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      file.seek(16);
+      final int b = file.read();
+      file.seek(16);
+      file.write(b ^ 0xFF);
+    }
+    vault = createVault();
+    vault.read();
+  }
+
+  @AfterClass
+  public static void cleanUp() throws IOException {
+    if (vault != null) {
+      vault.close();
+    }
+    vault = null;
+    vaultDirectory = null;
+  }
+}
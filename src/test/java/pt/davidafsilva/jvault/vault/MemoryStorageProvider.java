@@ -0,0 +1,117 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+
+/**
+ * A (test) provider of in-memory vault storages, identified by their location.
+ *
+ * @author David Silva
+ */
+public final class MemoryStorageProvider implements VaultStorageProvider {
+
+  // the provider name
+  static final String NAME = "memory";
+
+  // the storages, by location
+  private static final Map<String, MemoryStorage> STORAGES = new ConcurrentHashMap<>();
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public VaultStorage open(final String location) {
+    return storage(location);
+  }
+
+  /**
+   * Returns the storage at the given location
+   *
+   * @param location the storage location
+   * @return the storage
+   */
+  static MemoryStorage storage(final String location) {
+    return STORAGES.computeIfAbsent(location, l -> new MemoryStorage());
+  }
+
+  /**
+   * An in-memory storage, which keeps every persisted and appended change.
+   */
+  static final class MemoryStorage implements VaultStorage {
+
+    // the stored changes
+    final List<EntryChange> changes = new ArrayList<>();
+
+    // whether or not appending is supported
+    boolean appendable = true;
+
+    // the statistics
+    int persists;
+    int appends;
+    long sequence;
+
+    @Override
+    public synchronized Stream<EntryChange> iterate() {
+      return new ArrayList<>(changes).stream();
+    }
+
+    @Override
+    public synchronized void persist(final long sequence, final List<EntryChange> changes) {
+      this.changes.clear();
+      this.changes.addAll(changes);
+      this.sequence = sequence;
+      persists++;
+    }
+
+    @Override
+    public synchronized boolean append(final long sequence, final List<EntryChange> changes) {
+      if (!appendable) {
+        return false;
+      }
+      this.changes.addAll(changes);
+      this.sequence = sequence;
+      appends++;
+      return true;
+    }
+  }
+}
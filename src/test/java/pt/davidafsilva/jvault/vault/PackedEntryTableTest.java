@@ -0,0 +1,150 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for the in-memory implementation of the vault, with packed entries
+ *
+ * @author David Silva
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PackedEntryTableTest extends VaultTester<InMemoryVault> {
+
+  // the vault
+  private static InMemoryVault vault;
+
+  @BeforeClass
+  public static void setup() throws VaultInitializationException {
+    vault = new InMemoryVault(VaultKey.derive("12345678901234567890123456789012".toCharArray(),
+                                              "12345678".getBytes(Vault.VAULT_CS), 1024, 128),
+                              false, true);
+  }
+
+  @Override
+  InMemoryVault getVault() {
+    return vault;
+  }
+
+  @Test
+  public void test_table() {
+    final PackedEntryTable table = new PackedEntryTable();
+    final Map<String, InMemoryVault.SecureEntryWrapper> expected = new HashMap<>();
+    for (int i = 0; i < 10000; i++) {
+      final String key = (i % 7 == 0 ? "chave-ç-" : "key-") + i;
+      final InMemoryVault.SecureEntryWrapper wrapper = new InMemoryVault.SecureEntryWrapper(
+          SecureEntry.of(i, key, String.format("%032x", i)), new byte[]{(byte) i, 1}, i + 1);
+      assertNull(table.put(key, wrapper));
+      expected.put(key, wrapper);
+    }
+
+    // the removals shift the following entries backwards
+    for (int i = 0; i < 10000; i += 3) {
+      final String key = (i % 7 == 0 ? "chave-ç-" : "key-") + i;
+      assertEquals(expected.remove(key).entry, table.remove(key).entry);
+    }
+    assertEquals(expected.size(), table.size());
+    for (final Map.Entry<String, InMemoryVault.SecureEntryWrapper> entry : expected.entrySet()) {
+      final InMemoryVault.SecureEntryWrapper wrapper = table.get(entry.getKey());
+      assertEquals(entry.getValue().entry, wrapper.entry);
+      assertEquals(entry.getValue().entry.getCreationDate(), wrapper.entry.getCreationDate());
+      assertEquals(entry.getValue().sequence, wrapper.sequence);
+      assertEquals(entry.getValue().iv[0], wrapper.iv[0]);
+    }
+    assertFalse(table.containsKey("key-0"));
+    assertFalse(table.containsKey("chave-ç-3"));
+
+    int iterated = 0;
+    for (final Iterator<InMemoryVault.SecureEntryWrapper> it = table.values().iterator();
+         it.hasNext(); iterated++) {
+      assertTrue(expected.containsKey(it.next().entry.getKey()));
+      it.remove();
+    }
+    assertEquals(expected.size(), iterated);
+    assertTrue(table.isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void test_table_reentrant() {
+    final PackedEntryTable table = new PackedEntryTable();
+    final InMemoryVault.SecureEntryWrapper wrapper = new InMemoryVault.SecureEntryWrapper(
+        SecureEntry.of(1, "a", "00"), new byte[]{1}, 1);
+    table.put("a", wrapper);
+
+    // the entries (of the same segment) are read from within a computation
+    table.compute("a", (key, current) -> {
+      assertEquals(wrapper.entry, table.get("a").entry);
+      assertEquals(1, table.values().size());
+      assertTrue(table.values().iterator().hasNext());
+      return current;
+    });
+
+    // while changing them fails, rather than deadlocking
+    try {
+      table.compute("a", (key, current) -> table.remove("a"));
+      fail("recursive update");
+    } catch (final IllegalStateException e) {
+      assertEquals("Recursive update", e.getMessage());
+    }
+    assertTrue(table.containsKey("a"));
+    table.remove("a");
+    assertTrue(table.isEmpty());
+  }
+
+  @Test
+  public void test_write_materialized() throws VaultOperationException {
+    final SecureEntry written = vault.write(UnsecureEntry.of("packed", "value"));
+    final SecureEntry read = vault.read("packed").get();
+    assertEquals(written, read);
+    assertEquals(written.getCreationDate(), read.getCreationDate());
+    assertEquals("value", vault.translate(read).getValue());
+  }
+}
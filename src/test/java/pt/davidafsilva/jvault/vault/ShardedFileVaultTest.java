@@ -0,0 +1,225 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.AfterClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for the sharded file implementation of the vault
+ *
+ * @author David Silva
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ShardedFileVaultTest extends VaultTester<FileVault> {
+
+  // the number of shards
+  private static final int SHARDS = 4;
+
+  // the vault
+  private static FileVault vault;
+
+  // the current vault directory
+  private static Path vaultDirectory;
+
+  @Override
+  FileVault getVault() {
+    if (vault == null) {
+      try {
+        vaultDirectory = Files.createTempDirectory("pt.davidafsilva.jvault.");
+        vaultDirectory.toFile().deleteOnExit();
+        vault = createVault(SHARDS);
+      } catch (final IOException | VaultInitializationException e) {
+        e.printStackTrace();
+        fail(e.getMessage());
+      }
+    }
+    return vault;
+  }
+
+  /**
+   * Creates a new sharded vault for the current vault directory
+   *
+   * @param shards the number of shards
+   * @return the file vault instance
+   */
+  private static FileVault createVault(final int shards) throws VaultInitializationException {
+    return new ShardedFileVault("12345678901234567890123456789012", "12345678", 1024, 128,
+                                vaultDirectory, shards);
+  }
+
+  /**
+   * Reads the contents of each one of the shard files
+   *
+   * @return the contents of the shard files
+   */
+  private static byte[][] readShards() throws IOException {
+    final byte[][] contents = new byte[SHARDS][];
+    for (int shard = 0; shard < SHARDS; shard++) {
+      final Path file = vaultDirectory.resolve(String.format("shard-%04d.vault", shard));
+      file.toFile().deleteOnExit();
+      contents[shard] = Files.readAllBytes(file);
+    }
+    return contents;
+  }
+
+  @Test
+  public void test_i_persist() throws VaultOperationException, IOException {
+    vault.persist();
+    final byte[][] before = readShards();
+    assertTrue(Arrays.stream(before).anyMatch(data -> data.length > 0));
+
+    // a single write must only change its own shard
+    vault.write(UnsecureEntry.of("key3", "dummy3"));
+    vault.persist();
+    final byte[][] after = readShards();
+    int changed = 0;
+    for (int shard = 0; shard < SHARDS; shard++) {
+      if (!Arrays.equals(before[shard], after[shard])) {
+        changed++;
+      }
+    }
+    assertEquals(1, changed);
+
+    // nothing to write
+    vault.persist();
+    final byte[][] unchanged = readShards();
+    for (int shard = 0; shard < SHARDS; shard++) {
+      assertArrayEquals(after[shard], unchanged[shard]);
+    }
+  }
+
+  @Test
+  public void test_j_load() throws VaultInitializationException, VaultOperationException {
+    vault = createVault(SHARDS);
+    assertEquals(3, vault.read().size());
+    for (int i = 1; i <= 3; i++) {
+      final Optional<SecureEntry> entry = vault.read("key" + i);
+      assertTrue(entry.isPresent());
+      assertEquals("dummy" + i, vault.translate(entry.get()).getValue());
+    }
+  }
+
+  @Test(expected = VaultInitializationException.class)
+  public void test_k_loadDifferentShards() throws VaultInitializationException {
+    createVault(SHARDS * 2);
+  }
+
+  @Test(expected = VaultCorruptedException.class)
+  public void test_l_loadCorruption() throws IOException, VaultInitializationException {
+    // mess the contents of one of the shards with data - a single byte is enough
+    final byte[][] contents = readShards();
+    for (int shard = 0; shard < SHARDS; shard++) {
+      if (contents[shard].length > 0) {
+        final Path file = vaultDirectory.resolve(String.format("shard-%04d.vault", shard));
+        Files.write(file, Arrays.copyOf(contents[shard], contents[shard].length + 1));
+        break;
+      }
+    }
+    createVault(SHARDS);
+  }
+
+  @Test
+  public void test_m_exportSince() throws Exception {
+    vaultDirectory = Files.createTempDirectory("pt.davidafsilva.jvault.");
+    vaultDirectory.toFile().deleteOnExit();
+    vault = createVault(SHARDS);
+    for (int i = 1; i < 4; i++) {
+      vault.write(UnsecureEntry.of("key" + i, "dummy" + i));
+    }
+    vault.persist();
+    readShards();
+    vault = createVault(SHARDS);
+    final long watermark = vault.exportSince(0).mapToLong(EntryChange::getSequence).max()
+        .getAsLong();
+    for (int i = 4; i < 20; i++) {
+      vault.write(UnsecureEntry.of("key" + i, "dummy" + i));
+    }
+    vault.delete("key1");
+
+    // the changes of all the shards, in a single order
+    final List<EntryChange> changes = vault.exportSince(watermark).collect(toList());
+    assertEquals(17, changes.size());
+    for (int i = 0; i < 16; i++) {
+      assertEquals("key" + (i + 4), changes.get(i).getKey());
+      assertEquals(watermark + i + 1, changes.get(i).getSequence());
+    }
+    assertTrue(changes.get(16).isDeletion());
+  }
+
+  @Test
+  public void test_n_snapshot() throws Exception {
+    final SecureEntry key2 = vault.read("key2").get();
+    try (final VaultSnapshot snapshot = vault.snapshot()) {
+      vault.write(UnsecureEntry.of("key2", "changed"));
+      vault.delete("key3");
+      vault.write(UnsecureEntry.of("key99", "dummy99"));
+
+      // the snapshot of every shard is pinned to the same version
+      assertEquals(18, snapshot.read().size());
+      assertEquals(key2, snapshot.read("key2").get());
+      assertEquals("dummy2", snapshot.translate(key2).getValue());
+      assertTrue(snapshot.read("key3").isPresent());
+      assertFalse(snapshot.read("key99").isPresent());
+    }
+    assertEquals("changed", vault.translate(vault.read("key2").get()).getValue());
+    assertFalse(vault.read("key3").isPresent());
+  }
+
+  @AfterClass
+  public static void cleanUp() {
+    vault = null;
+    vaultDirectory = null;
+  }
+}
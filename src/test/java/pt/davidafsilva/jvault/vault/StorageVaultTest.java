@@ -0,0 +1,149 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.AfterClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for the vault backed by a pluggable storage
+ *
+ * @author David Silva
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class StorageVaultTest extends VaultTester<FileVault> {
+
+  // the storage location
+  private static final String LOCATION = "storage-vault-test";
+
+  // the vault
+  private static FileVault vault;
+
+  @Override
+  FileVault getVault() {
+    if (vault == null) {
+      try {
+        vault = createVault(LOCATION);
+      } catch (final VaultInitializationException e) {
+        e.printStackTrace();
+        fail(e.getMessage());
+      }
+    }
+    return vault;
+  }
+
+  /**
+   * Creates a new vault backed by the memory storage at the given location
+   *
+   * @param location the storage location
+   * @return the vault instance
+   */
+  private static FileVault createVault(final String location)
+      throws VaultInitializationException {
+    return (FileVault) VaultBuilder.create()
+        .storage(MemoryStorageProvider.NAME, location)
+        .password("12345678901234567890123456789012")
+        .salt("12345678")
+        .iterations(1024)
+        .build();
+  }
+
+  @Test
+  public void test_i_persist() throws Exception {
+    final MemoryStorageProvider.MemoryStorage storage = MemoryStorageProvider.storage(LOCATION);
+    vault.persist();
+    assertEquals(1, storage.appends);
+    assertEquals(2, storage.changes.size());
+
+    // only the changes since then are appended
+    vault.write(UnsecureEntry.of("key3", "dummy3"));
+    vault.delete("key3");
+    vault.persist();
+    assertEquals(2, storage.appends);
+    assertEquals(3, storage.changes.size());
+    assertTrue(storage.changes.get(2).isDeletion());
+
+    // nothing to append
+    vault.persist();
+    assertEquals(2, storage.appends);
+    assertEquals(0, storage.persists);
+  }
+
+  @Test
+  public void test_j_load() throws Exception {
+    vault = createVault(LOCATION);
+    assertEquals(2, vault.read().size());
+    final Optional<SecureEntry> entry1 = vault.read("key1");
+    final Optional<SecureEntry> entry2 = vault.read("key2");
+    assertTrue(entry1.isPresent());
+    assertTrue(entry2.isPresent());
+    assertFalse(vault.read("key3").isPresent());
+    assertEquals("dummy1", vault.translate(entry1.get()).getValue());
+    assertEquals("dummy2", vault.translate(entry2.get()).getValue());
+    assertEquals(3, vault.exportSince(0).count());
+  }
+
+  @Test
+  public void test_k_persistWithoutAppend() throws Exception {
+    final MemoryStorageProvider.MemoryStorage storage = MemoryStorageProvider.storage(LOCATION);
+    storage.appendable = false;
+    vault.write(UnsecureEntry.of("key4", "dummy4"));
+    vault.persist();
+    assertEquals(1, storage.persists);
+    assertEquals(4, storage.changes.size());
+    assertEquals(3, createVault(LOCATION).read().size());
+  }
+
+  @Test(expected = VaultInitializationException.class)
+  public void test_l_unknownProvider() throws VaultInitializationException {
+    VaultBuilder.create().storage("unknown", LOCATION).password("123").salt("321").build();
+  }
+
+  @AfterClass
+  public static void cleanUp() {
+    vault = null;
+  }
+}
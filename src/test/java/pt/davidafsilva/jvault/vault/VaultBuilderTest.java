@@ -39,9 +39,15 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Unit test for the vaults builder implementation
@@ -91,10 +97,18 @@ public class VaultBuilderTest {
   }
 
   @Test(expected = IllegalArgumentException.class)
-  public void test_invalidFile_doesNotExist() throws IOException {
+  public void test_invalidFile_doesNotExist() throws Exception {
     final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
     assertTrue(path.toFile().delete());
-    VaultBuilder.create().rawFile(path);
+    VaultBuilder.create().rawFile(path).password("abc").salt("123").build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_invalidFile_readOnlyDoesNotExist() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    assertTrue(path.toFile().delete());
+    // the read-only option is checked once built, regardless of its order
+    VaultBuilder.create().rawFile(path).readOnly().password("abc").salt("123").build();
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -111,10 +125,10 @@ public class VaultBuilderTest {
   }
 
   @Test(expected = IllegalArgumentException.class)
-  public void test_invalidFile_noWritePermissions() throws IOException {
+  public void test_invalidFile_noWritePermissions() throws Exception {
     final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
     assertTrue(path.toFile().setWritable(false));
-    VaultBuilder.create().rawFile(path);
+    VaultBuilder.create().rawFile(path).password("abc").salt("123").build();
   }
 
   @Test
@@ -153,4 +167,211 @@ public class VaultBuilderTest {
         .build();
     assertNotNull(vault);
   }
+
+  @Test
+  public void test_success_compressedFile() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    final FileVault vault = (FileVault) VaultBuilder.create()
+        .iterations(1024)
+        .rawFile(path)
+        .compressed()
+        .password("abc")
+        .salt("123")
+        .build();
+    vault.write(UnsecureEntry.of("key", "value"));
+    vault.persist();
+    assertTrue(VaultCompression.isCompressed(Files.readAllBytes(path)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_invalidWatchInterval() {
+    VaultBuilder.create().watched(0, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void test_success_watchedFile() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    final VaultBuilder builder = VaultBuilder.create()
+        .iterations(1024)
+        .rawFile(path)
+        .password("abc")
+        .salt("123");
+    final FileVault writer = (FileVault) builder.locked().build();
+    try (final FileVault watched = (FileVault) builder.watched(10, TimeUnit.MILLISECONDS)
+        .build()) {
+      writer.write(UnsecureEntry.of("key", "value"));
+      writer.persist();
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (!watched.read("key").isPresent() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(watched.read("key").isPresent());
+    }
+    assertTrue(Files.exists(VaultFileLock.lockFile(path)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_invalidBatchInterval() {
+    VaultBuilder.create().durability(DurabilityPolicy.batched(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void test_success_durableFile() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    final VaultBuilder builder = VaultBuilder.create()
+        .iterations(1024)
+        .rawFile(path)
+        .password("abc")
+        .salt("123");
+    final FileVault vault = (FileVault) builder
+        .durability(DurabilityPolicy.batched(5, TimeUnit.MILLISECONDS))
+        .build();
+    vault.write(UnsecureEntry.of("key", "value"));
+    vault.persist();
+    final Vault loaded = builder.durability(DurabilityPolicy.FSYNC).build();
+    assertEquals("value", loaded.translate(loaded.read("key").get()).getValue());
+  }
+
+  @Test
+  public void test_success_orderedFile() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    final VaultBuilder builder = VaultBuilder.create()
+        .iterations(1024)
+        .rawFile(path)
+        .ordered()
+        .password("abc")
+        .salt("123");
+    final FileVault vault = (FileVault) builder.build();
+    vault.write(UnsecureEntry.of("a/1", "1"));
+    vault.write(UnsecureEntry.of("b/1", "2"));
+    vault.write(UnsecureEntry.of("a/2", "3"));
+    vault.persist();
+    final SortedVault loaded = (SortedVault) builder.build();
+    assertEquals(2, loaded.readPrefix("a/", 10).size());
+    assertEquals("b/1", loaded.readRange("a/3", null, 10).get(0).getKey());
+  }
+
+  @Test
+  public void test_success_frozenFile() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".frozen");
+    final Vault source = VaultBuilder.create()
+        .iterations(1024)
+        .password("abc")
+        .salt("123")
+        .build();
+    source.write(UnsecureEntry.of("key", "value"));
+    source.freeze(path);
+    final Vault vault = VaultBuilder.create()
+        .iterations(1024)
+        .frozenFile(path)
+        .password("abc")
+        .salt("123")
+        .build();
+    assertEquals("value", vault.translate(vault.read("key").get()).getValue());
+  }
+
+  @Test
+  public void test_success_readOnlyFile() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    final FileVault source = (FileVault) VaultBuilder.create()
+        .iterations(1024)
+        .rawFile(path)
+        .password("abc")
+        .salt("123")
+        .build();
+    for (int i = 0; i < 100; i++) {
+      source.write(UnsecureEntry.of("key" + i, "value" + i));
+    }
+    source.persist();
+    path.toFile().setWritable(false);
+
+    final FileVault vault = (FileVault) VaultBuilder.create()
+        .iterations(1024)
+        .rawFile(path)
+        .readOnly()
+        .password("abc")
+        .salt("123")
+        .build();
+    assertEquals(100, vault.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("value" + i, vault.translate(vault.read("key" + i).get()).getValue());
+    }
+    assertFalse(vault.containsKey("key100"));
+    try {
+      vault.write(UnsecureEntry.of("key", "value"));
+      fail("the read-only vault was changed");
+    } catch (final UnsupportedOperationException e) {
+      // expected
+    }
+    vault.persist();
+    assertEquals(100, vault.read().size());
+  }
+
+  @Test
+  public void test_success_backupFile() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    final VaultBuilder builder = VaultBuilder.create()
+        .iterations(1024)
+        .rawFile(path)
+        .backup()
+        .password("abc")
+        .salt("123");
+    final FileVault vault = (FileVault) builder.build();
+    vault.write(UnsecureEntry.of("a", "1"));
+    vault.persist();
+    vault.write(UnsecureEntry.of("b", "2"));
+    vault.persist();
+    final Path backup = AbstractFileVault.backupFile(path);
+    assertTrue(Files.exists(backup));
+    assertTrue(AbstractFileVault.temporaryFiles(path).isEmpty());
+
+    // an interrupted persist is discarded, but only while holding the exclusive lock
+    Files.write(AbstractFileVault.temporaryFile(path), new byte[]{1, 2, 3});
+    assertEquals(2, builder.build().read().size());
+    assertEquals(1, AbstractFileVault.temporaryFiles(path).size());
+    assertEquals(2, builder.locked().build().read().size());
+    assertTrue(AbstractFileVault.temporaryFiles(path).isEmpty());
+
+    // the corrupted vault file is restored from the previous generation
+    final byte[] data = Files.readAllBytes(path);
+    data[data.length / 2] ^= 1;
+    Files.write(path, data);
+    final FileVault restored = (FileVault) builder.build();
+    assertTrue(restored.read("a").isPresent());
+    assertFalse(restored.read("b").isPresent());
+    restored.write(UnsecureEntry.of("c", "3"));
+    restored.persist();
+    assertEquals(2, builder.build().read().size());
+    // the backup of the restored vault is kept
+    assertEquals(1, ((FileVault) VaultBuilder.create()
+        .iterations(1024)
+        .rawFile(backup)
+        .password("abc")
+        .salt("123")
+        .build()).read().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_invalidShards() throws IOException {
+    final Path path = Files.createTempDirectory("pt.davidafsilva.jvault.");
+    VaultBuilder.create().shardedFile(path, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_invalidShardedFile_notDirectory() throws IOException {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    VaultBuilder.create().shardedFile(path, 4);
+  }
+
+  @Test
+  public void test_success_shardedFile() throws VaultInitializationException, IOException {
+    final Path path = Files.createTempDirectory("pt.davidafsilva.jvault.");
+    final Vault vault = VaultBuilder.create()
+        .iterations(1024)
+        .shardedFile(path, 4)
+        .password("abc")
+        .salt("123")
+        .build();
+    assertNotNull(vault);
+  }
 }
@@ -0,0 +1,186 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import pt.davidafsilva.jvault.model.EntryChange;
+import pt.davidafsilva.jvault.model.SecureEntry;
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for the file vaults converter
+ *
+ * @author David Silva
+ */
+public class VaultConverterTest {
+
+  // the vault settings
+  private static final String PASSWORD = "12345678901234567890123456789012";
+  private static final String SALT = "12345678";
+  private static final int ITERATIONS = 1024;
+
+  // the source vault file
+  private static Path source;
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    source = createTempFile();
+    final FileVault vault = new XmlFileVault(PASSWORD, SALT, ITERATIONS, 128, source);
+    for (int i = 0; i < 10; i++) {
+      vault.write(UnsecureEntry.of("key" + i, "value" + i));
+    }
+    vault.persist();
+  }
+
+  /**
+   * Creates a temporary vault file
+   *
+   * @return the temporary file
+   */
+  private static Path createTempFile() throws IOException {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    return path;
+  }
+
+  /**
+   * Creates a converter with the vault settings
+   *
+   * @return the converter
+   */
+  private static VaultConverter converter() {
+    return VaultConverter.create().password(PASSWORD).salt(SALT).iterations(ITERATIONS);
+  }
+
+  /**
+   * Asserts that the given vault has the source entries
+   *
+   * @param vault the vault
+   */
+  private static void assertEntries(final FileVault vault) throws VaultOperationException {
+    assertEquals(10, vault.read().size());
+    for (int i = 0; i < 10; i++) {
+      final Optional<SecureEntry> entry = vault.read("key" + i);
+      assertTrue(entry.isPresent());
+      assertEquals("value" + i, vault.translate(entry.get()).getValue());
+    }
+  }
+
+  @Test
+  public void test_xmlToRaw() throws Exception {
+    final Path target = createTempFile();
+    final VaultConverter.Report report = converter().fromXmlFile(source).toRawFile(target)
+        .convert();
+    assertEquals(10, report.getEntries());
+    assertEntries(new ByteFileVault(PASSWORD, SALT, ITERATIONS, 128, target));
+  }
+
+  @Test
+  public void test_xmlToRawToJson() throws Exception {
+    final Path raw = createTempFile();
+    final Path target = createTempFile();
+    converter().fromXmlFile(source).toRawFile(raw).convert();
+    converter().fromRawFile(raw).toJsonFile(target).convert();
+    assertEntries(new JsonFileVault(PASSWORD, SALT, ITERATIONS, 128, target));
+  }
+
+  @Test
+  public void test_compressed() throws Exception {
+    final Path compressed = createTempFile();
+    final Path target = createTempFile();
+    converter().fromXmlFile(source).toRawFile(compressed).compressed().convert();
+    assertTrue(VaultCompression.isCompressed(Files.readAllBytes(compressed)));
+    converter().fromRawFile(compressed).toJsonFile(target).convert();
+    assertFalse(VaultCompression.isCompressed(Files.readAllBytes(target)));
+    assertEntries(new JsonFileVault(PASSWORD, SALT, ITERATIONS, 128, target));
+  }
+
+  @Test
+  public void test_changesKept() throws Exception {
+    final Path changed = createTempFile();
+    final FileVault vault = new XmlFileVault(PASSWORD, SALT, ITERATIONS, 128, changed);
+    vault.write(UnsecureEntry.of("key0", "value0"));
+    vault.write(UnsecureEntry.of("key1", "value1"));
+    vault.delete("key0");
+    vault.persist();
+
+    final Path target = createTempFile();
+    converter().fromXmlFile(changed).toRawFile(target).convert();
+    final List<EntryChange> expected = vault.exportSince(0).collect(toList());
+    final List<EntryChange> converted = new ByteFileVault(PASSWORD, SALT, ITERATIONS, 128, target)
+        .exportSince(0).collect(toList());
+    assertEquals(expected, converted);
+    assertTrue(converted.get(1).isDeletion());
+    assertEquals(expected.get(0).getTimestamp(), converted.get(0).getTimestamp());
+  }
+
+  @Test(expected = VaultCorruptedException.class)
+  public void test_invalidPassword() throws Exception {
+    converter().password("dummy").fromXmlFile(source).toRawFile(createTempFile()).convert();
+  }
+
+  @Test
+  public void test_corruptedSource() throws Exception {
+    final Path corrupted = createTempFile();
+    final byte[] data = Files.readAllBytes(source);
+    data[data.length / 2] ^= 0x01;
+    Files.write(corrupted, data);
+    final Path target = createTempFile();
+    assertTrue(target.toFile().delete());
+    try {
+      converter().fromXmlFile(corrupted).toJsonFile(target).convert();
+    } catch (final VaultCorruptedException e) {
+      // expected
+    }
+    assertFalse(Files.exists(target));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void test_missingTarget() throws Exception {
+    converter().fromXmlFile(source).convert();
+  }
+}
@@ -0,0 +1,193 @@
+package pt.davidafsilva.jvault.vault;
+
+/*
+ * #%L
+ * jVault
+ * %%
+ * Copyright (C) 2014 David Silva
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the David Silva nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import pt.davidafsilva.jvault.model.UnsecureEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit test for the vault registry
+ *
+ * @author David Silva
+ */
+public class VaultRegistryTest {
+
+  @Test
+  public void test_sharedKeys() throws Exception {
+    try (final VaultRegistry registry = VaultRegistry.of(10, 0)) {
+      registry.register("a", builder(file()));
+      registry.register("b", builder(file()));
+      registry.register("c", builder(file()).password("other"));
+      registry.open(Arrays.asList("a", "b", "c"));
+      assertEquals(3, registry.getOpenCount());
+      assertEquals(2, registry.getDerivedKeyCount());
+    }
+  }
+
+  @Test
+  public void test_evictLeastRecentlyUsed() throws Exception {
+    try (final VaultRegistry registry = VaultRegistry.of(2, 0)) {
+      for (final String name : Arrays.asList("a", "b", "c")) {
+        registry.register(name, builder(file()));
+        try (final VaultRegistry.Lease lease = registry.acquire(name)) {
+          lease.getVault().write(UnsecureEntry.of("tenant", name));
+        }
+      }
+      assertEquals(2, registry.getOpenCount());
+
+      // the evicted vault was persisted, thus it's reopened as it was
+      try (final VaultRegistry.Lease lease = registry.acquire("a")) {
+        final Vault vault = lease.getVault();
+        assertEquals("a", vault.translate(vault.read("tenant").get()).getValue());
+      }
+      assertEquals(2, registry.getOpenCount());
+    }
+  }
+
+  @Test
+  public void test_evictKeys() throws Exception {
+    try (final VaultRegistry registry = VaultRegistry.of(1, 0)) {
+      registry.register("a", builder(file()));
+      registry.register("b", builder(file()).password("other"));
+      registry.acquire("a").close();
+      assertEquals(1, registry.getDerivedKeyCount());
+
+      // the key of the evicted vault is evicted along with it
+      registry.acquire("b").close();
+      assertEquals(1, registry.getOpenCount());
+      assertEquals(1, registry.getDerivedKeyCount());
+    }
+  }
+
+  @Test
+  public void test_leasedNotEvicted() throws Exception {
+    try (final VaultRegistry registry = VaultRegistry.of(1, 0)) {
+      registry.register("a", builder(file()));
+      registry.register("b", builder(file()));
+      try (final VaultRegistry.Lease a = registry.acquire("a");
+           final VaultRegistry.Lease b = registry.acquire("b")) {
+        assertEquals(2, registry.getOpenCount());
+        assertNotSame(a.getVault(), b.getVault());
+        try (final VaultRegistry.Lease again = registry.acquire("a")) {
+          assertSame(a.getVault(), again.getVault());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void test_closed() throws Exception {
+    final VaultRegistry registry = VaultRegistry.of(10, 0);
+    registry.register("a", builder(file()));
+    registry.close();
+    try {
+      registry.open(Collections.singletonList("a"));
+      fail("the registry is closed");
+    } catch (final IllegalStateException e) {
+      assertEquals("The registry is closed", e.getMessage());
+    }
+    try {
+      registry.acquire("a");
+      fail("the registry is closed");
+    } catch (final IllegalStateException e) {
+      assertEquals("The registry is closed", e.getMessage());
+    }
+    assertEquals(0, registry.getOpenCount());
+  }
+
+  @Test
+  public void test_evictIdle() throws Exception {
+    try (final VaultRegistry registry = VaultRegistry.of(10, 1)) {
+      registry.register("a", builder(file()));
+      registry.register("memory", builder(null));
+      registry.open(Arrays.asList("a", "memory"));
+      Thread.sleep(50);
+      registry.evictIdle();
+      // the in-memory vaults cannot be reopened, thus they're never evicted
+      assertEquals(1, registry.getOpenCount());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_unknownVault() throws Exception {
+    try (final VaultRegistry registry = VaultRegistry.of(1, 0)) {
+      registry.acquire("unknown");
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_duplicateVault() throws Exception {
+    try (final VaultRegistry registry = VaultRegistry.of(1, 0)) {
+      registry.register("a", builder(null));
+      registry.register("a", builder(null));
+    }
+  }
+
+  /**
+   * Creates a new temporary vault file
+   *
+   * @return the vault file
+   */
+  private static Path file() throws Exception {
+    final Path path = Files.createTempFile("pt.davidafsilva.jvault.", ".vault");
+    path.toFile().deleteOnExit();
+    return path;
+  }
+
+  /**
+   * Creates the builder of a vault with the test credentials
+   *
+   * @param path the vault file, {@code null} for an in-memory vault
+   * @return the vault builder
+   */
+  private static VaultBuilder builder(final Path path) {
+    final VaultBuilder builder = VaultBuilder.create()
+        .iterations(1024)
+        .password("abc")
+        .salt("123");
+    return path == null ? builder : builder.rawFile(path);
+  }
+}
@@ -35,12 +35,18 @@ package pt.davidafsilva.jvault.vault;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import pt.davidafsilva.jvault.model.SecureEntry;
 import pt.davidafsilva.jvault.model.UnsecureEntry;
 
+import static java.util.stream.Collectors.toList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -134,5 +140,75 @@ abstract class VaultTester<T extends Vault> {
     assertEquals(secureEntry1, getVault().read(secureEntry1.getKey()).get());
     assertEquals(secureEntry2, getVault().read(secureEntry2.getKey()).get());
   }
-}
 
+  @Test
+  public void test_h_writeTwoScan() {
+    final List<String> keys = getVault().read().stream().map(SecureEntry::getKey).sorted()
+        .collect(toList());
+    assertEquals(2, getVault().size());
+    assertEquals(2, getVault().stream().count());
+    assertTrue(getVault().containsKey("key1"));
+    assertFalse(getVault().containsKey("key3"));
+
+    // paginate through the entries
+    final List<String> scanned = new ArrayList<>();
+    List<SecureEntry> page = getVault().scan(null, 1);
+    while (!page.isEmpty()) {
+      assertEquals(1, page.size());
+      scanned.add(page.get(0).getKey());
+      page = getVault().scan(page.get(0).getKey(), 1);
+    }
+    assertEquals(keys, scanned);
+    assertEquals(2, getVault().scan(null, 10).size());
+    assertTrue(getVault().scan(null, 0).isEmpty());
+  }
+
+  @Test
+  public void test_z_atomicUpdates() throws VaultOperationException {
+    // put if absent
+    assertFalse(getVault().putIfAbsent(UnsecureEntry.of("atomic", "1")).isPresent());
+    final Optional<SecureEntry> existing = getVault().putIfAbsent(UnsecureEntry.of("atomic", "2"));
+    assertTrue(existing.isPresent());
+    assertEquals(getVault().read("atomic").get(), existing.get());
+    assertEquals("1", getVault().translate(existing.get()).getValue());
+    // replace, only if the entry is the expected one
+    assertFalse(getVault().replace("atomic", SecureEntry.of("atomic", "1"), "3").isPresent());
+    final Optional<SecureEntry> replaced = getVault().replace("atomic", existing.get(), "3");
+    assertTrue(replaced.isPresent());
+    assertEquals("3", getVault().translate(replaced.get()).getValue());
+    assertFalse(getVault().replace("atomic", existing.get(), "4").isPresent());
+    // compute
+    final Optional<SecureEntry> computed = getVault().compute("atomic", v -> v.map(s -> s + "4"));
+    assertEquals("34", getVault().translate(computed.get()).getValue());
+    assertEquals(computed, getVault().compute("atomic", v -> v));
+    assertFalse(getVault().compute("atomic", v -> Optional.empty()).isPresent());
+    assertFalse(getVault().read("atomic").isPresent());
+    assertFalse(getVault().compute("atomic", v -> Optional.empty()).isPresent());
+  }
+
+  @Test
+  public void test_z_concurrentCompute() throws Exception {
+    final int threads = 4;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(() -> {
+          for (int j = 0; j < 25; j++) {
+            getVault().compute("counter", v -> Optional.of(
+                String.valueOf(Integer.parseInt(v.orElse("0")) + 1)));
+          }
+          return null;
+        }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // no increment was lost
+    assertEquals("100", getVault().translate(getVault().read("counter").get()).getValue());
+    assertTrue(getVault().delete("counter").isPresent());
+  }
+}